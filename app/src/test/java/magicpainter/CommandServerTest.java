@@ -0,0 +1,145 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sends commands to a CommandServer over a socket and drains them the way
+ * the DrawQueue does, checking that clears are held to the stars per pulse
+ * like stars are and that reused batches don't keep old colors.
+ *
+ * @author sylverk @ github
+ */
+class CommandServerTest {
+
+    /**
+     * Handler that counts what it is handed.
+     */
+    private static final class Counter implements CommandServer.Handler {
+
+        /**
+         * int describing how many stars were handed over.
+         */
+        int stars;
+
+        /**
+         * int describing how many clears were handed over.
+         */
+        int clears;
+
+        /**
+         * Counts the stars and checks that the palette of the batch holds
+         * only the swatches and the colors of its own stars.
+         *
+         * @param batch is the batch.
+         */
+        @Override
+        public void stars(StarStore batch) {
+            Set<Integer> colors = new HashSet<>();
+            for (int i = 0; i < batch.size(); i++) {
+                colors.add(batch.getColor(i));
+            }
+            assertTrue(batch.getPalette().size() <= Palette.DEFAULT_COLORS.length + colors.size(),
+                    batch.getPalette().size() + " colors for a batch using " + colors.size());
+            stars += batch.size();
+        }
+
+        /**
+         * Counts the clear.
+         */
+        @Override
+        public void clear() {
+            clears++;
+        }
+    }
+
+    /**
+     * Sends lines to the server.
+     *
+     * @param server is the server.
+     * @param text is the lines.
+     * @throws IOException if they can't be sent.
+     */
+    private static void send(CommandServer server, String text) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    /**
+     * Drains until a number of commands were handed over.
+     *
+     * @param server is the server.
+     * @param ready is released by the server whenever commands are waiting.
+     * @param counter is the handler.
+     * @param stars is the number of stars to wait for.
+     * @param clears is the number of clears to wait for.
+     * @param perDrain is the most clears one drain may hand over.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void drain(CommandServer server, Semaphore ready, Counter counter, int stars, int clears,
+            int perDrain) throws InterruptedException {
+        while (counter.stars < stars || counter.clears < clears) {
+            assertTrue(ready.tryAcquire(10, TimeUnit.SECONDS), "commands didn't arrive");
+            boolean more = true;
+            while (more) {
+                int before = counter.clears;
+                more = server.drain(counter);
+                assertTrue(counter.clears - before <= perDrain, (counter.clears - before) + " clears in one drain");
+            }
+        }
+        assertEquals(stars, counter.stars);
+        assertEquals(clears, counter.clears);
+    }
+
+    /**
+     * A burst of clears is spread over pulses like a burst of stars.
+     *
+     * @throws Exception if the server can't be used.
+     */
+    @Test
+    void countsClearsPerPulse() throws Exception {
+        Semaphore ready = new Semaphore(0);
+        try (CommandServer server = new CommandServer(0, ready::release)) {
+            int clears = 3 * CommandServer.PULSE_STARS / CommandServer.CLEAR_STARS;
+            send(server, "clear\n".repeat(clears));
+            drain(server, ready, new Counter(), 0, clears, CommandServer.PULSE_STARS / CommandServer.CLEAR_STARS);
+        }
+    }
+
+    /**
+     * Batches are reused once drained, and must not bring the colors of
+     * the stars they held before along.
+     *
+     * @throws Exception if the server can't be used.
+     */
+    @Test
+    void reusedBatchesForgetColors() throws Exception {
+        Semaphore ready = new Semaphore(0);
+        try (CommandServer server = new CommandServer(0, ready::release)) {
+            Counter counter = new Counter();
+            for (int round = 1; round <= 4; round++) {
+                // new colors every round
+                StringBuilder lines = new StringBuilder();
+                for (int k = 0; k < 500; k++) {
+                    lines.append(String.format("color %06x%nplace %d,%d%n", (round * 500 + k) * 7919 & 0xFFFFFF, k, k));
+                }
+                send(server, lines.toString());
+                drain(server, ready, counter, 500 * round, 0, 0);
+            }
+        }
+    }
+}
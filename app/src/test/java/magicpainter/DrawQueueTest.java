@@ -0,0 +1,191 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javafx.application.Platform;
+import javafx.scene.canvas.Canvas;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that undo and redo running in the background hold the rest of the
+ * DrawQueue back: stars and commands queued after them land after them, in
+ * order, as if the undo or redo had run right away, including stars of a
+ * color the painting didn't have yet. Also checks that a clear keeps the
+ * stars queued before it.
+ *
+ * @author sylverk @ github
+ */
+class DrawQueueTest {
+
+    /**
+     * int describing the width and height of the painting.
+     */
+    private static final int SIDE = 512;
+
+    /**
+     * Starts JavaFX, which the queue and its canvas need.
+     *
+     * @throws InterruptedException if interrupted while waiting for it.
+     */
+    @BeforeAll
+    static void startFx() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            Platform.startup(started::countDown);
+        } catch (IllegalStateException e) {
+            // already started by another test
+            started.countDown();
+        }
+        assertTrue(started.await(30, TimeUnit.SECONDS), "JavaFX didn't start");
+    }
+
+    /**
+     * Runs something on the FX thread and waits for it.
+     *
+     * @param action is what to run.
+     * @return what it returned.
+     * @throws Exception if it threw or took too long.
+     */
+    private static <T> T fx(Supplier<T> action) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(action.get());
+            } catch (Throwable x) {
+                result.completeExceptionally(x);
+            }
+        });
+        return result.get(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Makes a batch of random stars.
+     *
+     * @param palette is the palette of the painting.
+     * @param random is where the stars come from.
+     * @param count is the number of stars.
+     * @return StarStore holding the stars.
+     */
+    private static StarStore stars(Palette palette, SplittableRandom random, int count) {
+        StarStore stars = new StarStore(palette);
+        int color = palette.indexOf(0xFFFFBB19);
+        for (int k = 0; k < count; k++) {
+            stars.add(5 + random.nextDouble(60), random.nextDouble(SIDE), random.nextDouble(SIDE), color);
+        }
+        return stars;
+    }
+
+    /**
+     * Gets every pixel of a painting.
+     *
+     * @param painting is the painting.
+     * @return int[] the premultiplied ARGB pixels, SIDE pixels a row.
+     */
+    private static int[] pixels(Painting painting) {
+        int[] pixels = new int[SIDE * SIDE];
+        TiledSurface surface = painting.getSurface();
+        surface.markDirty(0, 0, SIDE, SIDE);
+        surface.present(0, 0, SIDE, SIDE, (x, y, w, h, tile, offset, stride) -> {
+            for (int row = 0; row < h; row++) {
+                if (tile != null) {
+                    tile.get(offset + row * stride, pixels, (y + row) * SIDE + x, w);
+                }
+            }
+        });
+        return pixels;
+    }
+
+    /**
+     * Undoes a stroke, redoes it and undoes it again with stars queued after,
+     * one of them in a new color, and compares with doing the same on a
+     * painting directly.
+     *
+     * @throws Exception if the FX thread can't be used.
+     */
+    @Test
+    void holdsTheQueueWhileReplaying() throws Exception {
+        Painting painting = new Painting(SIDE, SIDE, false, 64L << 20);
+        DrawQueue queue = fx(() -> new DrawQueue(painting, new Canvas(SIDE, SIDE)));
+        SplittableRandom random = new SplittableRandom(3);
+        StarStore first = stars(painting.getPalette(), random, 3000);
+        StarStore second = stars(painting.getPalette(), random, 3000);
+        StarStore third = stars(painting.getPalette(), random, 500);
+        fx(() -> {
+            queue.queueAll(first);
+            queue.post(queue::newStep);
+            queue.queueAll(second);
+            queue.post(queue::newStep);
+            queue.post(() -> assertTrue(queue.undo()));
+            queue.post(() -> assertTrue(queue.redo()));
+            queue.post(() -> assertTrue(queue.undo()));
+            queue.queueAll(third);
+            queue.flush();
+            return null;
+        });
+        // most likely while the undo runs
+        fx(() -> {
+            queue.queue(40, SIDE / 2, SIDE / 2, 0xFF123456);
+            return null;
+        });
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (fx(() -> {
+            queue.flush();
+            return painting.getStars().size();
+        }) != first.size() + third.size() + 1) {
+            assertTrue(System.nanoTime() < end, "the queue didn't catch up");
+            Thread.sleep(10);
+        }
+
+        Painting direct = new Painting(SIDE, SIDE, false, 64L << 20);
+        direct.add(first);
+        direct.newStep();
+        direct.add(second);
+        direct.newStep();
+        direct.undo();
+        direct.redo();
+        direct.undo();
+        direct.add(third);
+        StarStore last = new StarStore(direct.getPalette());
+        last.add(40, SIDE / 2, SIDE / 2, direct.getPalette().indexOf(0xFF123456));
+        direct.add(last);
+        assertEquals(direct.getStars().size(), painting.getStars().size());
+        assertArrayEquals(pixels(direct), fx(() -> pixels(painting)));
+    }
+
+    /**
+     * Stars queued right before a clear belong to the step being cleared, so
+     * undoing the clear brings them back.
+     *
+     * @throws Exception if the FX thread can't be used.
+     */
+    @Test
+    void clearKeepsQueuedStars() throws Exception {
+        Painting painting = new Painting(SIDE, SIDE, false, 64L << 20);
+        DrawQueue queue = fx(() -> new DrawQueue(painting, new Canvas(SIDE, SIDE)));
+        StarStore stars = stars(painting.getPalette(), new SplittableRandom(5), 200);
+        fx(() -> {
+            queue.queueAll(stars);
+            queue.clear();
+            queue.post(queue::newStep);
+            queue.post(() -> assertTrue(queue.undo()));
+            queue.flush();
+            return null;
+        });
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (fx(() -> {
+            queue.flush();
+            return painting.getStars().size();
+        }) != stars.size()) {
+            assertTrue(System.nanoTime() < end, "the clear wasn't undone");
+            Thread.sleep(10);
+        }
+    }
+}
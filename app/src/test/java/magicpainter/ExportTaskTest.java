@@ -0,0 +1,138 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javafx.application.Platform;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that an export of a painting with layers, blended on the task's own
+ * thread, has exactly the pixels the composite shows over the background,
+ * including tiles of an opened document that were never drawn.
+ *
+ * @author sylverk @ github
+ */
+class ExportTaskTest {
+
+    /**
+     * int describing the width of the painting.
+     */
+    private static final int WIDTH = 1024;
+
+    /**
+     * int describing the height of the painting.
+     */
+    private static final int HEIGHT = 768;
+
+    /**
+     * A directory for the image, deleted after each test.
+     */
+    @TempDir
+    Path dir;
+
+    /**
+     * Starts JavaFX, which the task reports its progress to.
+     *
+     * @throws InterruptedException if interrupted while waiting for it.
+     */
+    @BeforeAll
+    static void startFx() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            Platform.startup(started::countDown);
+        } catch (IllegalStateException e) {
+            // already started by another test
+            started.countDown();
+        }
+        assertTrue(started.await(30, TimeUnit.SECONDS), "JavaFX didn't start");
+    }
+
+    /**
+     * Makes a batch of random stars.
+     *
+     * @param palette is the palette of the painting.
+     * @param random is where the stars come from.
+     * @param count is the number of stars.
+     * @return StarStore holding the stars.
+     */
+    private static StarStore stars(Palette palette, SplittableRandom random, int count) {
+        StarStore stars = new StarStore(palette);
+        int[] colors = {palette.indexOf(0xFFFFBB19), palette.indexOf(0x80E84A5F), palette.indexOf(0xFF3A7BD5)};
+        for (int k = 0; k < count; k++) {
+            stars.add(5 + random.nextDouble(150), random.nextDouble(WIDTH), random.nextDouble(HEIGHT),
+                    colors[random.nextInt(colors.length)]);
+        }
+        return stars;
+    }
+
+    /**
+     * Exports an opened document with a faded layer and a hidden one over it
+     * and compares with blending the layers the way the canvas does.
+     *
+     * @throws Exception if the image can't be written or read.
+     */
+    @Test
+    void blendsLayersLikeTheCanvas() throws Exception {
+        Painting painting = new Painting(WIDTH, HEIGHT, false, 64L << 20);
+        SplittableRandom random = new SplittableRandom(5);
+        StarStore opened = stars(painting.getPalette(), random, 3000);
+        painting.open(painting.load(opened, opened.size()));
+        Layer faded = painting.addLayer();
+        painting.setActiveLayer(faded);
+        painting.add(stars(painting.getPalette(), random, 2000));
+        painting.setOpacity(faded, 0.6);
+        Layer hidden = painting.addLayer();
+        painting.setActiveLayer(hidden);
+        painting.add(stars(painting.getPalette(), random, 2000));
+        painting.setVisible(hidden, false);
+
+        Path file = dir.resolve("painting.png");
+        ExportTask task = new ExportTask(painting, file, WIDTH, HEIGHT);
+        assertEquals(WIDTH * HEIGHT, task.call());
+        BufferedImage image = ImageIO.read(file.toFile());
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+
+        painting.compose(0, 0, WIDTH, HEIGHT);
+        int[] expected = new int[WIDTH * HEIGHT];
+        TiledSurface surface = painting.getSurface();
+        surface.markDirty(0, 0, WIDTH, HEIGHT);
+        surface.present(0, 0, WIDTH, HEIGHT, (x, y, w, h, tile, offset, stride) -> {
+            for (int row = 0; row < h; row++) {
+                if (tile != null) {
+                    tile.get(offset + row * stride, expected, (y + row) * WIDTH + x, w);
+                }
+            }
+        });
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(onBackground(expected[y * WIDTH + x]), image.getRGB(x, y) & 0xFFFFFF, "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    /**
+     * Puts a premultiplied pixel over the canvas background color.
+     *
+     * @param argb is the premultiplied pixel.
+     * @return int the RGB of the result.
+     */
+    private static int onBackground(int argb) {
+        int keep = 255 - (argb >>> 24);
+        int rgb = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int v = ((HeadlessRender.BACKGROUND >> shift) & 0xFF) * keep + 128;
+            rgb |= (((argb >> shift) & 0xFF) + ((v + (v >> 8)) >> 8)) << shift;
+        }
+        return rgb;
+    }
+}
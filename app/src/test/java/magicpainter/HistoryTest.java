@@ -0,0 +1,155 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks undo and redo through a Painting: after undoing a step the stars
+ * and pixels have to be exactly what they were before it, and after redoing
+ * it what they were after it, across adds, erases and clears and over
+ * enough stars that checkpoints are taken.
+ *
+ * @author sylverk @ github
+ */
+class HistoryTest {
+
+    /**
+     * int describing the width and height of the painting.
+     */
+    private static final int SIDE = 1024;
+
+    /**
+     * int describing how many steps are taken.
+     */
+    private static final int STEPS = 16;
+
+    /**
+     * Gets every pixel of the painting.
+     *
+     * @param painting is the painting.
+     * @return int[] the premultiplied ARGB pixels, SIDE pixels a row.
+     */
+    private static int[] pixels(Painting painting) {
+        int[] pixels = new int[SIDE * SIDE];
+        TiledSurface surface = painting.getSurface();
+        surface.markDirty(0, 0, SIDE, SIDE);
+        surface.present(0, 0, SIDE, SIDE, (x, y, w, h, tile, offset, stride) -> {
+            for (int row = 0; row < h; row++) {
+                if (tile != null) {
+                    tile.get(offset + row * stride, pixels, (y + row) * SIDE + x, w);
+                }
+            }
+        });
+        return pixels;
+    }
+
+    /**
+     * Gets the stars shown in the painting.
+     *
+     * @param painting is the painting.
+     * @return float[] size, x, y and color of each star that isn't erased.
+     */
+    private static float[] stars(Painting painting) {
+        StarStore stars = painting.getStars();
+        List<Float> shown = new ArrayList<>();
+        for (int i = 0; i < stars.size(); i++) {
+            if (!stars.isRemoved(i)) {
+                shown.add(stars.getSize(i));
+                shown.add(stars.getX(i));
+                shown.add(stars.getY(i));
+                shown.add((float) stars.getPalette().get(stars.getColor(i)));
+            }
+        }
+        float[] out = new float[shown.size()];
+        for (int k = 0; k < out.length; k++) {
+            out[k] = shown.get(k);
+        }
+        return out;
+    }
+
+    /**
+     * Makes one random change to the painting as a step of its own: mostly
+     * strokes of stars, sometimes erasing, and one clear.
+     *
+     * @param painting is the painting.
+     * @param step is the number of the step.
+     * @param random is where the change comes from.
+     */
+    private static void change(Painting painting, int step, SplittableRandom random) {
+        painting.newStep();
+        if (step == STEPS / 2) {
+            painting.clear();
+        } else if (step % 4 == 3) {
+            for (int k = 0; k < 20; k++) {
+                painting.erase(random.nextDouble(SIDE), random.nextDouble(SIDE), 40);
+            }
+        } else {
+            StarStore batch = new StarStore(painting.getPalette());
+            int color = painting.getPalette().indexOf(random.nextBoolean() ? 0xFFFFBB19 : 0x803A7BD5);
+            double x = random.nextDouble(SIDE);
+            double y = random.nextDouble(SIDE);
+            for (int k = 0; k < 1500; k++) {
+                x = Math.floorMod((long) (x + random.nextDouble(-8, 8)), SIDE) + random.nextDouble();
+                y = Math.floorMod((long) (y + random.nextDouble(-8, 8)), SIDE) + random.nextDouble();
+                batch.add(10 + random.nextInt(60), x, y, color);
+            }
+            painting.add(batch);
+        }
+    }
+
+    /**
+     * Takes the steps, undoes all of them and redoes all of them, comparing
+     * with what the painting was after each step.
+     */
+    @Test
+    void undoAndRedoRestoreEachStep() {
+        Painting painting = new Painting(SIDE, SIDE, false, 256L << 20);
+        SplittableRandom random = new SplittableRandom(17);
+        List<int[]> pixels = new ArrayList<>();
+        List<float[]> stars = new ArrayList<>();
+        pixels.add(pixels(painting));
+        stars.add(stars(painting));
+        for (int step = 1; step <= STEPS; step++) {
+            change(painting, step, random);
+            pixels.add(pixels(painting));
+            stars.add(stars(painting));
+        }
+
+        for (int step = STEPS; step > 0; step--) {
+            assertTrue(painting.undo(), "undo of step " + step);
+            assertArrayEquals(stars.get(step - 1), stars(painting), "stars after undoing step " + step);
+            assertArrayEquals(pixels.get(step - 1), pixels(painting), "pixels after undoing step " + step);
+        }
+        assertFalse(painting.undo());
+
+        for (int step = 1; step <= STEPS; step++) {
+            assertTrue(painting.redo(), "redo of step " + step);
+            assertArrayEquals(stars.get(step), stars(painting), "stars after redoing step " + step);
+            assertArrayEquals(pixels.get(step), pixels(painting), "pixels after redoing step " + step);
+        }
+        assertFalse(painting.redo());
+    }
+
+    /**
+     * A new change after undoing drops what could have been redone.
+     */
+    @Test
+    void changeAfterUndoDropsRedo() {
+        Painting painting = new Painting(SIDE, SIDE, false, 256L << 20);
+        SplittableRandom random = new SplittableRandom(18);
+        for (int step = 1; step <= 3; step++) {
+            change(painting, step, random);
+        }
+        assertTrue(painting.undo());
+        assertTrue(painting.getHistory().canRedo());
+        change(painting, 1, random);
+        assertFalse(painting.getHistory().canRedo());
+        assertFalse(painting.redo());
+    }
+}
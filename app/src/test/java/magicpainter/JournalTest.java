@@ -0,0 +1,153 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that playing an autosave journal back gives the stars the painting
+ * had when it was closed, across adds, erases, clears, opens and undoing and
+ * redoing all of them, and that the writer compacts a journal that grew a
+ * lot bigger than the painting.
+ *
+ * @author sylverk @ github
+ */
+class JournalTest {
+
+    /**
+     * int describing the width and height of the painting.
+     */
+    private static final int SIDE = 1024;
+
+    /**
+     * A directory for the journal, deleted after each test.
+     */
+    @TempDir
+    Path dir;
+
+    /**
+     * Makes a batch of random stars.
+     *
+     * @param random is where the stars come from.
+     * @param count is the number of stars.
+     * @return StarStore holding the stars, with a palette of its own.
+     */
+    private static StarStore batch(SplittableRandom random, int count) {
+        StarStore batch = new StarStore(new Palette());
+        for (int k = 0; k < count; k++) {
+            batch.add(5 + random.nextDouble(40), random.nextDouble(SIDE), random.nextDouble(SIDE),
+                    batch.getPalette().indexOf(0xFF000000 | random.nextInt(1 << 24)));
+        }
+        return batch;
+    }
+
+    /**
+     * Gets the stars of a store that aren't erased.
+     *
+     * @param stars is the store.
+     * @return long[] size, x, y and color of each star.
+     */
+    private static long[] shown(StarStore stars) {
+        long[] out = new long[4 * (stars.size() - stars.getRemovedCount())];
+        int n = 0;
+        for (int i = 0; i < stars.size(); i++) {
+            if (!stars.isRemoved(i)) {
+                out[n++] = Float.floatToIntBits(stars.getSize(i));
+                out[n++] = Float.floatToIntBits(stars.getX(i));
+                out[n++] = Float.floatToIntBits(stars.getY(i));
+                out[n++] = stars.getPalette().get(stars.getColor(i));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Closes a journal and plays it back.
+     *
+     * @param journal is the journal.
+     * @param file is its file.
+     * @return StarStore holding the stars played back.
+     * @throws Exception if it can't be read.
+     */
+    private static StarStore playBack(Journal journal, Path file) throws Exception {
+        journal.close();
+        assertNull(journal.getError());
+        StarStore stars = new StarStore();
+        Journal.read(file, stars);
+        return stars;
+    }
+
+    /**
+     * Random changes of every kind, each followed by a few undos and redos
+     * sometimes.
+     *
+     * @throws Exception if the journal can't be written or read.
+     */
+    @Test
+    void playsBackUndoRedoAndOpen() throws Exception {
+        Path file = dir.resolve("autosave.journal");
+        Painting painting = new Painting(SIDE, SIDE, false, 64L << 20);
+        Journal journal = new Journal(file, SIDE, SIDE, () -> { });
+        painting.setJournal(journal);
+        SplittableRandom random = new SplittableRandom(23);
+        for (int step = 0; step < 200; step++) {
+            painting.newStep();
+            int kind = random.nextInt(20);
+            if (kind == 0) {
+                painting.clear();
+            } else if (kind == 1) {
+                StarStore opened = batch(random, 500);
+                StarStore document = new StarStore(painting.getPalette());
+                document.addAll(opened);
+                painting.open(painting.load(document, document.size()));
+            } else if (kind < 6) {
+                painting.erase(random.nextDouble(SIDE), random.nextDouble(SIDE), 20 + random.nextDouble(100));
+            } else {
+                painting.add(batch(random, 1 + random.nextInt(100)));
+            }
+            if (random.nextInt(4) == 0) {
+                int back = 1 + random.nextInt(4);
+                for (int k = 0; k < back; k++) {
+                    painting.undo();
+                }
+                for (int k = random.nextInt(back + 1); k > 0; k--) {
+                    painting.redo();
+                }
+            }
+        }
+        assertArrayEquals(shown(painting.getStars()), shown(playBack(journal, file)));
+    }
+
+    /**
+     * Undoing and redoing a big erase over and over writes a lot more
+     * records than there are stars, which the writer compacts away.
+     *
+     * @throws Exception if the journal can't be written or read.
+     */
+    @Test
+    void compactsChurn() throws Exception {
+        Path file = dir.resolve("autosave.journal");
+        Painting painting = new Painting(SIDE, SIDE, false, 64L << 20);
+        Journal journal = new Journal(file, SIDE, SIDE, () -> { });
+        painting.setJournal(journal);
+        SplittableRandom random = new SplittableRandom(7);
+        painting.add(batch(random, 4000));
+        painting.newStep();
+        painting.erase(SIDE / 2, SIDE / 2, SIDE / 3);
+        for (int k = 0; k < 100; k++) {
+            painting.undo();
+            painting.redo();
+        }
+        assertArrayEquals(shown(painting.getStars()), shown(playBack(journal, file)));
+        long records = (Files.size(file) - Journal.HEADER) / Journal.RECORD;
+        // the writer counts erased stars too, since they keep their index
+        long stars = painting.getStars().size() + painting.getStars().getRemovedCount();
+        assertFalse(Journal.isBloated(records, stars), records + " records for " + stars + " stars");
+    }
+}
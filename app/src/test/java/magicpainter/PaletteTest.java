@@ -0,0 +1,50 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the Palette hands out the same index for a color every time,
+ * with the swatches first, however many colors it holds.
+ *
+ * @author sylverk @ github
+ */
+class PaletteTest {
+
+    /**
+     * The swatches are the first six entries, in keyboard order.
+     */
+    @Test
+    void startsWithSwatches() {
+        Palette palette = new Palette();
+        assertEquals(Palette.DEFAULT_COLORS.length, palette.size());
+        for (int c = 0; c < Palette.DEFAULT_COLORS.length; c++) {
+            assertEquals(c, palette.indexOf(Palette.DEFAULT_COLORS[c]));
+            assertEquals(Palette.DEFAULT_COLORS[c], palette.get(c));
+        }
+        assertEquals(Palette.DEFAULT_COLORS.length, palette.size());
+    }
+
+    /**
+     * Adds a lot of colors, including ones that differ only in alpha, and
+     * looks them all up again.
+     */
+    @Test
+    void keepsIndicesOfManyColors() {
+        Palette palette = new Palette();
+        SplittableRandom random = new SplittableRandom(1);
+        int[] added = new int[200_000];
+        for (int k = 0; k < added.length; k++) {
+            added[k] = k % 2 == 0 ? random.nextInt() : added[k - 1] ^ 0x01000000;
+            int index = palette.indexOf(added[k]);
+            assertEquals(added[k], palette.get(index));
+        }
+        int size = palette.size();
+        for (int color : added) {
+            assertEquals(color, palette.get(palette.indexOf(color)));
+        }
+        assertEquals(size, palette.size());
+    }
+}
@@ -0,0 +1,135 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the PngEncoder against the JDK's zlib: combined Adler-32 checksums
+ * have to be what zlib works out for the joined data, and an image big
+ * enough to be deflated in several blocks has to decode to the same pixels.
+ *
+ * @author sylverk @ github
+ */
+class PngEncoderTest {
+
+    /**
+     * Splits random data at many points, including the ends and lengths past
+     * the Adler-32 modulus, and checks that combining the checksums of the
+     * two pieces gives the checksum of the whole.
+     */
+    @Test
+    void combineMatchesZlib() {
+        SplittableRandom random = new SplittableRandom(3);
+        byte[] data = new byte[200_000];
+        random.nextBytes(data);
+        // long runs of 0xFF push the sums to their largest
+        Arrays.fill(data, 50_000, 120_000, (byte) 0xFF);
+        int[] cuts = {0, 1, 5551, 5552, 65521, 65522, 100_000, data.length - 1, data.length};
+        for (int cut : cuts) {
+            assertCombines(data, cut);
+        }
+        for (int k = 0; k < 200; k++) {
+            assertCombines(data, random.nextInt(data.length + 1));
+        }
+    }
+
+    /**
+     * Checks combining the checksums of data split at one point.
+     *
+     * @param data is the data.
+     * @param cut is where it is split.
+     */
+    private static void assertCombines(byte[] data, int cut) {
+        Adler32 first = new Adler32();
+        first.update(data, 0, cut);
+        Adler32 second = new Adler32();
+        second.update(data, cut, data.length - cut);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        assertEquals(whole.getValue(), PngEncoder.combine(first.getValue(), second.getValue(), data.length - cut),
+                "split at " + cut);
+    }
+
+    /**
+     * Writes an image of several deflate blocks, checks every chunk's CRC,
+     * inflates the image data with zlib, which checks the combined checksum
+     * at the end of the stream, and decodes the image with ImageIO.
+     *
+     * @throws IOException if the image can't be written or read.
+     * @throws DataFormatException if the image data isn't a valid zlib
+     * stream.
+     */
+    @Test
+    void decodesToSamePixels() throws IOException, DataFormatException {
+        int width = 1000;
+        int height = 900;
+        int[] pixels = new int[width * height];
+        SplittableRandom random = new SplittableRandom(5);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // smooth areas for the filters and noisy ones for deflate
+                int noise = x > 600 ? random.nextInt(256) : 0;
+                pixels[y * width + x] = (x * 255 / width) << 16 | (y * 255 / height) << 8 | noise;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] written = new int[1];
+        PngEncoder.write(out, width, height, (y, count, rgb, offset) -> {
+            for (int p = y * width; p < (y + count) * width; p++, offset += 3) {
+                rgb[offset] = (byte) (pixels[p] >> 16);
+                rgb[offset + 1] = (byte) (pixels[p] >> 8);
+                rgb[offset + 2] = (byte) pixels[p];
+            }
+        }, rows -> written[0] = rows);
+        assertEquals(height, written[0]);
+        byte[] png = out.toByteArray();
+
+        ByteBuffer chunks = ByteBuffer.wrap(png, 8, png.length - 8);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        while (chunks.hasRemaining()) {
+            int length = chunks.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(png, chunks.position(), length + 4);
+            String type = new String(png, chunks.position(), 4, StandardCharsets.US_ASCII);
+            if (type.equals("IDAT")) {
+                idat.write(png, chunks.position() + 4, length);
+            }
+            chunks.position(chunks.position() + 4 + length);
+            assertEquals(crc.getValue(), chunks.getInt() & 0xFFFFFFFFL, "CRC of " + type);
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        byte[] filtered = new byte[(width * 3 + 1) * height];
+        int inflated = 0;
+        while (!inflater.finished()) {
+            int n = inflater.inflate(filtered, inflated, filtered.length - inflated);
+            assertTrue(n > 0 || inflater.finished(), "image data ends early");
+            inflated += n;
+        }
+        assertEquals(filtered.length, inflated);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(pixels[y * width + x], image.getRGB(x, y) & 0xFFFFFF, "pixel " + x + "," + y);
+            }
+        }
+    }
+}
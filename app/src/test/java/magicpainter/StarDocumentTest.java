@@ -0,0 +1,258 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that stars written to a .stars document read back the same, up to
+ * the 1/16 pixel they are rounded to, whole and by area, and that opening
+ * the part in view first ends up the same as opening all of it.
+ *
+ * @author sylverk @ github
+ */
+class StarDocumentTest {
+
+    /**
+     * double describing how far a read position or size may be from the
+     * written one: half of the 1/16 pixel they are stored in.
+     */
+    private static final double ROUNDING = 1 / 32.0 + 1e-4;
+
+    /**
+     * The colors the stars are painted with.
+     */
+    private static final int[] COLORS = {0xFFFFFFFF, 0xFFFFBB19, 0x80E84A5F, 0xFF3A7BD5, 0xFF2ECC71};
+
+    /**
+     * A directory for the documents, deleted after each test.
+     */
+    @TempDir
+    Path dir;
+
+    /**
+     * Makes a painting of three chunks of stars, the first in the left half
+     * of the document and the rest in the right half, with every seventh
+     * star erased.
+     *
+     * @return StarStore holding the stars.
+     */
+    private static StarStore stars() {
+        StarStore stars = new StarStore();
+        SplittableRandom random = new SplittableRandom(7);
+        int[] colors = new int[COLORS.length];
+        for (int c = 0; c < colors.length; c++) {
+            colors[c] = stars.getPalette().indexOf(COLORS[c]);
+        }
+        int shown = 0;
+        for (int k = 0; shown < StarDocument.CHUNK_STARS * 5 / 2; k++) {
+            double left = shown < StarDocument.CHUNK_STARS ? 0 : 2048;
+            // a color per stroke of a thousand stars
+            stars.add(1 + random.nextDouble(320), left + random.nextDouble(2048), random.nextDouble(4096),
+                    colors[(k >> 10) % colors.length]);
+            if (k % 7 == 6) {
+                stars.remove(k);
+            } else {
+                shown++;
+            }
+        }
+        return stars;
+    }
+
+    /**
+     * Writes the stars and reads them all back into a store whose palette
+     * already has other colors, so the color indices have to be mapped.
+     *
+     * @throws IOException if the document can't be written or read.
+     */
+    @Test
+    void roundTrip() throws IOException {
+        StarStore stars = stars();
+        Path file = dir.resolve("painting.stars");
+        int written = StarDocument.write(stars, 4096, 4096, file);
+        assertEquals(stars.size() - stars.getRemovedCount(), written);
+
+        StarDocument document = StarDocument.open(file);
+        assertEquals(4096, document.getWidth());
+        assertEquals(4096, document.getHeight());
+        assertEquals(written, document.getStarCount());
+        assertEquals((written + StarDocument.CHUNK_STARS - 1) / StarDocument.CHUNK_STARS, document.getChunkCount());
+
+        StarStore read = new StarStore();
+        read.getPalette().indexOf(0xFF123456);
+        read.getPalette().indexOf(0xFF3A7BD5);
+        assertEquals(written, document.read(read));
+        assertEquals(written, read.size());
+        int k = 0;
+        for (int i = 0; i < stars.size(); i++) {
+            if (stars.isRemoved(i)) {
+                continue;
+            }
+            assertEquals(stars.getX(i), read.getX(k), ROUNDING, "x of star " + i);
+            assertEquals(stars.getY(i), read.getY(k), ROUNDING, "y of star " + i);
+            assertEquals(stars.getSize(i), read.getSize(k), ROUNDING, "size of star " + i);
+            assertEquals(stars.getPalette().get(stars.getColor(i)), read.getPalette().get(read.getColor(k)),
+                    "color of star " + i);
+            k++;
+        }
+    }
+
+    /**
+     * A snapshot saves the stars as they were when it was taken, although
+     * the store then hides stars like undo does, adds other stars in their
+     * place, erases and brings in new colors.
+     *
+     * @throws IOException if the documents can't be written.
+     */
+    @Test
+    void savesSnapshot() throws IOException {
+        StarStore stars = stars();
+        Path before = dir.resolve("before.stars");
+        StarDocument.write(stars, 4096, 4096, before);
+        StarStore snapshot = stars.snapshot();
+        stars.setCount(stars.size() / 2);
+        for (int k = 0; k < 1000; k++) {
+            stars.add(50, 100 + k, 200, stars.getPalette().indexOf(0xFF000000 | k));
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (stars.isRemoved(i)) {
+                stars.restore(i);
+            } else {
+                stars.remove(i);
+            }
+        }
+        Path after = dir.resolve("after.stars");
+        StarDocument.write(snapshot, 4096, 4096, after);
+        assertArrayEquals(Files.readAllBytes(before), Files.readAllBytes(after));
+    }
+
+    /**
+     * Reads only an area in the left half, which must skip the chunks in the
+     * right half but find every star touching the area.
+     *
+     * @throws IOException if the document can't be written or read.
+     */
+    @Test
+    void readsArea() throws IOException {
+        StarStore stars = stars();
+        Path file = dir.resolve("painting.stars");
+        StarDocument.write(stars, 4096, 4096, file);
+        StarStore read = new StarStore();
+        int n = StarDocument.open(file).read(read, 100, 100, 300, 200);
+        assertEquals(StarDocument.CHUNK_STARS, n);
+
+        Set<Long> found = new HashSet<>();
+        for (int k = 0; k < read.size(); k++) {
+            found.add(key(read.getX(k), read.getY(k)));
+        }
+        int touching = 0;
+        for (int i = 0; i < stars.size(); i++) {
+            if (!stars.isRemoved(i) && StarGeometry.intersects(stars.getSize(i), stars.getX(i), stars.getY(i), 100, 100, 300, 200)) {
+                assertTrue(found.contains(key(stars.getX(i), stars.getY(i))), "star " + i + " wasn't read");
+                touching++;
+            }
+        }
+        assertTrue(touching > 0);
+    }
+
+    /**
+     * Opens a document with only the stars touching an area indexed, draws
+     * tiles inside and outside of it, and merges in the rest. The index and
+     * pixels must end up the same as with every star indexed up front.
+     *
+     * @throws IOException if the document can't be written or read.
+     */
+    @Test
+    void opensViewFirst() throws IOException {
+        Path file = dir.resolve("painting.stars");
+        StarDocument.write(stars(), 4096, 4096, file);
+        StarDocument document = StarDocument.open(file);
+
+        Painting whole = new Painting(4096, 4096, false, 64L << 20);
+        whole.open(whole.read(document, document.colorMap(whole.getPalette()), 0, 0, 4096, 4096));
+
+        Painting painting = new Painting(4096, 4096, false, 64L << 20);
+        Painting.State state = painting.read(document, document.colorMap(painting.getPalette()), 1024, 1024, 1536, 1536);
+        StarStore shared = state.stars.share();
+        painting.open(state);
+        // draws tiles on both sides of the edge of the area
+        pixels(painting, 768, 768, 1024, 1024);
+        painting.finishOpen(state, painting.indexRest(shared, state.loaded, 1024, 1024, 1536, 1536));
+
+        for (int[] area : new int[][] {{768, 768, 1024, 1024}, {2560, 0, 512, 512}, {0, 0, 4096, 4096}}) {
+            double x1 = area[0] + area[2];
+            double y1 = area[1] + area[3];
+            int n = whole.getIndex().query(area[0], area[1], x1, y1);
+            int[] expected = Arrays.copyOf(whole.getIndex().getResults(), n);
+            n = painting.getIndex().query(area[0], area[1], x1, y1);
+            assertArrayEquals(expected, Arrays.copyOf(painting.getIndex().getResults(), n), "stars in " + Arrays.toString(area));
+        }
+        assertArrayEquals(pixels(whole, 768, 768, 1024, 1024), pixels(painting, 768, 768, 1024, 1024));
+        assertArrayEquals(pixels(whole, 2560, 0, 512, 512), pixels(painting, 2560, 0, 512, 512));
+    }
+
+    /**
+     * A document cut short must be reported as damaged instead of reading
+     * garbage.
+     *
+     * @throws IOException if the document can't be written.
+     */
+    @Test
+    void rejectsTruncated() throws IOException {
+        Path file = dir.resolve("painting.stars");
+        StarDocument.write(stars(), 4096, 4096, file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+        assertThrows(IOException.class, () -> StarDocument.open(file).read(new StarStore()));
+    }
+
+    /**
+     * Gets the pixels of an area of a painting, drawing them if needed.
+     *
+     * @param painting is the painting.
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param w is the width of the area.
+     * @param h is the height of the area.
+     * @return int[] the premultiplied ARGB pixels, w pixels a row.
+     */
+    private static int[] pixels(Painting painting, int x0, int y0, int w, int h) {
+        int[] pixels = new int[w * h];
+        TiledSurface surface = painting.getSurface();
+        surface.markDirty(x0, y0, x0 + w, y0 + h);
+        surface.present(x0, y0, w, h, (x, y, tw, th, tile, offset, stride) -> {
+            for (int row = 0; row < th; row++) {
+                if (tile != null) {
+                    tile.get(offset + row * stride, pixels, (y - y0 + row) * w + x - x0, tw);
+                }
+            }
+        });
+        return pixels;
+    }
+
+    /**
+     * Makes a key for a star from its position rounded the way the document
+     * stores it.
+     *
+     * @param x is the x-position.
+     * @param y is the y-position.
+     * @return long the key.
+     */
+    private static long key(double x, double y) {
+        return Math.round(x * 16) << 32 | Math.round(y * 16);
+    }
+}
@@ -0,0 +1,134 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the StarIndex against looking at every star: queries have to find
+ * exactly the stars whose bounding box touches the rectangle, in drawing
+ * order, with stars added, removed, undone and huge.
+ *
+ * @author sylverk @ github
+ */
+class StarIndexTest {
+
+    /**
+     * int describing the width and height of the document.
+     */
+    private static final int SIDE = 2048;
+
+    /**
+     * Fills a store with stars of every size, some huge and some hanging off
+     * the document, and indexes them.
+     *
+     * @param stars is the store to fill.
+     * @param random is where the stars come from.
+     * @return StarIndex over the stars.
+     */
+    private static StarIndex fill(StarStore stars, SplittableRandom random) {
+        StarIndex index = new StarIndex(stars, SIDE, SIDE);
+        for (int k = 0; k < 5000; k++) {
+            double size = k % 100 == 0 ? 500 + random.nextDouble(3000) : 1 + random.nextDouble(200);
+            stars.add(size, random.nextDouble(-100, SIDE + 100), random.nextDouble(-100, SIDE + 100), 0);
+        }
+        index.insert(0, stars.size());
+        return index;
+    }
+
+    /**
+     * Finds the stars a query should find by looking at every one.
+     *
+     * @param stars is the store.
+     * @param x0 is the left edge of the rectangle.
+     * @param y0 is the top edge of the rectangle.
+     * @param x1 is the right edge of the rectangle.
+     * @param y1 is the bottom edge of the rectangle.
+     * @return int[] indices of the stars in drawing order.
+     */
+    private static int[] bruteForce(StarStore stars, double x0, double y0, double x1, double y1) {
+        return IntStream.range(0, stars.size()).filter(i -> {
+            double size = stars.getSize(i);
+            double x = stars.getX(i);
+            double y = stars.getY(i);
+            return !stars.isRemoved(i)
+                    && x + size * StarGeometry.HALF_WIDTH >= x0 && x - size * StarGeometry.HALF_WIDTH <= x1
+                    && y + size * StarGeometry.BOTTOM >= y0 && y - size * StarGeometry.TOP <= y1;
+        }).toArray();
+    }
+
+    /**
+     * Runs random queries, from points to the whole document, and compares
+     * them with looking at every star.
+     *
+     * @param stars is the store.
+     * @param index is the index over it.
+     * @param random is where the rectangles come from.
+     */
+    private static void assertQueries(StarStore stars, StarIndex index, SplittableRandom random) {
+        for (int q = 0; q < 300; q++) {
+            double w = q % 10 == 0 ? 0 : random.nextDouble(q % 3 == 0 ? SIDE : 150);
+            double h = q % 10 == 0 ? 0 : random.nextDouble(q % 3 == 0 ? SIDE : 150);
+            double x0 = random.nextDouble(-50, SIDE);
+            double y0 = random.nextDouble(-50, SIDE);
+            int n = index.query(x0, y0, x0 + w, y0 + h);
+            assertArrayEquals(bruteForce(stars, x0, y0, x0 + w, y0 + h), Arrays.copyOf(index.getResults(), n),
+                    "query " + x0 + "," + y0 + " " + w + "x" + h);
+        }
+    }
+
+    /**
+     * Queries a freshly filled index.
+     */
+    @Test
+    void queryMatchesBruteForce() {
+        SplittableRandom random = new SplittableRandom(11);
+        StarStore stars = new StarStore();
+        StarIndex index = fill(stars, random);
+        assertQueries(stars, index, random);
+    }
+
+    /**
+     * Queries after erasing stars the way a Painting does, taking them out
+     * of the index, and after undoing the newest ones, which leaves them in.
+     */
+    @Test
+    void queryAfterRemovingAndUndoing() {
+        SplittableRandom random = new SplittableRandom(12);
+        StarStore stars = new StarStore();
+        StarIndex index = fill(stars, random);
+        for (int i = 0; i < stars.size(); i += 3) {
+            index.remove(i);
+            stars.remove(i);
+        }
+        stars.setCount(stars.size() - 1000);
+        assertQueries(stars, index, random);
+    }
+
+    /**
+     * Picks at random points and compares with the topmost star whose shape
+     * holds the point.
+     */
+    @Test
+    void pickFindsTopmost() {
+        SplittableRandom random = new SplittableRandom(13);
+        StarStore stars = new StarStore();
+        StarIndex index = fill(stars, random);
+        for (int q = 0; q < 1000; q++) {
+            double px = random.nextDouble(SIDE);
+            double py = random.nextDouble(SIDE);
+            int expected = -1;
+            for (int i = stars.size() - 1; i >= 0; i--) {
+                if (StarGeometry.contains(stars.getSize(i), stars.getX(i), stars.getY(i), px, py)) {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, index.pick(px, py), "pick " + px + "," + py);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javafx.application.Platform;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the StarRasterizer draws the same picture as a JavaFX Canvas
+ * filling the same polygons. The two antialias edges a little differently,
+ * so pixels on the edges of stars may be a few levels apart, but no more.
+ * JavaFX runs headless on Monocle, see the surefire setup in app/pom.xml.
+ *
+ * @author sylverk @ github
+ */
+class StarRasterizerTest {
+
+    /**
+     * int describing the width of the test image.
+     */
+    private static final int WIDTH = 320;
+
+    /**
+     * int describing the height of the test image.
+     */
+    private static final int HEIGHT = 240;
+
+    /**
+     * int describing how far apart a channel of the two pictures may be at
+     * any pixel, out of 255.
+     */
+    private static final int MAX_DIFFERENCE = 8;
+
+    /**
+     * double describing how far apart a channel may be on average over the
+     * whole picture.
+     */
+    private static final double MAX_MEAN_DIFFERENCE = 0.25;
+
+    /**
+     * Starts JavaFX once for the tests.
+     *
+     * @throws InterruptedException if interrupted while waiting for it.
+     */
+    @BeforeAll
+    static void startFx() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            Platform.startup(started::countDown);
+        } catch (IllegalStateException e) {
+            // already started by another test
+            started.countDown();
+        }
+        assertTrue(started.await(30, TimeUnit.SECONDS), "JavaFX didn't start");
+    }
+
+    /**
+     * Makes the fixed star list: a grid of the size buttons' sizes and the
+     * swatch colors, some half transparent, and a few big stars over them
+     * including ones hanging off the edges.
+     *
+     * @return StarStore holding the stars.
+     */
+    private static StarStore stars() {
+        StarStore stars = new StarStore();
+        Palette palette = stars.getPalette();
+        int[] colors = {0xFFFFFFFF, 0xFFFFBB19, 0xFF3A7BD5, 0x80E84A5F, 0xFF2ECC71, 0x80000000};
+        double[] sizes = {5, 10, 17.5, 20, 33.3, 40};
+        int k = 0;
+        for (int row = 0; row < 5; row++) {
+            for (int col = 0; col < 8; col++, k++) {
+                double size = sizes[k % sizes.length];
+                stars.add(size, 20 + col * 40 + row * 0.37, 20 + row * 45 + col * 0.21,
+                        palette.indexOf(colors[k % colors.length]));
+            }
+        }
+        stars.add(160, 100.5, 90.25, palette.indexOf(0x80FFBB19));
+        stars.add(120, 250, 170, palette.indexOf(0xFF3A7BD5));
+        stars.add(80, 310, 10, palette.indexOf(0xFFE84A5F));
+        stars.add(80, -5, 235, palette.indexOf(0xFF2ECC71));
+        return stars;
+    }
+
+    /**
+     * Renders the stars with the StarRasterizer onto the canvas color.
+     *
+     * @param stars is the store holding the stars.
+     * @return int[] the ARGB pixels.
+     */
+    private static int[] rasterize(StarStore stars) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, HeadlessRender.BACKGROUND);
+        StarRasterizer.render(stars, pixels, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+        return pixels;
+    }
+
+    /**
+     * Draws the stars on a JavaFX Canvas filled with the canvas color and
+     * takes a snapshot of it.
+     *
+     * @param stars is the store holding the stars.
+     * @return int[] the ARGB pixels.
+     * @throws Exception if drawing on the FX thread failed.
+     */
+    private static int[] snapshot(StarStore stars) throws Exception {
+        FutureTask<int[]> task = new FutureTask<>(() -> {
+            Canvas canvas = new Canvas(WIDTH, HEIGHT);
+            GraphicsContext gc = canvas.getGraphicsContext2D();
+            gc.setFill(ColorButton.toColor(HeadlessRender.BACKGROUND));
+            gc.fillRect(0, 0, WIDTH, HEIGHT);
+            Star.drawAll(stars, gc);
+            WritableImage image = canvas.snapshot(null, null);
+            int[] pixels = new int[WIDTH * HEIGHT];
+            image.getPixelReader().getPixels(0, 0, WIDTH, HEIGHT, PixelFormat.getIntArgbInstance(), pixels, 0, WIDTH);
+            return pixels;
+        });
+        Platform.runLater(task);
+        return task.get(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Renders the star list both ways and compares the pictures channel by
+     * channel.
+     *
+     * @throws Exception if drawing on the FX thread failed.
+     */
+    @Test
+    void matchesCanvas() throws Exception {
+        StarStore stars = stars();
+        int[] ours = rasterize(stars);
+        int[] fx = snapshot(stars);
+        int worst = 0;
+        int at = 0;
+        long sum = 0;
+        for (int p = 0; p < ours.length; p++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int d = Math.abs((ours[p] >>> shift & 0xFF) - (fx[p] >>> shift & 0xFF));
+                if (d > worst) {
+                    worst = d;
+                    at = p;
+                }
+                sum += d;
+            }
+        }
+        double mean = (double) sum / (ours.length * 4);
+        String summary = String.format("worst %d at %d,%d (%08x vs %08x), mean %.3f",
+                worst, at % WIDTH, at / WIDTH, ours[at], fx[at], mean);
+        assertTrue(worst <= MAX_DIFFERENCE, summary);
+        assertTrue(mean <= MAX_MEAN_DIFFERENCE, summary);
+    }
+
+    /**
+     * Checks that a pixel deep inside an opaque star is exactly its color,
+     * since only edges may differ.
+     */
+    @Test
+    void fillsInsideExactly() {
+        StarStore stars = new StarStore();
+        stars.add(120, 160, 120, stars.getPalette().indexOf(0xFF3A7BD5));
+        int[] pixels = rasterize(stars);
+        assertEquals(0xFF3A7BD5, pixels[120 * WIDTH + 160]);
+        assertEquals(HeadlessRender.BACKGROUND, pixels[0]);
+    }
+}
@@ -0,0 +1,51 @@
+package magicpainter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a Stroke begun where the mouse was pressed puts its stars
+ * evenly from the press position on, with nothing missing between the
+ * press and the first drag.
+ *
+ * @author sylverk @ github
+ */
+class StrokeTest {
+
+    /**
+     * A straight drag from the press has a star at the press and then one
+     * every spacing, carried on into the next segment.
+     */
+    @Test
+    void startsAtPress() {
+        Stroke stroke = new Stroke();
+        stroke.begin(10, 20);
+        int n = stroke.add(50, 20, 10);
+        assertEquals(5, n);
+        for (int k = 0; k < n; k++) {
+            assertEquals(10 + 10 * k, stroke.getX()[k], 1e-3, "x of star " + k);
+            assertEquals(20, stroke.getY()[k], 1e-3, "y of star " + k);
+        }
+        n = stroke.add(75, 20, 10);
+        assertEquals(2, n);
+        assertEquals(60, stroke.getX()[0], 1e-3);
+        assertEquals(70, stroke.getX()[1], 1e-3);
+    }
+
+    /**
+     * Beginning again forgets the last stroke.
+     */
+    @Test
+    void beginsAgain() {
+        Stroke stroke = new Stroke();
+        stroke.begin(0, 0);
+        stroke.add(33, 0, 10);
+        stroke.begin(100, 100);
+        int n = stroke.add(100, 120, 10);
+        assertEquals(3, n);
+        assertEquals(100, stroke.getX()[0], 1e-3);
+        assertEquals(100, stroke.getY()[0], 1e-3);
+        assertEquals(120, stroke.getY()[2], 1e-3);
+    }
+}
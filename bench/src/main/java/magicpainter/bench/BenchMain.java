@@ -0,0 +1,30 @@
+package magicpainter.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks like the usual JMH main, but writes the results to
+ * jmh-result.json unless another result format is asked for, so every run
+ * leaves something to compare against the last release.
+ *
+ * @author sylverk @ github
+ */
+public class BenchMain {
+
+    /**
+     * The main method.
+     *
+     * @param args are the usual JMH options, like a benchmark name pattern
+     * or -rf text.
+     * @throws Exception if JMH fails.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.addAll(0, Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,190 @@
+package magicpainter.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import magicpainter.Journal;
+import magicpainter.Painting;
+import magicpainter.StarStore;
+import magicpainter.Symmetry;
+import magicpainter.Viewport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for the work a mouse drag causes, without JavaFX: what
+ * dragHandler does for each event (turning the mouse position into a
+ * document position and queueing a star) and what the DrawQueue does once
+ * per pulse (drawing the queued stars into the painting). The mouse moves
+ * along a circle, and a new stroke starts every few pulses like when the
+ * button is released. With copies above 1 the symmetry brush is on, 32-fold
+ * and mirrored for 64. The fork adds jdk.incubator.vector so the vector
+ * kernel is used; pass -jvmArgsAppend -Dmagicpainter.scalar=true to compare
+ * with the plain one, and -Dmagicpainter.stampBudgetMB=0 to scan convert
+ * every star instead of copying stamps. With journal the drawn stars are
+ * also written to an autosave Journal in a temporary file. The score is per
+ * drag event.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DragBenchmark {
+
+    /**
+     * int describing how many drag events arrive per pulse.
+     */
+    private static final int EVENTS_PER_PULSE = 16;
+
+    /**
+     * int describing how many pulses a stroke lasts.
+     */
+    private static final int PULSES_PER_STROKE = 30;
+
+    /**
+     * double describing the size of the brush.
+     */
+    @Param({"10", "60"})
+    public double brush;
+
+    /**
+     * int describing how many stars each drag event makes.
+     */
+    @Param({"1", "64"})
+    public int copies;
+
+    /**
+     * boolean indicating if the painting is autosaved to a journal.
+     */
+    @Param({"false", "true"})
+    public boolean journal;
+
+    /**
+     * The journal file, or null.
+     */
+    private Path journalFile;
+
+    /**
+     * The autosave journal, or null.
+     */
+    private Journal autosave;
+
+    /**
+     * The symmetry of the brush.
+     */
+    private Symmetry symmetry;
+
+    /**
+     * array of the x-positions of the copies of the brush.
+     */
+    private final float[] copiesX = new float[Symmetry.MAX_COPIES];
+
+    /**
+     * array of the y-positions of the copies of the brush.
+     */
+    private final float[] copiesY = new float[Symmetry.MAX_COPIES];
+
+    /**
+     * The painting the strokes go into.
+     */
+    private Painting painting;
+
+    /**
+     * The view the mouse positions are turned into document positions
+     * through.
+     */
+    private Viewport view;
+
+    /**
+     * The stars queued since the last pulse.
+     */
+    private StarStore pending;
+
+    /**
+     * int describing the palette index of the brush color.
+     */
+    private int color;
+
+    /**
+     * int describing how many drag events there have been.
+     */
+    private int event;
+
+    /**
+     * Starts every iteration with an empty painting, so the painting doesn't
+     * keep growing for the whole run.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        painting = new Painting(16384, 16384, false, 64L << 20);
+        if (journal) {
+            journalFile = Files.createTempFile("drag", ".journal");
+            autosave = new Journal(journalFile, painting.getWidth(), painting.getHeight(), () -> { });
+            painting.setJournal(autosave);
+        }
+        view = new Viewport(painting.getWidth(), painting.getHeight(), 500, 400);
+        pending = new StarStore(painting.getPalette());
+        color = painting.getPalette().indexOf(0xFFFFBB19);
+        symmetry = copies == 1 ? new Symmetry(1, false) : new Symmetry(copies / 2, true);
+        event = 0;
+    }
+
+    /**
+     * Writes the rest of the journal and deletes it.
+     *
+     * @throws IOException if it can't be deleted.
+     */
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        if (autosave != null) {
+            autosave.close();
+            Files.delete(journalFile);
+            autosave = null;
+        }
+    }
+
+    /**
+     * Handles the drag events of one pulse and draws them.
+     *
+     * @return int number of stars in the painting.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_PULSE)
+    public int pulse() {
+        if (event % (EVENTS_PER_PULSE * PULSES_PER_STROKE) == 0) {
+            painting.newStep();
+        }
+        for (int k = 0; k < EVENTS_PER_PULSE; k++, event++) {
+            double angle = event * 0.01;
+            double mouseX = 250 + 180 * Math.cos(angle);
+            double mouseY = 200 + 150 * Math.sin(angle * 1.3);
+            if (copies > 1) {
+                int n = symmetry.apply(view.toDocX(mouseX), view.toDocY(mouseY), view.toDocX(250), view.toDocY(200),
+                        copiesX, copiesY);
+                pending.addAll(brush, copiesX, copiesY, n, color);
+            } else {
+                pending.add(brush, view.toDocX(mouseX), view.toDocY(mouseY), color);
+            }
+        }
+        painting.add(pending);
+        pending.clear();
+        return painting.getStars().size();
+    }
+}
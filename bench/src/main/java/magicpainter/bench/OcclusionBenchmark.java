@@ -0,0 +1,107 @@
+package magicpainter.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import magicpainter.Occlusion;
+import magicpainter.Painting;
+import magicpainter.StarStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for finding the stars hidden under later ones, and for what it
+ * saves redrawing, on a heavily painted 1024x1024 corner of the document:
+ * opaque stars of the size buttons' sizes painted over each other many
+ * times. The score is per pass over the whole document, or per redraw of
+ * the corner with or without the hidden stars.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class OcclusionBenchmark {
+
+    /**
+     * int describing the side of the painted corner.
+     */
+    private static final int SIDE = 1024;
+
+    /**
+     * The sizes of the size buttons, without the biggest.
+     */
+    private static final double[] SIZES = {10, 20, 40, 80, 160};
+
+    /**
+     * int describing how many stars are painted.
+     */
+    @Param({"20000", "100000"})
+    public int stars;
+
+    /**
+     * boolean indicating if the hidden stars are found before redrawing.
+     */
+    @Param({"false", "true"})
+    public boolean occlude;
+
+    /**
+     * The painting with the stars.
+     */
+    private Painting painting;
+
+    /**
+     * Paints the stars, and finds the hidden ones if asked to.
+     */
+    @Setup
+    public void setUp() {
+        painting = new Painting(16384, 16384, false, 64L << 20);
+        SplittableRandom random = new SplittableRandom(42);
+        StarStore batch = new StarStore(painting.getPalette());
+        int[] colors = {0xFFFFBB19, 0xFF3A7BD5, 0xFFE84A5F, 0xFF2ECC71};
+        for (int k = 0; k < stars; k++) {
+            int color = painting.getPalette().indexOf(colors[random.nextInt(colors.length)]);
+            batch.add(SIZES[random.nextInt(SIZES.length)], random.nextDouble(SIDE), random.nextDouble(SIDE), color);
+        }
+        painting.add(batch);
+        Occlusion pass = painting.occlusionPass();
+        if (occlude) {
+            pass.run();
+            painting.occlude(pass);
+        }
+    }
+
+    /**
+     * Finds the hidden stars of the whole document, without marking them.
+     *
+     * @return int number of hidden stars found.
+     */
+    @Benchmark
+    public int pass() {
+        Occlusion pass = new Occlusion(painting.getStars(), painting.getIndex(), 0,
+                0, 0, painting.getWidth(), painting.getHeight(), painting.getWidth(), painting.getHeight());
+        return pass.run();
+    }
+
+    /**
+     * Redraws the painted corner.
+     *
+     * @return int number of hidden stars skipped.
+     */
+    @Benchmark
+    public int redraw() {
+        painting.redraw(0, 0, SIDE, SIDE);
+        return painting.getStars().getOccludedCount();
+    }
+}
@@ -0,0 +1,100 @@
+package magicpainter.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark for reading the three text fields of the Place! button the way
+ * starPlacer does, including building the message when a field isn't a
+ * number. Invalid input is measured on its own since the exceptions cost
+ * far more than the parsing.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    /**
+     * String describing which kind of input to parse.
+     */
+    @Param({"valid", "invalid"})
+    public String input;
+
+    /**
+     * The text of the size field.
+     */
+    private String size;
+
+    /**
+     * The text of the x-position field.
+     */
+    private String x;
+
+    /**
+     * The text of the y-position field.
+     */
+    private String y;
+
+    /**
+     * Picks the field texts.
+     */
+    @Setup
+    public void setUp() {
+        if (input.equals("valid")) {
+            size = "40";
+            x = "120.5";
+            y = "80.25";
+        } else {
+            size = "forty";
+            x = "120,5";
+            y = "";
+        }
+    }
+
+    /**
+     * Parses the fields.
+     *
+     * @param blackhole takes the parsed numbers so they aren't optimized
+     * away.
+     * @return String the message starPlacer would show, empty if every
+     * field was a number.
+     */
+    @Benchmark
+    public String parse(Blackhole blackhole) {
+        String message = "";
+        double parsed = 0;
+        try {
+            parsed += Double.parseDouble(size);
+        } catch (NumberFormatException n) {
+            message = message + "Size must be a number. ";
+        }
+        try {
+            parsed += Double.parseDouble(x);
+        } catch (NumberFormatException n) {
+            message = message + "X-position must be a number. ";
+        }
+        try {
+            parsed += Double.parseDouble(y);
+        } catch (NumberFormatException n) {
+            message = message + "Y-position must be a number.";
+        }
+        blackhole.consume(parsed);
+        return message;
+    }
+}
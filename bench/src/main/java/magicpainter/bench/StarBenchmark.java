@@ -0,0 +1,118 @@
+package magicpainter.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import magicpainter.Star;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for making a Star and drawing it onto the GraphicsContext of a
+ * canvas that is never shown. A canvas only records what is drawn on it
+ * until it's rendered, so the canvas is cleared before each batch, which
+ * also throws the recorded commands away.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dprism.order=sw")
+public class StarBenchmark {
+
+    /**
+     * int describing how many stars are drawn per batch.
+     */
+    private static final int BATCH = 1024;
+
+    /**
+     * The sizes of the stars.
+     */
+    private final double[] sizes = new double[BATCH];
+
+    /**
+     * The x-positions of the stars.
+     */
+    private final double[] xs = new double[BATCH];
+
+    /**
+     * The y-positions of the stars.
+     */
+    private final double[] ys = new double[BATCH];
+
+    /**
+     * The stars to draw.
+     */
+    private final Star[] stars = new Star[BATCH];
+
+    /**
+     * int describing which star to make next.
+     */
+    private int next;
+
+    /**
+     * The canvas nobody sees.
+     */
+    private Canvas canvas;
+
+    /**
+     * The GraphicsContext of the canvas.
+     */
+    private GraphicsContext gc;
+
+    /**
+     * Makes the stars and the canvas, the same size as the one in the app.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < BATCH; i++) {
+            sizes[i] = 5 + random.nextDouble() * 55;
+            xs[i] = random.nextDouble() * 500;
+            ys[i] = random.nextDouble() * 400;
+            stars[i] = new Star(sizes[i], xs[i], ys[i]);
+        }
+        canvas = new Canvas(500, 400);
+        gc = canvas.getGraphicsContext2D();
+    }
+
+    /**
+     * Makes one star.
+     *
+     * @return Star the star, so it isn't optimized away.
+     */
+    @Benchmark
+    public Star construct() {
+        int i = next++ & (BATCH - 1);
+        return new Star(sizes[i], xs[i], ys[i]);
+    }
+
+    /**
+     * Draws a batch of stars, reported per star.
+     *
+     * @return GraphicsContext the context drawn on.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public GraphicsContext draw() {
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        for (Star star : stars) {
+            star.draw(gc);
+        }
+        return gc;
+    }
+}
@@ -0,0 +1,55 @@
+package magicpainter.bench;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import magicpainter.StarfieldGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for making a million-star field over the whole document on
+ * the common ForkJoinPool, without drawing it. The score is per field.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StarfieldBenchmark {
+
+    /**
+     * The sizes of the size buttons.
+     */
+    private static final double[] SIZES = {10, 20, 40, 80, 160, 320};
+
+    /**
+     * boolean indicating if the stars get Poisson-disk spacing.
+     */
+    @Param({"false", "true"})
+    public boolean poisson;
+
+    /**
+     * Makes the field.
+     *
+     * @return int number of stars made.
+     * @throws InterruptedException never.
+     */
+    @Benchmark
+    public int field() throws InterruptedException {
+        StarfieldGenerator generator = new StarfieldGenerator(0, 0, 16384, 16384, 1_000_000, 42, poisson, SIZES);
+        int[] sizes = new int[1];
+        generator.generate(chunk -> sizes[0] += chunk.size(), ForkJoinPool.commonPool());
+        return sizes[0];
+    }
+}
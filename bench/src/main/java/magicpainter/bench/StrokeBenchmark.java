@@ -0,0 +1,83 @@
+package magicpainter.bench;
+
+import java.util.concurrent.TimeUnit;
+import magicpainter.Stroke;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for joining drag events into a stroke: fitting the curve up to
+ * the next mouse position and spacing the stars along it, with a size 10
+ * brush at the default spacing. The mouse goes round a circle, moving the
+ * given distance between events, and a new stroke starts every 1000
+ * events. Run with -prof gc to see that nothing is allocated. The score is
+ * per event.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrokeBenchmark {
+
+    /**
+     * double describing the spacing of the stars, a quarter of a size 10
+     * brush.
+     */
+    private static final double SPACING = 2.5;
+
+    /**
+     * double describing how far the mouse moves between events.
+     */
+    @Param({"2", "40", "400"})
+    public double distance;
+
+    /**
+     * The stroke.
+     */
+    private final Stroke stroke = new Stroke();
+
+    /**
+     * double describing the angle the mouse turns by between events.
+     */
+    private double turn;
+
+    /**
+     * int describing how many events there have been.
+     */
+    private int event;
+
+    /**
+     * Works out the turn for the distance on a circle of radius 1000.
+     */
+    @Setup
+    public void setUp() {
+        turn = 2 * Math.asin(Math.min(1, distance / 2000));
+    }
+
+    /**
+     * Adds the next mouse position.
+     *
+     * @return int number of stars for the segment.
+     */
+    @Benchmark
+    public int event() {
+        if (event % 1000 == 0) {
+            stroke.begin(3000, 2000);
+        }
+        double angle = (event++ % 1000 + 1) * turn;
+        return stroke.add(2000 + 1000 * Math.cos(angle), 2000 + 1000 * Math.sin(angle), SPACING);
+    }
+}
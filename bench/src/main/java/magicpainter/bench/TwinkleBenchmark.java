@@ -0,0 +1,101 @@
+package magicpainter.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import magicpainter.Painting;
+import magicpainter.StarStore;
+import magicpainter.Twinkle;
+import magicpainter.Viewport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for a frame of twinkling stars, without JavaFX: updating the
+ * glints whose level changed and dimming the part of the view they cover,
+ * with the stars packed into the 500x400 view at 1:1 and the clock moving
+ * on by one 60 Hz frame each time. The score is per frame, which has to
+ * stay well under 16 ms.
+ *
+ * @author sylverk @ github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwinkleBenchmark {
+
+    /**
+     * long describing the time between two frames, in nanoseconds.
+     */
+    private static final long FRAME = 16_666_667L;
+
+    /**
+     * int describing how many stars are in view.
+     */
+    @Param({"10000", "100000"})
+    public int stars;
+
+    /**
+     * The painting with the stars.
+     */
+    private Painting painting;
+
+    /**
+     * The view the stars are shown through.
+     */
+    private Viewport view;
+
+    /**
+     * The twinkling view.
+     */
+    private Twinkle twinkle;
+
+    /**
+     * long describing the time of the next frame.
+     */
+    private long now;
+
+    /**
+     * Paints the stars and shows the first frame, which puts every glint on.
+     */
+    @Setup
+    public void setUp() {
+        painting = new Painting(16384, 16384, false, 64L << 20);
+        view = new Viewport(painting.getWidth(), painting.getHeight(), 500, 400);
+        SplittableRandom random = new SplittableRandom(42);
+        StarStore batch = new StarStore(painting.getPalette());
+        int color = painting.getPalette().indexOf(0xFFFFBB19);
+        for (int k = 0; k < stars; k++) {
+            batch.add(10 + 10 * random.nextInt(4), random.nextDouble(500), random.nextDouble(400), color);
+        }
+        painting.add(batch);
+        twinkle = new Twinkle(view.getWidth(), view.getHeight());
+        painting.getSurface().present(0, 0, view.getWidth(), view.getHeight(), twinkle::copy);
+        twinkle.frame(now, painting, view);
+        twinkle.compose();
+    }
+
+    /**
+     * Shows the next frame.
+     *
+     * @return int number of glints updated.
+     */
+    @Benchmark
+    public int frame() {
+        now += FRAME;
+        int glints = twinkle.frame(now, painting, view);
+        twinkle.compose();
+        return glints;
+    }
+}
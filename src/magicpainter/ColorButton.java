@@ -35,4 +35,26 @@ public class ColorButton extends Button {
     public Color getColor(){
         return color;
     }
+
+    /**
+     * Packs a Color into an int in 0xAARRGGBB format, which is how the
+     * Palette stores colors.
+     * @param c is the Color to pack.
+     * @return int containing the packed color.
+     */
+    static int toArgb(Color c){
+        return ((int) Math.round(c.getOpacity() * 255) << 24)
+                | ((int) Math.round(c.getRed() * 255) << 16)
+                | ((int) Math.round(c.getGreen() * 255) << 8)
+                | (int) Math.round(c.getBlue() * 255);
+    }
+
+    /**
+     * Unpacks an int in 0xAARRGGBB format back into a Color.
+     * @param argb is the packed color.
+     * @return the Color it describes.
+     */
+    static Color toColor(int argb){
+        return Color.rgb((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF, ((argb >>> 24) & 0xFF) / 255.0);
+    }
 }
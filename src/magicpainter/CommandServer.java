@@ -0,0 +1,493 @@
+package magicpainter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Socket server that lets other local programs paint, for kiosk displays.
+ * It listens on the loopback address only and takes one command per line:
+ *
+ * size,x,y[,color] places a star, like a row of an imported star list
+ * place x,y places a star with the connection's size and color
+ * color rrggbb sets the connection's color (white to begin with)
+ * size n sets the connection's size (10 to begin with)
+ * clear clears the painting
+ *
+ * Nothing is sent back; bad lines are skipped and counted. A single thread
+ * reads every connection through a Selector and parses straight from the
+ * receive buffers, so commands cost no objects. Stars are collected into a
+ * batch per connection and the batches are handed to the FX thread, where
+ * the DrawQueue takes them at the start of each pulse with {@link #drain},
+ * up to a number of stars per pulse. When more stars are waiting than that
+ * many pulses can draw, the server stops reading until the queue is half
+ * empty, so the sockets fill up and the clients are slowed down instead of
+ * the queue growing without bound.
+ *
+ * @author sylverk @ github
+ */
+public class CommandServer implements Closeable, Runnable {
+
+    /**
+     * Interface for taking the commands handed over by {@link #drain}.
+     */
+    public interface Handler {
+
+        /**
+         * Called with each batch of stars, in the order they were received
+         * on their connection. The batch is reused once this returns.
+         *
+         * @param batch is a store holding the stars, with its own palette.
+         */
+        void stars(StarStore batch);
+
+        /**
+         * Called for a clear command.
+         */
+        void clear();
+    }
+
+    /**
+     * int describing how many stars drain hands over at most per call,
+     * about what one pulse can draw.
+     */
+    public static final int PULSE_STARS = 65536;
+
+    /**
+     * int describing how many stars may wait before the server stops
+     * reading.
+     */
+    static final int LIMIT = 16 * PULSE_STARS;
+
+    /**
+     * int describing how many stars a clear counts as while it waits and
+     * when it is drained, so a flood of clears is held back like a flood of
+     * stars. Clearing costs the FX thread about what drawing a few dozen
+     * small stars does, and then the view is drawn again.
+     */
+    static final int CLEAR_STARS = 256;
+
+    /**
+     * int describing the size of the receive buffer of a connection, which
+     * is also the longest line it takes.
+     */
+    private static final int BUFFER = 1 << 16;
+
+    /**
+     * Placeholder put in the queue for a clear command.
+     */
+    private static final StarStore CLEAR = new StarStore();
+
+    /**
+     * What the server knows about one client.
+     */
+    private static final class Connection {
+
+        /**
+         * The bytes received but not parsed yet.
+         */
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER);
+
+        /**
+         * The parser for the lines.
+         */
+        final StarCsvReader parser = new StarCsvReader();
+
+        /**
+         * The stars received since the last batch was handed over.
+         */
+        StarStore batch;
+
+        /**
+         * int describing the color for stars without one, packed as
+         * 0xAARRGGBB.
+         */
+        int color = 0xFFFFFFFF;
+
+        /**
+         * double describing the size for stars placed with place.
+         */
+        double size = 10;
+
+        /**
+         * long describing how many lines were received, for error messages.
+         */
+        long lines;
+    }
+
+    /**
+     * The channel accepting connections.
+     */
+    private final ServerSocketChannel server;
+
+    /**
+     * The selector watching every channel.
+     */
+    private final Selector selector;
+
+    /**
+     * Called when batches are waiting and weren't announced since the last
+     * drain, from the server thread.
+     */
+    private final Runnable listener;
+
+    /**
+     * The batches waiting for the FX thread, with CLEAR for clears.
+     */
+    private final ConcurrentLinkedQueue<StarStore> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The batches the FX thread is done with, for reuse.
+     */
+    private final ConcurrentLinkedQueue<StarStore> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of stars in the queue, with each clear counted as
+     * CLEAR_STARS.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Set when the listener was called and nothing was drained since.
+     */
+    private final AtomicBoolean announced = new AtomicBoolean();
+
+    /**
+     * The thread running the server.
+     */
+    private final Thread thread;
+
+    /**
+     * boolean indicating if reading is paused because too many stars are
+     * waiting. Only changed by the server thread.
+     */
+    private volatile boolean paused;
+
+    /**
+     * long describing how many bad lines were received.
+     */
+    private volatile long errors;
+
+    /**
+     * boolean indicating if the server was closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor for a CommandServer, which starts listening right away on
+     * a thread of its own.
+     *
+     * @param port is the loopback port to listen on, 0 for any free one.
+     * @param listener is called from the server thread when batches are
+     * waiting, so the FX thread can be asked to drain them.
+     * @throws IOException if the port can't be listened on.
+     */
+    public CommandServer(int port, Runnable listener) throws IOException {
+        this.listener = listener;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this, "CommandServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads and parses commands until the server is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                // while paused, look again now and then in case the FX
+                // thread drained the queue before it could see the pause
+                selector.select(paused ? 10 : 0);
+                if (paused && waiting.get() <= LIMIT / 2) {
+                    setReading(true);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+                handOver();
+                if (!paused && waiting.get() > LIMIT) {
+                    setReading(false);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("CommandServer stopped: " + e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a new connection.
+     *
+     * @throws IOException if the selector can't take it.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection();
+        c.batch = newBatch();
+        channel.register(selector, paused ? 0 : SelectionKey.OP_READ, c);
+    }
+
+    /**
+     * Reads what a connection sent and parses every full line, keeping a
+     * partial line for the next read. A connection that closed, failed or
+     * sent a line longer than the buffer is dropped.
+     *
+     * @param key is the key of the connection.
+     */
+    private void read(SelectionKey key) {
+        Connection c = (Connection) key.attachment();
+        ByteBuffer in = c.in;
+        int n;
+        try {
+            n = ((SocketChannel) key.channel()).read(in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        byte[] bytes = in.array();
+        int start = 0;
+        int end = in.position();
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                int lineEnd = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                command(c, start, lineEnd);
+                start = i + 1;
+            }
+        }
+        if (n < 0 || start == 0 && end == BUFFER) {
+            handOver(c);
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // dropped anyway
+            }
+            return;
+        }
+        in.position(start);
+        in.limit(end);
+        in.compact();
+    }
+
+    /**
+     * Does one command.
+     *
+     * @param c is the connection it came from.
+     * @param from is the index of the line in the receive buffer.
+     * @param to is the index of the end of the line.
+     */
+    private void command(Connection c, int from, int to) {
+        StarCsvReader p = c.parser;
+        c.lines++;
+        p.line(c.in, from, to);
+        if (p.atEnd()) {
+            return;
+        }
+        boolean ok;
+        if (p.word("place")) {
+            double x = p.number();
+            ok = p.comma();
+            double y = p.number();
+            ok &= !Double.isNaN(x) && !Double.isNaN(y) && p.atEnd();
+            if (ok) {
+                c.batch.add(c.size, x, y, c.batch.getPalette().indexOf(c.color));
+            } else {
+                p.error(c.lines, "Expected place x,y.");
+            }
+        } else if (p.word("color")) {
+            int argb = p.color();
+            ok = argb != 0;
+            if (ok) {
+                c.color = argb;
+            } else {
+                p.error(c.lines, "Color must be a hex code (ie. ffbb19).");
+            }
+        } else if (p.word("size")) {
+            double size = p.number();
+            ok = size > 0 && p.atEnd();
+            if (ok) {
+                c.size = size;
+            } else {
+                p.error(c.lines, "Size must be a positive number.");
+            }
+        } else if (p.word("clear")) {
+            ok = p.atEnd();
+            if (ok) {
+                handOver(c);
+                waiting.addAndGet(CLEAR_STARS);
+                queue.add(CLEAR);
+            }
+        } else {
+            ok = p.row(c.batch, c.lines, c.batch.getPalette().indexOf(c.color));
+        }
+        if (!ok) {
+            errors++;
+        }
+    }
+
+    /**
+     * Hands the batch of every connection that has stars over to the FX
+     * thread, and calls the listener if it hasn't been since the last drain.
+     */
+    private void handOver() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                handOver((Connection) key.attachment());
+            }
+        }
+        if (!queue.isEmpty() && !announced.getAndSet(true)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Hands the batch of a connection over if it has stars.
+     *
+     * @param c is the connection.
+     */
+    private void handOver(Connection c) {
+        int n = c.batch.size();
+        if (n > 0) {
+            waiting.addAndGet(n);
+            queue.add(c.batch);
+            c.batch = newBatch();
+        }
+    }
+
+    /**
+     * Gets an empty batch, reusing one the FX thread is done with if there
+     * is one.
+     *
+     * @return StarStore that is empty, with its own palette.
+     */
+    private StarStore newBatch() {
+        StarStore batch = free.poll();
+        if (batch == null) {
+            batch = new StarStore(new Palette());
+        }
+        return batch;
+    }
+
+    /**
+     * Starts or stops reading from every connection.
+     *
+     * @param reading is true to read.
+     */
+    private void setReading(boolean reading) {
+        paused = !reading;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() != null) {
+                key.interestOps(reading ? SelectionKey.OP_READ : 0);
+            }
+        }
+    }
+
+    /**
+     * Hands the waiting commands to a handler, in order, until about
+     * PULSE_STARS stars were handed over, counting a clear as CLEAR_STARS.
+     * Meant to be called on the FX thread at the start of each pulse.
+     *
+     * @param handler takes the commands.
+     * @return boolean true if commands are still waiting.
+     */
+    public boolean drain(Handler handler) {
+        announced.set(false);
+        int taken = 0;
+        StarStore batch;
+        while (taken < PULSE_STARS && (batch = queue.poll()) != null) {
+            int n;
+            if (batch == CLEAR) {
+                handler.clear();
+                Stats.count(Stats.REMOTE, 1);
+                n = CLEAR_STARS;
+            } else {
+                n = batch.size();
+                handler.stars(batch);
+                Stats.count(Stats.REMOTE, n);
+                // a reused batch starts over with the swatches only
+                batch.clear();
+                batch.getPalette().reset();
+                free.add(batch);
+            }
+            taken += n;
+            if (waiting.addAndGet(-n) <= LIMIT / 2 && paused) {
+                selector.wakeup();
+            }
+        }
+        return !queue.isEmpty();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the port the server listens on.
+     * @throws IOException if the server is closed.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long number of bad lines received.
+     */
+    public long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Stops the server and drops every connection.
+     *
+     * @throws IOException if the server can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+        selector.close();
+    }
+}
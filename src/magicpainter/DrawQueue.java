@@ -0,0 +1,808 @@
+package magicpainter;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Queue of stars waiting to be drawn. Mouse events only add a star to the
+ * queue, and the queue is flushed once per JavaFX pulse as a single batch,
+ * so a mouse that reports hundreds of times a frame doesn't cause hundreds
+ * of separate canvas updates. Flushing draws the stars onto the TiledSurface
+ * of the Painting and then copies only the changed parts of the tiles
+ * onto the canvas through its PixelWriter. The timer only runs while there
+ * is something queued. The canvas shows the document through a Viewport;
+ * at 1:1 the tiles are copied with the view offset, otherwise the view is
+ * drawn by a ViewRenderer, only adding the new stars when nothing else
+ * changed. Commands from a CommandServer are taken at the start of each
+ * pulse, so they are drawn in the same batch as the mouse.
+ *
+ * It is also the one ordered queue for everything else that changes the
+ * painting or the canvas: the handlers {@link #post} commands, which run at
+ * the start of the next pulse in the order they were posted, with the stars
+ * queued between them drawn in between, and whatever changed is shown once
+ * at the end of the pulse. So a burst of input only costs its own handling,
+ * however slow the commands are, and several undos, erases or view changes
+ * in one frame are shown together. Commands of the same kind posted one
+ * after another, like messages nobody would get to read, are merged into the
+ * last one. Everything here happens on the FX thread, except undo and redo:
+ * replaying the history can mean drawing thousands of stars again, so they
+ * run on a thread of their own. Until one is done the queue runs no command,
+ * draws nothing and leaves the canvas as it is, so the painting is only
+ * ever used by one thread; input keeps being queued meanwhile, into stores
+ * with a palette of their own so no color is added to the painting's, and
+ * the result is shown at the first pulse after.
+ *
+ * While the stars twinkle the timer keeps running: what changed is shown
+ * into a Twinkle instead of onto the canvas, and every pulse the Twinkle
+ * updates the glints whose level changed and only the part of the canvas
+ * they cover is written.
+ *
+ * Whenever there is nothing left to do it takes an Occlusion pass over where
+ * stars were added and runs it in the background, one at a time; the stars
+ * it finds are marked as occluded by a command once it is done, so redraws,
+ * saves and exports leave them out. -Dmagicpainter.occlusion=false turns
+ * this off.
+ *
+ * @author sylverk @ github
+ */
+public class DrawQueue extends AnimationTimer {
+
+    /**
+     * int describing a command that is never merged with another.
+     */
+    public static final int UNIQUE = 0;
+
+    /**
+     * A command waiting for the next pulse.
+     */
+    private static final class Command {
+
+        /**
+         * The kind of command, for merging.
+         */
+        final int kind;
+
+        /**
+         * What the command does.
+         */
+        Runnable action;
+
+        /**
+         * The stars queued before the command and after the one before it,
+         * or null if there were none.
+         */
+        final StarStore before;
+
+        /**
+         * Constructor for a Command.
+         *
+         * @param kind is the kind of command.
+         * @param action is what the command does.
+         * @param before is the stars queued before it, or null.
+         */
+        Command(int kind, Runnable action, StarStore before) {
+            this.kind = kind;
+            this.action = action;
+            this.before = before;
+        }
+    }
+
+    /**
+     * The stars waiting for the next pulse that were queued after the last
+     * command. Shares the palette of the painting so the color indices don't
+     * need translating, except while an undo or redo runs.
+     */
+    private StarStore pending;
+
+    /**
+     * The commands waiting for the next pulse, oldest first.
+     */
+    private final ArrayDeque<Command> commands = new ArrayDeque<>();
+
+    /**
+     * Empty stores to queue stars in after a command takes the ones before
+     * it.
+     */
+    private final ArrayDeque<StarStore> spares = new ArrayDeque<>();
+
+    /**
+     * int describing how many stars were drawn in the current pulse.
+     */
+    private int drawn;
+
+    /**
+     * boolean indicating if something changed that has to be shown at the
+     * end of the pulse.
+     */
+    private boolean changed;
+
+    /**
+     * The painting the stars are added to once they are drawn.
+     */
+    private final Painting painting;
+
+    /**
+     * The pixel format of the tiles, premultiplied ARGB.
+     */
+    private static final PixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+    /**
+     * The canvas showing the surface.
+     */
+    private final Canvas canvas;
+
+    /**
+     * The GraphicsContext of the canvas.
+     */
+    private final GraphicsContext gc;
+
+    /**
+     * The PixelWriter of the canvas.
+     */
+    private final PixelWriter writer;
+
+    /**
+     * The part of the document shown on the canvas.
+     */
+    private final Viewport view;
+
+    /**
+     * The renderer drawing the view when it isn't 1:1.
+     */
+    private final ViewRenderer renderer;
+
+    /**
+     * The store the renderer last drew, so a swapped painting is noticed.
+     */
+    private StarStore rendered;
+
+    /**
+     * int describing how many stars the renderer has drawn.
+     */
+    private int renderedCount;
+
+    /**
+     * boolean indicating if the renderer has to draw the whole view again.
+     */
+    private boolean stale = true;
+
+    /**
+     * The server whose commands are taken at the start of each pulse, or
+     * null.
+     */
+    private CommandServer server;
+
+    /**
+     * Takes the commands of the server: stars are queued, and a clear drops
+     * what was queued before it, like the clear button.
+     */
+    private final CommandServer.Handler remote = new CommandServer.Handler() {
+        @Override
+        public void stars(StarStore batch) {
+            pending.addAll(batch);
+        }
+
+        @Override
+        public void clear() {
+            DrawQueue.this.clear();
+        }
+    };
+
+    /**
+     * The twinkling view, or null if the stars don't twinkle.
+     */
+    private Twinkle twinkle;
+
+    /**
+     * boolean indicating if occlusion passes are run, turned off with
+     * -Dmagicpainter.occlusion=false.
+     */
+    private final boolean occlusion = !"false".equals(System.getProperty("magicpainter.occlusion"));
+
+    /**
+     * The occlusion pass running in the background, or null.
+     */
+    private OcclusionTask occluding;
+
+    /**
+     * The thread undoing or redoing, or null.
+     */
+    private Thread replaying;
+
+    /**
+     * boolean indicating if the timer is currently running.
+     */
+    private boolean running = false;
+
+    /**
+     * Constructor for the DrawQueue.
+     *
+     * @param painting is the painting flushed stars get added to.
+     * @param canvas is the canvas the painting is shown on.
+     */
+    public DrawQueue(Painting painting, Canvas canvas) {
+        this.painting = painting;
+        this.canvas = canvas;
+        this.gc = canvas.getGraphicsContext2D();
+        this.writer = gc.getPixelWriter();
+        this.pending = new StarStore(painting.getPalette());
+        this.view = new Viewport(painting.getWidth(), painting.getHeight(), (int) canvas.getWidth(), (int) canvas.getHeight());
+        this.renderer = new ViewRenderer(view.getWidth(), view.getHeight());
+    }
+
+    /**
+     * Queues a star to be drawn on the next pulse. The size and color are
+     * captured now so changing the brush before the pulse doesn't affect
+     * stars that were already queued.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param argb is the color of the star packed as 0xAARRGGBB.
+     */
+    public void queue(double size, double x, double y, int argb) {
+        pending.add(size, x, y, pending.getPalette().indexOf(argb));
+        wake();
+    }
+
+    /**
+     * Queues stars of one size and color at several positions to be drawn on
+     * the next pulse, like the copies made by the symmetry brush.
+     *
+     * @param size is the size of the stars from left tip to right tip.
+     * @param x are the x-positions of the centers of the stars.
+     * @param y are the y-positions of slightly above the centers.
+     * @param n is the number of stars, from the start of the arrays.
+     * @param argb is the color of the stars packed as 0xAARRGGBB.
+     */
+    public void queue(double size, float[] x, float[] y, int n, int argb) {
+        pending.addAll(size, x, y, n, pending.getPalette().indexOf(argb));
+        wake();
+    }
+
+    /**
+     * Queues every star of another store to be drawn on the next pulse.
+     *
+     * @param batch is the store holding the stars, it may have its own
+     * palette.
+     */
+    public void queueAll(StarStore batch) {
+        pending.addAll(batch);
+        wake();
+    }
+
+    /**
+     * Posts a command to run at the start of the next pulse, after the
+     * commands and stars queued before it.
+     *
+     * @param action is what the command does.
+     */
+    public void post(Runnable action) {
+        post(UNIQUE, action);
+    }
+
+    /**
+     * Posts a command to run at the start of the next pulse. If the last
+     * command waiting is of the same kind and no star was queued since, it
+     * is replaced instead.
+     *
+     * @param kind is the kind of command, UNIQUE to never merge it.
+     * @param action is what the command does.
+     */
+    public void post(int kind, Runnable action) {
+        Command last = commands.peekLast();
+        if (kind != UNIQUE && last != null && last.kind == kind && pending.size() == 0) {
+            last.action = action;
+            return;
+        }
+        StarStore before = null;
+        if (pending.size() > 0) {
+            before = pending;
+            pending = spare();
+        }
+        commands.add(new Command(kind, action, before));
+        wake();
+    }
+
+    /**
+     * Gets an empty store to queue stars in. While an undo or redo runs it
+     * has a palette of its own, because the replay reads the palette of the
+     * painting and queueing a new color would add to it.
+     *
+     * @return StarStore that is empty.
+     */
+    private StarStore spare() {
+        if (replaying != null) {
+            return new StarStore(new Palette());
+        }
+        StarStore store = spares.poll();
+        return store != null ? store : new StarStore(painting.getPalette());
+    }
+
+    /**
+     * Keeps an emptied store to queue stars in again, unless it was one with
+     * a palette of its own.
+     *
+     * @param store is the store.
+     */
+    private void recycle(StarStore store) {
+        if (store.getPalette() == painting.getPalette()) {
+            spares.add(store);
+        }
+    }
+
+    /**
+     * Puts the stars queued since the last command behind a command that
+     * does nothing and starts a new store, so stars queued from now on go
+     * in the right kind of store when an undo or redo starts or ends.
+     */
+    private void restart() {
+        if (pending.size() > 0) {
+            commands.add(new Command(UNIQUE, () -> { }, pending));
+            wake();
+        } else {
+            recycle(pending);
+        }
+        pending = spare();
+    }
+
+    /**
+     * Draws everything queued since the last pulse in one go and records it
+     * in the star store. Stops the timer when there was nothing to draw so
+     * idle frames cost nothing.
+     *
+     * @param now is the timestamp of the current frame in nanoseconds.
+     */
+    @Override
+    public void handle(long now) {
+        Stats.frame(now);
+        flush();
+    }
+
+    /**
+     * Runs the waiting commands, draws and records all queued stars and shows
+     * what changed right away, and counts it as a pulse in the Stats.
+     */
+    public void flush() {
+        if (replaying != null) {
+            return;
+        }
+        long start = Stats.pulseStart();
+        drawn = 0;
+        boolean waiting = !commands.isEmpty();
+        if (waiting) {
+            runCommands();
+        }
+        if (replaying != null) {
+            // the rest waits for the undo or redo
+            restart();
+            Stats.pulse(start, drawn);
+            return;
+        }
+        boolean more = server != null && server.drain(remote);
+        if (pending.size() == 0 && !waiting && !changed && !more) {
+            occlude();
+            if (twinkle != null) {
+                animate();
+                return;
+            }
+            stop();
+            running = false;
+            Stats.idle();
+            return;
+        }
+        drawPending();
+        present();
+        changed = false;
+        Stats.pulse(start, drawn);
+    }
+
+    /**
+     * Runs the waiting commands in order, drawing the stars queued before
+     * each one first. The stars queued after the last command are put aside
+     * meanwhile, so a command that draws what is queued doesn't draw them
+     * too early. A command that starts an undo or redo is the last one run
+     * until it is done.
+     */
+    private void runCommands() {
+        StarStore after = pending;
+        pending = spare();
+        Command command;
+        while ((command = commands.poll()) != null) {
+            if (command.before != null) {
+                drawn += command.before.size();
+                painting.add(command.before);
+                command.before.clear();
+                recycle(command.before);
+            }
+            command.action.run();
+            if (replaying != null) {
+                break;
+            }
+        }
+        drawPending();
+        recycle(pending);
+        pending = after;
+    }
+
+    /**
+     * Takes an occlusion pass over where stars were added and runs it in the
+     * background, unless one is running already. The stars it finds are
+     * marked by a command, in order with everything else that changes the
+     * painting; no pixels change, so there is nothing to show.
+     */
+    private void occlude() {
+        if (!occlusion || occluding != null) {
+            return;
+        }
+        Occlusion pass = painting.occlusionPass();
+        if (pass == null) {
+            return;
+        }
+        OcclusionTask task = new OcclusionTask(pass);
+        occluding = task;
+        task.setOnSucceeded(ev -> post(() -> {
+            occluding = null;
+            painting.occlude(pass);
+        }));
+        task.setOnFailed(ev -> occluding = null);
+        Thread thread = new Thread(task, "star-occlusion");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Draws the queued stars and adds them to the painting, without showing
+     * them yet.
+     */
+    private void drawPending() {
+        if (pending.size() > 0) {
+            drawn += pending.size();
+            painting.add(pending);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Erases every star touching a square around a point, shown at the end of
+     * the pulse. Anything still queued is drawn first so it can be erased
+     * too.
+     *
+     * @param x is the x-position of the center of the eraser.
+     * @param y is the y-position of the center of the eraser.
+     * @param half is half the width of the eraser.
+     */
+    public void erase(double x, double y, double half) {
+        drawPending();
+        if (painting.erase(x, y, half)) {
+            stale = true;
+            changed();
+        }
+    }
+
+    /**
+     * Ends the current undo step, drawing anything still queued so it
+     * belongs to the step that is ending.
+     */
+    public void newStep() {
+        drawPending();
+        painting.newStep();
+    }
+
+    /**
+     * Starts undoing the last change to the painting in the background,
+     * shown at the first pulse after it is done.
+     *
+     * @return boolean true if there was something to undo.
+     */
+    public boolean undo() {
+        drawPending();
+        if (!painting.canUndo()) {
+            return false;
+        }
+        replay(painting::undo);
+        return true;
+    }
+
+    /**
+     * Starts redoing the last undone change to the painting in the
+     * background, shown at the first pulse after it is done.
+     *
+     * @return boolean true if there was something to redo.
+     */
+    public boolean redo() {
+        drawPending();
+        if (!painting.canRedo()) {
+            return false;
+        }
+        replay(painting::redo);
+        return true;
+    }
+
+    /**
+     * Runs an undo or redo on a thread of its own and holds the queue until
+     * it is done. The whole view is shown again after, since the history
+     * may have put other surfaces in place.
+     *
+     * @param action is the undo or redo.
+     */
+    private void replay(Runnable action) {
+        replaying = new Thread(() -> {
+            try {
+                action.run();
+            } finally {
+                Platform.runLater(() -> {
+                    replaying = null;
+                    restart();
+                    repaint();
+                });
+            }
+        }, "history-replay");
+        replaying.setDaemon(true);
+        replaying.start();
+    }
+
+    /**
+     * Zooms the view in or out around a point of the canvas, shown at the end
+     * of the next pulse.
+     *
+     * @param x is the x-position on the canvas.
+     * @param y is the y-position on the canvas.
+     * @param factor is what to multiply the zoom by.
+     */
+    public void zoomAt(double x, double y, double factor) {
+        view.zoomAt(x, y, factor);
+        repaint();
+    }
+
+    /**
+     * Moves the view by an amount of canvas pixels, shown at the end of the
+     * next pulse, so a fast drag only draws the view once a frame.
+     *
+     * @param dx is how far to move the document right on the canvas.
+     * @param dy is how far to move the document down on the canvas.
+     */
+    public void panBy(double dx, double dy) {
+        view.panBy(dx, dy);
+        repaint();
+    }
+
+    /**
+     * Goes back to showing the top left corner of the document at 1:1, shown
+     * at the end of the next pulse.
+     */
+    public void resetView() {
+        view.reset();
+        repaint();
+    }
+
+    /**
+     * Shows the changes on the canvas. At 1:1 only the changed parts of the
+     * surface inside the view are copied, and empty tiles are cleared so the
+     * canvas background shows through. Otherwise the view is drawn from the
+     * stars, all over again only when something other than adding stars
+     * happened.
+     */
+    public void present() {
+        int w = view.getWidth();
+        int h = view.getHeight();
+        if (view.getZoom() != 1) {
+            StarStore stars = painting.getStars();
+            if (stale || stars != rendered || stars.size() < renderedCount) {
+                renderer.render(painting, view);
+            } else {
+                renderer.drawRange(painting, renderedCount, stars.size());
+            }
+            rendered = stars;
+            renderedCount = stars.size();
+            stale = false;
+            if (twinkle != null) {
+                twinkle.copy(renderer.getPixels());
+                animate();
+            } else {
+                writer.setPixels(0, 0, w, h, FORMAT, renderer.getPixels(), 0, w);
+            }
+            return;
+        }
+        int viewX = (int) view.getOffsetX();
+        int viewY = (int) view.getOffsetY();
+        painting.compose(viewX, viewY, w, h);
+        painting.getSurface().present(viewX, viewY, w, h, (x, y, tw, th, pixels, offset, stride) -> {
+            if (twinkle != null) {
+                twinkle.copy(x - viewX, y - viewY, tw, th, pixels, offset, stride);
+            } else if (pixels == null) {
+                gc.clearRect(x - viewX, y - viewY, tw, th);
+            } else {
+                pixels.position(offset);
+                writer.setPixels(x - viewX, y - viewY, tw, th, FORMAT, pixels, stride);
+            }
+        });
+        if (twinkle != null) {
+            animate();
+        }
+    }
+
+    /**
+     * Updates the glints for this pulse and writes the part of the canvas
+     * that changed, counted as a twinkle frame in the Stats.
+     */
+    private void animate() {
+        long start = System.nanoTime();
+        int glints = twinkle.frame(start, painting, view);
+        if (twinkle.compose()) {
+            int w = view.getWidth();
+            writer.setPixels(twinkle.getShownX(), twinkle.getShownY(), twinkle.getShownWidth(), twinkle.getShownHeight(),
+                    FORMAT, twinkle.getPixels(), twinkle.getShownY() * w + twinkle.getShownX(), w);
+        }
+        Stats.twinkle(start, glints);
+    }
+
+    /**
+     * Starts or stops the twinkling, shown from the next pulse.
+     *
+     * @param on is true to make the stars twinkle.
+     */
+    public void setTwinkle(boolean on) {
+        if (on == (twinkle != null)) {
+            return;
+        }
+        twinkle = on ? new Twinkle(view.getWidth(), view.getHeight()) : null;
+        repaint();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return boolean true if the stars twinkle.
+     */
+    public boolean isTwinkling() {
+        return twinkle != null;
+    }
+
+    /**
+     * Makes the queue take the commands of a server at the start of each
+     * pulse.
+     *
+     * @param server is the server, or null for none.
+     */
+    public void setServer(CommandServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts the pulses if they aren't running, for when something is
+     * waiting, like commands of the server.
+     */
+    public void wake() {
+        if (!running) {
+            running = true;
+            start();
+        }
+    }
+
+    /**
+     * Adds a layer above the active one and makes it active.
+     *
+     * @return Layer that was added, or null if there are too many layers.
+     */
+    public Layer addLayer() {
+        drawPending();
+        Layer layer = painting.addLayer();
+        layersChanged();
+        return layer;
+    }
+
+    /**
+     * Makes stars that are queued from now on go on a layer.
+     *
+     * @param layer is the layer.
+     */
+    public void setActiveLayer(Layer layer) {
+        drawPending();
+        painting.setActiveLayer(layer);
+    }
+
+    /**
+     * Moves a layer to another place in the stack.
+     *
+     * @param layer is the layer to move.
+     * @param position is its new place, 0 for the bottom.
+     */
+    public void moveLayer(Layer layer, int position) {
+        drawPending();
+        painting.moveLayer(layer, position);
+        layersChanged();
+    }
+
+    /**
+     * Shows or hides a layer.
+     *
+     * @param layer is the layer.
+     * @param visible is true to show it.
+     */
+    public void setVisible(Layer layer, boolean visible) {
+        drawPending();
+        painting.setVisible(layer, visible);
+        layersChanged();
+    }
+
+    /**
+     * Changes how opaque a layer is.
+     *
+     * @param layer is the layer.
+     * @param opacity is how opaque it is, from 0 to 1.
+     */
+    public void setOpacity(Layer layer, double opacity) {
+        drawPending();
+        painting.setOpacity(layer, opacity);
+        layersChanged();
+    }
+
+    /**
+     * Shows the painting after its layers changed, at the end of the pulse.
+     * At 1:1 the painting has marked the tiles to blend again; zoomed, the
+     * layer buffers of the last render are blended again if they can be,
+     * rather than drawing the stars.
+     */
+    private void layersChanged() {
+        if (view.getZoom() == 1 || !renderer.isLayered(painting)) {
+            stale = true;
+        }
+        changed();
+    }
+
+    /**
+     * Has what changed shown at the end of the next pulse.
+     */
+    private void changed() {
+        if (twinkle != null) {
+            twinkle.reset();
+        }
+        changed = true;
+        wake();
+    }
+
+    /**
+     * Shows the whole view again at the end of the next pulse, for when
+     * something else was drawn over the canvas or the view moved.
+     */
+    public void repaint() {
+        if (replaying != null) {
+            // done once the undo or redo is
+            return;
+        }
+        int viewX = (int) view.getOffsetX();
+        int viewY = (int) view.getOffsetY();
+        painting.getSurface().markDirty(viewX, viewY, viewX + view.getWidth(), viewY + view.getHeight());
+        stale = true;
+        changed();
+    }
+
+    /**
+     * Clears the painting, then clears the parts of the canvas that had
+     * something on them at the end of the pulse. Anything still queued is
+     * drawn first so undoing the clear brings it back too.
+     */
+    public void clear() {
+        drawPending();
+        painting.clear();
+        stale = true;
+        changed();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return Viewport the part of the document shown on the canvas.
+     */
+    public Viewport getViewport() {
+        return view;
+    }
+}
@@ -0,0 +1,299 @@
+package magicpainter;
+
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.concurrent.Task;
+
+/**
+ * Background task that exports a painting as a PNG. The task is created on
+ * the FX thread, where it takes a snapshot of the tiles of the surface of
+ * each shown layer along with its alpha, which costs no pixel copies; from
+ * then on the painting can keep changing while the layers are blended and
+ * turned into rows on the background thread and deflated by the
+ * PngEncoder. The image covers everything that was drawn and at least the
+ * canvas, on the canvas background color. Tiles of an opened document that
+ * were never shown are drawn by the task itself from a copy of the stars.
+ * Progress is the fraction of rows written, and cancelling the task stops
+ * the encoder and leaves no file behind.
+ *
+ * @author sylverk @ github
+ */
+public class ExportTask extends Task<Integer> {
+
+    /**
+     * int describing the size of a tile.
+     */
+    private static final int TILE = TiledSurface.TILE;
+
+    /**
+     * The PNG to write.
+     */
+    private final Path file;
+
+    /**
+     * The tiles of the surface of each shown layer when the export started,
+     * bottom first.
+     */
+    private final IntBuffer[][] layers;
+
+    /**
+     * array of the alpha of each shown layer, 0 to 255.
+     */
+    private final int[] alphas;
+
+    /**
+     * int describing the number of tile columns.
+     */
+    private final int tilesX;
+
+    /**
+     * int describing the width of the document.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the document.
+     */
+    private final int height;
+
+    /**
+     * The stars that pending tiles are drawn from, or null.
+     */
+    private final StarStore loaded;
+
+    /**
+     * int describing the smallest width of the image.
+     */
+    private final int minWidth;
+
+    /**
+     * int describing the smallest height of the image.
+     */
+    private final int minHeight;
+
+    /**
+     * array holding a row of a tile while the layers are blended.
+     */
+    private final int[] line = new int[TILE];
+
+    /**
+     * The pending tiles of the row of tiles being written, once drawn.
+     */
+    private int[][] drawn;
+
+    /**
+     * int describing which row of tiles drawn holds.
+     */
+    private int drawnRow = -1;
+
+    /**
+     * Constructor for an ExportTask, must be called on the FX thread.
+     *
+     * @param painting is the painting to export.
+     * @param file is the PNG to write.
+     * @param minWidth is the smallest width of the image, usually the width
+     * of the canvas.
+     * @param minHeight is the smallest height of the image.
+     */
+    public ExportTask(Painting painting, Path file, int minWidth, int minHeight) {
+        List<Layer> shown = new ArrayList<>();
+        for (Layer layer : painting.getLayers()) {
+            if (layer.isVisible() && layer.getAlpha() > 0) {
+                shown.add(layer);
+            }
+        }
+        this.file = file;
+        this.layers = new IntBuffer[shown.size()][];
+        this.alphas = new int[shown.size()];
+        boolean pending = false;
+        for (int k = 0; k < layers.length; k++) {
+            layers[k] = painting.getSurface(shown.get(k)).snapshot();
+            alphas[k] = shown.get(k).getAlpha();
+            for (IntBuffer tile : layers[k]) {
+                pending |= TiledSurface.isPending(tile);
+            }
+        }
+        this.width = painting.getWidth();
+        this.height = painting.getHeight();
+        this.tilesX = (width + TILE - 1) / TILE;
+        this.minWidth = Math.min(width, minWidth);
+        this.minHeight = Math.min(height, minHeight);
+        this.loaded = pending ? painting.copyLoaded() : null;
+    }
+
+    /**
+     * Writes the PNG on the background thread.
+     *
+     * @return Integer number of pixels written.
+     * @throws Exception if the file can't be written.
+     */
+    @Override
+    protected Integer call() throws Exception {
+        Thread.currentThread().setPriority(Thread.NORM_PRIORITY - 1);
+        StarIndex index = null;
+        if (loaded != null) {
+            index = new StarIndex(loaded, width, height);
+            index.insert(0, loaded.size());
+        }
+        int[] bounds = bounds(index);
+        int imageW = bounds[0];
+        int imageH = bounds[1];
+        StarIndex starIndex = index;
+        drawn = new int[tilesX][];
+        updateProgress(0, imageH);
+        PngEncoder.write(file, imageW, imageH,
+                (y, count, rgb, offset) -> rows(starIndex, imageW, y, count, rgb, offset),
+                rows -> updateProgress(rows, imageH));
+        return imageW * imageH;
+    }
+
+    /**
+     * Works out how big the image has to be to hold everything that was
+     * drawn, starting from the top left corner of the document.
+     *
+     * @param index is the index over the stars of pending tiles, or null.
+     * @return array holding the width and height.
+     */
+    private int[] bounds(StarIndex index) {
+        int w = minWidth;
+        int h = minHeight;
+        for (IntBuffer[] tiles : layers) {
+            for (int t = 0; t < tiles.length; t++) {
+                if (tiles[t] != null && !TiledSurface.isPending(tiles[t])) {
+                    w = Math.max(w, Math.min(width, (t % tilesX + 1) * TILE));
+                    h = Math.max(h, Math.min(height, (t / tilesX + 1) * TILE));
+                }
+            }
+        }
+        if (index != null) {
+            for (int i = 0; i < loaded.size(); i++) {
+                double size = loaded.getSize(i);
+                w = Math.max(w, (int) Math.min(width, Math.ceil(loaded.getX(i) + size * StarGeometry.HALF_WIDTH)));
+                h = Math.max(h, (int) Math.min(height, Math.ceil(loaded.getY(i) + size * StarGeometry.BOTTOM)));
+            }
+        }
+        return new int[] {w, h};
+    }
+
+    /**
+     * Fills a block of rows of the image, blending the layers over each
+     * other and over the canvas background color.
+     *
+     * @param index is the index over the stars of pending tiles, or null.
+     * @param imageW is the width of the image.
+     * @param y is the first row.
+     * @param count is the number of rows.
+     * @param rgb is the buffer for the rows.
+     * @param offset is the index in rgb of the first row.
+     */
+    private void rows(StarIndex index, int imageW, int y, int count, byte[] rgb, int offset) {
+        int bgR = (HeadlessRender.BACKGROUND >> 16) & 0xFF;
+        int bgG = (HeadlessRender.BACKGROUND >> 8) & 0xFF;
+        int bgB = HeadlessRender.BACKGROUND & 0xFF;
+        for (int row = y; row < y + count; row++) {
+            int ty = row / TILE;
+            int p = offset + (row - y) * imageW * 3;
+            for (int tx = 0; tx * TILE < imageW; tx++) {
+                int end = Math.min(TILE, imageW - tx * TILE);
+                blend(index, tx, ty, (row - ty * TILE) * TILE, end);
+                for (int x = 0; x < end; x++, p += 3) {
+                    int argb = line[x];
+                    int keep = 255 - (argb >>> 24);
+                    rgb[p] = (byte) (((argb >> 16) & 0xFF) + div255(bgR * keep));
+                    rgb[p + 1] = (byte) (((argb >> 8) & 0xFF) + div255(bgG * keep));
+                    rgb[p + 2] = (byte) ((argb & 0xFF) + div255(bgB * keep));
+                }
+            }
+        }
+    }
+
+    /**
+     * Blends a row of a tile of every layer into the line, from the top layer
+     * down, the same way {@link TiledSurface#composite} does.
+     *
+     * @param index is the index over the stars of pending tiles, or null.
+     * @param tx is the tile column.
+     * @param ty is the tile row.
+     * @param base is the index of the row in the tile.
+     * @param end is the number of pixels of the row to blend.
+     */
+    private void blend(StarIndex index, int tx, int ty, int base, int end) {
+        Arrays.fill(line, 0, end, 0);
+        for (int k = layers.length - 1; k >= 0; k--) {
+            IntBuffer tile = layers[k][ty * tilesX + tx];
+            int[] pixels = null;
+            if (TiledSurface.isPending(tile)) {
+                pixels = drawPending(index, tx, ty);
+                tile = null;
+            } else if (tile == null) {
+                continue;
+            }
+            int a = alphas[k];
+            for (int x = 0; x < end; x++) {
+                int d = line[x];
+                if (d >>> 24 == 255) {
+                    continue;
+                }
+                int c = pixels != null ? pixels[base + x] : tile.get(base + x);
+                if (c != 0) {
+                    line[x] = StarRasterizer.over(d, a == 255 ? c : StarRasterizer.fade(c, a));
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a pending tile from the copy of the stars, keeping the drawn
+     * tiles of the current row of tiles around until the rows move on.
+     *
+     * @param index is the index over the copy of the stars.
+     * @param tx is the tile column.
+     * @param ty is the tile row.
+     * @return array of premultiplied ARGB pixels of the tile.
+     */
+    private int[] drawPending(StarIndex index, int tx, int ty) {
+        if (ty != drawnRow) {
+            drawnRow = ty;
+            drawn = new int[tilesX][];
+        }
+        if (drawn[tx] != null) {
+            return drawn[tx];
+        }
+        int[] pixels = new int[TILE * TILE];
+        int left = tx * TILE;
+        int top = ty * TILE;
+        StarRasterizer rasterizer = new StarRasterizer();
+        Palette palette = loaded.getPalette();
+        int n = index.query(left, top, left + TILE, top + TILE);
+        int[] found = index.getResults();
+        for (int k = 0; k < n; k++) {
+            int i = found[k];
+            double size = loaded.getSize(i);
+            double x = loaded.getX(i);
+            double y = loaded.getY(i);
+            int x0 = Math.max(left, (int) Math.floor(x - size * StarGeometry.HALF_WIDTH));
+            int x1 = Math.min(left + TILE, (int) Math.ceil(x + size * StarGeometry.HALF_WIDTH));
+            int y0 = Math.max(top, (int) Math.floor(y - size * StarGeometry.TOP));
+            int y1 = Math.min(top + TILE, (int) Math.ceil(y + size * StarGeometry.BOTTOM));
+            if (x0 < x1 && y0 < y1) {
+                rasterizer.fillStar(pixels, 0, TILE, left, top, x0, y0, x1, y1, size, x, y, palette.get(loaded.getColor(i)));
+            }
+        }
+        drawn[tx] = pixels;
+        return pixels;
+    }
+
+    /**
+     * Divides by 255 with rounding.
+     *
+     * @param v is the value to divide.
+     * @return int v / 255 rounded.
+     */
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+}
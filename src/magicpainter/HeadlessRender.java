@@ -0,0 +1,111 @@
+package magicpainter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command line entry point that renders a list of stars to a PNG without
+ * JavaFX or a display, using the StarRasterizer. Meant for headless build
+ * machines. The star list has one star per line as size,x,y with an optional
+ * fourth hex color like the ColorButton ones (ie. ffbb19), stars without a
+ * color are white like the default brush.
+ *
+ * Usage: java -cp MagicStarPainter.jar magicpainter.HeadlessRender
+ * stars.csv out.png [width height]
+ *
+ * @author sylverk @ github
+ */
+public class HeadlessRender {
+
+    /**
+     * The color of an empty canvas, packed as 0xAARRGGBB.
+     */
+    static final int BACKGROUND = 0xFFFFFADC;
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private HeadlessRender() {
+    }
+
+    /**
+     * Reads a star list or a .stars document into a store. Only the chunks
+     * of a document that reach into the image are decoded.
+     *
+     * @param file is the path of the star list or document.
+     * @param stars is the store the stars get added to.
+     * @param width is the width of the image.
+     * @param height is the height of the image.
+     * @throws IOException if the file can't be read or a line isn't valid.
+     */
+    static void readStars(String file, StarStore stars, int width, int height) throws IOException {
+        if (file.endsWith(".stars")) {
+            StarDocument.open(Paths.get(file)).read(stars, 0, 0, width, height);
+            return;
+        }
+        StarCsvReader reader = new StarCsvReader(Paths.get(file));
+        try {
+            reader.read(stars::addAll);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file);
+        }
+        if (reader.getErrorCount() > 0) {
+            throw new IOException(file + ": " + reader.getErrors().get(0)
+                    + " (" + reader.getErrorCount() + " bad rows)");
+        }
+    }
+
+    /**
+     * Renders a store onto a canvas-colored image and writes it as a PNG.
+     *
+     * @param stars is the store holding the stars.
+     * @param width is the width of the image.
+     * @param height is the height of the image.
+     * @param out is the file the PNG is written to.
+     * @throws IOException if the PNG can't be written.
+     */
+    static void renderToPng(StarStore stars, int width, int height, File out) throws IOException {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, BACKGROUND);
+        StarRasterizer.render(stars, pixels, width, height, ForkJoinPool.commonPool());
+        // the background is opaque so premultiplied and plain ARGB are the same here
+        PngEncoder.write(out.toPath(), width, height, (y, count, rgb, offset) -> {
+            for (int p = y * width; p < (y + count) * width; p++, offset += 3) {
+                rgb[offset] = (byte) (pixels[p] >> 16);
+                rgb[offset + 1] = (byte) (pixels[p] >> 8);
+                rgb[offset + 2] = (byte) pixels[p];
+            }
+        }, null);
+    }
+
+    /**
+     * @param args the star list or document, the output file and optionally the width and
+     * height of the image (500x400 like the canvas if left out).
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("Usage: HeadlessRender stars.csv|painting.stars out.png [width height]");
+            System.exit(2);
+        }
+        try {
+            int width = args.length == 4 ? Integer.parseInt(args[2]) : 500;
+            int height = args.length == 4 ? Integer.parseInt(args[3]) : 400;
+            StarStore stars = new StarStore();
+            long start = System.nanoTime();
+            readStars(args[0], stars, width, height);
+            long read = System.nanoTime();
+            renderToPng(stars, width, height, new File(args[1]));
+            long done = System.nanoTime();
+            System.out.printf("%d stars, read %d ms, rendered %d ms%n",
+                    stars.size(), (read - start) / 1000000, (done - read) / 1000000);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
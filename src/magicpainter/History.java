@@ -0,0 +1,550 @@
+package magicpainter;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multi-level undo and redo for a Painting. Changes are kept as a compact
+ * log of steps: a range of added stars, a list of erased star indices, or
+ * the store, index and surfaces that a clear or open swapped out. Stars are
+ * never copied into the log because the store keeps them; undoing an add
+ * just hides the stars past the start of the step.
+ *
+ * To undo an add the pixels have to be rebuilt without those stars. Instead
+ * of redrawing the whole painting, the history takes a checkpoint of the
+ * layer surfaces at the start of a step whenever enough has been drawn
+ * since the last one (a few thousand stars or a few million pixels), so an
+ * undo only has to put back a checkpoint and redraw at most that much.
+ * Checkpoints share tiles with the surfaces so taking one is cheap; they
+ * only cost memory once the tiles are drawn on again. When the history uses
+ * more than its memory budget the oldest checkpoints are dropped first,
+ * then the oldest steps.
+ *
+ * @author sylverk @ github
+ */
+public class History {
+
+    /**
+     * Step type for stars that were added.
+     */
+    private static final int ADD = 0;
+
+    /**
+     * Step type for stars that were erased.
+     */
+    private static final int ERASE = 1;
+
+    /**
+     * Step type for the painting being cleared.
+     */
+    private static final int CLEAR = 2;
+
+    /**
+     * int describing how many stars can be drawn before a checkpoint is
+     * taken.
+     */
+    private static final int CHECKPOINT_STARS = 4096;
+
+    /**
+     * long describing roughly how many pixels can be drawn before a
+     * checkpoint is taken.
+     */
+    private static final long CHECKPOINT_AREA = 2000000;
+
+    /**
+     * long describing how many bytes a tile uses.
+     */
+    private static final long TILE_BYTES = (long) TiledSurface.TILE * TiledSurface.TILE * 4;
+
+    /**
+     * One undoable change.
+     */
+    private static final class Step {
+
+        /**
+         * The type of the step, ADD, ERASE or CLEAR.
+         */
+        final int type;
+
+        /**
+         * For ADD, the index of the first star added.
+         */
+        int from;
+
+        /**
+         * For ADD, the index after the last star added.
+         */
+        int to;
+
+        /**
+         * For ERASE, the indices of the erased stars.
+         */
+        int[] erased;
+
+        /**
+         * For ERASE, how many entries of erased are used.
+         */
+        int erasedCount;
+
+        /**
+         * For ERASE, the area the erased stars covered.
+         */
+        int x0, y0, x1, y1;
+
+        /**
+         * For CLEAR, the state that isn't in place: the one from before the
+         * clear while it is done, the one from after while it is undone.
+         */
+        Painting.State state;
+
+        /**
+         * Constructor for a Step.
+         *
+         * @param type is the type of the step.
+         */
+        Step(int type) {
+            this.type = type;
+        }
+
+        /**
+         * Works out roughly how much memory the step holds.
+         *
+         * @return long number of bytes.
+         */
+        long bytes() {
+            if (type == ERASE && erased != null) {
+                return erased.length * 4L;
+            }
+            if (type == CLEAR && state != null) {
+                return state.bytes();
+            }
+            return 32;
+        }
+    }
+
+    /**
+     * A snapshot of the layer surfaces taken at the start of a step.
+     */
+    private static final class Checkpoint {
+
+        /**
+         * The step the checkpoint was taken at the start of.
+         */
+        int step;
+
+        /**
+         * The number of stars in the store when it was taken.
+         */
+        final int stars;
+
+        /**
+         * The tiles of each layer surface.
+         */
+        final IntBuffer[][] tiles;
+
+        /**
+         * The number of bytes of tiles only this checkpoint holds.
+         */
+        long bytes;
+
+        /**
+         * Constructor for a Checkpoint.
+         *
+         * @param step is the step it is taken at the start of.
+         * @param stars is the number of stars in the store.
+         * @param tiles is the snapshot of the layer surfaces.
+         */
+        Checkpoint(int step, int stars, IntBuffer[][] tiles) {
+            this.step = step;
+            this.stars = stars;
+            this.tiles = tiles;
+        }
+    }
+
+    /**
+     * The painting the history belongs to.
+     */
+    private final Painting painting;
+
+    /**
+     * long describing how many bytes the history may use.
+     */
+    private final long budget;
+
+    /**
+     * The steps, oldest first.
+     */
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * The checkpoints, oldest first.
+     */
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+
+    /**
+     * int describing how many steps are done, the rest are undone.
+     */
+    private int cursor;
+
+    /**
+     * long describing how many bytes the steps and checkpoints use.
+     */
+    private long bytes;
+
+    /**
+     * boolean indicating if the next change starts a new step.
+     */
+    private boolean boundary = true;
+
+    /**
+     * int describing how many stars were drawn since the last checkpoint.
+     */
+    private int starsSinceCheckpoint;
+
+    /**
+     * long describing roughly how many pixels were drawn since the last
+     * checkpoint.
+     */
+    private long areaSinceCheckpoint;
+
+    /**
+     * Constructor for an empty history.
+     *
+     * @param painting is the painting the history belongs to.
+     * @param budget is the number of bytes the history may use.
+     */
+    History(Painting painting, long budget) {
+        this.painting = painting;
+        this.budget = budget;
+    }
+
+    /**
+     * Makes the next change start a new step.
+     */
+    public void newStep() {
+        boundary = true;
+    }
+
+    /**
+     * Records stars about to be added, merging them into the last step if it
+     * is an add that wasn't ended yet. This has to be called before the
+     * stars are drawn in case a checkpoint is taken.
+     *
+     * @param from is the index the first star will get.
+     * @param to is the index after the last star.
+     */
+    void recordAdd(int from, int to) {
+        Step last = current(ADD);
+        if (last.to == from && last.from < last.to) {
+            last.to = to;
+        } else {
+            last.from = from;
+            last.to = to;
+        }
+        starsSinceCheckpoint += to - from;
+    }
+
+    /**
+     * Records how much was drawn for the stars that were just added.
+     *
+     * @param area is roughly how many pixels were drawn.
+     */
+    void recordDrawn(long area) {
+        areaSinceCheckpoint += area;
+        enforceBudget();
+    }
+
+    /**
+     * Records a star being erased. The surface must not have been redrawn
+     * yet.
+     *
+     * @param i is the index of the star.
+     */
+    void recordErase(int i) {
+        Step last = current(ERASE);
+        if (last.erased == null) {
+            last.erased = new int[16];
+            last.x0 = Integer.MAX_VALUE;
+            last.y0 = Integer.MAX_VALUE;
+            last.x1 = Integer.MIN_VALUE;
+            last.y1 = Integer.MIN_VALUE;
+        } else if (last.erasedCount == last.erased.length) {
+            bytes -= last.bytes();
+            last.erased = Arrays.copyOf(last.erased, last.erasedCount * 2);
+            bytes += last.bytes();
+        }
+        last.erased[last.erasedCount++] = i;
+    }
+
+    /**
+     * Records the area covered by the stars that were just erased.
+     *
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area.
+     * @param y1 is the bottom edge of the area.
+     */
+    void recordEraseBounds(int x0, int y0, int x1, int y1) {
+        Step last = steps.get(cursor - 1);
+        last.x0 = Math.min(last.x0, x0);
+        last.y0 = Math.min(last.y0, y0);
+        last.x1 = Math.max(last.x1, x1);
+        last.y1 = Math.max(last.y1, y1);
+        enforceBudget();
+    }
+
+    /**
+     * Records the painting being cleared.
+     *
+     * @param old is the state that was swapped out by the clear.
+     */
+    void recordClear(Painting.State old) {
+        // the surface is already the empty one, so no checkpoint here
+        boundary = true;
+        starsSinceCheckpoint = 0;
+        areaSinceCheckpoint = 0;
+        Step step = current(CLEAR);
+        bytes -= step.bytes();
+        step.state = old;
+        bytes += step.bytes();
+        boundary = true;
+        enforceBudget();
+    }
+
+    /**
+     * Gets the step a change of the given type goes into, starting a new
+     * one if there was a boundary or the last step is a different type.
+     * Starting a step throws away anything that was undone, and takes a
+     * checkpoint if enough was drawn since the last one.
+     *
+     * @param type is the type of the change.
+     * @return Step to record the change in.
+     */
+    private Step current(int type) {
+        if (!boundary && cursor == steps.size() && cursor > 0 && steps.get(cursor - 1).type == type) {
+            return steps.get(cursor - 1);
+        }
+        discardUndone();
+        if (starsSinceCheckpoint >= CHECKPOINT_STARS || areaSinceCheckpoint >= CHECKPOINT_AREA) {
+            checkpoint();
+        }
+        Step step = new Step(type);
+        steps.add(step);
+        bytes += step.bytes();
+        cursor++;
+        boundary = false;
+        return step;
+    }
+
+    /**
+     * Throws away the undone steps, and the checkpoints after them.
+     */
+    private void discardUndone() {
+        if (cursor == steps.size()) {
+            return;
+        }
+        while (steps.size() > cursor) {
+            bytes -= drop(steps.remove(steps.size() - 1));
+        }
+        while (!checkpoints.isEmpty() && checkpoints.get(checkpoints.size() - 1).step > cursor) {
+            bytes -= checkpoints.remove(checkpoints.size() - 1).bytes;
+        }
+        // don't know how much was drawn since the last checkpoint that's left
+        starsSinceCheckpoint = CHECKPOINT_STARS;
+    }
+
+    /**
+     * Lets the painting know a step was thrown away, so the state of a clear
+     * or open it held is let go of.
+     *
+     * @param step is the step.
+     * @return long the bytes the step held.
+     */
+    private long drop(Step step) {
+        if (step.state != null) {
+            painting.forget(step.state);
+        }
+        return step.bytes();
+    }
+
+    /**
+     * Throws away every checkpoint, for when pixels they may hold were drawn
+     * again outside of a step. Undo and redo replay from the last clear until
+     * enough is drawn for a new one.
+     */
+    void dropCheckpoints() {
+        chargeCopies();
+        while (!checkpoints.isEmpty()) {
+            bytes -= checkpoints.remove(checkpoints.size() - 1).bytes;
+        }
+        starsSinceCheckpoint = CHECKPOINT_STARS;
+    }
+
+    /**
+     * Takes a checkpoint at the start of the next step. The tiles the
+     * previous checkpoint no longer shares with the surface are charged to
+     * it.
+     */
+    private void checkpoint() {
+        chargeCopies();
+        checkpoints.add(new Checkpoint(steps.size(), painting.getStars().size(), painting.snapshot()));
+        starsSinceCheckpoint = 0;
+        areaSinceCheckpoint = 0;
+    }
+
+    /**
+     * Charges the tiles copied since the last time to the newest checkpoint.
+     */
+    private void chargeCopies() {
+        long copied = painting.takeCopyCount() * TILE_BYTES;
+        if (!checkpoints.isEmpty()) {
+            checkpoints.get(checkpoints.size() - 1).bytes += copied;
+            bytes += copied;
+        }
+    }
+
+    /**
+     * Drops the oldest checkpoints, and then the oldest steps, until the
+     * history fits in its budget. Undone steps are never dropped.
+     */
+    private void enforceBudget() {
+        chargeCopies();
+        while (bytes > budget) {
+            if (!checkpoints.isEmpty()) {
+                bytes -= checkpoints.remove(0).bytes;
+            } else if (cursor > 1) {
+                bytes -= drop(steps.remove(0));
+                cursor--;
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Undoes the last done step.
+     *
+     * @return boolean true if there was something to undo.
+     */
+    boolean undo() {
+        if (cursor == 0) {
+            return false;
+        }
+        Step step = steps.get(--cursor);
+        boundary = true;
+        switch (step.type) {
+            case ADD:
+                painting.setCount(step.from);
+                rebuild(cursor);
+                break;
+            case ERASE:
+                for (int k = 0; k < step.erasedCount; k++) {
+                    painting.restoreStar(step.erased[k]);
+                }
+                painting.redraw(step.x0, step.y0, step.x1, step.y1);
+                break;
+            default:
+                step.state = painting.swap(step.state);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Redoes the last undone step.
+     *
+     * @return boolean true if there was something to redo.
+     */
+    boolean redo() {
+        if (cursor == steps.size()) {
+            return false;
+        }
+        Step step = steps.get(cursor++);
+        boundary = true;
+        switch (step.type) {
+            case ADD:
+                painting.setCount(step.to);
+                painting.drawRange(step.from, step.to);
+                break;
+            case ERASE:
+                for (int k = 0; k < step.erasedCount; k++) {
+                    painting.removeStar(step.erased[k]);
+                }
+                painting.redraw(step.x0, step.y0, step.x1, step.y1);
+                break;
+            default:
+                step.state = painting.swap(step.state);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the pixels for the state after the first target steps, from
+     * the newest checkpoint at or before it that isn't before a clear. The
+     * stars after the checkpoint are drawn again (erased ones are skipped),
+     * and the areas of any erase steps in between are redrawn because the
+     * checkpoint may still show the stars they erased. Without a checkpoint
+     * the surface is rebuilt from scratch, or from the opened document.
+     *
+     * @param target is the number of steps that are done.
+     */
+    private void rebuild(int target) {
+        int start = target;
+        while (start > 0 && steps.get(start - 1).type != CLEAR) {
+            start--;
+        }
+        Checkpoint from = null;
+        for (int k = checkpoints.size() - 1; k >= 0; k--) {
+            Checkpoint c = checkpoints.get(k);
+            if (c.step <= target && c.step >= start) {
+                from = c;
+                break;
+            }
+        }
+        int first;
+        if (from != null) {
+            painting.restore(from.tiles);
+            first = from.stars;
+            start = from.step;
+        } else {
+            first = painting.reset();
+        }
+        painting.drawRange(first, painting.getStars().size());
+        for (int k = start; k < target; k++) {
+            Step step = steps.get(k);
+            if (step.type == ERASE) {
+                painting.redraw(step.x0, step.y0, step.x1, step.y1);
+            }
+        }
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return boolean true if there is something to undo.
+     */
+    public boolean canUndo() {
+        return cursor > 0;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return boolean true if there is something to redo.
+     */
+    public boolean canRedo() {
+        return cursor < steps.size();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long roughly how many bytes the history uses.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
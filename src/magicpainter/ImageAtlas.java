@@ -0,0 +1,71 @@
+package magicpainter;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+/**
+ * The small images of the interface packed into one file, images/atlas.png,
+ * so they are read and decoded once instead of file by file: the logo is at
+ * the top and the six size button pictures are in a row under it. The atlas
+ * is loaded the first time it's asked for, on the FX thread.
+ *
+ * @author sylverk @ github
+ */
+public final class ImageAtlas {
+
+    /**
+     * The part of the atlas holding the logo, 600x159.
+     */
+    public static final Rectangle2D LOGO = new Rectangle2D(0, 0, 600, 159);
+
+    /**
+     * int describing the width and height of a size button picture.
+     */
+    private static final int BUTTON = 30;
+
+    /**
+     * The atlas, or null until it's asked for.
+     */
+    private static Image image;
+
+    /**
+     * Constructor hidden, there is only the static state.
+     */
+    private ImageAtlas() {
+    }
+
+    /**
+     * Gets the atlas, loading it the first time.
+     *
+     * @return Image the whole atlas.
+     */
+    public static Image get() {
+        if (image == null) {
+            image = new Image(ImageAtlas.class.getResourceAsStream("/magicpainter/images/atlas.png"));
+        }
+        return image;
+    }
+
+    /**
+     * Gets the part of the atlas holding a size button picture.
+     *
+     * @param button is which button it is, 1 to 6 inclusive.
+     * @return Rectangle2D the part of the atlas.
+     */
+    public static Rectangle2D sizeButton(int button) {
+        return new Rectangle2D((button - 1) * BUTTON, LOGO.getHeight(), BUTTON, BUTTON);
+    }
+
+    /**
+     * Makes a view showing part of the atlas.
+     *
+     * @param part is the part of the atlas to show.
+     * @return ImageView showing it.
+     */
+    public static ImageView view(Rectangle2D part) {
+        ImageView view = new ImageView(get());
+        view.setViewport(part);
+        return view;
+    }
+}
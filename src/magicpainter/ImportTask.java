@@ -0,0 +1,99 @@
+package magicpainter;
+
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * Background task that imports a star list with a StarCsvReader and streams
+ * the stars onto the canvas chunk by chunk. Each chunk is handed to the FX
+ * thread and drawn through the DrawQueue; at most two chunks are waiting at
+ * any time so a huge file can't flood the FX thread or the heap. Progress is
+ * the fraction of the file read, and cancelling the task stops the reader.
+ *
+ * @author sylverk @ github
+ */
+public class ImportTask extends Task<Integer> {
+
+    /**
+     * int describing how many chunks can wait for the FX thread at once.
+     */
+    private static final int IN_FLIGHT = 2;
+
+    /**
+     * The reader doing the parsing.
+     */
+    private final StarCsvReader reader;
+
+    /**
+     * The queue the chunks are drawn through.
+     */
+    private final DrawQueue drawQueue;
+
+    /**
+     * The size of the file, for progress.
+     */
+    private final long fileSize;
+
+    /**
+     * Permits for chunks waiting on the FX thread.
+     */
+    private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+
+    /**
+     * Constructor for an ImportTask.
+     *
+     * @param file is the star list to import.
+     * @param fileSize is the size of the file in bytes.
+     * @param drawQueue is the queue the stars are drawn through.
+     */
+    public ImportTask(Path file, long fileSize, DrawQueue drawQueue) {
+        this.reader = new StarCsvReader(file);
+        this.fileSize = fileSize;
+        this.drawQueue = drawQueue;
+    }
+
+    /**
+     * Reads the file on the background thread.
+     *
+     * @return Integer number of stars imported.
+     * @throws Exception if the file can't be read.
+     */
+    @Override
+    protected Integer call() throws Exception {
+        updateProgress(0, fileSize);
+        int count = reader.read(chunk -> {
+            inFlight.acquire();
+            Platform.runLater(() -> {
+                if (!isCancelled()) {
+                    drawQueue.queueAll(chunk);
+                    drawQueue.flush();
+                }
+                inFlight.release();
+            });
+            updateProgress(reader.getBytesRead(), fileSize);
+        });
+        // wait until the last chunks are drawn before reporting success
+        inFlight.acquire(IN_FLIGHT);
+        updateProgress(fileSize, fileSize);
+        return count;
+    }
+
+    /**
+     * Stops the reader as well as the task.
+     */
+    @Override
+    protected void cancelled() {
+        reader.cancel();
+    }
+
+    /**
+     * Standard getter, only meaningful once the task is done.
+     *
+     * @return the reader, which holds the list of bad rows.
+     */
+    public StarCsvReader getReader() {
+        return reader;
+    }
+}
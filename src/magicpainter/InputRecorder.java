@@ -0,0 +1,443 @@
+package magicpainter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records every input that changes the painting to a compact file, so a
+ * session can be played back by Replay as a load test or to check the
+ * drawing didn't change. The file starts with a header:
+ *
+ * int magic, short version, int canvas width and height, int document width
+ * and height, double brush size, byte number of size buttons, double size
+ * of each button, double stroke spacing (new in version 5, before that
+ * strokes had a star at each drag event)
+ *
+ * followed by one record per input: the microseconds since the last record
+ * as a varint, a byte with the kind of input and what that kind needs.
+ * Positions are canvas positions kept to 1/16 of a pixel, as zigzag
+ * varints, which covers what mice report. Everything is written on the FX
+ * thread, through a buffer, so recording costs next to nothing per event.
+ * If writing fails the recorder stops and keeps the error for later, so the
+ * handlers don't have to deal with it.
+ *
+ * @author sylverk @ github
+ */
+public class InputRecorder implements Closeable {
+
+    /**
+     * int describing the first four bytes of a recording, "MSPR".
+     */
+    static final int MAGIC = 0x4D535052;
+
+    /**
+     * int describing the version of the format.
+     */
+    static final int VERSION = 5;
+
+    /**
+     * double describing how many steps a canvas pixel is kept in.
+     */
+    static final double SCALE = 16;
+
+    /**
+     * Mouse button pressed on the canvas: x, y, and a byte that is 1 for the
+     * primary button.
+     */
+    static final int PRESS = 0;
+
+    /**
+     * Mouse dragged on the canvas: x, y, primary.
+     */
+    static final int DRAG = 1;
+
+    /**
+     * Mouse clicked on the canvas: x, y, primary.
+     */
+    static final int CLICK = 2;
+
+    /**
+     * Mouse wheel over the canvas: x, y, delta y.
+     */
+    static final int SCROLL = 3;
+
+    /**
+     * ColorButton clicked: the color as an ARGB int.
+     */
+    static final int COLOR = 4;
+
+    /**
+     * ImageButton clicked: the size as a varint.
+     */
+    static final int SIZE = 5;
+
+    /**
+     * Brush key pressed (1-6, = or -): the KeyCode code as a varint, which
+     * for these keys is their character.
+     */
+    static final int KEY = 6;
+
+    /**
+     * Star placed with the Place! button: size, x and y as doubles.
+     */
+    static final int PLACE = 7;
+
+    /**
+     * Eraser turned on or off.
+     */
+    static final int ERASER = 8;
+
+    /**
+     * Canvas cleared.
+     */
+    static final int CLEAR = 9;
+
+    /**
+     * Undo.
+     */
+    static final int UNDO = 10;
+
+    /**
+     * Redo.
+     */
+    static final int REDO = 11;
+
+    /**
+     * View reset to 1:1.
+     */
+    static final int RESET_VIEW = 12;
+
+    /**
+     * Layer key pressed: one of the LAYER_ actions as a varint. New in
+     * version 2.
+     */
+    static final int LAYER = 13;
+
+    /**
+     * Symmetry key pressed: the new fold times two, plus one if mirrored,
+     * as a varint. New in version 3.
+     */
+    static final int SYMMETRY = 14;
+
+    /**
+     * Starfield made: x, y, width and height of the part of the document
+     * filled as doubles, the number of stars as a varint, the seed as a
+     * long, a byte that is 1 for Poisson-disk spacing and the biggest size
+     * as a double. New in version 4.
+     */
+    static final int STARFIELD = 15;
+
+    /**
+     * Layer action adding a layer above the active one.
+     */
+    static final int LAYER_ADD = 0;
+
+    /**
+     * Layer action making the layer above the active one active.
+     */
+    static final int LAYER_ABOVE = 1;
+
+    /**
+     * Layer action making the layer below the active one active.
+     */
+    static final int LAYER_BELOW = 2;
+
+    /**
+     * Layer action moving the active layer up one place.
+     */
+    static final int LAYER_RAISE = 3;
+
+    /**
+     * Layer action moving the active layer down one place.
+     */
+    static final int LAYER_LOWER = 4;
+
+    /**
+     * Layer action showing or hiding the active layer.
+     */
+    static final int LAYER_HIDE = 5;
+
+    /**
+     * Layer action making the active layer 10% less opaque.
+     */
+    static final int LAYER_FADE = 6;
+
+    /**
+     * Layer action making the active layer 10% more opaque.
+     */
+    static final int LAYER_UNFADE = 7;
+
+    /**
+     * Where the records go.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * long describing when the last record was written, in nanoseconds.
+     */
+    private long last;
+
+    /**
+     * int describing how many records were written.
+     */
+    private int count;
+
+    /**
+     * The exception that stopped the recording, or null.
+     */
+    private IOException error;
+
+    /**
+     * Constructor for an InputRecorder, writing the header right away.
+     *
+     * @param file is the recording to write, replaced if it exists.
+     * @param canvasWidth is the width of the canvas.
+     * @param canvasHeight is the height of the canvas.
+     * @param docWidth is the width of the document.
+     * @param docHeight is the height of the document.
+     * @param brushSize is the size of the brush to begin with.
+     * @param brushSizes are the sizes of the size buttons, which the = and -
+     * keys step through.
+     * @param spacing is how far apart the stars of a stroke are, as a
+     * fraction of the brush size, 0 for a star at each drag event.
+     * @throws IOException if the file can't be written.
+     */
+    public InputRecorder(Path file, int canvasWidth, int canvasHeight, int docWidth, int docHeight,
+            double brushSize, double[] brushSizes, double spacing) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(canvasWidth);
+        out.writeInt(canvasHeight);
+        out.writeInt(docWidth);
+        out.writeInt(docHeight);
+        out.writeDouble(brushSize);
+        out.writeByte(brushSizes.length);
+        for (double size : brushSizes) {
+            out.writeDouble(size);
+        }
+        out.writeDouble(spacing);
+        last = System.nanoTime();
+    }
+
+    /**
+     * Records a mouse input on the canvas.
+     *
+     * @param kind is PRESS, DRAG or CLICK.
+     * @param x is the x-position on the canvas.
+     * @param y is the y-position on the canvas.
+     * @param primary is true if it's the primary button.
+     */
+    public void mouse(int kind, double x, double y, boolean primary) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(kind);
+            writeFixed(x);
+            writeFixed(y);
+            out.writeByte(primary ? 1 : 0);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records the mouse wheel turning over the canvas.
+     *
+     * @param x is the x-position on the canvas.
+     * @param y is the y-position on the canvas.
+     * @param deltaY is how far the wheel turned.
+     */
+    public void scroll(double x, double y, double deltaY) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(SCROLL);
+            writeFixed(x);
+            writeFixed(y);
+            writeFixed(deltaY);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records a ColorButton click.
+     *
+     * @param argb is the color packed as 0xAARRGGBB.
+     */
+    public void color(int argb) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(COLOR);
+            out.writeInt(argb);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records an ImageButton click, a brush key, a layer key or a symmetry
+     * key.
+     *
+     * @param kind is SIZE, KEY, LAYER or SYMMETRY.
+     * @param value is the size, the KeyCode code, the layer action or the
+     * symmetry.
+     */
+    public void value(int kind, int value) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(kind);
+            writeVarint(value);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records a star placed with the Place! button.
+     *
+     * @param size is the size of the star.
+     * @param x is the x-position of the star in the document.
+     * @param y is the y-position of the star in the document.
+     */
+    public void place(double size, double x, double y) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(PLACE);
+            out.writeDouble(size);
+            out.writeDouble(x);
+            out.writeDouble(y);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records a starfield being made.
+     *
+     * @param x is the left edge of the part of the document filled.
+     * @param y is the top edge.
+     * @param width is the width of the part filled.
+     * @param height is the height of the part filled.
+     * @param count is how many stars were asked for.
+     * @param seed is the seed.
+     * @param poisson is true for Poisson-disk spacing.
+     * @param maxSize is the biggest size the stars can have.
+     */
+    public void starfield(double x, double y, double width, double height, int count, long seed,
+            boolean poisson, double maxSize) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(STARFIELD);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.writeDouble(width);
+            out.writeDouble(height);
+            writeVarint(count);
+            out.writeLong(seed);
+            out.writeByte(poisson ? 1 : 0);
+            out.writeDouble(maxSize);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records an input that needs nothing else, like an undo.
+     *
+     * @param kind is ERASER, CLEAR, UNDO, REDO or RESET_VIEW.
+     */
+    public void action(int kind) {
+        if (error != null) {
+            return;
+        }
+        try {
+            start(kind);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Writes the time since the last record and the kind of a new record.
+     *
+     * @param kind is the kind of input.
+     * @throws IOException if the file can't be written.
+     */
+    private void start(int kind) throws IOException {
+        long now = System.nanoTime();
+        writeVarint((now - last) / 1000);
+        last = now;
+        out.writeByte(kind);
+        count++;
+    }
+
+    /**
+     * Writes a position kept to 1/16 of a pixel.
+     *
+     * @param v is the position.
+     * @throws IOException if the file can't be written.
+     */
+    private void writeFixed(double v) throws IOException {
+        long q = Math.round(v * SCALE);
+        writeVarint((q << 1) ^ (q >> 63));
+    }
+
+    /**
+     * Writes a non-negative number 7 bits at a time.
+     *
+     * @param v is the number.
+     * @throws IOException if the file can't be written.
+     */
+    private void writeVarint(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return IOException the exception that stopped the recording, or null
+     * if it's fine.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int number of records written.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Writes out what is buffered and closes the file.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,817 @@
+package magicpainter;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Autosave journal of a painting, so a crash doesn't lose it. Every change
+ * to the stars and of the brush color is appended to a file as a record of
+ * a fixed size:
+ *
+ * int mark, layer and kind, int ARGB color or number, double, double, double
+ *
+ * after a header of int magic, int version, int document width and height.
+ * A star keeps its size, x and y in the doubles; erasing, undo and redo are
+ * written as which stars were removed or put back and how many stars there
+ * are, by their index in the store. Clearing, opening a document and undoing
+ * either put another store in place, so every store gets a number and the
+ * journal says which one is in place; the stars of an opened document are
+ * written by the writer from a read-only view of the store, and a store the
+ * undo history let go of is dropped.
+ *
+ * The FX thread only copies records into a buffer. A thread of its own
+ * plays them back onto its own copy of the stores, writes them through a
+ * FileChannel and forces them to disk a few times a second, as one group for
+ * everything that came in meanwhile, so drawing never waits for the disk.
+ * When the file holds a lot more records than its copy has stars, the
+ * writer compacts it from that copy into a second file that is then moved
+ * over the journal, so there is always a whole one. If writing fails the
+ * journal stops and keeps the error, like the InputRecorder. A crash can
+ * leave half a record at the end, which {@link #read} ignores.
+ *
+ * @author sylverk @ github
+ */
+public class Journal implements Closeable {
+
+    /**
+     * int describing the first four bytes of a journal, "MSPJ".
+     */
+    static final int MAGIC = 0x4D53504A;
+
+    /**
+     * int describing the version of the format.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * int describing the size of the header in bytes.
+     */
+    static final int HEADER = 16;
+
+    /**
+     * int describing the size of a record in bytes.
+     */
+    static final int RECORD = 32;
+
+    /**
+     * int describing the top byte of every record, so a record that was
+     * never written (like zeros after a crash) isn't read as a star.
+     */
+    private static final int MARK = 0xA5;
+
+    /**
+     * A star was added: size, x, y and its color.
+     */
+    static final int STAR = 1;
+
+    /**
+     * A star was removed: its index.
+     */
+    static final int REMOVE = 2;
+
+    /**
+     * A removed star was put back: its index.
+     */
+    static final int RESTORE = 3;
+
+    /**
+     * The brush color changed: the color.
+     */
+    static final int COLOR = 4;
+
+    /**
+     * The number of stars changed by undo or redo: the number.
+     */
+    static final int COUNT = 5;
+
+    /**
+     * Another store was put in place, empty if it is new: its number.
+     */
+    static final int SWITCH = 6;
+
+    /**
+     * A store won't be put in place again: its number.
+     */
+    static final int DROP = 7;
+
+    /**
+     * The first stars of a view were added; only ever in the buffer, the
+     * writer turns it into STAR records.
+     */
+    private static final int LOAD = 8;
+
+    /**
+     * long describing how often the buffer is written and forced to disk, in
+     * milliseconds.
+     */
+    private static final long COMMIT_MILLIS = 250;
+
+    /**
+     * long describing how many records more than twice the stars the journal
+     * may hold before it is compacted.
+     */
+    private static final long SLACK = 1 << 16;
+
+    /**
+     * int describing the size the buffers start at.
+     */
+    private static final int BUFFER = 1 << 16;
+
+    /**
+     * The stores a journal describes, as played back from its records.
+     */
+    private static final class Model {
+
+        /**
+         * The palette shared by the stores.
+         */
+        final Palette palette = new Palette();
+
+        /**
+         * The stores by number.
+         */
+        final Map<Integer, StarStore> stores = new HashMap<>();
+
+        /**
+         * The stores by number, holding how many stars each one has had
+         * since its last add, which redo can bring back.
+         */
+        final Map<Integer, int[]> tops = new HashMap<>();
+
+        /**
+         * int describing the number of the store in place.
+         */
+        int current;
+
+        /**
+         * The store in place.
+         */
+        StarStore stars;
+
+        /**
+         * array holding the top of the store in place.
+         */
+        int[] top;
+
+        /**
+         * int describing the last brush color, 0 for none.
+         */
+        int brush;
+
+        /**
+         * Constructor for a Model with store 0 in place.
+         */
+        Model() {
+            select(0);
+        }
+
+        /**
+         * Puts a store in place, making an empty one if it is new.
+         *
+         * @param id is the number of the store.
+         */
+        void select(int id) {
+            current = id;
+            stars = stores.computeIfAbsent(id, k -> new StarStore(palette));
+            top = tops.computeIfAbsent(id, k -> new int[1]);
+        }
+
+        /**
+         * Plays one record back.
+         *
+         * @param kind is the kind of record.
+         * @param layer is the layer id.
+         * @param argb is the color or number.
+         * @param a is the first double.
+         * @param b is the second double.
+         * @param c is the third double.
+         * @throws IOException if the record makes no sense.
+         */
+        void apply(int kind, int layer, int argb, double a, double b, double c) throws IOException {
+            switch (kind) {
+                case STAR:
+                    int i = stars.add(a, b, c, palette.indexOf(argb));
+                    stars.setLayer(i, i + 1, layer);
+                    top[0] = stars.size();
+                    break;
+                case REMOVE:
+                    check(argb, stars.size());
+                    stars.remove(argb);
+                    break;
+                case RESTORE:
+                    check(argb, stars.size());
+                    stars.restore(argb);
+                    break;
+                case COUNT:
+                    check(argb, top[0] + 1);
+                    stars.setCount(argb);
+                    break;
+                case SWITCH:
+                    select(argb);
+                    break;
+                case DROP:
+                    if (argb != current) {
+                        stores.remove(argb);
+                        tops.remove(argb);
+                    }
+                    break;
+                case COLOR:
+                    brush = argb;
+                    break;
+                default:
+                    throw new IOException("Bad journal record");
+            }
+        }
+
+        /**
+         * Checks that a star index or count from a record is in range.
+         *
+         * @param value is the index or count.
+         * @param limit is the first value out of range.
+         * @throws IOException if it isn't in range.
+         */
+        private static void check(int value, int limit) throws IOException {
+            if (value < 0 || value >= limit) {
+                throw new IOException("Bad journal record");
+            }
+        }
+
+        /**
+         * Counts the stars of every store, including the ones redo can bring
+         * back, which is about how many records a compacted journal holds.
+         *
+         * @return long number of stars.
+         */
+        long size() {
+            long n = 0;
+            for (Map.Entry<Integer, StarStore> e : stores.entrySet()) {
+                n += tops.get(e.getKey())[0] + e.getValue().getRemovedCount();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * The journal.
+     */
+    private final Path file;
+
+    /**
+     * The file a compacted journal is written to before it is moved over the
+     * journal.
+     */
+    private final Path temp;
+
+    /**
+     * int describing the width of the document.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the document.
+     */
+    private final int height;
+
+    /**
+     * Lock over everything the FX thread and the writer share.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The buffer the FX thread puts records in.
+     */
+    private ByteBuffer filling = ByteBuffer.allocate(BUFFER);
+
+    /**
+     * The buffer the writer gives back, swapped in for filling next time.
+     */
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER);
+
+    /**
+     * The views of the stores whose stars LOAD records in the buffer add,
+     * in order.
+     */
+    private final ArrayDeque<StarStore> views = new ArrayDeque<>();
+
+    /**
+     * The colors of the palette of each view when it was added, since the
+     * palette keeps changing on the FX thread.
+     */
+    private final ArrayDeque<int[]> viewColors = new ArrayDeque<>();
+
+    /**
+     * The number of each store that was put in place so far, by the store
+     * itself. Only used by the thread changing the painting.
+     */
+    private final Map<StarStore, Integer> ids = new IdentityHashMap<>();
+
+    /**
+     * int describing the number the next new store gets. Only used by the
+     * thread changing the painting.
+     */
+    private int nextId;
+
+    /**
+     * The stores as the records written so far leave them. Only used by the
+     * writer.
+     */
+    private final Model model = new Model();
+
+    /**
+     * long describing how many records the file holds. Only used by the
+     * writer.
+     */
+    private long records;
+
+    /**
+     * boolean indicating if the journal is being closed.
+     */
+    private boolean closing;
+
+    /**
+     * The thread writing the journal.
+     */
+    private final Thread writer;
+
+    /**
+     * Called on the writer thread when writing fails.
+     */
+    private final Runnable failed;
+
+    /**
+     * The error writing failed with, or null.
+     */
+    private volatile IOException error;
+
+    /**
+     * Constructor for a Journal, which starts out empty, replacing the file
+     * if there is one. The first store put in place with {@link #select} is
+     * taken to be the one that was in place.
+     *
+     * @param file is the journal.
+     * @param width is the width of the document.
+     * @param height is the height of the document.
+     * @param failed is called on the writer thread if writing fails.
+     */
+    public Journal(Path file, int width, int height, Runnable failed) {
+        this.file = file;
+        this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+        this.width = width;
+        this.height = height;
+        this.failed = failed;
+        writer = new Thread(this::run, "autosave-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends the stars that were added to a store.
+     *
+     * @param stars is the store.
+     * @param from is the index of the first star added, which must be the
+     * number of stars the store had.
+     * @param to is the index after the last star added.
+     */
+    public void stars(StarStore stars, int from, int to) {
+        if (error != null) {
+            return;
+        }
+        Palette palette = stars.getPalette();
+        synchronized (lock) {
+            room((to - from) * RECORD);
+            for (int i = from; i < to; i++) {
+                put(filling, STAR, stars.getLayer(i), palette.get(stars.getColor(i)),
+                        stars.getSize(i), stars.getX(i), stars.getY(i));
+            }
+        }
+    }
+
+    /**
+     * Appends the stars of a store that was just put in place with
+     * {@link #select}, like an opened document, without copying them: the
+     * writer reads them from a view of the store, which keeps seeing them
+     * whatever happens to the store afterwards.
+     *
+     * @param view is a {@link StarStore#share} of the store.
+     */
+    public void load(StarStore view) {
+        if (error != null || view.size() == 0) {
+            return;
+        }
+        Palette palette = view.getPalette();
+        int[] colors = new int[palette.size()];
+        for (int c = 0; c < colors.length; c++) {
+            colors[c] = palette.get(c);
+        }
+        synchronized (lock) {
+            views.add(view);
+            viewColors.add(colors);
+            room(RECORD);
+            put(filling, LOAD, 0, view.size(), 0, 0, 0);
+        }
+    }
+
+    /**
+     * Appends that a star was removed, by erasing or redoing an erase.
+     *
+     * @param i is the index of the star.
+     */
+    public void remove(int i) {
+        append(REMOVE, 0, i);
+    }
+
+    /**
+     * Appends that a removed star was put back by undoing an erase.
+     *
+     * @param i is the index of the star.
+     */
+    public void restore(int i) {
+        append(RESTORE, 0, i);
+    }
+
+    /**
+     * Appends that undo or redo changed the number of stars.
+     *
+     * @param n is the new number of stars.
+     */
+    public void count(int n) {
+        append(COUNT, 0, n);
+    }
+
+    /**
+     * Appends that another store was put in place, by clearing, opening or
+     * undoing either. A store the journal hasn't seen starts out empty.
+     *
+     * @param stars is the store.
+     */
+    public void select(StarStore stars) {
+        Integer id = ids.get(stars);
+        if (id == null) {
+            id = nextId++;
+            ids.put(stars, id);
+        }
+        append(SWITCH, 0, id);
+    }
+
+    /**
+     * Appends that a store that isn't in place will never be again, because
+     * the undo history let go of it.
+     *
+     * @param stars is the store.
+     */
+    public void drop(StarStore stars) {
+        Integer id = ids.remove(stars);
+        if (id != null) {
+            append(DROP, 0, id);
+        }
+    }
+
+    /**
+     * Appends a change of the brush color.
+     *
+     * @param argb is the new color packed as 0xAARRGGBB.
+     */
+    public void color(int argb) {
+        append(COLOR, 0, argb);
+    }
+
+    /**
+     * Appends one record without doubles.
+     *
+     * @param kind is the kind of record.
+     * @param layer is the layer id.
+     * @param argb is the color or number.
+     */
+    private void append(int kind, int layer, int argb) {
+        if (error != null) {
+            return;
+        }
+        synchronized (lock) {
+            room(RECORD);
+            put(filling, kind, layer, argb, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Makes room in the buffer the FX thread fills, by making it bigger
+     * rather than waiting for the writer. Called with the lock held.
+     *
+     * @param bytes is how many bytes are about to be put.
+     */
+    private void room(int bytes) {
+        if (filling.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(filling.capacity() * 2, filling.position() + bytes));
+            filling.flip();
+            bigger.put(filling);
+            filling = bigger;
+        }
+    }
+
+    /**
+     * Puts a record in a buffer.
+     *
+     * @param buffer is the buffer.
+     * @param kind is the kind of record.
+     * @param layer is the layer id.
+     * @param argb is the color or number.
+     * @param a is the first double.
+     * @param b is the second double.
+     * @param c is the third double.
+     */
+    private static void put(ByteBuffer buffer, int kind, int layer, int argb, double a, double b, double c) {
+        buffer.putInt(MARK << 24 | layer << 8 | kind).putInt(argb).putDouble(a).putDouble(b).putDouble(c);
+    }
+
+    /**
+     * Writes what comes in until the journal is closed.
+     */
+    private void run() {
+        FileChannel channel = null;
+        try {
+            channel = rewrite();
+            ByteBuffer out = ByteBuffer.allocate(BUFFER);
+            while (true) {
+                ByteBuffer batch;
+                boolean last;
+                synchronized (lock) {
+                    if (!closing) {
+                        lock.wait(COMMIT_MILLIS);
+                    }
+                    batch = filling;
+                    filling = spare;
+                    spare = null;
+                    last = closing;
+                }
+                if (batch.position() > 0) {
+                    batch.flip();
+                    play(batch, channel, out);
+                    drain(channel, out);
+                    channel.force(false);
+                }
+                batch.clear();
+                synchronized (lock) {
+                    spare = batch;
+                }
+                // after the last batch too, so a closed journal is never bloated
+                if (isBloated(records, model.size())) {
+                    channel.close();
+                    channel = rewrite();
+                }
+                if (last) {
+                    break;
+                }
+            }
+        } catch (IOException x) {
+            error = x;
+            failed.run();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException x) {
+                    if (error == null) {
+                        error = x;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a journal holds so many more records than its stores have
+     * stars that the writer compacts it.
+     *
+     * @param records is the number of records.
+     * @param stars is the number of stars of every store, including removed
+     * ones and ones redo can bring back.
+     * @return boolean true if it gets compacted.
+     */
+    static boolean isBloated(long records, long stars) {
+        return records > 2 * stars + SLACK;
+    }
+
+    /**
+     * Plays the records of a batch back onto the model and writes them, with
+     * the stars of LOAD records written out as STAR records.
+     *
+     * @param batch is the buffer the FX thread filled, flipped.
+     * @param channel is where to write.
+     * @param out is the buffer to write through.
+     * @throws IOException if writing fails.
+     */
+    private void play(ByteBuffer batch, FileChannel channel, ByteBuffer out) throws IOException {
+        while (batch.hasRemaining()) {
+            int head = batch.getInt();
+            int argb = batch.getInt();
+            double a = batch.getDouble();
+            double b = batch.getDouble();
+            double c = batch.getDouble();
+            if ((head & 0xFF) != LOAD) {
+                model.apply(head & 0xFF, head >>> 8 & 0xFF, argb, a, b, c);
+                if (out.remaining() < RECORD) {
+                    drain(channel, out);
+                }
+                put(out, head & 0xFF, head >>> 8 & 0xFF, argb, a, b, c);
+                records++;
+                continue;
+            }
+            StarStore view;
+            int[] colors;
+            synchronized (lock) {
+                view = views.poll();
+                colors = viewColors.poll();
+            }
+            for (int i = 0; i < argb; i++) {
+                int color = colors[view.getColor(i)];
+                model.apply(STAR, view.getLayer(i), color, view.getSize(i), view.getX(i), view.getY(i));
+                if (out.remaining() < RECORD) {
+                    drain(channel, out);
+                }
+                put(out, STAR, view.getLayer(i), color, view.getSize(i), view.getX(i), view.getY(i));
+                records++;
+            }
+        }
+    }
+
+    /**
+     * Writes a journal holding only the stores of the model to the temporary
+     * file, forces it to disk and moves it over the journal. Every store is
+     * written with all its stars, removed ones and ones redo can bring back
+     * included, so the indices stay the same.
+     *
+     * @return FileChannel open for appending to the new journal.
+     * @throws IOException if writing fails.
+     */
+    private FileChannel rewrite() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(BUFFER);
+        out.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+        records = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (model.brush != 0) {
+                put(out, COLOR, 0, model.brush, 0, 0, 0);
+                records++;
+            }
+            for (Map.Entry<Integer, StarStore> e : model.stores.entrySet()) {
+                StarStore stars = e.getValue();
+                int top = model.tops.get(e.getKey())[0];
+                int count = stars.size();
+                if (out.remaining() < RECORD) {
+                    drain(channel, out);
+                }
+                put(out, SWITCH, 0, e.getKey(), 0, 0, 0);
+                stars.setCount(top);
+                for (int i = 0; i < top; i++) {
+                    if (out.remaining() < 2 * RECORD) {
+                        drain(channel, out);
+                    }
+                    put(out, STAR, stars.getLayer(i), model.palette.get(stars.getColor(i)),
+                            stars.getSize(i), stars.getX(i), stars.getY(i));
+                    if (stars.isRemoved(i)) {
+                        put(out, REMOVE, 0, i, 0, 0, 0);
+                        records++;
+                    }
+                }
+                stars.setCount(count);
+                if (out.remaining() < 2 * RECORD) {
+                    drain(channel, out);
+                }
+                put(out, COUNT, 0, count, 0, 0, 0);
+                records += top + 2;
+            }
+            if (out.remaining() < RECORD) {
+                drain(channel, out);
+            }
+            put(out, SWITCH, 0, model.current, 0, 0, 0);
+            records++;
+            drain(channel, out);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Writes out what a buffer holds and empties it.
+     *
+     * @param channel is where to write.
+     * @param out is the buffer.
+     * @throws IOException if writing fails.
+     */
+    private static void drain(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Writes what is left and stops the writer, waiting for it.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closing = true;
+            lock.notify();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return IOException that stopped the journal, or null.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Checks if a journal has any record after its header, so there is
+     * something to recover.
+     *
+     * @param file is the journal.
+     * @return boolean true if it exists and has records.
+     */
+    public static boolean hasRecords(Path file) {
+        try {
+            return Files.size(file) >= HEADER + RECORD;
+        } catch (IOException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Plays a journal back, leaving the stars the painting had at the end of
+     * it in a store. Like a document, the stars lose their layers. Reading
+     * stops at the first record that wasn't written whole.
+     *
+     * @param file is the journal.
+     * @param into is the store the stars are added to.
+     * @return int the last brush color, 0 if none was recorded.
+     * @throws IOException if the file can't be read or isn't a journal.
+     */
+    public static int read(Path file, StarStore into) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an autosave journal");
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported journal version");
+            }
+            if (in.readInt() <= 0 || in.readInt() <= 0) {
+                throw new IOException("Bad journal header");
+            }
+            Model model = new Model();
+            while (true) {
+                int head;
+                int argb;
+                double a;
+                double b;
+                double c;
+                try {
+                    head = in.readInt();
+                    argb = in.readInt();
+                    a = in.readDouble();
+                    b = in.readDouble();
+                    c = in.readDouble();
+                } catch (EOFException x) {
+                    break;
+                }
+                if (head >>> 24 != MARK) {
+                    break;
+                }
+                model.apply(head & 0xFF, head >>> 8 & 0xFF, argb, a, b, c);
+            }
+            StarStore stars = model.stars;
+            into.ensureCapacity(into.size() + stars.size() - stars.getRemovedCount());
+            for (int i = 0; i < stars.size(); i++) {
+                if (!stars.isRemoved(i)) {
+                    into.add(stars.getSize(i), stars.getX(i), stars.getY(i),
+                            into.getPalette().indexOf(model.palette.get(stars.getColor(i))));
+                }
+            }
+            return model.brush;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package magicpainter;
+
+import java.util.EnumMap;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+
+/**
+ * Table of what the keys do, so a key press is one lookup instead of a test
+ * against every shortcut. A key can have an action for when the shortcut
+ * key (Ctrl, or Cmd on a Mac) is held, one for when it isn't, and one for
+ * either way, which is used when the more particular one isn't bound. Shift
+ * is handed to the action, so a key and Shift plus the key can share one.
+ *
+ * @author sylverk @ github
+ */
+public class KeyBindings {
+
+    /**
+     * Interface for something a key does.
+     */
+    public interface Action {
+
+        /**
+         * Called when the key is pressed.
+         *
+         * @param shift is true if Shift is held.
+         */
+        void run(boolean shift);
+    }
+
+    /**
+     * int describing a binding for whether or not the shortcut key is held.
+     */
+    public static final int ANY = 0;
+
+    /**
+     * int describing a binding for when the shortcut key is held.
+     */
+    public static final int SHORTCUT = 1;
+
+    /**
+     * int describing a binding for when the shortcut key isn't held.
+     */
+    public static final int PLAIN = 2;
+
+    /**
+     * The actions of each bound key, indexed by ANY, SHORTCUT and PLAIN.
+     */
+    private final EnumMap<KeyCode, Action[]> actions = new EnumMap<>(KeyCode.class);
+
+    /**
+     * Binds a key, replacing what it did with the same modifier before.
+     *
+     * @param code is the key.
+     * @param modifier is ANY, SHORTCUT or PLAIN.
+     * @param action is what the key does.
+     * @return KeyBindings this, so bindings can be chained.
+     */
+    public KeyBindings bind(KeyCode code, int modifier, Action action) {
+        actions.computeIfAbsent(code, c -> new Action[3])[modifier] = action;
+        return this;
+    }
+
+    /**
+     * Runs the action bound to a key press, if there is one.
+     *
+     * @param e is the key press.
+     * @return boolean true if the key was bound.
+     */
+    public boolean dispatch(KeyEvent e) {
+        Action[] bound = actions.get(e.getCode());
+        if (bound == null) {
+            return false;
+        }
+        Action action = bound[e.isShortcutDown() ? SHORTCUT : PLAIN];
+        if (action == null) {
+            action = bound[ANY];
+        }
+        if (action == null) {
+            return false;
+        }
+        action.run(e.isShiftDown());
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package magicpainter;
+
+/**
+ * One layer of a Painting: a name, whether it's shown and how opaque it is.
+ * The stars of a layer are drawn onto a surface of its own, and the shown
+ * layers are blended together from those surfaces, so hiding, fading or
+ * moving a layer never draws its stars again. The id is the layer's place
+ * in the list of surfaces and what the StarStore keeps for each star, so it
+ * stays the same when the layer is moved. Changes go through the Painting.
+ *
+ * @author sylverk @ github
+ */
+public class Layer {
+
+    /**
+     * int describing the id of the layer.
+     */
+    private final int id;
+
+    /**
+     * The name shown for the layer.
+     */
+    private final String name;
+
+    /**
+     * boolean indicating if the layer is shown.
+     */
+    private boolean visible = true;
+
+    /**
+     * double describing how opaque the layer is, from 0 to 1.
+     */
+    private double opacity = 1;
+
+    /**
+     * Constructor for a Layer, shown and fully opaque.
+     *
+     * @param id is the id of the layer.
+     * @param name is the name shown for the layer.
+     */
+    Layer(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int id of the layer.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return String name of the layer.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return boolean true if the layer is shown.
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Standard setter.
+     *
+     * @param visible is true to show the layer.
+     */
+    void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return double how opaque the layer is, from 0 to 1.
+     */
+    public double getOpacity() {
+        return opacity;
+    }
+
+    /**
+     * Standard setter.
+     *
+     * @param opacity is how opaque the layer is, from 0 to 1.
+     */
+    void setOpacity(double opacity) {
+        this.opacity = opacity;
+    }
+
+    /**
+     * Works out the opacity as the alpha the layer is blended with.
+     *
+     * @return int alpha from 0 to 255.
+     */
+    int getAlpha() {
+        return (int) Math.round(opacity * 255);
+    }
+}
@@ -1,22 +1,41 @@
 package magicpainter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.SplittableRandom;
 import javafx.application.Application;
+import javafx.application.Platform;
 import static javafx.application.Application.launch;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.control.TextInputDialog;
 import javafx.scene.image.Image;
 import javafx.scene.input.KeyCode;
+import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.Pane;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.scene.paint.Color;
-import javafx.scene.paint.Paint;
 import javafx.scene.shape.Rectangle;
 import javafx.scene.text.Font;
 
@@ -27,21 +46,19 @@ import javafx.scene.text.Font;
  * "place!" You can click the palette swatches or size buttons on the sides to
  * change the brush size and color. You can also press 1-6 on the keyboard to
  * pick a color and + or - to increase/decrease the brush size. The clear button
- * will clear the canvas without further warning, so tread carefully around it.
+ * will clear the canvas without further warning, but Undo (Ctrl+Z) brings it
+ * back, and Redo (Ctrl+Y) does it again.
  *
  * @author sylverk @ github
  */
 public class MagicPainter extends Application {
     
     /**
-     * Image containing the logo of the application.
+     * Image containing the instructions for the application. It is decoded
+     * in the background while the window is being built, and drawn on the
+     * canvas when it's ready if nothing was done on the canvas yet.
      */
-    Image logo = new Image(this.getClass().getResourceAsStream("/magicpainter/images/logo.png"));
-
-    /**
-     * Image containing the instructions for the application.
-     */
-    Image infoScreen = new Image(this.getClass().getResourceAsStream("/magicpainter/images/infoscreen.png"));
+    Image infoScreen = new Image(MagicPainter.class.getResource("/magicpainter/images/infoscreen.png").toExternalForm(), true);
 
     /**
      * boolean indicating if the instructions have been dismissed.
@@ -101,23 +118,549 @@ public class MagicPainter extends Application {
      */
     double drawStarSize = 10;
 
+    /**
+     * int describing the current brush color packed as 0xAARRGGBB. The
+     * DrawQueue looks it up in a palette when stars are queued.
+     */
+    int drawColor = Palette.DEFAULT_COLORS[0];
+
+    /**
+     * double describing the canvas x-position of the mouse when the view was
+     * last dragged.
+     */
+    double panX;
+
+    /**
+     * double describing the canvas y-position of the mouse when the view was
+     * last dragged.
+     */
+    double panY;
+
+    /**
+     * int describing the width of the document, which can be much bigger
+     * than the canvas.
+     */
+    static final int DOCUMENT_WIDTH = 16384;
+
+    /**
+     * int describing the height of the document.
+     */
+    static final int DOCUMENT_HEIGHT = 16384;
+
+    /**
+     * The painting: every star placed on the canvas, the index over them,
+     * the tiled surface holding the pixels and the undo history. Tiles are
+     * kept off-heap when the magicpainter.offHeapTiles system property is
+     * true, and the history may use magicpainter.undoBudgetMB megabytes.
+     */
+    Painting painting = new Painting(DOCUMENT_WIDTH, DOCUMENT_HEIGHT, Boolean.getBoolean("magicpainter.offHeapTiles"),
+            Long.getLong("magicpainter.undoBudgetMB", 256) << 20);
+
+    /**
+     * Queue that batches stars from mouse events and draws them once per
+     * pulse.
+     */
+    DrawQueue drawQueue;
+
+    /**
+     * boolean indicating if dragging erases stars instead of drawing them.
+     */
+    boolean erasing = false;
+
+    /**
+     * Button that turns the eraser on and off.
+     */
+    Button eraserButton;
+
+    /**
+     * Button that undoes the last change.
+     */
+    Button undoButton;
+
+    /**
+     * Button that redoes the last undone change.
+     */
+    Button redoButton;
+
+    /**
+     * Button that starts importing a star list, or cancels the import that is
+     * running.
+     */
+    Button importButton;
+
+    /**
+     * ProgressBar showing how far along the running import is.
+     */
+    ProgressBar importProgress;
+
+    /**
+     * The import that is running, or null if there isn't one.
+     */
+    ImportTask importTask;
+
+    /**
+     * The document the painting was last opened from or saved to, or null.
+     */
+    File documentFile;
+
+    /**
+     * The document that is being opened, or null if there isn't one.
+     */
+    OpenTask openTask;
+
+    /**
+     * The export that is running, or null if there isn't one.
+     */
+    ExportTask exportTask;
+
+    /**
+     * The starfield being made, or null if there isn't one.
+     */
+    StarfieldTask starfieldTask;
+
+    /**
+     * double array of the sizes of the size buttons, smallest first.
+     */
+    static final double[] BRUSH_SIZES = {10, 20, 40, 80, 160, 320};
+
+    /**
+     * The recorder of the inputs when started with -Dmagicpainter.record,
+     * or null.
+     */
+    InputRecorder recorder;
+
+    /**
+     * The autosave journal, written to the file given with
+     * -Dmagicpainter.journal or .magicpainter-autosave.journal in the home
+     * directory, or null if that is set to nothing or couldn't be started.
+     */
+    Journal journal;
+
+    /**
+     * The server taking commands from other programs when started with
+     * -Dmagicpainter.port, or null.
+     */
+    CommandServer commandServer;
+
+    /**
+     * The symmetry of the brush, changed with K and Shift+K.
+     */
+    Symmetry symmetry = new Symmetry(1, false);
+
+    /**
+     * float array of the x-positions of the copies of the brush, reused for
+     * every drag event.
+     */
+    final float[] copiesX = new float[Symmetry.MAX_COPIES];
+
+    /**
+     * float array of the y-positions of the copies of the brush.
+     */
+    final float[] copiesY = new float[Symmetry.MAX_COPIES];
+
+    /**
+     * double describing how far apart the stars of a stroke are, as a
+     * fraction of the brush size, set with -Dmagicpainter.spacing; 0 puts a
+     * star at each drag event instead.
+     */
+    double strokeSpacing = 0.25;
+
+    /**
+     * The stroke being drawn, joining the drag events.
+     */
+    final Stroke stroke = new Stroke();
+
+    /**
+     * The overlay showing the live Stats over the canvas, toggled with F3.
+     */
+    StatsOverlay statsOverlay = new StatsOverlay(54, 54);
+
+    /**
+     * The save that is running, or null if there isn't one.
+     */
+    SaveTask saveTask;
+
+    /**
+     * int describing the kind of DrawQueue command that shows a message, so
+     * messages posted in the same frame only show the last one.
+     */
+    static final int STATUS = 1;
+
     // EVENT HANDLERS AND HELPERS //--------------------------------------------
     /**
-     * Handler that clears the canvas by storing the current brush color,
-     * drawing a new blank rectangle over the canvas and then resetting the
-     * brush color to the one selected by the user. Also sets a message letting
-     * the user know the canvas has successfully been cleared.
+     * Handler that clears the canvas by throwing away every star and every
+     * tile of the painting, which only repaints the parts of the canvas that
+     * had something on them. The clear can be undone. Also sets a message
+     * letting the user know the canvas has successfully been cleared.
      *
      * @param e
      */
     private void clearCanvas(ActionEvent e) {
-        Paint oldColor = gc.getFill();
-        gc.setFill(Color.rgb(255, 250, 220));
-        gc.fillRect(0, 0, 600, 600);
-        whatsUp.setTextFill(Color.WHITE);
-        whatsUp.setText("Canvas has been cleared!");
-        gc.setFill(oldColor);
+        Stats.InputEvent event = Stats.input(Stats.CLEAR);
+        if (recorder != null) {
+            recorder.action(InputRecorder.CLEAR);
+        }
+        drawQueue.post(drawQueue::clear);
+        postStatus(Color.WHITE, "Canvas has been cleared!");
+        Stats.commit(event);
+
+    }
+
+    /**
+     * Helper that shows a message in the whatsUp label right away, for
+     * commands running on the DrawQueue.
+     *
+     * @param color is the color of the message.
+     * @param message is the message.
+     */
+    private void status(Color color, String message) {
+        whatsUp.setTextFill(color);
+        whatsUp.setText(message);
+    }
+
+    /**
+     * Helper that shows a message in the whatsUp label on the next pulse,
+     * after the commands posted before it. Only the last of several messages
+     * posted in a row is shown.
+     *
+     * @param color is the color of the message.
+     * @param message is the message.
+     */
+    private void postStatus(Color color, String message) {
+        drawQueue.post(STATUS, () -> status(color, message));
+    }
+
+    /**
+     * Helper that runs a task on a thread of its own that doesn't keep the
+     * app running.
+     *
+     * @param task is the task.
+     * @param name is the name of the thread.
+     */
+    private static void background(Task<?> task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Helper that draws the instructions on the canvas once they are decoded,
+     * unless the user already started painting.
+     */
+    private void showInfoScreen() {
+        Startup.mark(Startup.INFO);
+        if (infoRead == false && !infoScreen.isError()) {
+            gc.drawImage(infoScreen, 0, 0);
+        }
+        startupDone();
+    }
+
+    /**
+     * Helper that prints the startup milestones when started with
+     * -Dmagicpainter.startup, once the first frame is up and the
+     * instructions are decoded, and exits if its value is exit.
+     */
+    private void startupDone() {
+        String startup = System.getProperty("magicpainter.startup");
+        if (startup == null || !Startup.isMarked(Startup.FRAME) || !Startup.isMarked(Startup.INFO)) {
+            return;
+        }
+        System.err.println(Startup.report());
+        if (startup.equals("exit")) {
+            Platform.exit();
+        }
+    }
+
+    /**
+     * Helper that paints over the instructions the first time the user does
+     * something on the canvas.
+     */
+    private void dismissInfoScreen() {
+        if (infoRead == false) {
+            drawQueue.repaint();
+            infoRead = true;
+        }
+    }
+
+    /**
+     * Method that lets the user pick a star list (size,x,y[,color] per line)
+     * and imports it in the background. While an import is running the
+     * button cancels it instead.
+     *
+     * @param e
+     */
+    private void importHandler(ActionEvent e) {
+        if (importTask != null) {
+            importTask.cancel();
+            return;
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import Stars");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Star lists", "*.csv", "*.txt"));
+        File file = chooser.showOpenDialog(importButton.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        dismissInfoScreen();
+        drawQueue.post(drawQueue::newStep);
+        ImportTask task = new ImportTask(file.toPath(), file.length(), drawQueue);
+        importTask = task;
+        importProgress.progressProperty().bind(task.progressProperty());
+        importProgress.setVisible(true);
+        importButton.setText("Cancel");
+        task.setOnSucceeded(ev -> importFinished(task, task.getValue() + " stars imported!"));
+        task.setOnCancelled(ev -> importFinished(task, "Import cancelled."));
+        task.setOnFailed(ev -> importFinished(task, "Import failed: " + task.getException().getMessage()));
+        background(task, "star-import");
+    }
+
+    /**
+     * Method that saves the painting to a .stars document in the background,
+     * asking where the first time. What is saved is the painting once the
+     * commands posted before are done.
+     */
+    private void saveHandler() {
+        if (saveTask != null) {
+            postStatus(Color.PINK, "Still saving!");
+            return;
+        }
+        File chosen = documentFile;
+        if (chosen == null) {
+            FileChooser chooser = new FileChooser();
+            chooser.setTitle("Save Painting");
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Star paintings", "*.stars"));
+            chosen = chooser.showSaveDialog(importButton.getScene().getWindow());
+            if (chosen == null) {
+                return;
+            }
+        }
+        File file = chosen;
+        drawQueue.post(() -> {
+            drawQueue.newStep();
+            SaveTask task = new SaveTask(painting, file.toPath());
+            saveTask = task;
+            task.setOnSucceeded(ev -> {
+                saveTask = null;
+                documentFile = file;
+                postStatus(Color.WHITE, task.getValue() + " stars saved to " + file.getName() + "!");
+            });
+            task.setOnFailed(ev -> {
+                saveTask = null;
+                postStatus(Color.PINK, "Couldn't save: " + task.getException().getMessage());
+            });
+            background(task, "star-save");
+        });
+    }
 
+    /**
+     * Method that lets the user pick a .stars document and opens it in the
+     * background in place of the painting. Opening can be undone.
+     */
+    private void openHandler() {
+        if (openTask != null) {
+            return;
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Open Painting");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Star paintings", "*.stars"));
+        File file = chooser.showOpenDialog(importButton.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        StarDocument document;
+        try {
+            document = StarDocument.open(file.toPath());
+        } catch (IOException x) {
+            postStatus(Color.PINK, "Couldn't open: " + x.getMessage());
+            return;
+        }
+        dismissInfoScreen();
+        postStatus(Color.WHITE, "Opening " + file.getName() + "...");
+        // the task adds the document's colors to the palette, which an undo
+        // or redo may be reading until the command runs
+        drawQueue.post(() -> {
+            drawQueue.newStep();
+            OpenTask task = new OpenTask(painting, document, drawQueue.getViewport());
+            task.setOnShown(() -> drawQueue.post(() -> {
+                drawQueue.newStep();
+                task.show();
+                documentFile = file;
+                status(Color.WHITE, document.getStarCount() + " stars opened!");
+            }));
+            openTask = task;
+            // the rest of the stars are merged in after the document was shown
+            task.setOnSucceeded(ev -> drawQueue.post(() -> {
+                openTask = null;
+                task.finish();
+            }));
+            task.setOnFailed(ev -> {
+                openTask = null;
+                postStatus(Color.PINK, "Couldn't open: " + task.getException().getMessage());
+            });
+            background(task, "star-open");
+        });
+    }
+
+    /**
+     * Method that lets the user pick a PNG file and exports the painting to
+     * it in the background. While an export is running it cancels it
+     * instead.
+     */
+    private void exportHandler() {
+        if (exportTask != null) {
+            exportTask.cancel();
+            return;
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Export Painting");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("PNG images", "*.png"));
+        File file = chooser.showSaveDialog(importButton.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        Canvas canvas = gc.getCanvas();
+        // the export starts from the painting as it is once the commands before are done
+        drawQueue.post(() -> {
+            drawQueue.newStep();
+            ExportTask task = new ExportTask(painting, file.toPath(), (int) canvas.getWidth(), (int) canvas.getHeight());
+            exportTask = task;
+            status(Color.WHITE, "Exporting... (Ctrl+E to cancel)");
+            task.progressProperty().addListener((o, was, now) -> {
+                if (exportTask == task && now.doubleValue() > 0) {
+                    postStatus(Color.WHITE, "Exporting... " + (int) (now.doubleValue() * 100) + "% (Ctrl+E to cancel)");
+                }
+            });
+            task.setOnSucceeded(ev -> exportFinished(Color.WHITE, "Exported " + file.getName() + "!"));
+            task.setOnCancelled(ev -> exportFinished(Color.WHITE, "Export cancelled."));
+            task.setOnFailed(ev -> exportFinished(Color.PINK, "Export failed: " + task.getException().getMessage()));
+            background(task, "png-export");
+        });
+    }
+
+    /**
+     * Helper that lets the user know an export is done.
+     *
+     * @param color is the color of the message.
+     * @param message is the message to show in the whatsUp label.
+     */
+    private void exportFinished(Color color, String message) {
+        exportTask = null;
+        postStatus(color, message);
+    }
+
+    /**
+     * Method that asks how many stars to scatter over the part of the
+     * painting in view, and a seed, and makes them in the background with
+     * sizes up to the brush size. Without a seed a random one is picked and
+     * shown, so a field that came out nicely can be made again. While a
+     * field is being made it cancels it instead.
+     *
+     * @param poisson is true to space the stars evenly instead of at random.
+     */
+    private void starfieldHandler(boolean poisson) {
+        if (starfieldTask != null) {
+            starfieldTask.cancel();
+            return;
+        }
+        TextInputDialog dialog = new TextInputDialog("100000");
+        dialog.setTitle("Starfield");
+        dialog.setHeaderText((poisson ? "Evenly spaced" : "Random") + " stars over the part of the painting in view");
+        dialog.setContentText("Stars and a seed (ie. 100000,42):");
+        Optional<String> answer = dialog.showAndWait();
+        if (answer.isEmpty()) {
+            return;
+        }
+        String[] fields = answer.get().split(",");
+        int count;
+        long seed;
+        try {
+            count = Integer.parseInt(fields[0].trim());
+            seed = fields.length > 1 ? Long.parseLong(fields[1].trim()) : new SplittableRandom().nextInt(1_000_000);
+        } catch (NumberFormatException x) {
+            postStatus(Color.PINK, "Expected a number of stars and a seed (ie. 100000,42).");
+            return;
+        }
+        Viewport view = drawQueue.getViewport();
+        double left = Math.max(0, view.toDocX(0));
+        double top = Math.max(0, view.toDocY(0));
+        double width = Math.min(DOCUMENT_WIDTH, view.toDocX(view.getWidth())) - left;
+        double height = Math.min(DOCUMENT_HEIGHT, view.toDocY(view.getHeight())) - top;
+        StarfieldGenerator generator;
+        try {
+            generator = new StarfieldGenerator(left, top, width, height, count, seed, poisson,
+                    StarfieldGenerator.sizesUpTo(BRUSH_SIZES, drawStarSize));
+        } catch (IllegalArgumentException x) {
+            postStatus(Color.PINK, x.getMessage() + ".");
+            return;
+        }
+        if (recorder != null) {
+            recorder.starfield(left, top, width, height, count, seed, poisson, drawStarSize);
+        }
+        dismissInfoScreen();
+        drawQueue.post(drawQueue::newStep);
+        StarfieldTask task = new StarfieldTask(generator, drawQueue);
+        starfieldTask = task;
+        postStatus(Color.WHITE, "Making stars... (Ctrl+G to cancel)");
+        task.progressProperty().addListener((o, was, now) -> {
+            if (starfieldTask == task && now.doubleValue() > 0) {
+                postStatus(Color.WHITE, "Making stars... " + (int) (now.doubleValue() * 100) + "% (Ctrl+G to cancel)");
+            }
+        });
+        task.setOnSucceeded(ev -> starfieldFinished(Color.WHITE, task.getValue() + " stars made with seed " + seed + "!"));
+        task.setOnCancelled(ev -> starfieldFinished(Color.WHITE, "Starfield cancelled."));
+        task.setOnFailed(ev -> starfieldFinished(Color.PINK, "Starfield failed: " + task.getException().getMessage()));
+        background(task, "starfield");
+    }
+
+    /**
+     * Helper that lets the user know a starfield is done.
+     *
+     * @param color is the color of the message.
+     * @param message is the message to show in the whatsUp label.
+     */
+    private void starfieldFinished(Color color, String message) {
+        starfieldTask = null;
+        postStatus(color, message);
+    }
+
+    /**
+     * Method that turns the eraser on or off.
+     *
+     * @param e
+     */
+    private void eraserHandler(ActionEvent e) {
+        if (recorder != null) {
+            recorder.action(InputRecorder.ERASER);
+        }
+        erasing = !erasing;
+        eraserButton.setStyle(erasing ? "-fx-background-color: #ff9cba" : "-fx-background-color: #ffed52");
+        postStatus(Color.WHITE, erasing ? "Eraser on!" : "Eraser off!");
+    }
+
+    /**
+     * Helper that puts the import controls back once an import is done and
+     * lists any rows that couldn't be imported, by line number, in a
+     * dialog.
+     *
+     * @param task is the import that finished.
+     * @param message is the message to show in the whatsUp label.
+     */
+    private void importFinished(ImportTask task, String message) {
+        importTask = null;
+        importProgress.progressProperty().unbind();
+        importProgress.setVisible(false);
+        importButton.setText("Import...");
+        postStatus(Color.WHITE, message);
+        StarCsvReader reader = task.getReader();
+        if (reader.getErrorCount() > 0) {
+            Alert alert = new Alert(Alert.AlertType.WARNING);
+            alert.setTitle("Import Stars");
+            alert.setHeaderText(reader.getErrorCount() + " rows couldn't be imported");
+            TextArea rows = new TextArea(String.join("\n", reader.getErrors()));
+            rows.setEditable(false);
+            alert.getDialogPane().setContent(rows);
+            alert.show();
+        }
     }
 
     /**
@@ -129,12 +672,28 @@ public class MagicPainter extends Application {
      */
     private void colorHandler(ActionEvent e) {
         Color color = ((ColorButton) (e.getTarget())).getColor();
-        gc.setFill(color);
-        whatsUp.setText("Set new Color!");
-        whatsUp.setTextFill(color);
+        if (recorder != null) {
+            recorder.color(ColorButton.toArgb(color));
+        }
+        setBrushColor(color);
 
     }
 
+    /**
+     * Helper that sets the brush color and lets the user know the color
+     * changed. The brush changes
+     * right away so the next drag event uses it.
+     *
+     * @param color is the new brush color.
+     */
+    private void setBrushColor(Color color) {
+        drawColor = ColorButton.toArgb(color);
+        if (journal != null) {
+            journal.color(ColorButton.toArgb(color));
+        }
+        postStatus(color, "Set new Color!");
+    }
+
     /**
      * Method that sets the brush size to the size defined by the button that
      * was clicked. It retrieves the size using the getSize method of the
@@ -144,8 +703,31 @@ public class MagicPainter extends Application {
      */
     private void sizeHandler(ActionEvent e) {
         drawStarSize = ((ImageButton) (e.getTarget())).getSize();
-        whatsUp.setTextFill(Color.web("#ffed52"));
-        whatsUp.setText("Changed to size " + drawStarSize);
+        if (recorder != null) {
+            recorder.value(InputRecorder.SIZE, (int) drawStarSize);
+        }
+        postStatus(Color.web("#ffed52"), "Changed to size " + drawStarSize);
+    }
+
+    /**
+     * Helper that makes the brush one size button smaller or bigger, for the
+     * = and - keys.
+     *
+     * @param step is -1 for smaller or 1 for bigger.
+     */
+    private void stepBrushSize(int step) {
+        for (int k = 0; k < BRUSH_SIZES.length; k++) {
+            if (BRUSH_SIZES[k] == drawStarSize) {
+                int next = k + step;
+                if (next >= 0 && next < BRUSH_SIZES.length) {
+                    drawStarSize = BRUSH_SIZES[next];
+                    postStatus(Color.WHITE, (step < 0 ? "Brush reduced to " : "Brush increased to ") + drawStarSize);
+                    return;
+                }
+                break;
+            }
+        }
+        postStatus(Color.PINK, step < 0 ? "Brush can't get smaller!" : "Brush can't get bigger!");
     }
 
     /**
@@ -158,23 +740,16 @@ public class MagicPainter extends Application {
      */
     private void starPlacer(ActionEvent e) {
 
-        if (infoRead == false) {
-            Paint oldColor = gc.getFill();
-            gc.setFill(Color.rgb(255, 250, 220));
-            gc.fillRect(0, 0, 600, 600);
-            gc.setFill(oldColor);
-            infoRead = true;
-        }
-        
-        whatsUp.setText("");
+        dismissInfoScreen();
+
+        String problems = "";
         sizeField.setStyle("-fx-background-color: #fffbda");
         positionFieldY.setStyle("-fx-background-color: #fffbda");
         positionFieldX.setStyle("-fx-background-color: #fffbda");
-        whatsUp.setTextFill(Color.PINK);
         try {
             thisStarSize = Double.parseDouble(sizeField.getText());
         } catch (NumberFormatException n) {
-            whatsUp.setText(whatsUp.getText() + "Size must be a number. ");
+            problems += "Size must be a number. ";
             sizeField.setStyle("-fx-background-color: #ff9cba");
 
         }
@@ -182,47 +757,298 @@ public class MagicPainter extends Application {
         try {
             thisStarX = Double.parseDouble(positionFieldX.getText());
         } catch (NumberFormatException n) {
-            whatsUp.setText(whatsUp.getText() + "X-position must be a number. ");
+            problems += "X-position must be a number. ";
             positionFieldX.setStyle("-fx-background-color: #ff9cba");
         }
 
         try {
             thisStarY = Double.parseDouble(positionFieldY.getText());
         } catch (NumberFormatException n) {
-            whatsUp.setText(whatsUp.getText() + "Y-position must be a number.");
+            problems += "Y-position must be a number.";
             positionFieldY.setStyle("-fx-background-color: #ff9cba");
 
         }
 
-        if (whatsUp.getText().equals("")) {
-            Star star = new Star(thisStarSize, thisStarX, thisStarY);
-            star.draw(gc);
-            whatsUp.setTextFill(Color.web("fffbda"));
-            whatsUp.setText("Star Placed!!!");
+        if (problems.equals("")) {
+            if (recorder != null) {
+                recorder.place(thisStarSize, thisStarX, thisStarY);
+            }
+            double size = thisStarSize;
+            double x = thisStarX;
+            double y = thisStarY;
+            int color = drawColor;
+            drawQueue.post(() -> {
+                drawQueue.newStep();
+                drawQueue.queue(size, x, y, color);
+            });
+            postStatus(Color.web("fffbda"), "Star Placed!!!");
+        } else {
+            postStatus(Color.PINK, problems);
         }
 
     }
 
     /**
-     * Method that draws stars in the current size and color when the mouse is
-     * dragged within the drawable canvas area.
+     * Method that queues stars in the current size and color when the mouse is
+     * dragged within the drawable canvas area. The stars are drawn by the
+     * DrawQueue on the next pulse. When the eraser is on it erases the stars
+     * in a square the size of the brush instead. Dragging with the right or
+     * middle button moves the view. The brush size is in document pixels, so
+     * stars look smaller when zoomed out. Drag events are joined by a Stroke,
+     * which puts the stars evenly along a curve through them, so a fast drag
+     * still makes a line. With the symmetry brush on, every copy around the
+     * middle of the view is queued in one go.
      *
      * @param me
      */
     private void dragHandler(MouseEvent me) {
-        if (infoRead == true) {
-            Star star = new Star(drawStarSize, me.getX(), me.getY());
-            star.draw(gc);
-            whatsUp.requestFocus();
+        Stats.InputEvent event = Stats.input(Stats.DRAG);
+        if (recorder != null) {
+            recorder.mouse(me.getEventType() == MouseEvent.MOUSE_DRAGGED ? InputRecorder.DRAG : InputRecorder.CLICK,
+                    me.getX(), me.getY(), me.getButton() == MouseButton.PRIMARY);
         }
-        if (infoRead == false) {
-            Paint oldColor = gc.getFill();
-            gc.setFill(Color.rgb(255, 250, 220));
-            gc.fillRect(0, 0, 600, 600);
-            gc.setFill(oldColor);
-            infoRead = true;
+        if (me.getButton() != MouseButton.PRIMARY) {
+            if (me.getEventType() == MouseEvent.MOUSE_DRAGGED && infoRead == true) {
+                drawQueue.panBy(me.getX() - panX, me.getY() - panY);
+                panX = me.getX();
+                panY = me.getY();
+            }
+            Stats.commit(event);
+            return;
+        }
+        Viewport view = drawQueue.getViewport();
+        double x = view.toDocX(me.getX());
+        double y = view.toDocY(me.getY());
+        if (infoRead == true && erasing) {
+            double half = drawStarSize / 2;
+            drawQueue.post(() -> drawQueue.erase(x, y, half));
+        } else if (infoRead == true && me.getEventType() == MouseEvent.MOUSE_DRAGGED && strokeSpacing > 0) {
+            int n = stroke.add(x, y, strokeSpacing * drawStarSize);
+            if (symmetry.getCopies() > 1) {
+                for (int k = 0; k < n; k++) {
+                    stamp(view, stroke.getX()[k], stroke.getY()[k]);
+                }
+            } else {
+                drawQueue.queue(drawStarSize, stroke.getX(), stroke.getY(), n, drawColor);
+            }
+        } else if (infoRead == true) {
+            stamp(view, x, y);
         }
+        dismissInfoScreen();
+        Stats.commit(event);
+
+    }
 
+    /**
+     * Helper that queues a star of the brush, with its copies when the
+     * symmetry brush is on.
+     *
+     * @param view is the viewport the symmetry turns around the middle of.
+     * @param x is the x-position in the document.
+     * @param y is the y-position in the document.
+     */
+    private void stamp(Viewport view, double x, double y) {
+        if (symmetry.getCopies() > 1) {
+            int n = symmetry.apply(x, y, view.toDocX(view.getWidth() / 2.0), view.toDocY(view.getHeight() / 2.0),
+                    copiesX, copiesY);
+            drawQueue.queue(drawStarSize, copiesX, copiesY, n, drawColor);
+        } else {
+            drawQueue.queue(drawStarSize, x, y, drawColor);
+        }
+    }
+
+    /**
+     * Method that takes the focus away from the text fields when the mouse is
+     * pressed on the canvas, so the keyboard shortcuts work while drawing.
+     * This runs once per press rather than on every drag event, and also
+     * posts a new undo step so each stroke is undone on its own, and starts
+     * a new stroke from the press position so it isn't joined to the last
+     * one and its first segment is as smooth as the rest.
+     *
+     * @param me
+     */
+    private void pressHandler(MouseEvent me) {
+        if (recorder != null) {
+            recorder.mouse(InputRecorder.PRESS, me.getX(), me.getY(), me.getButton() == MouseButton.PRIMARY);
+        }
+        whatsUp.requestFocus();
+        drawQueue.post(drawQueue::newStep);
+        Viewport view = drawQueue.getViewport();
+        stroke.begin(view.toDocX(me.getX()), view.toDocY(me.getY()));
+        panX = me.getX();
+        panY = me.getY();
+    }
+
+    /**
+     * Method that zooms the view in or out around the mouse when the wheel
+     * is turned over the canvas.
+     *
+     * @param se
+     */
+    private void scrollHandler(ScrollEvent se) {
+        if (recorder != null) {
+            recorder.scroll(se.getX(), se.getY(), se.getDeltaY());
+        }
+        dismissInfoScreen();
+        drawQueue.zoomAt(se.getX(), se.getY(), Viewport.wheelFactor(se.getDeltaY()));
+        showZoom();
+    }
+
+    /**
+     * Helper that shows the current zoom in the message label.
+     */
+    private void showZoom() {
+        postStatus(Color.WHITE, "Zoom " + Math.round(drawQueue.getViewport().getZoom() * 100) + "%");
+    }
+
+    /**
+     * Method that writes the Stats to magicpainter-stats.txt, or the file
+     * given with -Dmagicpainter.stats, so runs of two builds can be diffed.
+     *
+     * @return boolean true if the stats were written.
+     */
+    private boolean dumpStats() {
+        Path file = Path.of(System.getProperty("magicpainter.stats", "magicpainter-stats.txt"));
+        try (Writer out = Files.newBufferedWriter(file)) {
+            Stats.dump(out);
+            postStatus(Color.WHITE, "Stats written to " + file.toAbsolutePath());
+            return true;
+        } catch (IOException x) {
+            postStatus(Color.PINK, "Couldn't write the stats: " + x.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Method that undoes the last stroke, placed star, import, erase or
+     * clear.
+     *
+     * @param e
+     */
+    private void undoHandler(ActionEvent e) {
+        if (recorder != null) {
+            recorder.action(InputRecorder.UNDO);
+        }
+        dismissInfoScreen();
+        drawQueue.post(() -> status(Color.WHITE, drawQueue.undo() ? "Undone!" : "Nothing left to undo!"));
+    }
+
+    /**
+     * Method that redoes the last undone change.
+     *
+     * @param e
+     */
+    private void redoHandler(ActionEvent e) {
+        if (recorder != null) {
+            recorder.action(InputRecorder.REDO);
+        }
+        dismissInfoScreen();
+        drawQueue.post(() -> status(Color.WHITE, drawQueue.redo() ? "Redone!" : "Nothing left to redo!"));
+    }
+
+    /**
+     * Method that posts adding, picking, moving, hiding or fading a layer.
+     *
+     * @param action is one of the InputRecorder.LAYER_ actions.
+     */
+    private void layerHandler(int action) {
+        if (recorder != null) {
+            recorder.value(InputRecorder.LAYER, action);
+        }
+        dismissInfoScreen();
+        drawQueue.post(() -> changeLayer(action));
+    }
+
+    /**
+     * Helper that adds, picks, moves, hides or fades a layer and tells the
+     * user where the active layer stands, as a command on the DrawQueue.
+     *
+     * @param action is one of the InputRecorder.LAYER_ actions.
+     */
+    private void changeLayer(int action) {
+        List<Layer> layers = painting.getLayers();
+        Layer layer = painting.getActiveLayer();
+        int place = layers.indexOf(layer);
+        switch (action) {
+            case InputRecorder.LAYER_ADD:
+                if (drawQueue.addLayer() == null) {
+                    status(Color.PINK, "Can't have more than " + Painting.MAX_LAYERS + " layers!");
+                    return;
+                }
+                break;
+            case InputRecorder.LAYER_ABOVE:
+            case InputRecorder.LAYER_BELOW:
+                int next = action == InputRecorder.LAYER_ABOVE ? place + 1 : place - 1;
+                if (next >= 0 && next < layers.size()) {
+                    drawQueue.setActiveLayer(layers.get(next));
+                }
+                break;
+            case InputRecorder.LAYER_RAISE:
+                drawQueue.moveLayer(layer, place + 1);
+                break;
+            case InputRecorder.LAYER_LOWER:
+                drawQueue.moveLayer(layer, place - 1);
+                break;
+            case InputRecorder.LAYER_HIDE:
+                drawQueue.setVisible(layer, !layer.isVisible());
+                break;
+            default:
+                double step = action == InputRecorder.LAYER_FADE ? -1 : 1;
+                drawQueue.setOpacity(layer, Math.round(layer.getOpacity() * 10 + step) / 10.0);
+                break;
+        }
+        layer = painting.getActiveLayer();
+        status(Color.WHITE, layer.getName() + " (" + (layers.indexOf(layer) + 1) + " of " + layers.size() + "), "
+                + (layer.isVisible() ? "shown" : "hidden") + ", " + Math.round(layer.getOpacity() * 100) + "% opaque");
+    }
+
+    /**
+     * Helper that records a key that changes the brush, for the keys Replay
+     * knows.
+     *
+     * @param code is the key.
+     */
+    private void recordKey(KeyCode code) {
+        if (recorder != null) {
+            recorder.value(InputRecorder.KEY, code.getCode());
+        }
+    }
+
+    /**
+     * Method that steps the symmetry brush to the next fold, or turns
+     * mirroring on or off, and tells the user what the brush does now.
+     *
+     * @param mirror is true to turn mirroring on or off instead.
+     */
+    private void symmetryHandler(boolean mirror) {
+        boolean mirrored = symmetry.isMirror() != mirror;
+        int fold = mirror ? symmetry.getFold() : Symmetry.nextFold(symmetry.getFold(), mirrored);
+        if (fold * (mirrored ? 2 : 1) > Symmetry.MAX_COPIES) {
+            fold = Symmetry.MAX_COPIES / 2;
+        }
+        symmetry = new Symmetry(fold, mirrored);
+        if (recorder != null) {
+            recorder.value(InputRecorder.SYMMETRY, fold * 2 + (mirrored ? 1 : 0));
+        }
+        dismissInfoScreen();
+        if (symmetry.getCopies() == 1) {
+            postStatus(Color.WHITE, "Symmetry off");
+        } else {
+            postStatus(Color.WHITE, "Symmetry " + fold + "-fold" + (mirrored ? " mirrored" : "") + ", "
+                    + symmetry.getCopies() + " stars per dab (" + Symmetry.getKernelName() + ")");
+        }
+    }
+
+    /**
+     * Method that starts or stops the twinkling of the stars. It only
+     * changes what is shown, so it isn't recorded.
+     */
+    private void twinkleHandler() {
+        dismissInfoScreen();
+        drawQueue.post(() -> {
+            drawQueue.setTwinkle(!drawQueue.isTwinkling());
+            status(Color.WHITE, drawQueue.isTwinkling() ? "Twinkling" : "Twinkling off");
+        });
     }
 
     /**
@@ -233,9 +1059,18 @@ public class MagicPainter extends Application {
      */
     @Override
     public void start(Stage stage) throws Exception {
+        Startup.mark(Startup.START);
 
         Pane root = new Pane();
         Scene scene = new Scene(root, 600, 650);
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                scene.removePostLayoutPulseListener(this);
+                Startup.mark(Startup.FRAME);
+                startupDone();
+            }
+        });
         stage.setTitle("Magic Star Painter");
         stage.setScene(scene);
 
@@ -256,10 +1091,51 @@ public class MagicPainter extends Application {
         Canvas canvas2 = new Canvas(600, 159);
         Canvas canvas = new Canvas(500, 400);
         gc2 = canvas2.getGraphicsContext2D();
-        gc2.drawImage(logo, 0, 0);
+        Rectangle2D logo = ImageAtlas.LOGO;
+        gc2.drawImage(ImageAtlas.get(), logo.getMinX(), logo.getMinY(), logo.getWidth(), logo.getHeight(),
+                0, 0, logo.getWidth(), logo.getHeight());
         gc = canvas.getGraphicsContext2D();
-        gc.drawImage(infoScreen, 0, 0);
         gc.setFill(Color.WHITE);
+        if (infoScreen.getProgress() < 1) {
+            infoScreen.progressProperty().addListener((property, was, progress) -> {
+                if (progress.doubleValue() >= 1) {
+                    showInfoScreen();
+                }
+            });
+        } else {
+            showInfoScreen();
+        }
+        drawQueue = new DrawQueue(painting, canvas);
+        Path leftOver = startJournal();
+        String spacing = System.getProperty("magicpainter.spacing");
+        if (spacing != null) {
+            try {
+                strokeSpacing = Math.max(0, Double.parseDouble(spacing));
+            } catch (NumberFormatException x) {
+                status(Color.PINK, "Bad stroke spacing " + spacing);
+            }
+        }
+        String recording = System.getProperty("magicpainter.record");
+        if (recording != null) {
+            try {
+                recorder = new InputRecorder(Path.of(recording), (int) canvas.getWidth(), (int) canvas.getHeight(),
+                        DOCUMENT_WIDTH, DOCUMENT_HEIGHT, drawStarSize, BRUSH_SIZES, strokeSpacing);
+            } catch (IOException x) {
+                status(Color.PINK, "Couldn't record: " + x.getMessage());
+            }
+        }
+        String port = System.getProperty("magicpainter.port");
+        if (port != null) {
+            try {
+                commandServer = new CommandServer(Integer.parseInt(port), () -> Platform.runLater(() -> {
+                    dismissInfoScreen();
+                    drawQueue.wake();
+                }));
+                drawQueue.setServer(commandServer);
+            } catch (IOException | NumberFormatException x) {
+                status(Color.PINK, "Couldn't listen on port " + port + ": " + x.getMessage());
+            }
+        }
 
         /**
          * Create the labels for the application.
@@ -287,18 +1163,23 @@ public class MagicPainter extends Application {
         /**
          * Create the ImageButton objects in the appropriate sizes.
          */
-        ImageButton sizeOne = new ImageButton("1", 10);
-        ImageButton sizeTwo = new ImageButton("2", 20);
-        ImageButton sizeThree = new ImageButton("3", 40);
-        ImageButton sizeFour = new ImageButton("4", 80);
-        ImageButton sizeFive = new ImageButton("5", 160);
-        ImageButton sizeSix = new ImageButton("6", 320);
+        ImageButton sizeOne = new ImageButton("1", BRUSH_SIZES[0]);
+        ImageButton sizeTwo = new ImageButton("2", BRUSH_SIZES[1]);
+        ImageButton sizeThree = new ImageButton("3", BRUSH_SIZES[2]);
+        ImageButton sizeFour = new ImageButton("4", BRUSH_SIZES[3]);
+        ImageButton sizeFive = new ImageButton("5", BRUSH_SIZES[4]);
+        ImageButton sizeSix = new ImageButton("6", BRUSH_SIZES[5]);
 
         /**
          * create buttons for the application.
          */
         Button placeStar = new Button("Place!");
         Button clearAll = new Button("Clear All!");
+        importButton = new Button("Import...");
+        importProgress = new ProgressBar();
+        eraserButton = new Button("Eraser");
+        undoButton = new Button("Undo");
+        redoButton = new Button("Redo");
 
         // ADD TO ROOT // ------------------------------------------------------
         root.getChildren().addAll(background, bottomStripe, bottomStripe2, canvasBackground, canvas, canvas2);
@@ -306,7 +1187,9 @@ public class MagicPainter extends Application {
         root.getChildren().addAll(sizeField, positionFieldX, positionFieldY);
         root.getChildren().addAll(colorWhite, colorBlue, colorGreen, colorRed, colorOrange, colorPurple);
         root.getChildren().addAll(sizeOne, sizeTwo, sizeThree, sizeFour, sizeFive, sizeSix);
-        root.getChildren().addAll(placeStar, clearAll);
+        root.getChildren().addAll(placeStar, clearAll, importButton, importProgress, eraserButton);
+        root.getChildren().addAll(undoButton, redoButton);
+        root.getChildren().add(statsOverlay.getLabel());
 
         // CONFIGURE COMPONENTS // ---------------------------------------------
         background.setFill(Color.rgb(75, 75, 190));
@@ -415,6 +1298,39 @@ public class MagicPainter extends Application {
         clearAll.setStyle("-fx-background-color: #ffed52");
         clearAll.setFont(Font.font("Verdana", 11));
 
+        importButton.setLayoutX(50);
+        importButton.setLayoutY(15);
+        importButton.setMinSize(80, 20);
+        importButton.setMaxSize(80, 20);
+        importButton.setStyle("-fx-background-color: #ffed52");
+        importButton.setFont(Font.font("Verdana", 11));
+
+        importProgress.setLayoutX(140);
+        importProgress.setLayoutY(17);
+        importProgress.setPrefSize(120, 16);
+        importProgress.setVisible(false);
+
+        eraserButton.setLayoutX(470);
+        eraserButton.setLayoutY(15);
+        eraserButton.setMinSize(80, 20);
+        eraserButton.setMaxSize(80, 20);
+        eraserButton.setStyle("-fx-background-color: #ffed52");
+        eraserButton.setFont(Font.font("Verdana", 11));
+
+        undoButton.setLayoutX(290);
+        undoButton.setLayoutY(15);
+        undoButton.setMinSize(80, 20);
+        undoButton.setMaxSize(80, 20);
+        undoButton.setStyle("-fx-background-color: #ffed52");
+        undoButton.setFont(Font.font("Verdana", 11));
+
+        redoButton.setLayoutX(380);
+        redoButton.setLayoutY(15);
+        redoButton.setMinSize(80, 20);
+        redoButton.setMaxSize(80, 20);
+        redoButton.setStyle("-fx-background-color: #ffed52");
+        redoButton.setFont(Font.font("Verdana", 11));
+
         // Event handlers //----------------------------------------------------
         colorWhite.setOnAction(this::colorHandler);
         colorRed.setOnAction(this::colorHandler);
@@ -432,105 +1348,187 @@ public class MagicPainter extends Application {
 
         placeStar.setOnAction(this::starPlacer);
         clearAll.setOnAction(this::clearCanvas);
+        importButton.setOnAction(this::importHandler);
+        eraserButton.setOnAction(this::eraserHandler);
+        undoButton.setOnAction(this::undoHandler);
+        redoButton.setOnAction(this::redoHandler);
 
+        canvas.addEventHandler(MouseEvent.MOUSE_PRESSED, this::pressHandler);
         canvas.addEventHandler(MouseEvent.MOUSE_DRAGGED, this::dragHandler);
         canvas.addEventHandler(MouseEvent.MOUSE_CLICKED, this::dragHandler);
-
+        canvas.addEventHandler(ScrollEvent.SCROLL, this::scrollHandler);
+
+        ColorButton[] swatches = {colorWhite, colorRed, colorOrange, colorGreen, colorBlue, colorPurple};
+        KeyCode[] digits = {KeyCode.DIGIT1, KeyCode.DIGIT2, KeyCode.DIGIT3, KeyCode.DIGIT4, KeyCode.DIGIT5,
+            KeyCode.DIGIT6};
+        KeyBindings keys = new KeyBindings()
+                .bind(KeyCode.F3, KeyBindings.ANY, shift -> statsOverlay.toggle())
+                .bind(KeyCode.F4, KeyBindings.ANY, shift -> dumpStats())
+                .bind(KeyCode.S, KeyBindings.SHORTCUT, shift -> saveHandler())
+                .bind(KeyCode.O, KeyBindings.SHORTCUT, shift -> openHandler())
+                .bind(KeyCode.E, KeyBindings.SHORTCUT, shift -> exportHandler())
+                .bind(KeyCode.G, KeyBindings.SHORTCUT, this::starfieldHandler)
+                .bind(KeyCode.Z, KeyBindings.SHORTCUT, shift -> undoHandler(null))
+                .bind(KeyCode.Y, KeyBindings.SHORTCUT, shift -> redoHandler(null))
+                .bind(KeyCode.L, KeyBindings.PLAIN, shift -> layerHandler(InputRecorder.LAYER_ADD))
+                .bind(KeyCode.PAGE_UP, KeyBindings.ANY,
+                        shift -> layerHandler(shift ? InputRecorder.LAYER_RAISE : InputRecorder.LAYER_ABOVE))
+                .bind(KeyCode.PAGE_DOWN, KeyBindings.ANY,
+                        shift -> layerHandler(shift ? InputRecorder.LAYER_LOWER : InputRecorder.LAYER_BELOW))
+                .bind(KeyCode.H, KeyBindings.PLAIN, shift -> layerHandler(InputRecorder.LAYER_HIDE))
+                .bind(KeyCode.K, KeyBindings.PLAIN, this::symmetryHandler)
+                .bind(KeyCode.T, KeyBindings.PLAIN, shift -> twinkleHandler())
+                .bind(KeyCode.OPEN_BRACKET, KeyBindings.ANY, shift -> layerHandler(InputRecorder.LAYER_FADE))
+                .bind(KeyCode.CLOSE_BRACKET, KeyBindings.ANY, shift -> layerHandler(InputRecorder.LAYER_UNFADE))
+                .bind(KeyCode.DIGIT0, KeyBindings.SHORTCUT, shift -> {
+                    if (recorder != null) {
+                        recorder.action(InputRecorder.RESET_VIEW);
+                    }
+                    dismissInfoScreen();
+                    drawQueue.resetView();
+                    showZoom();
+                })
+                .bind(KeyCode.EQUALS, KeyBindings.ANY, shift -> {
+                    recordKey(KeyCode.EQUALS);
+                    stepBrushSize(-1);
+                })
+                .bind(KeyCode.MINUS, KeyBindings.ANY, shift -> {
+                    recordKey(KeyCode.MINUS);
+                    stepBrushSize(1);
+                });
+        for (int k = 0; k < swatches.length; k++) {
+            ColorButton swatch = swatches[k];
+            KeyCode digit = digits[k];
+            keys.bind(digit, KeyBindings.ANY, shift -> {
+                recordKey(digit);
+                setBrushColor(swatch.getColor());
+            });
+        }
         scene.setOnKeyPressed(e -> {
-            if (e.getCode() == KeyCode.DIGIT1) {
-                gc.setFill(colorWhite.getColor());
-                whatsUp.setText("Set new Color!");
-                whatsUp.setTextFill(colorWhite.getColor());
-            }
-            if (e.getCode() == KeyCode.DIGIT2) {
-                gc.setFill(colorRed.getColor());
-                whatsUp.setText("Set new Color!");
-                whatsUp.setTextFill(colorRed.getColor());
-            }
-            if (e.getCode() == KeyCode.DIGIT3) {
-                gc.setFill(colorOrange.getColor());
-                whatsUp.setText("Set new Color!");
-                whatsUp.setTextFill(colorOrange.getColor());
-            }
-            if (e.getCode() == KeyCode.DIGIT4) {
-                gc.setFill(colorGreen.getColor());
-                whatsUp.setText("Set new Color!");
-                whatsUp.setTextFill(colorGreen.getColor());
-            }
-            if (e.getCode() == KeyCode.DIGIT5) {
-                gc.setFill(colorBlue.getColor());
-                whatsUp.setText("Set new Color!");
-                whatsUp.setTextFill(colorBlue.getColor());
+            Stats.InputEvent event = Stats.input(Stats.KEY);
+            keys.dispatch(e);
+            Stats.commit(event);
+        });
+
+        // SHOW STAGE!! WOO//
+        stage.show();
+        Startup.mark(Startup.SHOWN);
+        if (leftOver != null) {
+            offerRecovery(leftOver);
+        }
+    }
+
+    /**
+     * Helper that starts the autosave journal. A journal left by the last
+     * run is moved aside first so it can still be recovered.
+     *
+     * @return Path of the journal left by the last run, or null if there is
+     * nothing to recover.
+     */
+    private Path startJournal() {
+        String name = System.getProperty("magicpainter.journal",
+                Path.of(System.getProperty("user.home"), ".magicpainter-autosave.journal").toString());
+        if (name.isEmpty()) {
+            return null;
+        }
+        Path file = Path.of(name);
+        Path leftOver = file.resolveSibling(file.getFileName() + ".recover");
+        try {
+            if (Journal.hasRecords(file)) {
+                Files.move(file, leftOver, StandardCopyOption.REPLACE_EXISTING);
             }
-            if (e.getCode() == KeyCode.DIGIT6) {
-                gc.setFill(colorPurple.getColor());
-                whatsUp.setText("Set new Color!");
-                whatsUp.setTextFill(colorPurple.getColor());
+            journal = new Journal(file, DOCUMENT_WIDTH, DOCUMENT_HEIGHT,
+                    () -> Platform.runLater(() -> postStatus(Color.PINK, "Autosave stopped: " + journal.getError().getMessage())));
+            painting.setJournal(journal);
+        } catch (IOException x) {
+            status(Color.PINK, "Couldn't autosave: " + x.getMessage());
+        }
+        return Journal.hasRecords(leftOver) ? leftOver : null;
+    }
+
+    /**
+     * Helper that asks whether to recover the painting from a journal left
+     * by the last run, and plays it back in the background if so. The
+     * journal is deleted once it was recovered or turned down.
+     *
+     * @param file is the journal.
+     */
+    private void offerRecovery(Path file) {
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                "The painting from last time was autosaved. Do you want it back?", ButtonType.YES, ButtonType.NO);
+        alert.setTitle("Recover Painting");
+        alert.setHeaderText("Recover the last painting?");
+        alert.setOnHidden(ev -> {
+            if (alert.getResult() != ButtonType.YES) {
+                deleteLeftOver(file);
+                return;
             }
-            if (e.getCode() == KeyCode.EQUALS) {
-                if (drawStarSize == sizeSix.getSize()) {
-                    drawStarSize = sizeFive.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush reduced to " + drawStarSize);
-                } else if (drawStarSize == sizeFive.getSize()) {
-                    drawStarSize = sizeFour.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush reduced to " + drawStarSize);
-                } else if (drawStarSize == sizeFour.getSize()) {
-                    drawStarSize = sizeThree.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush reduced to " + drawStarSize);
-                } else if (drawStarSize == sizeThree.getSize()) {
-                    drawStarSize = sizeTwo.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush reduced to " + drawStarSize);
-                } else if (drawStarSize == sizeTwo.getSize()) {
-                    drawStarSize = sizeOne.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush reduced to " + drawStarSize);
-                } else {
-                    whatsUp.setTextFill(Color.PINK);
-                    whatsUp.setText("Brush can't get smaller!");
+            dismissInfoScreen();
+            RecoverTask task = new RecoverTask(painting, file);
+            postStatus(Color.WHITE, "Recovering...");
+            task.setOnSucceeded(done -> drawQueue.post(() -> {
+                drawQueue.newStep();
+                task.show();
+                if (task.getColor() != 0) {
+                    drawColor = task.getColor();
+                    if (journal != null) {
+                        journal.color(task.getColor());
+                    }
                 }
-            }
+                deleteLeftOver(file);
+                status(Color.WHITE, task.getValue() + " stars recovered!");
+            }));
+            task.setOnFailed(done -> postStatus(Color.PINK, "Couldn't recover: " + task.getException().getMessage()));
+            background(task, "journal-recover");
+        });
+        alert.show();
+    }
 
-            if (e.getCode() == KeyCode.MINUS) {
-                if (drawStarSize == sizeOne.getSize()) {
-                    drawStarSize = sizeTwo.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush increased to " + drawStarSize);
-                } else if (drawStarSize == sizeTwo.getSize()) {
-                    drawStarSize = sizeThree.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush increased to " + drawStarSize);
-                } else if (drawStarSize == sizeThree.getSize()) {
-                    drawStarSize = sizeFour.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush increased to " + drawStarSize);
-                } else if (drawStarSize == sizeFour.getSize()) {
-                    drawStarSize = sizeFive.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush increased to " + drawStarSize);
-                } else if (drawStarSize == sizeFive.getSize()) {
-                    drawStarSize = sizeSix.getSize();
-                    whatsUp.setTextFill(Color.WHITE);
-                    whatsUp.setText("Brush increased to " + drawStarSize);
-                } else {
-                    whatsUp.setTextFill(Color.PINK);
-                    whatsUp.setText("Brush can't get bigger!");
-                }
+    /**
+     * Helper that deletes a journal left by the last run, letting the user
+     * know if it can't be.
+     *
+     * @param file is the journal.
+     */
+    private void deleteLeftOver(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException x) {
+            postStatus(Color.PINK, "Couldn't delete " + file + ": " + x.getMessage());
+        }
+    }
 
+    /**
+     * Writes the Stats on the way out when a file was given with
+     * -Dmagicpainter.stats, stops the command server, writes the rest of the
+     * journal and finishes the recording if there is one.
+     *
+     * @throws IOException if the recording couldn't be written.
+     */
+    @Override
+    public void stop() throws IOException {
+        if (System.getProperty("magicpainter.stats") != null) {
+            dumpStats();
+        }
+        if (commandServer != null) {
+            commandServer.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (recorder != null) {
+            recorder.close();
+            if (recorder.getError() != null) {
+                throw recorder.getError();
             }
-        });
-
-        // SHOW STAGE!! WOO//
-        stage.show();
+        }
     }
 
     /**
      * @param args unused
      */
     public static void main(String[] args) {
+        Startup.mark(Startup.MAIN);
         launch(args);
     }
 }
@@ -0,0 +1,633 @@
+package magicpainter;
+
+import java.util.Arrays;
+
+/**
+ * One occlusion pass, which finds the stars that later stars hide
+ * completely so they don't have to be drawn, saved or exported. Dragging a
+ * big brush stacks thousands of opaque stars on top of each other, and most
+ * of them end up under the others.
+ *
+ * The pass is taken on the FX thread, where it copies the stars it looks
+ * at, and run on any thread. It walks them from the newest back with a
+ * coverage grid per layer: a bit per document pixel, in 64x64 tiles made
+ * when something is set in them, for the pixels some opaque star covers
+ * completely. A star whose pixels are all set already is occluded, since
+ * whatever it draws gets painted over; otherwise an opaque star sets the
+ * pixels it covers completely. Both are worked out row by row from the star
+ * polygon itself, with a margin for the positions the StampCache and saved
+ * documents round, so leaving the occluded stars out gives exactly the same
+ * pixels on every layer surface. Stars only hide stars on their own layer,
+ * and stars that are occluded already are left out of the pass since they
+ * can't cover anything that isn't covered.
+ *
+ * A pass only looks at the stars near where stars were added since the
+ * last one, because stars only become hidden by new stars. The Painting
+ * applies it with {@link Painting#occlude}, unless something was erased or
+ * undone since it was taken.
+ *
+ * @author sylverk @ github
+ */
+public final class Occlusion {
+
+    /**
+     * int describing the width and height of a tile of the coverage grid,
+     * one bit per pixel and one long per row.
+     */
+    private static final int TILE = 64;
+
+    /**
+     * double describing how far, in pixels, a star can be drawn from where
+     * the pass thinks it is. The StampCache rounds positions to a quarter of
+     * a pixel, which moves a star up to an eighth, and a saved document keeps
+     * positions and sizes to a sixteenth.
+     */
+    static final double MARGIN = 0.25;
+
+    /**
+     * The store the stars were copied from.
+     */
+    private final StarStore stars;
+
+    /**
+     * int describing the occlusion epoch of the painting when the pass was
+     * taken.
+     */
+    private final int epoch;
+
+    /**
+     * int describing the left edge of the area where stars were added.
+     */
+    private final int x0;
+
+    /**
+     * int describing the top edge of the area where stars were added.
+     */
+    private final int y0;
+
+    /**
+     * int describing the right edge of the area where stars were added.
+     */
+    private final int x1;
+
+    /**
+     * int describing the bottom edge of the area where stars were added.
+     */
+    private final int y1;
+
+    /**
+     * int describing the width of the document.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the document.
+     */
+    private final int height;
+
+    /**
+     * int describing how many stars were copied.
+     */
+    private int count;
+
+    /**
+     * array of the indices in the store of the copied stars, oldest first.
+     */
+    private int[] indices;
+
+    /**
+     * array of the x-positions of the copied stars.
+     */
+    private float[] xs;
+
+    /**
+     * array of the y-positions of the copied stars.
+     */
+    private float[] ys;
+
+    /**
+     * array of the sizes of the copied stars.
+     */
+    private float[] sizes;
+
+    /**
+     * array of the layers of the copied stars.
+     */
+    private byte[] layers;
+
+    /**
+     * array of flags telling which copied stars have an opaque color.
+     */
+    private boolean[] opaque;
+
+    /**
+     * array of the indices in the store of the stars found to be occluded,
+     * newest first.
+     */
+    private int[] found = new int[64];
+
+    /**
+     * int describing how many entries of found are used.
+     */
+    private int foundCount;
+
+    /**
+     * The coverage grid of each layer, by layer id, null until an opaque
+     * star of the layer is passed. Each has a tile per 64x64 pixels, null
+     * until a pixel of it is covered.
+     */
+    private final long[][][] grids = new long[Painting.MAX_LAYERS][][];
+
+    /**
+     * int describing the number of tile columns of a coverage grid.
+     */
+    private final int tilesX;
+
+    /**
+     * Scratch array for the x-positions of the vertices of the current star.
+     */
+    private final double[] vx = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the y-positions of the vertices of the current star.
+     */
+    private final double[] vy = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the y-position of the top of each edge of the
+     * current star that isn't horizontal.
+     */
+    private final double[] edgeTop = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the y-position of the bottom of each edge.
+     */
+    private final double[] edgeBottom = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the x-position of the top of each edge.
+     */
+    private final double[] edgeX = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for how much x changes along each edge per unit of y.
+     */
+    private final double[] edgeSlope = new double[StarGeometry.VERTICES];
+
+    /**
+     * int describing how many edges of the current star aren't horizontal.
+     */
+    private int edges;
+
+    /**
+     * double describing the left edge of the part of the current star in a
+     * row, from the last call to hull.
+     */
+    private double hullX0;
+
+    /**
+     * double describing the right edge of the part of the current star in a
+     * row.
+     */
+    private double hullX1;
+
+    /**
+     * Scratch array for the spans of a row that the current star covers all
+     * the way down, as pairs of a start and an end.
+     */
+    private double[] spans = new double[4 * StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the spans the current star covers along one line.
+     */
+    private final double[] line = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array that spans and line are intersected into.
+     */
+    private double[] merged = new double[4 * StarGeometry.VERTICES];
+
+    /**
+     * Constructor for an Occlusion pass, which copies the shown stars that
+     * might be hidden by stars added in an area and every star that might
+     * cover part of them. Must be called on the thread that changes the
+     * store.
+     *
+     * @param stars is the store holding the stars.
+     * @param index is the index over the store.
+     * @param epoch is the occlusion epoch of the painting.
+     * @param x0 is the left edge of the area where stars were added.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area.
+     * @param y1 is the bottom edge of the area.
+     * @param width is the width of the document.
+     * @param height is the height of the document.
+     */
+    public Occlusion(StarStore stars, StarIndex index, int epoch, int x0, int y0, int x1, int y1, int width, int height) {
+        this.stars = stars;
+        this.epoch = epoch;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE - 1) / TILE;
+        if (x0 <= 0 && y0 <= 0 && x1 >= width && y1 >= height) {
+            allocate(stars.size());
+            for (int i = 0; i < stars.size(); i++) {
+                if (stars.isShown(i)) {
+                    copy(i);
+                }
+            }
+            return;
+        }
+        // the stars touching the area can cover anything their bounding boxes touch
+        double ax0 = x0;
+        double ay0 = y0;
+        double ax1 = x1;
+        double ay1 = y1;
+        int n = index.query(x0, y0, x1, y1);
+        int[] results = index.getResults();
+        for (int k = 0; k < n; k++) {
+            int i = results[k];
+            double size = stars.getSize(i);
+            ax0 = Math.min(ax0, stars.getX(i) - size * StarGeometry.HALF_WIDTH);
+            ay0 = Math.min(ay0, stars.getY(i) - size * StarGeometry.TOP);
+            ax1 = Math.max(ax1, stars.getX(i) + size * StarGeometry.HALF_WIDTH);
+            ay1 = Math.max(ay1, stars.getY(i) + size * StarGeometry.BOTTOM);
+        }
+        n = index.query(ax0, ay0, ax1, ay1);
+        results = index.getResults();
+        allocate(n);
+        for (int k = 0; k < n; k++) {
+            if (!stars.isOccluded(results[k])) {
+                copy(results[k]);
+            }
+        }
+    }
+
+    /**
+     * Makes the arrays for the copied stars.
+     *
+     * @param n is the most stars that will be copied.
+     */
+    private void allocate(int n) {
+        indices = new int[n];
+        xs = new float[n];
+        ys = new float[n];
+        sizes = new float[n];
+        layers = new byte[n];
+        opaque = new boolean[n];
+    }
+
+    /**
+     * Copies a star from the store.
+     *
+     * @param i is the index of the star.
+     */
+    private void copy(int i) {
+        indices[count] = i;
+        xs[count] = stars.getX(i);
+        ys[count] = stars.getY(i);
+        sizes[count] = stars.getSize(i);
+        layers[count] = (byte) stars.getLayer(i);
+        opaque[count] = stars.getPalette().get(stars.getColor(i)) >>> 24 == 255;
+        count++;
+    }
+
+    /**
+     * Runs the pass over the copied stars, newest first. Only touches the
+     * copy, so it can run on a background thread.
+     *
+     * @return int number of stars found to be occluded.
+     */
+    public int run() {
+        for (int k = count - 1; k >= 0; k--) {
+            long[][] grid = grids[layers[k]];
+            edges(sizes[k], xs[k], ys[k]);
+            int r0 = Math.max(0, (int) Math.floor(ys[k] - sizes[k] * StarGeometry.TOP - MARGIN));
+            int r1 = Math.min(height, (int) Math.ceil(ys[k] + sizes[k] * StarGeometry.BOTTOM + MARGIN));
+            if (grid != null && hidden(grid, r0, r1)) {
+                if (foundCount == found.length) {
+                    found = Arrays.copyOf(found, foundCount * 2);
+                }
+                found[foundCount++] = indices[k];
+            } else if (opaque[k]) {
+                if (grid == null) {
+                    grid = grids[layers[k]] = new long[tilesX * ((height + TILE - 1) / TILE)][];
+                }
+                cover(grid, r0, r1);
+            }
+        }
+        return foundCount;
+    }
+
+    /**
+     * Works out the edges of a star that aren't horizontal, like the
+     * StarRasterizer does.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     */
+    private void edges(double size, double x, double y) {
+        StarGeometry.vertices(size, x, y, vx, vy);
+        edges = 0;
+        for (int i = 0, j = StarGeometry.VERTICES - 1; i < StarGeometry.VERTICES; j = i++) {
+            if (vy[i] == vy[j]) {
+                continue;
+            }
+            int top = vy[i] < vy[j] ? i : j;
+            int bottom = top == i ? j : i;
+            edgeTop[edges] = vy[top];
+            edgeBottom[edges] = vy[bottom];
+            edgeX[edges] = vx[top];
+            edgeSlope[edges] = (vx[bottom] - vx[top]) / (vy[bottom] - vy[top]);
+            edges++;
+        }
+    }
+
+    /**
+     * Checks if every pixel the current star could touch in a range of rows
+     * is covered already.
+     *
+     * @param grid is the coverage grid of the star's layer.
+     * @param r0 is the first row.
+     * @param r1 is the row after the last one.
+     * @return boolean true if the star is hidden.
+     */
+    private boolean hidden(long[][] grid, int r0, int r1) {
+        for (int r = r0; r < r1; r++) {
+            if (!hull(r - MARGIN, r + 1 + MARGIN)) {
+                continue;
+            }
+            int a = Math.max(0, (int) Math.floor(hullX0 - MARGIN));
+            int b = Math.min(width, (int) Math.ceil(hullX1 + MARGIN));
+            if (a < b && !covered(grid, r, a, b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the pixels the current star covers completely in a range of rows.
+     *
+     * @param grid is the coverage grid of the star's layer.
+     * @param r0 is the first row.
+     * @param r1 is the row after the last one.
+     */
+    private void cover(long[][] grid, int r0, int r1) {
+        for (int r = r0; r < r1; r++) {
+            int n = interior(r - MARGIN, r + 1 + MARGIN);
+            for (int k = 0; k < n; k += 2) {
+                int a = Math.max(0, (int) Math.ceil(spans[k] + MARGIN));
+                int b = Math.min(width, (int) Math.floor(spans[k + 1] - MARGIN));
+                if (a < b) {
+                    set(grid, r, a, b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out how far left and right the current star reaches between two
+     * heights, into hullX0 and hullX1. The furthest points are ends of
+     * edges, either vertices or where an edge crosses one of the heights.
+     *
+     * @param top is the upper height.
+     * @param bottom is the lower height.
+     * @return boolean true if the star reaches between the heights at all.
+     */
+    private boolean hull(double top, double bottom) {
+        hullX0 = Double.MAX_VALUE;
+        hullX1 = -Double.MAX_VALUE;
+        for (int e = 0; e < edges; e++) {
+            double t0 = Math.max(edgeTop[e], top);
+            double t1 = Math.min(edgeBottom[e], bottom);
+            if (t0 > t1) {
+                continue;
+            }
+            double a = edgeX[e] + (t0 - edgeTop[e]) * edgeSlope[e];
+            double b = edgeX[e] + (t1 - edgeTop[e]) * edgeSlope[e];
+            hullX0 = Math.min(hullX0, Math.min(a, b));
+            hullX1 = Math.max(hullX1, Math.max(a, b));
+        }
+        return hullX0 <= hullX1;
+    }
+
+    /**
+     * Works out the spans the current star covers all the way from one
+     * height down to another, into spans. Between two vertices the ends of
+     * each span move in a straight line, so it is enough to intersect the
+     * spans at both heights and just above and below every vertex between
+     * them.
+     *
+     * @param top is the upper height.
+     * @param bottom is the lower height.
+     * @return int number of entries of spans used, two per span.
+     */
+    private int interior(double top, double bottom) {
+        int n = crossings(top, true, spans);
+        for (int v = 0; v < StarGeometry.VERTICES && n > 0; v++) {
+            if (vy[v] > top && vy[v] < bottom) {
+                n = intersect(n, crossings(vy[v], false, line));
+                n = intersect(n, crossings(vy[v], true, line));
+            }
+        }
+        return n > 0 ? intersect(n, crossings(bottom, false, line)) : 0;
+    }
+
+    /**
+     * Works out where a horizontal line crosses the edges of the current
+     * star, sorted from left to right, so they pair up into the spans it
+     * covers. At a vertex the edges below it or above it are used, which
+     * gives the spans just below or just above the line.
+     *
+     * @param sy is the y-position of the line.
+     * @param below is true for the spans just below the line.
+     * @param out receives the crossings.
+     * @return int number of crossings found.
+     */
+    private int crossings(double sy, boolean below, double[] out) {
+        int n = 0;
+        for (int e = 0; e < edges; e++) {
+            if (below ? edgeTop[e] <= sy && sy < edgeBottom[e] : edgeTop[e] < sy && sy <= edgeBottom[e]) {
+                double cx = edgeX[e] + (sy - edgeTop[e]) * edgeSlope[e];
+                int k = n++;
+                while (k > 0 && out[k - 1] > cx) {
+                    out[k] = out[k - 1];
+                    k--;
+                }
+                out[k] = cx;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Intersects spans with the spans in line, leaving the result in spans.
+     *
+     * @param n is the number of entries of spans used.
+     * @param m is the number of entries of line used.
+     * @return int number of entries of spans used afterwards.
+     */
+    private int intersect(int n, int m) {
+        int k = 0;
+        for (int i = 0, j = 0; i < n && j < m;) {
+            double lo = Math.max(spans[i], line[j]);
+            double hi = Math.min(spans[i + 1], line[j + 1]);
+            if (lo < hi) {
+                if (k == merged.length) {
+                    merged = Arrays.copyOf(merged, k * 2);
+                }
+                merged[k++] = lo;
+                merged[k++] = hi;
+            }
+            if (spans[i + 1] < line[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        double[] swap = spans;
+        spans = merged;
+        merged = swap;
+        return k;
+    }
+
+    /**
+     * Checks if a run of pixels of a row is covered in a coverage grid.
+     *
+     * @param grid is the coverage grid.
+     * @param row is the row.
+     * @param from is the first pixel.
+     * @param to is the pixel after the last one.
+     * @return boolean true if every pixel is covered.
+     */
+    private boolean covered(long[][] grid, int row, int from, int to) {
+        int base = (row / TILE) * tilesX;
+        for (int t = from / TILE; t <= (to - 1) / TILE; t++) {
+            long[] tile = grid[base + t];
+            long bits = bits(Math.max(from, t * TILE) - t * TILE, Math.min(to, (t + 1) * TILE) - t * TILE);
+            if (tile == null || (tile[row % TILE] & bits) != bits) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets a run of pixels of a row as covered in a coverage grid.
+     *
+     * @param grid is the coverage grid.
+     * @param row is the row.
+     * @param from is the first pixel.
+     * @param to is the pixel after the last one.
+     */
+    private void set(long[][] grid, int row, int from, int to) {
+        int base = (row / TILE) * tilesX;
+        for (int t = from / TILE; t <= (to - 1) / TILE; t++) {
+            long[] tile = grid[base + t];
+            if (tile == null) {
+                tile = grid[base + t] = new long[TILE];
+            }
+            tile[row % TILE] |= bits(Math.max(from, t * TILE) - t * TILE, Math.min(to, (t + 1) * TILE) - t * TILE);
+        }
+    }
+
+    /**
+     * Makes a mask of a run of bits of a tile row.
+     *
+     * @param from is the first bit, 0 to 63.
+     * @param to is the bit after the last one, 1 to 64.
+     * @return long with the bits from from to to set.
+     */
+    private static long bits(int from, int to) {
+        return (-1L >>> (TILE - (to - from))) << from;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return StarStore the stars were copied from.
+     */
+    public StarStore getStars() {
+        return stars;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the occlusion epoch of the painting when the pass was
+     * taken.
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the left edge of the area where stars were added.
+     */
+    public int getX0() {
+        return x0;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the top edge of the area where stars were added.
+     */
+    public int getY0() {
+        return y0;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the right edge of the area where stars were added.
+     */
+    public int getX1() {
+        return x1;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the bottom edge of the area where stars were added.
+     */
+    public int getY1() {
+        return y1;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int number of stars the pass looks at.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return array of the indices of the stars found to be occluded, newest
+     * first.
+     */
+    public int[] getFound() {
+        return found;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int number of stars found to be occluded.
+     */
+    public int getFoundCount() {
+        return foundCount;
+    }
+}
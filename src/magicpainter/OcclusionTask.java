@@ -0,0 +1,47 @@
+package magicpainter;
+
+import javafx.concurrent.Task;
+
+/**
+ * Background task that runs an Occlusion pass, so working out which stars
+ * are hidden never holds up painting. The pass copied the stars it needs
+ * when it was taken on the FX thread, and the stars it finds are marked
+ * there once the task succeeded, see {@link Painting#occlude}.
+ *
+ * @author sylverk @ github
+ */
+public class OcclusionTask extends Task<Integer> {
+
+    /**
+     * The pass being run.
+     */
+    private final Occlusion pass;
+
+    /**
+     * Constructor for an OcclusionTask.
+     *
+     * @param pass is the pass to run.
+     */
+    public OcclusionTask(Occlusion pass) {
+        this.pass = pass;
+    }
+
+    /**
+     * Runs the pass on the background thread.
+     *
+     * @return Integer number of stars found to be occluded.
+     */
+    @Override
+    protected Integer call() {
+        return pass.run();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return Occlusion pass being run.
+     */
+    public Occlusion getPass() {
+        return pass;
+    }
+}
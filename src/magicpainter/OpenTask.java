@@ -0,0 +1,118 @@
+package magicpainter;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * Background task that decodes and indexes a .stars document so a big
+ * document doesn't freeze the window while it opens. The task works on its
+ * own store, index and surface. Once the stars are decoded and the ones in
+ * view are indexed, the task hands itself to the shown handler on the FX
+ * thread, which puts the document in place with {@link #show}; the rest of
+ * the stars are indexed after that and merged in by {@link #finish} once the
+ * task succeeded. The colors of the document are added to the palette when
+ * the task is created, also on the FX thread, because the palette belongs
+ * to it.
+ *
+ * @author sylverk @ github
+ */
+public class OpenTask extends Task<Integer> {
+
+    /**
+     * The painting the document is opened into.
+     */
+    private final Painting painting;
+
+    /**
+     * The document being opened.
+     */
+    private final StarDocument document;
+
+    /**
+     * array mapping document palette indices to painting palette indices.
+     */
+    private final int[] colors;
+
+    /**
+     * array holding the part of the document in view when the task was
+     * created, widened to whole tiles, as x0, y0, x1, y1.
+     */
+    private final int[] area;
+
+    /**
+     * Called on the FX thread once the document can be shown.
+     */
+    private Runnable onShown = () -> { };
+
+    /**
+     * The stars of the document, once they are read.
+     */
+    private Painting.State state;
+
+    /**
+     * The index of the stars outside of the area, once it is built.
+     */
+    private StarIndex rest;
+
+    /**
+     * Constructor for an OpenTask, must be called on the FX thread.
+     *
+     * @param painting is the painting the document is opened into.
+     * @param document is the document to open.
+     * @param view is the viewport, whose part of the document is shown
+     * first.
+     */
+    public OpenTask(Painting painting, StarDocument document, Viewport view) {
+        this.painting = painting;
+        this.document = document;
+        this.colors = document.colorMap(painting.getPalette());
+        int tile = TiledSurface.TILE;
+        int x0 = Math.max(0, (int) Math.floor(view.toDocX(0) / tile) * tile);
+        int y0 = Math.max(0, (int) Math.floor(view.toDocY(0) / tile) * tile);
+        int x1 = Math.min(painting.getWidth(), (int) Math.ceil(view.toDocX(view.getWidth()) / tile) * tile);
+        int y1 = Math.min(painting.getHeight(), (int) Math.ceil(view.toDocY(view.getHeight()) / tile) * tile);
+        area = new int[] {x0, y0, Math.max(x0, x1), Math.max(y0, y1)};
+    }
+
+    /**
+     * Reads the document on the background thread, has it shown, and
+     * indexes the rest of it.
+     *
+     * @return Integer number of stars read.
+     * @throws Exception if the document is damaged.
+     */
+    @Override
+    protected Integer call() throws Exception {
+        state = painting.read(document, colors, area[0], area[1], area[2], area[3]);
+        // the FX thread may grow the store as soon as it is shown
+        StarStore stars = state.stars.share();
+        Platform.runLater(onShown);
+        rest = painting.indexRest(stars, state.loaded, area[0], area[1], area[2], area[3]);
+        return document.getStarCount();
+    }
+
+    /**
+     * Standard setter, must be called before the task is started.
+     *
+     * @param onShown is called on the FX thread once {@link #show} can be.
+     */
+    public void setOnShown(Runnable onShown) {
+        this.onShown = onShown;
+    }
+
+    /**
+     * Puts the document in place of the painting, on the FX thread once the
+     * shown handler is called.
+     */
+    public void show() {
+        painting.open(state);
+    }
+
+    /**
+     * Merges in the rest of the document, on the FX thread once the task
+     * succeeded and after {@link #show}.
+     */
+    public void finish() {
+        painting.finishOpen(state, rest);
+    }
+}
@@ -0,0 +1,1110 @@
+package magicpainter;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything that makes up a painting: the StarStore with every star, the
+ * StarIndex over them and a TiledSurface per layer with their pixels, plus
+ * the History that lets changes be undone. All changes to the painting go
+ * through here so they always agree with each other. Clearing the painting
+ * or opening a document swaps in a fresh store, index and surfaces so the
+ * old ones can be kept around for undo, which means they should always be
+ * fetched through the getters rather than kept.
+ *
+ * Each star is on a Layer and is only ever drawn onto that layer's surface.
+ * With a single plain layer its surface is shown as it is; otherwise the
+ * shown layers are blended into a composite surface, only where a layer
+ * changed and only once it comes into view (see {@link #compose}). Hiding,
+ * fading or moving a layer just marks the tiles it has as changed, so it
+ * costs its pixels and never its stars. Not thread safe, and doesn't depend
+ * on JavaFX.
+ *
+ * With a Journal every change is also written to it as it happens: the
+ * stars that were added, which ones were erased or put back, how many there
+ * are after an undo or redo of stars, and which store was put in place by a
+ * clear, an open or undoing either, with the stars of an opened document.
+ *
+ * Stars that later stars hide completely are marked as occluded by an
+ * Occlusion pass over where stars were added, taken with
+ * {@link #occlusionPass} and applied with {@link #occlude}; they are left
+ * out when the surfaces are drawn again and when the painting is saved or
+ * exported. Erasing shows the occluded stars around the erased ones again,
+ * and undo, redo, clear and open show them all again and have the next pass
+ * look at the whole painting. The journal still gets every star, since an
+ * erase may show them again.
+ *
+ * @author sylverk @ github
+ */
+public class Painting {
+
+    /**
+     * The store, index and layer surfaces of a painting at one point in
+     * time, as swapped out by clear and open.
+     */
+    static final class State {
+
+        /**
+         * The stars.
+         */
+        final StarStore stars;
+
+        /**
+         * The index over the stars.
+         */
+        final StarIndex index;
+
+        /**
+         * The pixels of the stars of each layer, by layer id.
+         */
+        final TiledSurface[] surfaces;
+
+        /**
+         * The number of stars at the start of the store that the surface of
+         * layer 0 draws lazily, when the state came from a document.
+         */
+        final int loaded;
+
+        /**
+         * Constructor for a State.
+         *
+         * @param stars is the store.
+         * @param index is the index over the store.
+         * @param surfaces are the surfaces the stars of each layer are drawn
+         * on.
+         * @param loaded is the number of stars the surface draws lazily.
+         */
+        State(StarStore stars, StarIndex index, TiledSurface[] surfaces, int loaded) {
+            this.stars = stars;
+            this.index = index;
+            this.surfaces = surfaces;
+            this.loaded = loaded;
+        }
+
+        /**
+         * Works out roughly how much memory the state holds.
+         *
+         * @return long number of bytes.
+         */
+        long bytes() {
+            // 17 bytes per star in the store plus about 8 in the index
+            long bytes = (long) stars.size() * 25;
+            for (TiledSurface surface : surfaces) {
+                bytes += surface.getAllocatedBytes();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * int describing the most layers a painting can have.
+     */
+    public static final int MAX_LAYERS = 64;
+
+    /**
+     * int describing the width of the document.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the document.
+     */
+    private final int height;
+
+    /**
+     * boolean indicating if tiles are kept off-heap.
+     */
+    private final boolean offHeap;
+
+    /**
+     * The palette shared by every store of the painting.
+     */
+    private final Palette palette = new Palette();
+
+    /**
+     * The stamps shared by the surfaces of the layers. The budget can be set
+     * in megabytes with -Dmagicpainter.stampBudgetMB, 0 turns stamps off.
+     */
+    private final StampCache stamps = new StampCache(Long.getLong("magicpainter.stampBudgetMB", 16) << 20);
+
+    /**
+     * The stars of the painting.
+     */
+    private StarStore stars;
+
+    /**
+     * The index over the stars.
+     */
+    private StarIndex index;
+
+    /**
+     * The pixels of each layer, by layer id.
+     */
+    private TiledSurface[] surfaces;
+
+    /**
+     * The shown layers blended together, when there is more to show than a
+     * single plain layer.
+     */
+    private final TiledSurface composite;
+
+    /**
+     * The layers, bottom first.
+     */
+    private final List<Layer> layers = new ArrayList<>();
+
+    /**
+     * The layer new stars are added to.
+     */
+    private Layer active;
+
+    /**
+     * array of the surfaces of the shown layers, bottom first, for
+     * compositing.
+     */
+    private final TiledSurface[] shown = new TiledSurface[MAX_LAYERS];
+
+    /**
+     * array of the alphas of the shown layers.
+     */
+    private final int[] alphas = new int[MAX_LAYERS];
+
+    /**
+     * int describing how many stars at the start of the store the surface
+     * draws lazily.
+     */
+    private int loaded;
+
+    /**
+     * The undo history.
+     */
+    private final History history;
+
+    /**
+     * The autosave journal, or null.
+     */
+    private Journal journal;
+
+    /**
+     * int counting the changes that can show occluded stars again, so an
+     * occlusion pass taken before one of them isn't applied.
+     */
+    private int occlusionEpoch;
+
+    /**
+     * int describing the left edge of the area where stars were added since
+     * the last occlusion pass was taken; the area is empty if it isn't left
+     * of the right edge.
+     */
+    private int addedX0 = Integer.MAX_VALUE;
+
+    /**
+     * int describing the top edge of the area where stars were added.
+     */
+    private int addedY0 = Integer.MAX_VALUE;
+
+    /**
+     * int describing the right edge of the area where stars were added.
+     */
+    private int addedX1 = Integer.MIN_VALUE;
+
+    /**
+     * int describing the bottom edge of the area where stars were added.
+     */
+    private int addedY1 = Integer.MIN_VALUE;
+
+    /**
+     * Constructor for an empty painting.
+     *
+     * @param width is the width of the document.
+     * @param height is the height of the document.
+     * @param offHeap is true to keep tiles in direct buffers.
+     * @param historyBudget is the number of bytes the undo history may use.
+     */
+    public Painting(int width, int height, boolean offHeap, long historyBudget) {
+        this.width = width;
+        this.height = height;
+        this.offHeap = offHeap;
+        this.composite = new TiledSurface(width, height, offHeap);
+        active = new Layer(0, "Layer 1");
+        layers.add(active);
+        swap(freshState());
+        history = new History(this, historyBudget);
+    }
+
+    /**
+     * Creates an empty store, index and surfaces.
+     *
+     * @return State that is empty.
+     */
+    private State freshState() {
+        StarStore s = new StarStore(palette);
+        return new State(s, new StarIndex(s, width, height), newSurfaces(layers.size()), 0);
+    }
+
+    /**
+     * Creates empty surfaces.
+     *
+     * @param n is the number of surfaces.
+     * @return array of n empty surfaces.
+     */
+    private TiledSurface[] newSurfaces(int n) {
+        TiledSurface[] fresh = new TiledSurface[n];
+        for (int k = 0; k < n; k++) {
+            fresh[k] = new TiledSurface(width, height, offHeap, stamps);
+        }
+        return fresh;
+    }
+
+    /**
+     * Puts another store, index and surfaces in place. A state from before
+     * layers were added gets empty surfaces for them.
+     *
+     * @param state is the state to put in place.
+     * @return State that was in place before, or null the first time.
+     */
+    State swap(State state) {
+        State old = stars == null ? null : new State(stars, index, surfaces, loaded);
+        stars = state.stars;
+        index = state.index;
+        surfaces = state.surfaces;
+        if (surfaces.length < layers.size()) {
+            int n = surfaces.length;
+            surfaces = Arrays.copyOf(surfaces, layers.size());
+            System.arraycopy(newSurfaces(layers.size() - n), 0, surfaces, n, layers.size() - n);
+        }
+        loaded = state.loaded;
+        if (journal != null) {
+            journal.select(stars);
+        }
+        if (old != null) {
+            for (int k = 0; k < surfaces.length; k++) {
+                surfaces[k].markChangedFrom(k < old.surfaces.length ? old.surfaces[k] : surfaces[k]);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Draws a batch of stars and adds them to the painting.
+     *
+     * @param batch is the store holding the stars, it may have its own
+     * palette.
+     */
+    public void add(StarStore batch) {
+        int first = stars.size();
+        history.recordAdd(first, first + batch.size());
+        stars.addAll(batch);
+        stars.setLayer(first, stars.size(), active.getId());
+        index.insert(first, stars.size());
+        history.recordDrawn(drawRange(first, stars.size()));
+        added(first, stars.size());
+        if (journal != null) {
+            journal.stars(stars, first, stars.size());
+        }
+    }
+
+    /**
+     * Draws the stars from index from (inclusive) to index to (exclusive)
+     * onto the surfaces of their layers, skipping removed and occluded stars.
+     *
+     * @param from is the index of the first star to draw.
+     * @param to is the index after the last star to draw.
+     * @return long roughly how many pixels were drawn.
+     */
+    long drawRange(int from, int to) {
+        long area = 0;
+        for (int i = from; i < to; i++) {
+            if (!stars.isShown(i)) {
+                continue;
+            }
+            double size = stars.getSize(i);
+            surfaces[stars.getLayer(i)].fillStar(size, stars.getX(i), stars.getY(i), palette.get(stars.getColor(i)));
+            area += (long) (size * size);
+        }
+        return area;
+    }
+
+    /**
+     * Erases every star of the active layer touching a square around a
+     * point, then redraws just the area those stars covered from the stars
+     * that are left. Occluded stars in that area are shown again, since the
+     * erased stars may have been what hid them.
+     *
+     * @param x is the x-position of the center of the eraser.
+     * @param y is the y-position of the center of the eraser.
+     * @param half is half the width of the eraser.
+     * @return boolean true if any star was erased.
+     */
+    public boolean erase(double x, double y, double half) {
+        double x0 = Double.MAX_VALUE;
+        double y0 = Double.MAX_VALUE;
+        double x1 = -Double.MAX_VALUE;
+        double y1 = -Double.MAX_VALUE;
+        int n = index.query(x - half, y - half, x + half, y + half);
+        int[] found = index.getResults();
+        for (int k = 0; k < n; k++) {
+            int i = found[k];
+            if (stars.getLayer(i) != active.getId()) {
+                continue;
+            }
+            double size = stars.getSize(i);
+            double sx = stars.getX(i);
+            double sy = stars.getY(i);
+            if (!StarGeometry.intersects(size, sx, sy, x - half, y - half, x + half, y + half)) {
+                continue;
+            }
+            removeStar(i);
+            history.recordErase(i);
+            x0 = Math.min(x0, sx - size * StarGeometry.HALF_WIDTH);
+            y0 = Math.min(y0, sy - size * StarGeometry.TOP);
+            x1 = Math.max(x1, sx + size * StarGeometry.HALF_WIDTH);
+            y1 = Math.max(y1, sy + size * StarGeometry.BOTTOM);
+        }
+        if (x0 > x1) {
+            return false;
+        }
+        int rx0 = (int) Math.floor(x0);
+        int ry0 = (int) Math.floor(y0);
+        int rx1 = (int) Math.ceil(x1);
+        int ry1 = (int) Math.ceil(y1);
+        history.recordEraseBounds(rx0, ry0, rx1, ry1);
+        occlusionEpoch++;
+        if (stars.getOccludedCount() > 0) {
+            n = index.query(rx0, ry0, rx1, ry1);
+            found = index.getResults();
+            for (int k = 0; k < n; k++) {
+                stars.reveal(found[k]);
+            }
+        }
+        redraw(rx0, ry0, rx1, ry1);
+        return true;
+    }
+
+    /**
+     * Takes a star out of the index and marks it as removed, by erasing or
+     * redoing an erase.
+     *
+     * @param i is the index of the star.
+     */
+    void removeStar(int i) {
+        index.remove(i);
+        stars.remove(i);
+        if (journal != null) {
+            journal.remove(i);
+        }
+    }
+
+    /**
+     * Puts a removed star back into the index, by undoing an erase.
+     *
+     * @param i is the index of the star.
+     */
+    void restoreStar(int i) {
+        stars.restore(i);
+        index.insert(i);
+        if (journal != null) {
+            journal.restore(i);
+        }
+    }
+
+    /**
+     * Hides the stars past a count or shows them again, by undoing or redoing
+     * an add.
+     *
+     * @param n is the new number of stars.
+     */
+    void setCount(int n) {
+        stars.setCount(n);
+        if (journal != null) {
+            journal.count(n);
+        }
+    }
+
+    /**
+     * Lets go of a state the history won't put in place again.
+     *
+     * @param state is the state.
+     */
+    void forget(State state) {
+        if (journal != null) {
+            journal.drop(state.stars);
+        }
+    }
+
+    /**
+     * Redraws an area of the layer surfaces from the stars in the index that
+     * aren't occluded, in the order they were placed, leaving the rest of the
+     * surfaces alone.
+     *
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area (exclusive).
+     * @param y1 is the bottom edge of the area (exclusive).
+     */
+    public void redraw(int x0, int y0, int x1, int y1) {
+        for (TiledSurface surface : surfaces) {
+            surface.clearRect(x0, y0, x1, y1);
+        }
+        int n = index.query(x0, y0, x1, y1);
+        int[] found = index.getResults();
+        for (int k = 0; k < n; k++) {
+            int i = found[k];
+            if (!stars.isOccluded(i)) {
+                surfaces[stars.getLayer(i)].fillStar(stars.getSize(i), stars.getX(i), stars.getY(i), palette.get(stars.getColor(i)), x0, y0, x1, y1);
+            }
+        }
+    }
+
+    /**
+     * Clears the painting. The old stars and pixels are kept by the history
+     * so the clear can be undone.
+     */
+    public void clear() {
+        history.recordClear(swap(freshState()));
+        forgetOcclusion();
+    }
+
+    /**
+     * Decodes the stars of a document into a new store, index and surfaces
+     * for {@link #open}, but only indexes the stars touching an area, so the
+     * part of the document in view can be shown before the rest is indexed
+     * by {@link #indexRest} and merged in by {@link #finishOpen}. Documents
+     * don't keep layers, so every star goes on layer 0, whose pixels are only
+     * drawn tile by tile once they are shown. This doesn't touch the
+     * painting's stars, so it can run on a background thread.
+     *
+     * @param document is the document to read.
+     * @param colors maps document palette indices to indices in the palette
+     * of the painting, from {@link StarDocument#colorMap}.
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area.
+     * @param y1 is the bottom edge of the area.
+     * @return State holding the stars of the document.
+     * @throws IOException if the document is damaged.
+     */
+    State read(StarDocument document, int[] colors, int x0, int y0, int x1, int y1) throws IOException {
+        StarStore s = new StarStore(palette);
+        int n = document.read(s, colors);
+        StarIndex ix = new StarIndex(s, width, height);
+        ix.insert(0, n, x0, y0, x1, y1, true);
+        TiledSurface[] sf = newSurfaces(layers.size());
+        defer(s, ix, sf[0], n);
+        return new State(s, ix, sf, n);
+    }
+
+    /**
+     * Indexes the stars of a read document that {@link #read} left out, on a
+     * background thread while the document is already shown.
+     *
+     * @param stars is a {@link StarStore#share} of the stars of the
+     * document, taken before it was shown.
+     * @param n is the number of stars in the document.
+     * @param x0 is the left edge of the area given to {@link #read}.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area.
+     * @param y1 is the bottom edge of the area.
+     * @return StarIndex holding the rest of the stars.
+     */
+    StarIndex indexRest(StarStore stars, int n, int x0, int y0, int x1, int y1) {
+        StarIndex rest = new StarIndex(stars, width, height);
+        rest.insert(0, n, x0, y0, x1, y1, false);
+        return rest;
+    }
+
+    /**
+     * Merges the rest of the stars of an opened document into its index, on
+     * the FX thread. Tiles of layer 0 that were drawn before they were
+     * merged are missing them and are drawn again, and since checkpoints may
+     * hold such tiles they are dropped. The state doesn't have to be the
+     * one shown any more.
+     *
+     * @param state is the document from {@link #read}.
+     * @param rest is the index from {@link #indexRest}.
+     */
+    void finishOpen(State state, StarIndex rest) {
+        state.index.merge(rest);
+        TiledSurface surface = state.surfaces[0];
+        boolean redrawn = false;
+        for (int y = 0; y < height; y += TiledSurface.TILE) {
+            for (int x = 0; x < width; x += TiledSurface.TILE) {
+                int x1 = Math.min(width, x + TiledSurface.TILE);
+                int y1 = Math.min(height, y + TiledSurface.TILE);
+                if (surface.isPending(x, y) || rest.query(x, y, x1, y1) == 0) {
+                    continue;
+                }
+                surface.clearRect(x, y, x1, y1);
+                int n = state.index.query(x, y, x1, y1);
+                int[] found = state.index.getResults();
+                for (int k = 0; k < n; k++) {
+                    int i = found[k];
+                    if (state.stars.getLayer(i) == 0 && !state.stars.isOccluded(i)) {
+                        surface.fillStar(state.stars.getSize(i), state.stars.getX(i), state.stars.getY(i), palette.get(state.stars.getColor(i)), x, y, x1, y1);
+                    }
+                }
+                redrawn = true;
+            }
+        }
+        if (redrawn) {
+            history.dropCheckpoints();
+        }
+    }
+
+    /**
+     * Indexes a new store of stars with the palette of the painting into a
+     * store, index and surfaces for {@link #open}, the same way as a
+     * document: every star on layer 0, drawn once it is shown.
+     *
+     * @param s is the store.
+     * @param n is the number of stars in it.
+     * @return State holding the stars.
+     */
+    State load(StarStore s, int n) {
+        StarIndex ix = new StarIndex(s, width, height);
+        ix.insert(0, n);
+        TiledSurface[] sf = newSurfaces(layers.size());
+        defer(s, ix, sf[0], n);
+        return new State(s, ix, sf, n);
+    }
+
+    /**
+     * Replaces the painting with a document that was read. Opening can be
+     * undone like a clear.
+     *
+     * @param state is the document from {@link #read}.
+     */
+    void open(State state) {
+        history.recordClear(swap(state));
+        forgetOcclusion();
+        if (journal != null) {
+            journal.load(stars.share());
+        }
+    }
+
+    /**
+     * Saves the stars of the painting, leaving out erased and occluded ones.
+     *
+     * @param file is the document to write.
+     * @return int number of stars saved.
+     * @throws IOException if the file can't be written.
+     */
+    public int save(Path file) throws IOException {
+        return StarDocument.write(stars, width, height, file);
+    }
+
+    /**
+     * Copies the stars the surface of layer 0 draws lazily, leaving out
+     * occluded ones, with a palette of their own, so another thread can draw
+     * the pending tiles of a snapshot.
+     *
+     * @return StarStore holding the copy, or null if there are none.
+     */
+    StarStore copyLoaded() {
+        if (loaded == 0) {
+            return null;
+        }
+        StarStore copy = new StarStore(new Palette());
+        copy.ensureCapacity(loaded);
+        int[] map = new int[palette.size()];
+        for (int c = 0; c < map.length; c++) {
+            map[c] = copy.getPalette().indexOf(palette.get(c));
+        }
+        for (int i = 0; i < loaded; i++) {
+            if (stars.isOccluded(i)) {
+                continue;
+            }
+            copy.add(stars.getSize(i), stars.getX(i), stars.getY(i), map[stars.getColor(i)]);
+        }
+        return copy;
+    }
+
+    /**
+     * Has a surface draw the first stars of a store lazily, tile by tile.
+     *
+     * @param s is the store.
+     * @param ix is the index over the store.
+     * @param sf is the surface.
+     * @param n is the number of stars at the start of the store to draw.
+     */
+    private static void defer(StarStore s, StarIndex ix, TiledSurface sf, int n) {
+        Palette colors = s.getPalette();
+        sf.defer((surface, x0, y0, x1, y1) -> {
+            int found = ix.query(x0, y0, x1, y1);
+            int[] results = ix.getResults();
+            // results are sorted, so the loaded stars come first
+            for (int k = 0; k < found && results[k] < n; k++) {
+                int i = results[k];
+                if (s.isOccluded(i)) {
+                    continue;
+                }
+                surface.fillStar(s.getSize(i), s.getX(i), s.getY(i), colors.get(s.getColor(i)), x0, y0, x1, y1);
+            }
+        });
+    }
+
+    /**
+     * Throws away the pixels of the layer surfaces, for rebuilding them.
+     * Stars the surface of layer 0 draws lazily are drawn lazily again.
+     *
+     * @return int index of the first star that has to be drawn again.
+     */
+    int reset() {
+        for (TiledSurface surface : surfaces) {
+            surface.clear();
+        }
+        if (loaded > 0) {
+            defer(stars, index, surfaces[0], loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Takes a snapshot of every layer surface, see
+     * {@link TiledSurface#snapshot}.
+     *
+     * @return array of the snapshot of each layer, by layer id.
+     */
+    IntBuffer[][] snapshot() {
+        IntBuffer[][] snapshot = new IntBuffer[surfaces.length][];
+        for (int k = 0; k < surfaces.length; k++) {
+            snapshot[k] = surfaces[k].snapshot();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Puts the layer surfaces back the way they were when a snapshot was
+     * taken. Layers added since are emptied.
+     *
+     * @param snapshot is a snapshot from {@link #snapshot}.
+     */
+    void restore(IntBuffer[][] snapshot) {
+        for (int k = 0; k < surfaces.length; k++) {
+            if (k < snapshot.length) {
+                surfaces[k].restore(snapshot[k]);
+            } else {
+                surfaces[k].clear();
+            }
+        }
+    }
+
+    /**
+     * Gets how many shared tiles the layer surfaces had to copy since the
+     * last call, see {@link TiledSurface#takeCopyCount}.
+     *
+     * @return int number of tiles copied.
+     */
+    int takeCopyCount() {
+        int n = 0;
+        for (TiledSurface surface : surfaces) {
+            n += surface.takeCopyCount();
+        }
+        return n;
+    }
+
+    /**
+     * Adds an empty layer above the active one and makes it active.
+     *
+     * @return Layer that was added, or null if there are MAX_LAYERS already.
+     */
+    public Layer addLayer() {
+        if (layers.size() == MAX_LAYERS) {
+            return null;
+        }
+        boolean flat = isFlat();
+        Layer layer = new Layer(layers.size(), "Layer " + (layers.size() + 1));
+        layers.add(layers.indexOf(active) + 1, layer);
+        surfaces = Arrays.copyOf(surfaces, layers.size());
+        surfaces[layer.getId()] = new TiledSurface(width, height, offHeap, stamps);
+        active = layer;
+        layersChanged(flat, layer);
+        return layer;
+    }
+
+    /**
+     * Moves a layer to another place in the stack.
+     *
+     * @param layer is the layer to move.
+     * @param position is its new place, 0 for the bottom.
+     */
+    public void moveLayer(Layer layer, int position) {
+        position = Math.max(0, Math.min(layers.size() - 1, position));
+        if (layers.indexOf(layer) == position) {
+            return;
+        }
+        layers.remove(layer);
+        layers.add(position, layer);
+        layersChanged(isFlat(), layer);
+    }
+
+    /**
+     * Shows or hides a layer.
+     *
+     * @param layer is the layer.
+     * @param visible is true to show it.
+     */
+    public void setVisible(Layer layer, boolean visible) {
+        if (layer.isVisible() == visible) {
+            return;
+        }
+        boolean flat = isFlat();
+        layer.setVisible(visible);
+        layersChanged(flat, layer);
+    }
+
+    /**
+     * Changes how opaque a layer is.
+     *
+     * @param layer is the layer.
+     * @param opacity is how opaque it is, clamped to 0 to 1.
+     */
+    public void setOpacity(Layer layer, double opacity) {
+        opacity = Math.max(0, Math.min(1, opacity));
+        if (layer.getOpacity() == opacity) {
+            return;
+        }
+        boolean flat = isFlat();
+        layer.setOpacity(opacity);
+        layersChanged(flat, layer);
+    }
+
+    /**
+     * Makes new stars go on a layer.
+     *
+     * @param layer is the layer.
+     */
+    public void setActiveLayer(Layer layer) {
+        active = layer;
+    }
+
+    /**
+     * Marks what a change to a layer affects on screen. Only the tiles the
+     * layer has something on are blended again; switching between showing a
+     * single layer as it is and showing the composite marks everything drawn
+     * on either.
+     *
+     * @param wasFlat is what {@link #isFlat} was before the change.
+     * @param layer is the layer that changed.
+     */
+    private void layersChanged(boolean wasFlat, Layer layer) {
+        if (isFlat()) {
+            if (!wasFlat) {
+                surfaces[0].markChangedFrom(composite);
+                composite.clear();
+            }
+        } else if (wasFlat) {
+            // the composite was left empty, so only what's drawn has to be blended
+            composite.markChangedFrom(surfaces[0]);
+            for (TiledSurface surface : surfaces) {
+                surface.markDrawn();
+            }
+        } else {
+            surfaces[layer.getId()].markDrawn();
+        }
+    }
+
+    /**
+     * Checks if the painting is just one shown, fully opaque layer, whose
+     * surface can be shown as it is.
+     *
+     * @return boolean true if there is nothing to blend.
+     */
+    public boolean isFlat() {
+        return layers.size() == 1 && active.isVisible() && active.getOpacity() == 1;
+    }
+
+    /**
+     * Blends the layers again wherever they changed inside a view, before the
+     * surface is presented. Tiles only partly inside the view are blended in
+     * full, and changes outside it wait until they are shown. Does nothing
+     * if the painting is flat.
+     *
+     * @param viewX is the left edge of the view.
+     * @param viewY is the top edge of the view.
+     * @param viewW is the width of the view.
+     * @param viewH is the height of the view.
+     */
+    public void compose(int viewX, int viewY, int viewW, int viewH) {
+        if (isFlat()) {
+            return;
+        }
+        int count = 0;
+        for (Layer layer : layers) {
+            if (layer.isVisible() && layer.getAlpha() > 0) {
+                shown[count] = surfaces[layer.getId()];
+                alphas[count++] = layer.getAlpha();
+            }
+        }
+        int n = count;
+        int x0 = viewX / TiledSurface.TILE * TiledSurface.TILE;
+        int y0 = viewY / TiledSurface.TILE * TiledSurface.TILE;
+        int x1 = (viewX + viewW + TiledSurface.TILE - 1) / TiledSurface.TILE * TiledSurface.TILE;
+        int y1 = (viewY + viewH + TiledSurface.TILE - 1) / TiledSurface.TILE * TiledSurface.TILE;
+        for (TiledSurface surface : surfaces) {
+            surface.present(x0, y0, x1 - x0, y1 - y0, (x, y, w, h, pixels, offset, stride) ->
+                    composite.composite(x, y, x + w, y + h, shown, alphas, n));
+        }
+        Arrays.fill(shown, 0, n, null);
+    }
+
+    /**
+     * Undoes the last change.
+     *
+     * @return boolean true if there was something to undo.
+     */
+    public boolean undo() {
+        if (!history.canUndo()) {
+            return false;
+        }
+        forgetOcclusion();
+        history.undo();
+        // undoing a clear or an open swaps in other stars
+        forgetOcclusion();
+        return true;
+    }
+
+    /**
+     * Redoes the last undone change.
+     *
+     * @return boolean true if there was something to redo.
+     */
+    public boolean redo() {
+        if (!history.canRedo()) {
+            return false;
+        }
+        forgetOcclusion();
+        history.redo();
+        forgetOcclusion();
+        return true;
+    }
+
+    /**
+     * Checks if there is a change to undo.
+     *
+     * @return boolean true if there is something to undo.
+     */
+    public boolean canUndo() {
+        return history.canUndo();
+    }
+
+    /**
+     * Checks if there is an undone change to redo.
+     *
+     * @return boolean true if there is something to redo.
+     */
+    public boolean canRedo() {
+        return history.canRedo();
+    }
+
+    /**
+     * Takes an occlusion pass over the area where stars were added since the
+     * last one was taken, to run on another thread and apply with
+     * {@link #occlude}.
+     *
+     * @return Occlusion pass, or null if no stars were added.
+     */
+    public Occlusion occlusionPass() {
+        if (addedX0 >= addedX1 || addedY0 >= addedY1) {
+            return null;
+        }
+        Occlusion pass = new Occlusion(stars, index, occlusionEpoch, addedX0, addedY0, addedX1, addedY1, width, height);
+        addedX0 = Integer.MAX_VALUE;
+        addedY0 = Integer.MAX_VALUE;
+        addedX1 = Integer.MIN_VALUE;
+        addedY1 = Integer.MIN_VALUE;
+        return pass;
+    }
+
+    /**
+     * Marks the stars an occlusion pass found as occluded. If something was
+     * erased, undone, redone, cleared or opened since the pass was taken it
+     * may be wrong, so its area is left for the next pass instead.
+     *
+     * @param pass is the pass, after it ran.
+     * @return int number of stars occluded, or -1 if the pass was out of
+     * date.
+     */
+    public int occlude(Occlusion pass) {
+        if (pass.getStars() != stars || pass.getEpoch() != occlusionEpoch) {
+            grow(pass.getX0(), pass.getY0(), pass.getX1(), pass.getY1());
+            return -1;
+        }
+        int[] found = pass.getFound();
+        for (int k = 0; k < pass.getFoundCount(); k++) {
+            stars.occlude(found[k]);
+        }
+        return pass.getFoundCount();
+    }
+
+    /**
+     * Adds where a range of stars is to the area the next occlusion pass
+     * looks at.
+     *
+     * @param from is the index of the first star.
+     * @param to is the index after the last star.
+     */
+    private void added(int from, int to) {
+        for (int i = from; i < to; i++) {
+            double size = stars.getSize(i);
+            double x = stars.getX(i);
+            double y = stars.getY(i);
+            grow((int) Math.floor(x - size * StarGeometry.HALF_WIDTH), (int) Math.floor(y - size * StarGeometry.TOP),
+                    (int) Math.ceil(x + size * StarGeometry.HALF_WIDTH), (int) Math.ceil(y + size * StarGeometry.BOTTOM));
+        }
+    }
+
+    /**
+     * Grows the area the next occlusion pass looks at to take in a
+     * rectangle, kept inside the document.
+     *
+     * @param x0 is the left edge of the rectangle.
+     * @param y0 is the top edge of the rectangle.
+     * @param x1 is the right edge of the rectangle.
+     * @param y1 is the bottom edge of the rectangle.
+     */
+    private void grow(int x0, int y0, int x1, int y1) {
+        addedX0 = Math.max(0, Math.min(addedX0, x0));
+        addedY0 = Math.max(0, Math.min(addedY0, y0));
+        addedX1 = Math.min(width, Math.max(addedX1, x1));
+        addedY1 = Math.min(height, Math.max(addedY1, y1));
+    }
+
+    /**
+     * Shows every occluded star again, for a change after which they may not
+     * be hidden anymore, and has the next occlusion pass look at the whole
+     * painting.
+     */
+    private void forgetOcclusion() {
+        stars.clearOccluded();
+        occlusionEpoch++;
+        grow(0, 0, width, height);
+    }
+
+    /**
+     * Starts writing every change to a journal, beginning with the stars the
+     * painting has now. Meant to be called before anything is painted, since
+     * the history from before isn't written and can't be undone or redone
+     * in the journal.
+     *
+     * @param journal is the journal, or null to stop.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+        if (journal != null) {
+            journal.select(stars);
+            journal.stars(stars, 0, stars.size());
+            for (int i = 0; i < stars.size(); i++) {
+                if (stars.isRemoved(i)) {
+                    journal.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the next change start a new undo step instead of being merged
+     * into the last one, for example at the start of each drag.
+     */
+    public void newStep() {
+        history.newStep();
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return the StarStore holding the stars of the painting.
+     */
+    public StarStore getStars() {
+        return stars;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return the StarIndex over the stars.
+     */
+    public StarIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the surface to show: the single layer's surface when the painting
+     * is flat, otherwise the composite, which is only up to date where
+     * {@link #compose} was called.
+     *
+     * @return the TiledSurface holding the pixels to show.
+     */
+    public TiledSurface getSurface() {
+        return isFlat() ? surfaces[0] : composite;
+    }
+
+    /**
+     * Gets the surface the stars of a layer are drawn on.
+     *
+     * @param layer is the layer.
+     * @return the TiledSurface of the layer.
+     */
+    public TiledSurface getSurface(Layer layer) {
+        return surfaces[layer.getId()];
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return List of the layers, bottom first, that can't be changed.
+     */
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return Layer new stars are added to.
+     */
+    public Layer getActiveLayer() {
+        return active;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return the Palette shared by every store of the painting.
+     */
+    public Palette getPalette() {
+        return palette;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return the undo History.
+     */
+    public History getHistory() {
+        return history;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int width of the document.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int height of the document.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,153 @@
+package magicpainter;
+
+import java.util.Arrays;
+
+/**
+ * The list of colors used by a painting. Stars refer to their color by index
+ * into the palette instead of holding a Color object, which keeps each star
+ * down to a few primitives. The first six entries are always the ColorButton
+ * swatches in keyboard order (1-6), custom colors are appended after them.
+ * Colors are stored as packed 0xAARRGGBB ints so the palette can be used
+ * without JavaFX. Imports and remote painting can bring in any number of
+ * colors, so they are found through an open addressing hash table of
+ * indices rather than by searching the list.
+ *
+ * @author sylverk @ github
+ */
+public class Palette {
+
+    /**
+     * The swatch colors in the order of the DIGIT1 to DIGIT6 keys: white, red,
+     * orange, green, blue and purple.
+     */
+    static final int[] DEFAULT_COLORS = {
+        0xFFFFFFFF,
+        0xFFFF9CBA,
+        0xFFFFBB19,
+        0xFF91FD7C,
+        0xFF8AEAFF,
+        0xFFB79AFF
+    };
+
+    /**
+     * array of packed ARGB colors, only the first count entries are used.
+     */
+    private int[] colors;
+
+    /**
+     * int describing how many colors are in the palette.
+     */
+    private int count;
+
+    /**
+     * Hash table of palette indices plus one, 0 for an empty slot, probed
+     * linearly from the hash of the color. Its length is a power of two and
+     * at least twice the number of colors.
+     */
+    private int[] slots;
+
+    /**
+     * Constructor for a palette holding the six default swatch colors.
+     */
+    public Palette() {
+        reset();
+    }
+
+    /**
+     * Forgets every color but the swatches, for reusing a palette whose
+     * stars are gone. Indices handed out before mean nothing afterwards.
+     */
+    public void reset() {
+        colors = Arrays.copyOf(DEFAULT_COLORS, 16);
+        slots = new int[32];
+        for (count = 0; count < DEFAULT_COLORS.length; count++) {
+            slots[find(DEFAULT_COLORS[count])] = count + 1;
+        }
+    }
+
+    /**
+     * Copies the palette, for reading its colors on another thread while
+     * this one keeps growing.
+     *
+     * @return Palette with the same colors at the same indices.
+     */
+    public Palette copy() {
+        Palette copy = new Palette();
+        copy.colors = colors.clone();
+        copy.slots = slots.clone();
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Finds the index of a color, adding it to the end of the palette if it
+     * isn't in there yet.
+     *
+     * @param argb is the color packed as 0xAARRGGBB.
+     * @return int index of the color in the palette.
+     */
+    public int indexOf(int argb) {
+        int slot = find(argb);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+        if (count == colors.length) {
+            colors = Arrays.copyOf(colors, count * 2);
+        }
+        colors[count] = argb;
+        slots[slot] = ++count;
+        if (count * 2 > slots.length) {
+            rehash();
+        }
+        return count - 1;
+    }
+
+    /**
+     * Finds the slot of a color in the hash table: the one holding it, or
+     * the empty one where it would go.
+     *
+     * @param argb is the color packed as 0xAARRGGBB.
+     * @return int index of the slot.
+     */
+    private int find(int argb) {
+        int mask = slots.length - 1;
+        int h = argb * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (slots[slot] != 0 && colors[slots[slot] - 1] != argb) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the hash table and puts every color back in it.
+     */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for (int i = 0; i < count; i++) {
+            slots[find(colors[i])] = i + 1;
+        }
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @param index is the palette index of the color.
+     * @return int color packed as 0xAARRGGBB.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("No color at palette index " + index);
+        }
+        return colors[index];
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int describing how many colors are in the palette.
+     */
+    public int size() {
+        return count;
+    }
+}
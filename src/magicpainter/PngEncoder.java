@@ -0,0 +1,433 @@
+package magicpainter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes opaque RGB PNGs of any size without holding the whole image. Rows
+ * are asked for a block at a time, and each block of rows is filtered and
+ * deflated on its own on a pool of background threads (like pigz does), so
+ * a multi-hundred-megapixel image takes a few megabytes and uses every core
+ * but one. The blocks are joined into one zlib stream by ending all but the
+ * last with a sync flush and combining their Adler-32 checksums. Doesn't
+ * depend on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class PngEncoder {
+
+    /**
+     * Interface for supplying the pixels.
+     */
+    public interface RowSource {
+
+        /**
+         * Called with each block of rows from top to bottom, always from the
+         * thread that called {@link #write}.
+         *
+         * @param y is the first row of the block.
+         * @param count is the number of rows in the block.
+         * @param rgb is where the rows go as 3 bytes (red, green, blue) per
+         * pixel, one row after the other with no padding.
+         * @param offset is the index in rgb of the first row.
+         */
+        void rows(int y, int count, byte[] rgb, int offset);
+    }
+
+    /**
+     * Interface for hearing how far along the image is.
+     */
+    public interface Progress {
+
+        /**
+         * Called after each block of rows is written.
+         *
+         * @param rows is the number of rows written so far.
+         */
+        void written(int rows);
+    }
+
+    /**
+     * The eight bytes every PNG starts with.
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * int describing roughly how many bytes of rows are deflated together.
+     */
+    private static final int BLOCK_BYTES = 1 << 20;
+
+    /**
+     * int describing how many threads deflate blocks, leaving a core for
+     * the FX thread.
+     */
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    /**
+     * The threads that deflate blocks, created the first time an image is
+     * written.
+     */
+    private static ExecutorService pool;
+
+    /**
+     * A block of rows, filtered and deflated.
+     */
+    private static final class Block {
+
+        /**
+         * The deflated rows.
+         */
+        final byte[] data;
+
+        /**
+         * The Adler-32 of the filtered rows.
+         */
+        final long adler;
+
+        /**
+         * The number of filtered bytes.
+         */
+        final long length;
+
+        /**
+         * Constructor for a Block.
+         *
+         * @param data is the deflated rows.
+         * @param adler is the Adler-32 of the filtered rows.
+         * @param length is the number of filtered bytes.
+         */
+        Block(byte[] data, long adler, long length) {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private PngEncoder() {
+    }
+
+    /**
+     * Writes an image to a temporary file that replaces the file once it's
+     * complete. Interrupting the calling thread stops the encoder and
+     * deletes the temporary file.
+     *
+     * @param file is the PNG to write.
+     * @param width is the width of the image.
+     * @param height is the height of the image.
+     * @param source supplies the rows.
+     * @param progress hears how far along the image is, may be null.
+     * @throws IOException if the file can't be written, or
+     * InterruptedIOException if the thread was interrupted.
+     */
+    public static void write(Path file, int width, int height, RowSource source, Progress progress) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            write(out, width, height, source, progress);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes an image to a stream. Blocks are handed to the pool as soon as
+     * their rows are in and written in order as they come back, with at most
+     * two blocks per thread in flight.
+     *
+     * @param out is the stream to write to, it isn't closed.
+     * @param width is the width of the image.
+     * @param height is the height of the image.
+     * @param source supplies the rows.
+     * @param progress hears how far along the image is, may be null.
+     * @throws IOException if the stream can't be written, or
+     * InterruptedIOException if the thread was interrupted.
+     */
+    public static void write(OutputStream out, int width, int height, RowSource source, Progress progress) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image must not be empty: " + width + "x" + height);
+        }
+        int rowBytes = width * 3;
+        int blockRows = Math.max(1, BLOCK_BYTES / rowBytes);
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bits per channel
+        header[9] = 2; // RGB
+        chunk(out, "IHDR", header, header.length);
+        // zlib header for deflate with a 32K window and the default level
+        chunk(out, "IDAT", new byte[] {0x78, (byte) 0x9C}, 2);
+        ExecutorService threads = pool();
+        ArrayDeque<Future<Block>> inFlight = new ArrayDeque<>();
+        byte[] previous = new byte[rowBytes];
+        long adler = 1;
+        int written = 0;
+        try {
+            for (int y = 0; y < height || !inFlight.isEmpty();) {
+                if (y < height && inFlight.size() < THREADS * 2) {
+                    int count = Math.min(blockRows, height - y);
+                    byte[] rows = new byte[rowBytes * (count + 1)];
+                    System.arraycopy(previous, 0, rows, 0, rowBytes);
+                    source.rows(y, count, rows, rowBytes);
+                    System.arraycopy(rows, rowBytes * count, previous, 0, rowBytes);
+                    boolean last = y + count == height;
+                    inFlight.add(threads.submit(() -> deflate(rows, rowBytes, count, last)));
+                    y += count;
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("PNG export cancelled.");
+                    }
+                    continue;
+                }
+                Block block = inFlight.remove().get();
+                chunk(out, "IDAT", block.data, block.data.length);
+                adler = combine(adler, block.adler, block.length);
+                written += (int) (block.length / (rowBytes + 1));
+                if (progress != null) {
+                    progress.written(written);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("PNG export cancelled.");
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't compress the image.", e.getCause());
+        } finally {
+            for (Future<Block> f : inFlight) {
+                f.cancel(true);
+            }
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler);
+        chunk(out, "IDAT", trailer, 4);
+        chunk(out, "IEND", new byte[0], 0);
+    }
+
+    /**
+     * Filters and deflates a block of rows.
+     *
+     * @param rows is the row above the block (zeros for the first block)
+     * followed by the rows.
+     * @param rowBytes is the number of bytes per row.
+     * @param count is the number of rows in the block.
+     * @param last is true for the last block, which ends the zlib stream.
+     * @return Block holding the deflated rows.
+     */
+    private static Block deflate(byte[] rows, int rowBytes, int count, boolean last) {
+        byte[] filtered = new byte[(rowBytes + 1) * count];
+        for (int r = 0; r < count; r++) {
+            filterRow(rows, r * rowBytes, rows, (r + 1) * rowBytes, rowBytes, filtered, r * (rowBytes + 1));
+        }
+        Adler32 sum = new Adler32();
+        sum.update(filtered);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(filtered);
+        if (last) {
+            deflater.finish();
+        }
+        // every block but the last ends byte aligned so the next can follow
+        int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+        byte[] out = new byte[filtered.length / 4 + 64];
+        int n = 0;
+        while (true) {
+            if (n == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int space = out.length - n;
+            int got = deflater.deflate(out, n, space, flush);
+            n += got;
+            if (last ? deflater.finished() : got < space && deflater.needsInput()) {
+                break;
+            }
+        }
+        deflater.end();
+        return new Block(Arrays.copyOf(out, n), sum.getValue(), filtered.length);
+    }
+
+    /**
+     * Filters one row with whichever PNG filter gives the smallest sum of
+     * absolute values, the usual guess for what deflates best.
+     *
+     * @param up is the buffer holding the row above.
+     * @param upAt is the index of the row above.
+     * @param row is the buffer holding the row.
+     * @param at is the index of the row.
+     * @param rowBytes is the number of bytes in the row.
+     * @param out is the buffer for the filter type byte and filtered row.
+     * @param outAt is the index to write at.
+     */
+    private static void filterRow(byte[] up, int upAt, byte[] row, int at, int rowBytes, byte[] out, int outAt) {
+        long[] sums = new long[5];
+        for (int i = 0; i < rowBytes; i++) {
+            int x = row[at + i] & 0xFF;
+            int a = i >= 3 ? row[at + i - 3] & 0xFF : 0;
+            int b = up[upAt + i] & 0xFF;
+            int c = i >= 3 ? up[upAt + i - 3] & 0xFF : 0;
+            sums[0] += Math.abs((byte) x);
+            sums[1] += Math.abs((byte) (x - a));
+            sums[2] += Math.abs((byte) (x - b));
+            sums[3] += Math.abs((byte) (x - ((a + b) >> 1)));
+            sums[4] += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int best = 0;
+        for (int f = 1; f < 5; f++) {
+            if (sums[f] < sums[best]) {
+                best = f;
+            }
+        }
+        out[outAt] = (byte) best;
+        for (int i = 0; i < rowBytes; i++) {
+            int x = row[at + i] & 0xFF;
+            int a = i >= 3 ? row[at + i - 3] & 0xFF : 0;
+            int b = up[upAt + i] & 0xFF;
+            int c = i >= 3 ? up[upAt + i - 3] & 0xFF : 0;
+            int predicted;
+            switch (best) {
+                case 1:
+                    predicted = a;
+                    break;
+                case 2:
+                    predicted = b;
+                    break;
+                case 3:
+                    predicted = (a + b) >> 1;
+                    break;
+                case 4:
+                    predicted = paeth(a, b, c);
+                    break;
+                default:
+                    predicted = 0;
+                    break;
+            }
+            out[outAt + 1 + i] = (byte) (x - predicted);
+        }
+    }
+
+    /**
+     * The Paeth predictor from the PNG spec.
+     *
+     * @param a is the byte to the left.
+     * @param b is the byte above.
+     * @param c is the byte above and to the left.
+     * @return int whichever of a, b and c is closest to a + b - c.
+     */
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Works out the Adler-32 of two pieces of data one after the other from
+     * their own checksums, like zlib's adler32_combine.
+     *
+     * @param adler1 is the Adler-32 of the first piece.
+     * @param adler2 is the Adler-32 of the second piece.
+     * @param length2 is the length of the second piece.
+     * @return long the Adler-32 of both.
+     */
+    static long combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Writes a PNG chunk with its length and CRC.
+     *
+     * @param out is the stream to write to.
+     * @param type is the four letter chunk type.
+     * @param data is the chunk data.
+     * @param length is the number of bytes of data.
+     * @throws IOException if the stream can't be written.
+     */
+    private static void chunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+        for (int i = 0; i < 4; i++) {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(head, 4, 4);
+        crc.update(data, 0, length);
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        out.write(head);
+        out.write(data, 0, length);
+        out.write(tail);
+    }
+
+    /**
+     * Puts a big-endian int in a byte array.
+     *
+     * @param b is the array.
+     * @param at is the index of the first byte.
+     * @param v is the value.
+     */
+    private static void putInt(byte[] b, int at, int v) {
+        b[at] = (byte) (v >>> 24);
+        b[at + 1] = (byte) (v >>> 16);
+        b[at + 2] = (byte) (v >>> 8);
+        b[at + 3] = (byte) v;
+    }
+
+    /**
+     * Gets the pool that deflates blocks, creating it the first time. The
+     * threads are daemons so they don't keep the application alive, and run
+     * below normal priority so the FX thread keeps up.
+     *
+     * @return ExecutorService to submit blocks to.
+     */
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(THREADS, r -> {
+                Thread t = new Thread(r, "png-deflate");
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            });
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,78 @@
+package magicpainter;
+
+import java.nio.file.Path;
+import javafx.concurrent.Task;
+
+/**
+ * Background task that plays an autosave journal back, so recovering a big
+ * painting doesn't freeze the window. The stars are collected with a
+ * palette of their own and only put in place of the painting by
+ * {@link #show}, on the FX thread, once the task succeeded.
+ *
+ * @author sylverk @ github
+ */
+public class RecoverTask extends Task<Integer> {
+
+    /**
+     * The painting the stars are recovered into.
+     */
+    private final Painting painting;
+
+    /**
+     * The journal being played back.
+     */
+    private final Path file;
+
+    /**
+     * The stars left at the end of the journal.
+     */
+    private final StarStore stars = new StarStore(new Palette());
+
+    /**
+     * int describing the last brush color in the journal, 0 for none.
+     */
+    private int color;
+
+    /**
+     * Constructor for a RecoverTask.
+     *
+     * @param painting is the painting the stars are recovered into.
+     * @param file is the journal to play back.
+     */
+    public RecoverTask(Painting painting, Path file) {
+        this.painting = painting;
+        this.file = file;
+    }
+
+    /**
+     * Plays the journal back on the background thread.
+     *
+     * @return Integer number of stars recovered.
+     * @throws Exception if the journal can't be read.
+     */
+    @Override
+    protected Integer call() throws Exception {
+        color = Journal.read(file, stars);
+        return stars.size();
+    }
+
+    /**
+     * Puts the recovered stars in place of the painting, on the FX thread
+     * once the task succeeded. It can be undone like opening a document.
+     */
+    public void show() {
+        StarStore s = new StarStore(painting.getPalette());
+        s.addAll(stars);
+        painting.open(painting.load(s, s.size()));
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the last brush color in the journal as 0xAARRGGBB, 0 if
+     * there was none.
+     */
+    public int getColor() {
+        return color;
+    }
+}
@@ -0,0 +1,637 @@
+package magicpainter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Plays a recording made by the InputRecorder back without JavaFX, doing
+ * what the handlers of MagicPainter and the DrawQueue do with each input, as
+ * fast as possible or at the speed it was recorded. Queued stars are drawn
+ * whenever 16 ms of recorded time went by, like the pulses of the app, and
+ * an occlusion pass runs at the end of each undo step and at the end of the
+ * recording, where the app would run one in the background. At the end it
+ * reports how long drawing took and a hash of the pixels the canvas would
+ * show, so the same recording can be used as a load test and to check the
+ * drawing didn't change between builds. Occluded stars are left out of the
+ * drawing, so at 1:1 the hash is the same with
+ * -Dmagicpainter.occlusion=false.
+ *
+ * @author sylverk @ github
+ */
+public class Replay {
+
+    /**
+     * long describing the recorded time between two pulses, in
+     * microseconds.
+     */
+    private static final long PULSE = 16_667;
+
+    /**
+     * The painting the recording is played into.
+     */
+    private final Painting painting;
+
+    /**
+     * The part of the document the canvas shows.
+     */
+    private final Viewport view;
+
+    /**
+     * The stars queued since the last pulse.
+     */
+    private final StarStore pending;
+
+    /**
+     * double describing the current size of the brush.
+     */
+    private double brushSize;
+
+    /**
+     * The sizes of the size buttons, smallest first.
+     */
+    private final double[] brushSizes;
+
+    /**
+     * int describing the palette index of the current brush color.
+     */
+    private int brushColor = 0;
+
+    /**
+     * boolean indicating if the eraser is on.
+     */
+    private boolean erasing = false;
+
+    /**
+     * The symmetry of the brush.
+     */
+    private Symmetry symmetry = new Symmetry(1, false);
+
+    /**
+     * array of the x-positions of the copies of the brush.
+     */
+    private final float[] copiesX = new float[Symmetry.MAX_COPIES];
+
+    /**
+     * array of the y-positions of the copies of the brush.
+     */
+    private final float[] copiesY = new float[Symmetry.MAX_COPIES];
+
+    /**
+     * double describing how far apart the stars of a stroke are, as a
+     * fraction of the brush size, 0 for a star at each drag event.
+     */
+    private double spacing;
+
+    /**
+     * The stroke being drawn.
+     */
+    private final Stroke stroke = new Stroke();
+
+    /**
+     * boolean indicating if the info screen was dismissed; the first input
+     * on the canvas only does that.
+     */
+    private boolean infoRead = false;
+
+    /**
+     * double describing the canvas x-position of the mouse when the view was
+     * last dragged.
+     */
+    private double panX;
+
+    /**
+     * double describing the canvas y-position of the mouse when the view was
+     * last dragged.
+     */
+    private double panY;
+
+    /**
+     * long describing the recorded time since the last pulse, in
+     * microseconds.
+     */
+    private long sincePulse;
+
+    /**
+     * long describing the time spent drawing, in nanoseconds.
+     */
+    private long drawNanos;
+
+    /**
+     * boolean indicating if occlusion passes are run, turned off with
+     * -Dmagicpainter.occlusion=false.
+     */
+    private final boolean occlusion = !"false".equals(System.getProperty("magicpainter.occlusion"));
+
+    /**
+     * long describing the time spent on occlusion passes, in nanoseconds.
+     */
+    private long occlusionNanos;
+
+    /**
+     * Constructor for a Replay with an empty painting like the app starts
+     * with.
+     *
+     * @param canvasWidth is the width of the canvas.
+     * @param canvasHeight is the height of the canvas.
+     * @param docWidth is the width of the document.
+     * @param docHeight is the height of the document.
+     * @param brushSize is the size of the brush to begin with.
+     * @param brushSizes are the sizes of the size buttons.
+     */
+    public Replay(int canvasWidth, int canvasHeight, int docWidth, int docHeight, double brushSize, double[] brushSizes) {
+        this.brushSize = brushSize;
+        this.brushSizes = brushSizes;
+        painting = new Painting(docWidth, docHeight, false, 256L << 20);
+        view = new Viewport(docWidth, docHeight, canvasWidth, canvasHeight);
+        pending = new StarStore(painting.getPalette());
+    }
+
+    /**
+     * Plays a recording back.
+     *
+     * @param file is the recording.
+     * @param realTime is true to wait between inputs as long as was
+     * recorded, false to go as fast as possible.
+     * @return Replay the replay after the last input, for the results.
+     * @throws IOException if the recording can't be read or isn't one.
+     * @throws InterruptedException if waiting is interrupted.
+     */
+    public static Replay play(Path file, boolean realTime) throws IOException, InterruptedException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int version = in.readInt() == InputRecorder.MAGIC ? in.readShort() : Integer.MAX_VALUE;
+            if (version > InputRecorder.VERSION) {
+                throw new IOException(file.getFileName() + " isn't an input recording");
+            }
+            int canvasWidth = in.readInt();
+            int canvasHeight = in.readInt();
+            int docWidth = in.readInt();
+            int docHeight = in.readInt();
+            double brushSize = in.readDouble();
+            double[] brushSizes = new double[in.readUnsignedByte()];
+            for (int k = 0; k < brushSizes.length; k++) {
+                brushSizes[k] = in.readDouble();
+            }
+            Replay replay = new Replay(canvasWidth, canvasHeight, docWidth, docHeight, brushSize, brushSizes);
+            replay.spacing = version >= 5 ? in.readDouble() : 0;
+            long start = System.nanoTime();
+            long recorded = 0;
+            while (true) {
+                long micros;
+                try {
+                    micros = readVarint(in);
+                } catch (EOFException end) {
+                    break;
+                }
+                recorded += micros;
+                if (realTime) {
+                    long wait = recorded * 1000 - (System.nanoTime() - start);
+                    if (wait > 0) {
+                        replay.flush();
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+                replay.input(in.readUnsignedByte(), micros, in);
+            }
+            replay.flush();
+            replay.occlude();
+            return replay;
+        }
+    }
+
+    /**
+     * Does what the app does for one input.
+     *
+     * @param kind is the kind of input.
+     * @param micros is the recorded time since the last input.
+     * @param in is the recording, positioned at what the input needs.
+     * @throws IOException if the recording can't be read.
+     */
+    private void input(int kind, long micros, DataInputStream in) throws IOException {
+        sincePulse += micros;
+        if (sincePulse >= PULSE) {
+            flush();
+        }
+        switch (kind) {
+            case InputRecorder.PRESS:
+            case InputRecorder.DRAG:
+            case InputRecorder.CLICK:
+                mouse(kind, readFixed(in), readFixed(in), in.readUnsignedByte() == 1);
+                break;
+            case InputRecorder.SCROLL:
+                double x = readFixed(in);
+                double y = readFixed(in);
+                infoRead = true;
+                view.zoomAt(x, y, Viewport.wheelFactor(readFixed(in)));
+                break;
+            case InputRecorder.COLOR:
+                brushColor = painting.getPalette().indexOf(in.readInt());
+                break;
+            case InputRecorder.SIZE:
+                brushSize = readVarint(in);
+                break;
+            case InputRecorder.KEY:
+                key((int) readVarint(in));
+                break;
+            case InputRecorder.PLACE:
+                double size = in.readDouble();
+                double placeX = in.readDouble();
+                double placeY = in.readDouble();
+                infoRead = true;
+                newStep();
+                pending.add(size, placeX, placeY, brushColor);
+                break;
+            case InputRecorder.ERASER:
+                erasing = !erasing;
+                break;
+            case InputRecorder.CLEAR:
+                long start = System.nanoTime();
+                pending.clear();
+                painting.clear();
+                drawNanos += System.nanoTime() - start;
+                break;
+            case InputRecorder.UNDO:
+            case InputRecorder.REDO:
+                infoRead = true;
+                flush();
+                start = System.nanoTime();
+                if (kind == InputRecorder.UNDO) {
+                    painting.undo();
+                } else {
+                    painting.redo();
+                }
+                drawNanos += System.nanoTime() - start;
+                break;
+            case InputRecorder.RESET_VIEW:
+                infoRead = true;
+                view.reset();
+                break;
+            case InputRecorder.LAYER:
+                infoRead = true;
+                flush();
+                start = System.nanoTime();
+                layer((int) readVarint(in));
+                drawNanos += System.nanoTime() - start;
+                break;
+            case InputRecorder.STARFIELD:
+                infoRead = true;
+                starfield(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), (int) readVarint(in),
+                        in.readLong(), in.readUnsignedByte() == 1, in.readDouble());
+                break;
+            case InputRecorder.SYMMETRY:
+                int value = (int) readVarint(in);
+                symmetry = new Symmetry(value >> 1, (value & 1) == 1);
+                break;
+            default:
+                throw new IOException("Unknown input " + kind);
+        }
+    }
+
+    /**
+     * Does what pressHandler and dragHandler do.
+     *
+     * @param kind is PRESS, DRAG or CLICK.
+     * @param x is the x-position on the canvas.
+     * @param y is the y-position on the canvas.
+     * @param primary is true for the primary button.
+     */
+    private void mouse(int kind, double x, double y, boolean primary) {
+        if (kind == InputRecorder.PRESS) {
+            newStep();
+            stroke.begin(view.toDocX(x), view.toDocY(y));
+            panX = x;
+            panY = y;
+            return;
+        }
+        if (!primary) {
+            if (kind == InputRecorder.DRAG && infoRead) {
+                view.panBy(x - panX, y - panY);
+                panX = x;
+                panY = y;
+            }
+            return;
+        }
+        if (infoRead && erasing) {
+            flush();
+            long start = System.nanoTime();
+            painting.erase(view.toDocX(x), view.toDocY(y), brushSize / 2);
+            drawNanos += System.nanoTime() - start;
+        } else if (infoRead && kind == InputRecorder.DRAG && spacing > 0) {
+            int n = stroke.add(view.toDocX(x), view.toDocY(y), spacing * brushSize);
+            if (symmetry.getCopies() > 1) {
+                for (int k = 0; k < n; k++) {
+                    stamp(stroke.getX()[k], stroke.getY()[k]);
+                }
+            } else {
+                pending.addAll(brushSize, stroke.getX(), stroke.getY(), n, brushColor);
+            }
+        } else if (infoRead) {
+            stamp(view.toDocX(x), view.toDocY(y));
+        }
+        infoRead = true;
+    }
+
+    /**
+     * Does what stamp in the app does.
+     *
+     * @param x is the x-position in the document.
+     * @param y is the y-position in the document.
+     */
+    private void stamp(double x, double y) {
+        if (symmetry.getCopies() > 1) {
+            int n = symmetry.apply(x, y, view.toDocX(view.getWidth() / 2.0), view.toDocY(view.getHeight() / 2.0),
+                    copiesX, copiesY);
+            pending.addAll(brushSize, copiesX, copiesY, n, brushColor);
+        } else {
+            pending.add(brushSize, x, y, brushColor);
+        }
+    }
+
+    /**
+     * Does what the key handler does for the brush keys: 1-6 pick a color,
+     * = makes the brush smaller and - bigger.
+     *
+     * @param code is the KeyCode code of the key.
+     */
+    private void key(int code) {
+        double[] sizes = brushSizes;
+        if (code >= '1' && code <= '6') {
+            brushColor = painting.getPalette().indexOf(Palette.DEFAULT_COLORS[code - '1']);
+        } else if (code == '=' || code == '-') {
+            for (int k = 0; k < sizes.length; k++) {
+                if (sizes[k] == brushSize) {
+                    int next = code == '=' ? k - 1 : k + 1;
+                    if (next >= 0 && next < sizes.length) {
+                        brushSize = sizes[next];
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Does what starfieldHandler does, but waits for the whole field, so
+     * inputs recorded while the app was still making it come after it.
+     *
+     * @param x is the left edge of the part of the document filled.
+     * @param y is the top edge.
+     * @param width is the width of the part filled.
+     * @param height is the height of the part filled.
+     * @param count is how many stars were asked for.
+     * @param seed is the seed.
+     * @param poisson is true for Poisson-disk spacing.
+     * @param maxSize is the biggest size the stars can have.
+     * @throws IOException if the recording asks for an impossible field.
+     */
+    private void starfield(double x, double y, double width, double height, int count, long seed,
+            boolean poisson, double maxSize) throws IOException {
+        newStep();
+        long start = System.nanoTime();
+        try {
+            new StarfieldGenerator(x, y, width, height, count, seed, poisson,
+                    StarfieldGenerator.sizesUpTo(brushSizes, maxSize)).generate(painting::add, ForkJoinPool.commonPool());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad starfield: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Starfield interrupted.");
+        }
+        drawNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Does what layerHandler does.
+     *
+     * @param action is one of the InputRecorder.LAYER_ actions.
+     */
+    private void layer(int action) {
+        List<Layer> layers = painting.getLayers();
+        Layer layer = painting.getActiveLayer();
+        int place = layers.indexOf(layer);
+        switch (action) {
+            case InputRecorder.LAYER_ADD:
+                painting.addLayer();
+                break;
+            case InputRecorder.LAYER_ABOVE:
+            case InputRecorder.LAYER_BELOW:
+                int next = action == InputRecorder.LAYER_ABOVE ? place + 1 : place - 1;
+                if (next >= 0 && next < layers.size()) {
+                    painting.setActiveLayer(layers.get(next));
+                }
+                break;
+            case InputRecorder.LAYER_RAISE:
+                painting.moveLayer(layer, place + 1);
+                break;
+            case InputRecorder.LAYER_LOWER:
+                painting.moveLayer(layer, place - 1);
+                break;
+            case InputRecorder.LAYER_HIDE:
+                painting.setVisible(layer, !layer.isVisible());
+                break;
+            case InputRecorder.LAYER_FADE:
+            case InputRecorder.LAYER_UNFADE:
+                double step = action == InputRecorder.LAYER_FADE ? -1 : 1;
+                painting.setOpacity(layer, Math.round(layer.getOpacity() * 10 + step) / 10.0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Draws the queued stars and ends the undo step, like
+     * DrawQueue.newStep.
+     */
+    private void newStep() {
+        flush();
+        painting.newStep();
+        occlude();
+    }
+
+    /**
+     * Runs an occlusion pass over where stars were added, like the DrawQueue
+     * does in the background whenever it has nothing left to do.
+     */
+    private void occlude() {
+        if (!occlusion) {
+            return;
+        }
+        long start = System.nanoTime();
+        Occlusion pass = painting.occlusionPass();
+        if (pass != null) {
+            pass.run();
+            painting.occlude(pass);
+        }
+        occlusionNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Draws the queued stars, like a pulse of the DrawQueue.
+     */
+    private void flush() {
+        sincePulse = 0;
+        if (pending.size() > 0) {
+            long start = System.nanoTime();
+            painting.add(pending);
+            pending.clear();
+            drawNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Works out the pixels the canvas would show now: the tiles at 1:1, or
+     * what the ViewRenderer draws otherwise.
+     *
+     * @return array of premultiplied ARGB pixels, a row after another.
+     */
+    public int[] canvasPixels() {
+        int w = view.getWidth();
+        int h = view.getHeight();
+        long start = System.nanoTime();
+        int[] pixels;
+        if (view.getZoom() != 1) {
+            ViewRenderer renderer = new ViewRenderer(w, h);
+            renderer.render(painting, view);
+            pixels = renderer.getPixels();
+        } else {
+            int viewX = (int) view.getOffsetX();
+            int viewY = (int) view.getOffsetY();
+            int[] canvas = new int[w * h];
+            TiledSurface surface = painting.getSurface();
+            surface.markDirty(viewX, viewY, viewX + w, viewY + h);
+            painting.compose(viewX, viewY, w, h);
+            surface.present(viewX, viewY, w, h, (x, y, tw, th, tile, offset, stride) -> {
+                if (tile != null) {
+                    for (int row = 0; row < th; row++) {
+                        for (int col = 0; col < tw; col++) {
+                            canvas[(y - viewY + row) * w + x - viewX + col] = tile.get(offset + row * stride + col);
+                        }
+                    }
+                }
+            });
+            pixels = canvas;
+        }
+        drawNanos += System.nanoTime() - start;
+        return pixels;
+    }
+
+    /**
+     * Hashes pixels so two runs can be compared.
+     *
+     * @param pixels are the pixels.
+     * @return String the SHA-256 of the pixels as hex.
+     */
+    public static String hash(int[] pixels) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+        byte[] bytes = new byte[4];
+        for (int argb : pixels) {
+            bytes[0] = (byte) (argb >>> 24);
+            bytes[1] = (byte) (argb >>> 16);
+            bytes[2] = (byte) (argb >>> 8);
+            bytes[3] = (byte) argb;
+            digest.update(bytes);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads a position kept to 1/16 of a pixel.
+     *
+     * @param in is the recording.
+     * @return double the position.
+     * @throws IOException if the recording can't be read.
+     */
+    private static double readFixed(DataInputStream in) throws IOException {
+        long z = readVarint(in);
+        return ((z >>> 1) ^ -(z & 1)) / InputRecorder.SCALE;
+    }
+
+    /**
+     * Reads a number written 7 bits at a time.
+     *
+     * @param in is the recording.
+     * @return long the number.
+     * @throws IOException if the recording can't be read.
+     */
+    private static long readVarint(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Bad varint in the recording");
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long time spent drawing in nanoseconds.
+     */
+    public long getDrawNanos() {
+        return drawNanos;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long time spent on occlusion passes in nanoseconds.
+     */
+    public long getOcclusionNanos() {
+        return occlusionNanos;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return Painting the painting the recording was played into.
+     */
+    public Painting getPainting() {
+        return painting;
+    }
+
+    /**
+     * @param args the recording and optionally --real-time to play it at the
+     * speed it was recorded.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--real-time"))) {
+            System.err.println("Usage: Replay session.rec [--real-time]");
+            System.exit(2);
+        }
+        try {
+            long start = System.nanoTime();
+            Replay replay = play(Path.of(args[0]), args.length == 2);
+            String hash = hash(replay.canvasPixels());
+            long done = System.nanoTime();
+            StarStore stars = replay.getPainting().getStars();
+            System.out.printf("%d stars (%d occluded), replayed in %d ms, drawing %d ms, occlusion %d ms%ncanvas %s%n",
+                    stars.size(), stars.getOccludedCount(), (done - start) / 1000000,
+                    replay.getDrawNanos() / 1000000, replay.getOcclusionNanos() / 1000000, hash);
+        } catch (IOException x) {
+            System.err.println(x.getMessage());
+            System.exit(1);
+        } catch (InterruptedException x) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package magicpainter;
+
+import java.nio.file.Path;
+import javafx.concurrent.Task;
+
+/**
+ * Background task that writes the painting to a .stars document, so saving
+ * a big painting doesn't freeze the window. A snapshot of the stars is
+ * taken when the task is created, on the FX thread, without copying them
+ * (see {@link StarStore#snapshot}), and streamed to the document on the
+ * background thread while painting goes on.
+ *
+ * @author sylverk @ github
+ */
+public class SaveTask extends Task<Integer> {
+
+    /**
+     * The snapshot of the stars being saved.
+     */
+    private final StarStore stars;
+
+    /**
+     * The width of the painting.
+     */
+    private final int width;
+
+    /**
+     * The height of the painting.
+     */
+    private final int height;
+
+    /**
+     * The document to write.
+     */
+    private final Path file;
+
+    /**
+     * Constructor for a SaveTask, must be called on the FX thread.
+     *
+     * @param painting is the painting to save.
+     * @param file is the document to write.
+     */
+    public SaveTask(Painting painting, Path file) {
+        this.stars = painting.getStars().snapshot();
+        this.width = painting.getWidth();
+        this.height = painting.getHeight();
+        this.file = file;
+    }
+
+    /**
+     * Writes the snapshot on the background thread.
+     *
+     * @return Integer number of stars saved.
+     * @throws Exception if the file can't be written.
+     */
+    @Override
+    protected Integer call() throws Exception {
+        return StarDocument.write(stars, width, height, file);
+    }
+}
@@ -0,0 +1,368 @@
+package magicpainter;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of stars that are already scan converted, so drawing the same brush
+ * over and over only copies pixels. A stamp is the coverage of one star
+ * size at one subpixel offset, worked out by the StarRasterizer and kept as
+ * a byte per pixel; the color is put on while blending since that costs the
+ * same as blending a colored stamp and keeps one stamp for every color.
+ * Positions are rounded to a quarter of a pixel so there are at most 16
+ * stamps per size. Only whole sizes up to MAX_SIZE are stamped, anything else
+ * (like the sizes the place! button makes up) is left to the rasterizer.
+ * The least recently used stamps are thrown away when the stamps take more
+ * than the budget. Not thread safe.
+ *
+ * @author sylverk @ github
+ */
+public final class StampCache {
+
+    /**
+     * int describing how many subpixel positions there are along each axis.
+     */
+    static final int STEPS = 4;
+
+    /**
+     * double describing the biggest size that gets stamps.
+     */
+    static final double MAX_SIZE = 512;
+
+    /**
+     * int describing roughly how many bytes a stamp takes besides its
+     * pixels.
+     */
+    private static final int OVERHEAD = 64;
+
+    /**
+     * The stamps by key, least recently used first.
+     */
+    private final LinkedHashMap<Long, Stamp> stamps = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * long describing how many bytes the stamps may take, 0 for no stamps.
+     */
+    private final long budget;
+
+    /**
+     * long describing how many bytes the stamps take.
+     */
+    private long used;
+
+    /**
+     * long describing how many stars were drawn from a cached stamp.
+     */
+    private long hits;
+
+    /**
+     * long describing how many stamps had to be made.
+     */
+    private long misses;
+
+    /**
+     * The rasterizer stamps are made with.
+     */
+    private final StarRasterizer rasterizer = new StarRasterizer();
+
+    /**
+     * Scratch array the rasterizer draws a new stamp into.
+     */
+    private int[] scratch = new int[0];
+
+    /**
+     * int describing the left edge of the stamp found by the last call to
+     * get, in document pixels.
+     */
+    private int left;
+
+    /**
+     * int describing the top edge of the stamp found by the last call to get,
+     * in document pixels.
+     */
+    private int top;
+
+    /**
+     * Constructor for a StampCache.
+     *
+     * @param budget is the number of bytes the stamps may take, 0 to never
+     * stamp.
+     */
+    public StampCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Finds the stamp for a star, making it if it isn't cached. The position
+     * to draw it at is kept for getLeft and getTop.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @return Stamp for the star, or null if the star should be drawn by the
+     * rasterizer.
+     */
+    public Stamp get(double size, double x, double y) {
+        if (budget == 0 || !(size >= 1 && size <= MAX_SIZE) || size != Math.rint(size)) {
+            return null;
+        }
+        long qx = Math.round((x - size * StarGeometry.HALF_WIDTH) * STEPS);
+        long qy = Math.round((y - size * StarGeometry.TOP) * STEPS);
+        if (Math.abs(qx) > Integer.MAX_VALUE || Math.abs(qy) > Integer.MAX_VALUE) {
+            return null;
+        }
+        left = (int) Math.floorDiv(qx, STEPS);
+        top = (int) Math.floorDiv(qy, STEPS);
+        int fx = Math.floorMod(qx, STEPS);
+        int fy = Math.floorMod(qy, STEPS);
+        Long key = ((long) size << 8) | (fx * STEPS + fy);
+        Stamp stamp = stamps.get(key);
+        if (stamp != null) {
+            hits++;
+            return stamp;
+        }
+        misses++;
+        stamp = make(size, (double) fx / STEPS, (double) fy / STEPS);
+        stamps.put(key, stamp);
+        used += stamp.getBytes();
+        Iterator<Stamp> eldest = stamps.values().iterator();
+        while (used > budget && stamps.size() > 1) {
+            used -= eldest.next().getBytes();
+            eldest.remove();
+        }
+        return stamp;
+    }
+
+    /**
+     * Scan converts a star in opaque white onto a transparent block, whose
+     * alpha is then the coverage.
+     *
+     * @param size is the size of the star.
+     * @param fx is how far right of the block's left edge the star's
+     * bounding box starts, under a pixel.
+     * @param fy is how far below the block's top edge the star's bounding box
+     * starts, under a pixel.
+     * @return Stamp of the star.
+     */
+    private Stamp make(double size, double fx, double fy) {
+        int width = (int) Math.ceil(fx + size * 2 * StarGeometry.HALF_WIDTH);
+        int height = (int) Math.ceil(fy + size * (StarGeometry.TOP + StarGeometry.BOTTOM));
+        if (scratch.length < width * height) {
+            scratch = new int[width * height];
+        }
+        rasterizer.fillStar(scratch, 0, width, 0, 0, 0, 0, width, height,
+                size, fx + size * StarGeometry.HALF_WIDTH, fy + size * StarGeometry.TOP, 0xFFFFFFFF);
+        byte[] coverage = new byte[width * height];
+        for (int p = 0; p < coverage.length; p++) {
+            coverage[p] = (byte) (scratch[p] >>> 24);
+            scratch[p] = 0;
+        }
+        return new Stamp(width, height, coverage);
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the left edge of the last stamp found, in document pixels.
+     */
+    public int getLeft() {
+        return left;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the top edge of the last stamp found, in document pixels.
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long number of stars drawn from a cached stamp.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long number of stamps made.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long number of bytes the cached stamps take.
+     */
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * The coverage of one star at one subpixel offset, as a block of bytes
+     * from 0 (not covered) to 255 (fully covered).
+     */
+    public static final class Stamp {
+
+        /**
+         * The width of the block.
+         */
+        private final int width;
+
+        /**
+         * The height of the block.
+         */
+        private final int height;
+
+        /**
+         * The coverage, a row of width bytes after another.
+         */
+        private final byte[] coverage;
+
+        /**
+         * For each row, the first column that is covered at all, the column
+         * after the last one, and the start and end of the longest run of
+         * fully covered columns, which an opaque color just fills.
+         */
+        private final int[] rows;
+
+        /**
+         * Constructor for a Stamp.
+         *
+         * @param width is the width of the block.
+         * @param height is the height of the block.
+         * @param coverage is the coverage of each pixel of the block.
+         */
+        Stamp(int width, int height, byte[] coverage) {
+            this.width = width;
+            this.height = height;
+            this.coverage = coverage;
+            rows = new int[height * 4];
+            for (int row = 0; row < height; row++) {
+                int start = width;
+                int end = 0;
+                int full = 0;
+                int fullStart = 0;
+                int fullEnd = 0;
+                for (int col = 0; col < width; col++) {
+                    int c = coverage[row * width + col] & 0xFF;
+                    if (c != 0) {
+                        start = Math.min(start, col);
+                        end = col + 1;
+                    }
+                    full = c == 255 ? full + 1 : 0;
+                    if (full > fullEnd - fullStart) {
+                        fullStart = col + 1 - full;
+                        fullEnd = col + 1;
+                    }
+                }
+                rows[row * 4] = start;
+                rows[row * 4 + 1] = Math.max(start, end);
+                rows[row * 4 + 2] = fullStart;
+                rows[row * 4 + 3] = fullEnd;
+            }
+        }
+
+        /**
+         * Blends a color through the stamp into a block of pixels, only
+         * touching the pixels inside the clip rectangle. Positions in the
+         * buffer are absolute, its position and limit are ignored.
+         *
+         * @param pixels is the buffer of premultiplied ARGB pixels to draw
+         * into, which may be direct.
+         * @param offset is the index in pixels of the pixel at originX,
+         * originY.
+         * @param stride is the number of buffer entries between two rows.
+         * @param originX is the x-position (in document pixels) of the pixel
+         * at offset.
+         * @param originY is the y-position (in document pixels) of the pixel
+         * at offset.
+         * @param clipX0 is the left edge of the clip rectangle (inclusive).
+         * @param clipY0 is the top edge of the clip rectangle (inclusive).
+         * @param clipX1 is the right edge of the clip rectangle (exclusive).
+         * @param clipY1 is the bottom edge of the clip rectangle (exclusive).
+         * @param left is the x-position of the left edge of the stamp.
+         * @param top is the y-position of the top edge of the stamp.
+         * @param argb is the color packed as 0xAARRGGBB (not premultiplied).
+         */
+        public void blit(IntBuffer pixels, int offset, int stride, int originX, int originY,
+                int clipX0, int clipY0, int clipX1, int clipY1, int left, int top, int argb) {
+            int y0 = Math.max(clipY0, top);
+            int y1 = Math.min(clipY1, top + height);
+            boolean opaque = argb >>> 24 == 255;
+            int[] array = pixels.hasArray() ? pixels.array() : null;
+            int base = (array != null ? pixels.arrayOffset() + offset : offset) - originY * stride - originX;
+            for (int row = y0; row < y1; row++) {
+                int r = (row - top) * 4;
+                int x0 = Math.max(clipX0, left + rows[r]);
+                int x1 = Math.min(clipX1, left + rows[r + 1]);
+                if (x0 >= x1) {
+                    continue;
+                }
+                int s = (row - top) * width - left;
+                int p = base + row * stride;
+                if (array != null && opaque) {
+                    int f0 = Math.min(x1, Math.max(x0, left + rows[r + 2]));
+                    int f1 = Math.max(f0, Math.min(x1, left + rows[r + 3]));
+                    blendRun(array, p, s, x0, f0, argb);
+                    Arrays.fill(array, p + f0, p + f1, argb);
+                    blendRun(array, p, s, f1, x1, argb);
+                } else {
+                    for (int col = x0; col < x1; col++) {
+                        int c = coverage[s + col] & 0xFF;
+                        if (c == 0) {
+                            continue;
+                        }
+                        int a = StarRasterizer.div255(c * (argb >>> 24));
+                        if (array != null) {
+                            array[p + col] = StarRasterizer.blend(array[p + col], argb, a);
+                        } else {
+                            pixels.put(p + col, a == 255 ? argb : StarRasterizer.blend(pixels.get(p + col), argb, a));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Blends an opaque color through part of a row of the stamp into an
+         * array.
+         *
+         * @param array is the pixels to draw into.
+         * @param p is the index of the pixel at column 0 of the row.
+         * @param s is the index in the coverage of column 0 of the row.
+         * @param from is the first column.
+         * @param to is the column after the last one.
+         * @param argb is the color packed as 0xAARRGGBB, with an alpha of
+         * 255.
+         */
+        private void blendRun(int[] array, int p, int s, int from, int to, int argb) {
+            for (int col = from; col < to; col++) {
+                int c = coverage[s + col] & 0xFF;
+                if (c == 255) {
+                    array[p + col] = argb;
+                } else if (c != 0) {
+                    array[p + col] = StarRasterizer.blend(array[p + col], argb, c);
+                }
+            }
+        }
+
+        /**
+         * Gets roughly how much memory the stamp takes.
+         *
+         * @return int number of bytes.
+         */
+        int getBytes() {
+            return coverage.length + rows.length * 4 + OVERHEAD;
+        }
+    }
+}
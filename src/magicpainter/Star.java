@@ -1,13 +1,29 @@
 package magicpainter;
 
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Paint;
 
 /**
+ * A single star. The vertices aren't stored in the star, they are written
+ * into shared scratch arrays from the StarGeometry template when the star is
+ * drawn, so drawing lots of stars doesn't allocate anything.
  *
  * @author sylverk @ github
  */
 public class Star {
 
+    /**
+     * Scratch array the x-positions of the vertices are written into before
+     * drawing. Only used on the FX thread.
+     */
+    private static final double[] SCRATCH_X = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array the y-positions of the vertices are written into before
+     * drawing. Only used on the FX thread.
+     */
+    private static final double[] SCRATCH_Y = new double[StarGeometry.VERTICES];
+
     /**
      * double describing the size of the star from the left tip to the right
      * tip.
@@ -22,14 +38,6 @@ public class Star {
      * center of the star.
      */
     double posY;
-    /**
-     * array of doubles describing the x-positions of the vertices of the star.
-     */
-    double[] pointsX;
-    /**
-     * array of doubles describing the y-positions of the vertices of the star.
-     */
-    double[] pointsY;
 
     /**
      * Constructor for a star object.
@@ -44,33 +52,6 @@ public class Star {
         this.size = size;
         this.posX = posX;
         this.posY = posY;
-        // calculates the x positions of the star vertices based on the inputs
-        this.pointsX = new double[]{
-            posX,
-            posX + (size / 5),
-            posX + (size / 2),
-            posX + (size / 3.33),
-            posX + (size / 2.5),
-            posX,
-            posX - (size / 2.5),
-            posX - (size / 3.33),
-            posX - (size / 2),
-            posX - (size / 5)
-        };
-        // calculates the y positions of the star vertices based on the inputs
-        this.pointsY = new double[]{
-            posY - (size / 2.2),
-            posY - (size / 10),
-            posY - (size / 10),
-            posY + (size / 5),
-            posY + (size / 2),
-            posY + (size / 3.33),
-            posY + (size / 2),
-            posY + (size / 5),
-            posY - (size / 10),
-            posY - (size / 10)
-        };
-
     }
 
     /**
@@ -98,7 +79,60 @@ public class Star {
      * @param gc
      */
     public void draw(GraphicsContext gc) {
-        gc.fillPolygon(pointsX, pointsY, 10);
+        fill(gc, size, posX, posY);
     }
 
+    /**
+     * Draws a star without needing a Star object, using the scratch arrays
+     * for the vertices. Must be called on the FX thread.
+     *
+     * @param gc is the GraphicsContext to draw on.
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     */
+    public static void fill(GraphicsContext gc, double size, double x, double y) {
+        StarGeometry.vertices(size, x, y, SCRATCH_X, SCRATCH_Y);
+        gc.fillPolygon(SCRATCH_X, SCRATCH_Y, StarGeometry.VERTICES);
+    }
+
+    /**
+     * Redraws every star in a StarStore in the order they were placed. The
+     * fill is only changed when the color changes from one star to the next,
+     * and is set back to what it was before once all the stars are drawn.
+     *
+     * @param stars is the store holding the stars to draw.
+     * @param gc is the GraphicsContext to draw them on.
+     */
+    public static void drawAll(StarStore stars, GraphicsContext gc) {
+        drawRange(stars, 0, stars.size(), gc);
+    }
+
+    /**
+     * Draws the stars of a StarStore from index from (inclusive) to index to
+     * (exclusive), skipping removed and occluded stars. The fill is only
+     * switched when the color changes, and set back afterwards.
+     *
+     * @param stars is the store holding the stars to draw.
+     * @param from is the index of the first star to draw.
+     * @param to is the index after the last star to draw.
+     * @param gc is the GraphicsContext to draw them on.
+     */
+    public static void drawRange(StarStore stars, int from, int to, GraphicsContext gc) {
+        Paint oldColor = gc.getFill();
+        Palette palette = stars.getPalette();
+        int lastColor = -1;
+        for (int i = from; i < to; i++) {
+            if (!stars.isShown(i)) {
+                continue;
+            }
+            int color = stars.getColor(i);
+            if (color != lastColor) {
+                gc.setFill(ColorButton.toColor(palette.get(color)));
+                lastColor = color;
+            }
+            fill(gc, stars.getSize(i), stars.getX(i), stars.getY(i));
+        }
+        gc.setFill(oldColor);
+    }
 }
@@ -0,0 +1,530 @@
+package magicpainter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads star lists with one star per line as size,x,y and an optional fourth
+ * hex color like the ColorButton ones (ie. ffbb19). The file is memory mapped
+ * in windows and numbers are parsed straight from the bytes, so no String is
+ * created per field and files with millions of rows stream through in
+ * chunks. Bad rows are skipped and remembered by line number. Meant to run
+ * off the FX thread; {@link #cancel} and {@link #getBytesRead} can be called
+ * from any thread. The CommandServer parses the lines it receives with the
+ * same code, through {@link #line} and the methods after it.
+ *
+ * @author sylverk @ github
+ */
+public class StarCsvReader {
+
+    /**
+     * Interface for receiving the stars as they are read.
+     */
+    public interface ChunkHandler {
+
+        /**
+         * Called with each full chunk of stars and once more with whatever
+         * is left at the end. The chunk isn't touched by the reader again
+         * so it can be handed to another thread.
+         *
+         * @param chunk is a store holding the next stars from the file, with
+         * its own palette.
+         * @throws InterruptedException if the handler was interrupted while
+         * waiting to take the chunk.
+         */
+        void chunk(StarStore chunk) throws InterruptedException;
+    }
+
+    /**
+     * int describing how many stars are handed over at a time.
+     */
+    public static final int CHUNK_STARS = 16384;
+
+    /**
+     * int describing how many bytes of the file are mapped at a time.
+     */
+    private static final int WINDOW = 64 << 20;
+
+    /**
+     * int describing how many bad rows are remembered. Bad rows after that
+     * are still counted.
+     */
+    private static final int MAX_ERRORS = 1000;
+
+    /**
+     * Message for rows that don't have the right number of fields.
+     */
+    private static final String FORMAT = "Expected size,x,y or size,x,y,color.";
+
+    /**
+     * Powers of ten for turning parsed digits back into a double.
+     */
+    private static final double[] POWERS = new double[23];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    /**
+     * The file being read.
+     */
+    private final Path file;
+
+    /**
+     * List of messages describing the bad rows, each starting with the line
+     * number.
+     */
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * int describing how many bad rows were found.
+     */
+    private int errorCount;
+
+    /**
+     * long describing how many bytes of the file have been read so far.
+     */
+    private volatile long bytesRead;
+
+    /**
+     * boolean indicating if reading should stop.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * The window of the file currently mapped, or the buffer given to
+     * {@link #line}.
+     */
+    private ByteBuffer window;
+
+    /**
+     * int describing the position in the window being parsed.
+     */
+    private int pos;
+
+    /**
+     * int describing the end of the line being parsed.
+     */
+    private int lineEnd;
+
+    /**
+     * Constructor for a StarCsvReader.
+     *
+     * @param file is the star list to read.
+     */
+    public StarCsvReader(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Constructor for a StarCsvReader that parses lines handed to
+     * {@link #line} instead of reading a file.
+     */
+    StarCsvReader() {
+        this(null);
+    }
+
+    /**
+     * Reads the whole file, handing the stars over in chunks.
+     *
+     * @param handler receives the chunks of stars.
+     * @return int number of stars read.
+     * @throws IOException if the file can't be read.
+     * @throws InterruptedException if the handler was interrupted.
+     */
+    public int read(ChunkHandler handler) throws IOException, InterruptedException {
+        int total = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            long line = 1;
+            StarStore chunk = newChunk();
+            while (start < size && !cancelled) {
+                long length = Math.min(WINDOW, size - start);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                boolean last = start + length == size;
+                pos = 0;
+                while (pos < length && !cancelled) {
+                    lineEnd = pos;
+                    while (lineEnd < length && window.get(lineEnd) != '\n') {
+                        lineEnd++;
+                    }
+                    if (lineEnd == length && !last) {
+                        if (pos == 0) {
+                            throw new IOException("Line " + line + " is too long");
+                        }
+                        break; // the line continues in the next window
+                    }
+                    int next = lineEnd + 1;
+                    if (lineEnd > pos && window.get(lineEnd - 1) == '\r') {
+                        lineEnd--;
+                    }
+                    parseLine(chunk, line, 0);
+                    line++;
+                    pos = next;
+                    if (chunk.size() == CHUNK_STARS) {
+                        total += chunk.size();
+                        handler.chunk(chunk);
+                        chunk = newChunk();
+                        bytesRead = start + pos;
+                    }
+                }
+                start += Math.min(pos, length);
+                bytesRead = start;
+            }
+            if (chunk.size() > 0 && !cancelled) {
+                total += chunk.size();
+                handler.chunk(chunk);
+            }
+        } finally {
+            window = null;
+        }
+        return total;
+    }
+
+    /**
+     * Creates an empty chunk with room for a full chunk of stars.
+     *
+     * @return StarStore with its own palette.
+     */
+    private static StarStore newChunk() {
+        StarStore chunk = new StarStore(new Palette());
+        chunk.ensureCapacity(CHUNK_STARS);
+        return chunk;
+    }
+
+    /**
+     * Parses the line between pos and lineEnd and adds the star to the chunk,
+     * or remembers why the line is bad. Blank lines are skipped.
+     *
+     * @param chunk is the store the star is added to.
+     * @param line is the line number, for error messages.
+     * @param color is the palette index of the color for a row without one.
+     * @return boolean false if the line is bad.
+     */
+    private boolean parseLine(StarStore chunk, long line, int color) {
+        skipSpaces();
+        if (pos == lineEnd) {
+            return true;
+        }
+        double size = parseNumber();
+        if (Double.isNaN(size)) {
+            error(line, "Size must be a number.");
+            return false;
+        }
+        if (!comma()) {
+            error(line, FORMAT);
+            return false;
+        }
+        double x = parseNumber();
+        if (Double.isNaN(x)) {
+            error(line, "X-position must be a number.");
+            return false;
+        }
+        if (!comma()) {
+            error(line, FORMAT);
+            return false;
+        }
+        double y = parseNumber();
+        if (Double.isNaN(y)) {
+            error(line, "Y-position must be a number.");
+            return false;
+        }
+        skipSpaces();
+        if (pos < lineEnd) {
+            if (!comma()) {
+                error(line, FORMAT);
+                return false;
+            }
+            int argb = parseHexColor();
+            if (argb == 0) {
+                error(line, "Color must be a hex code (ie. ffbb19).");
+                return false;
+            }
+            color = chunk.getPalette().indexOf(argb);
+        }
+        chunk.add(size, x, y, color);
+        return true;
+    }
+
+    /**
+     * Starts parsing a line of a buffer instead of a row of the file.
+     *
+     * @param buffer holds the line.
+     * @param from is the index of the first byte of the line.
+     * @param to is the index after the last byte, without the line break.
+     */
+    void line(ByteBuffer buffer, int from, int to) {
+        window = buffer;
+        pos = from;
+        lineEnd = to;
+    }
+
+    /**
+     * Parses the rest of the line as a row and adds the star to a chunk, or
+     * remembers why the row is bad.
+     *
+     * @param chunk is the store the star is added to.
+     * @param number is the number of the line, for error messages.
+     * @param color is the palette index of the color for a row without one.
+     * @return boolean false if the row is bad.
+     */
+    boolean row(StarStore chunk, long number, int color) {
+        return parseLine(chunk, number, color);
+    }
+
+    /**
+     * Checks if the line goes on with a word followed by a space or the end
+     * of the line, and moves past it if it does.
+     *
+     * @param word is the word, in lower case ASCII.
+     * @return boolean true if it was there.
+     */
+    boolean word(String word) {
+        skipSpaces();
+        int end = pos + word.length();
+        if (end > lineEnd) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (window.get(pos + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        if (end < lineEnd && window.get(end) != ' ' && window.get(end) != '\t') {
+            return false;
+        }
+        pos = end;
+        return true;
+    }
+
+    /**
+     * Parses a number, see {@link #parseNumber}, after any spaces.
+     *
+     * @return double the number, or NaN if there isn't one.
+     */
+    double number() {
+        skipSpaces();
+        return parseNumber();
+    }
+
+    /**
+     * Parses a hex color that has to end the line, see
+     * {@link #parseHexColor}, after any spaces.
+     *
+     * @return int the color packed as 0xAARRGGBB, or 0 if it isn't valid.
+     */
+    int color() {
+        skipSpaces();
+        return parseHexColor();
+    }
+
+    /**
+     * Checks if nothing but spaces is left on the line.
+     *
+     * @return boolean true at the end of the line.
+     */
+    boolean atEnd() {
+        skipSpaces();
+        return pos == lineEnd;
+    }
+
+    /**
+     * Moves pos past any spaces or tabs.
+     */
+    private void skipSpaces() {
+        while (pos < lineEnd && (window.get(pos) == ' ' || window.get(pos) == '\t')) {
+            pos++;
+        }
+    }
+
+    /**
+     * Moves pos past a comma and any spaces around it.
+     *
+     * @return boolean true if there was a comma.
+     */
+    boolean comma() {
+        skipSpaces();
+        if (pos < lineEnd && window.get(pos) == ',') {
+            pos++;
+            skipSpaces();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses a decimal number like -12.5 or 3e2 starting at pos. Up to 18
+     * digits are kept, which is far more than the floats stars are stored
+     * in. Numbers with huge exponents fall back to Double.parseDouble.
+     *
+     * @return double the number, or NaN if there isn't one at pos.
+     */
+    private double parseNumber() {
+        int start = pos;
+        boolean negative = false;
+        if (pos < lineEnd && (window.get(pos) == '-' || window.get(pos) == '+')) {
+            negative = window.get(pos) == '-';
+            pos++;
+        }
+        long digits = 0;
+        int kept = 0;
+        int exponent = 0;
+        boolean any = false;
+        boolean fraction = false;
+        while (pos < lineEnd) {
+            byte b = window.get(pos);
+            if (b >= '0' && b <= '9') {
+                any = true;
+                if (kept < 18) {
+                    digits = digits * 10 + (b - '0');
+                    if (digits != 0) {
+                        kept++;
+                    }
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (!fraction) {
+                    exponent++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if (pos < lineEnd && (window.get(pos) == 'e' || window.get(pos) == 'E')) {
+            pos++;
+            boolean negativeExp = false;
+            if (pos < lineEnd && (window.get(pos) == '-' || window.get(pos) == '+')) {
+                negativeExp = window.get(pos) == '-';
+                pos++;
+            }
+            int exp = 0;
+            boolean expDigits = false;
+            while (pos < lineEnd && window.get(pos) >= '0' && window.get(pos) <= '9') {
+                exp = Math.min(exp * 10 + (window.get(pos) - '0'), 100000);
+                expDigits = true;
+                pos++;
+            }
+            if (!expDigits) {
+                return Double.NaN;
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        double value;
+        if (exponent == 0) {
+            value = digits;
+        } else if (exponent > 0 && exponent < POWERS.length) {
+            value = digits * POWERS[exponent];
+        } else if (exponent < 0 && -exponent < POWERS.length) {
+            value = digits / POWERS[-exponent];
+        } else {
+            byte[] text = new byte[pos - start];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = window.get(start + i);
+            }
+            return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a 6 digit hex color starting at pos, with an optional # in
+     * front.
+     *
+     * @return int the color packed as 0xAARRGGBB, or 0 if it isn't valid.
+     */
+    private int parseHexColor() {
+        if (pos < lineEnd && window.get(pos) == '#') {
+            pos++;
+        }
+        int rgb = 0;
+        int count = 0;
+        while (pos < lineEnd) {
+            int b = window.get(pos);
+            int v = Character.digit(b, 16);
+            if (v < 0) {
+                break;
+            }
+            rgb = (rgb << 4) | v;
+            count++;
+            pos++;
+        }
+        skipSpaces();
+        if (count != 6 || pos != lineEnd) {
+            return 0;
+        }
+        return 0xFF000000 | rgb;
+    }
+
+    /**
+     * Remembers a bad row.
+     *
+     * @param line is the line number of the row.
+     * @param message describes what is wrong with it.
+     */
+    void error(long line, String message) {
+        errorCount++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add("Line " + line + ": " + message);
+        }
+    }
+
+    /**
+     * Asks the reader to stop at the next line. Can be called from any
+     * thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return boolean indicating if reading was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Standard getter, can be called from any thread while reading.
+     *
+     * @return long how many bytes of the file have been read so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Standard getter. Only the first 1000 bad rows are kept.
+     *
+     * @return List of messages describing the bad rows.
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int how many bad rows were found.
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+}
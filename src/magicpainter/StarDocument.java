@@ -0,0 +1,554 @@
+package magicpainter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Reads and writes .stars documents, the binary save format for the star
+ * list of a painting. A document is a 32 byte header, the stars in chunks
+ * of up to 65536 in the order they were placed, and a directory at the end
+ * holding the palette and, per chunk, where it is, how many stars it has
+ * and the area they cover. All numbers are little-endian.
+ *
+ * Inside a chunk the stars are stored column by column: the x-positions,
+ * then the y-positions, then the sizes, each as the zigzag varint of the
+ * difference from the previous star in 1/16 of a pixel, and then the
+ * palette indices as runs of (index, length) varints. Strokes move a few
+ * pixels at a time with one brush, so most stars take three to five bytes.
+ * Positions and sizes are rounded to 1/16 of a pixel.
+ *
+ * Documents are written chunk by chunk straight from the store to a
+ * temporary file that replaces the old one when it's complete. They are
+ * read from a memory mapping, and every chunk can be decoded on its own, so
+ * chunks are decoded in parallel and chunks outside an area can be skipped.
+ *
+ * @author sylverk @ github
+ */
+public class StarDocument {
+
+    /**
+     * The first four bytes of a document, "STRS".
+     */
+    private static final int MAGIC = 0x53525453;
+
+    /**
+     * The version of the format written by this class.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * int describing the size of the header in bytes.
+     */
+    private static final int HEADER = 32;
+
+    /**
+     * int describing the size of a directory entry in bytes.
+     */
+    private static final int ENTRY = 32;
+
+    /**
+     * int describing the size of a chunk header (the byte lengths of the
+     * first three columns) in bytes.
+     */
+    private static final int CHUNK_HEADER = 12;
+
+    /**
+     * int describing how many stars are stored per chunk.
+     */
+    public static final int CHUNK_STARS = 65536;
+
+    /**
+     * double describing how many steps positions and sizes are stored in
+     * per pixel.
+     */
+    private static final double SCALE = 16;
+
+    /**
+     * Reads the values of one varint column of a chunk in order.
+     */
+    private static final class Column {
+
+        /**
+         * The mapping of the document.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * int describing the position of the next varint.
+         */
+        private int pos;
+
+        /**
+         * long describing the last value read, in 1/16 of a pixel.
+         */
+        private long value;
+
+        /**
+         * Constructor for a Column.
+         *
+         * @param buffer is the mapping of the document.
+         * @param pos is the position of the first varint.
+         */
+        Column(ByteBuffer buffer, int pos) {
+            this.buffer = buffer;
+            this.pos = pos;
+        }
+
+        /**
+         * Reads a varint.
+         *
+         * @return long value of the varint.
+         */
+        long varint() {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buffer.get(pos++);
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return v;
+        }
+
+        /**
+         * Reads the next delta encoded value.
+         *
+         * @return float the value in pixels.
+         */
+        float next() {
+            long z = varint();
+            value += (z >>> 1) ^ -(z & 1);
+            return (float) (value / SCALE);
+        }
+    }
+
+    /**
+     * The mapping of the whole document.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * int describing the width of the painting the document was saved from.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the painting the document was saved from.
+     */
+    private final int height;
+
+    /**
+     * int describing the number of stars in the document.
+     */
+    private final int starCount;
+
+    /**
+     * array of the colors of the palette, packed as 0xAARRGGBB.
+     */
+    private final int[] palette;
+
+    /**
+     * array of the position of each chunk in the file.
+     */
+    private final int[] offsets;
+
+    /**
+     * array of the number of stars in each chunk.
+     */
+    private final int[] counts;
+
+    /**
+     * array of the index of the first star of each chunk.
+     */
+    private final int[] starts;
+
+    /**
+     * array of the area covered by each chunk as x0, y0, x1, y1.
+     */
+    private final float[] bounds;
+
+    /**
+     * Constructor used by {@link #open}.
+     *
+     * @param buffer is the mapping of the document.
+     * @throws IOException if the document isn't a valid .stars document.
+     */
+    private StarDocument(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a star document.");
+        }
+        int version = buffer.getShort(4);
+        if (version > VERSION) {
+            throw new IOException("Star document version " + version + " is too new.");
+        }
+        width = buffer.getInt(8);
+        height = buffer.getInt(12);
+        starCount = buffer.getInt(16);
+        int chunks = buffer.getInt(20);
+        long directory = buffer.getLong(24);
+        try {
+            int pos = Math.toIntExact(directory);
+            palette = new int[buffer.getInt(pos)];
+            pos += 4;
+            for (int c = 0; c < palette.length; c++, pos += 4) {
+                palette[c] = buffer.getInt(pos);
+            }
+            offsets = new int[chunks];
+            counts = new int[chunks];
+            starts = new int[chunks];
+            bounds = new float[chunks * 4];
+            int total = 0;
+            for (int k = 0; k < chunks; k++, pos += ENTRY) {
+                offsets[k] = Math.toIntExact(buffer.getLong(pos));
+                int length = buffer.getInt(pos + 8);
+                counts[k] = buffer.getInt(pos + 12);
+                for (int b = 0; b < 4; b++) {
+                    bounds[k * 4 + b] = buffer.getFloat(pos + 16 + b * 4);
+                }
+                if (offsets[k] < HEADER || length < CHUNK_HEADER || offsets[k] + (long) length > directory
+                        || counts[k] < 0 || counts[k] > CHUNK_STARS) {
+                    throw new IOException("Star document is damaged.");
+                }
+                starts[k] = total;
+                total += counts[k];
+            }
+            if (total != starCount) {
+                throw new IOException("Star document is damaged.");
+            }
+        } catch (IndexOutOfBoundsException | ArithmeticException | NegativeArraySizeException e) {
+            throw new IOException("Star document is damaged.", e);
+        }
+    }
+
+    /**
+     * Opens a document by mapping it. Only the header and directory are read
+     * until the stars are asked for.
+     *
+     * @param file is the document to open.
+     * @return StarDocument that can read the stars.
+     * @throws IOException if the file can't be read or isn't a valid .stars
+     * document.
+     */
+    public static StarDocument open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Star document is too big.");
+            }
+            return new StarDocument(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Decodes every star into a store, all chunks in parallel. The stars are
+     * added after the ones already in the store, in the order they were
+     * placed.
+     *
+     * @param into is the store to add the stars to.
+     * @return int number of stars read.
+     * @throws IOException if a chunk is damaged.
+     */
+    public int read(StarStore into) throws IOException {
+        return read(into, colorMap(into.getPalette()));
+    }
+
+    /**
+     * Decodes every star into a store with colors that were already added to
+     * its palette by {@link #colorMap}. This doesn't touch the palette, so it
+     * can run on another thread than the one that owns the palette.
+     *
+     * @param into is the store to add the stars to.
+     * @param map maps document palette indices to store palette indices.
+     * @return int number of stars read.
+     * @throws IOException if a chunk is damaged.
+     */
+    public int read(StarStore into, int[] map) throws IOException {
+        int first = into.size();
+        into.ensureCapacity(first + starCount);
+        try {
+            IntStream.range(0, offsets.length).parallel().forEach(k -> decode(k, into, first + starts[k], map));
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Star document is damaged.", e);
+        }
+        into.setCount(first + starCount);
+        return starCount;
+    }
+
+    /**
+     * Decodes only the chunks that have stars inside an area into a store,
+     * after the ones already in it. Stars of those chunks that are outside
+     * the area are added too.
+     *
+     * @param into is the store to add the stars to.
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area.
+     * @param y1 is the bottom edge of the area.
+     * @return int number of stars read.
+     * @throws IOException if a chunk is damaged.
+     */
+    public int read(StarStore into, double x0, double y0, double x1, double y1) throws IOException {
+        int[] map = colorMap(into.getPalette());
+        int read = 0;
+        try {
+            for (int k = 0; k < offsets.length; k++) {
+                int b = k * 4;
+                if (bounds[b] >= x1 || bounds[b + 1] >= y1 || bounds[b + 2] <= x0 || bounds[b + 3] <= y0) {
+                    continue;
+                }
+                int at = into.size();
+                into.ensureCapacity(at + counts[k]);
+                decode(k, into, at, map);
+                into.setCount(at + counts[k]);
+                read += counts[k];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Star document is damaged.", e);
+        }
+        return read;
+    }
+
+    /**
+     * Adds the colors of the document to a palette.
+     *
+     * @param target is the palette of the store the stars are read into.
+     * @return array mapping document palette indices to target indices.
+     */
+    public int[] colorMap(Palette target) {
+        int[] map = new int[palette.length];
+        for (int c = 0; c < map.length; c++) {
+            map[c] = target.indexOf(palette[c]);
+        }
+        return map;
+    }
+
+    /**
+     * Decodes one chunk into a store at the given index. The store must
+     * already have room for it.
+     *
+     * @param k is the index of the chunk.
+     * @param into is the store to write the stars to.
+     * @param at is the index of the first star in the store.
+     * @param map maps document palette indices to store palette indices.
+     */
+    private void decode(int k, StarStore into, int at, int[] map) {
+        int pos = offsets[k];
+        Column xs = new Column(buffer, pos + CHUNK_HEADER);
+        Column ys = new Column(buffer, xs.pos + buffer.getInt(pos));
+        Column sizes = new Column(buffer, ys.pos + buffer.getInt(pos + 4));
+        Column colors = new Column(buffer, sizes.pos + buffer.getInt(pos + 8));
+        int color = 0;
+        int run = 0;
+        for (int i = at; i < at + counts[k]; i++) {
+            if (run == 0) {
+                color = map[(int) colors.varint()];
+                run = (int) colors.varint();
+            }
+            run--;
+            into.set(i, sizes.next(), xs.next(), ys.next(), color);
+        }
+    }
+
+    /**
+     * Writes the stars of a store to a document, skipping removed and
+     * occluded stars.
+     * Each chunk is encoded and written before the next one is looked at, and
+     * the file only replaces an existing one once it's complete.
+     *
+     * @param stars is the store to save.
+     * @param width is the width of the painting.
+     * @param height is the height of the painting.
+     * @param file is the document to write.
+     * @return int number of stars written.
+     * @throws IOException if the file can't be written.
+     */
+    public static int write(StarStore stars, int width, int height, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Palette palette = stars.getPalette();
+        int maxChunks = stars.size() / CHUNK_STARS + 1;
+        ByteBuffer directory = ByteBuffer.allocate(4 + palette.size() * 4 + maxChunks * ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+        directory.putInt(palette.size());
+        for (int c = 0; c < palette.size(); c++) {
+            directory.putInt(palette.get(c));
+        }
+        ByteBuffer head = ByteBuffer.allocate(CHUNK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer xs = ByteBuffer.allocate(CHUNK_STARS * 10);
+        ByteBuffer ys = ByteBuffer.allocate(CHUNK_STARS * 10);
+        ByteBuffer sizes = ByteBuffer.allocate(CHUNK_STARS * 10);
+        ByteBuffer colors = ByteBuffer.allocate(CHUNK_STARS * 10);
+        ByteBuffer[] parts = {head, xs, ys, sizes, colors};
+        int chunks = 0;
+        int written = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = HEADER;
+            channel.position(pos);
+            int i = 0;
+            while (i < stars.size()) {
+                xs.clear();
+                ys.clear();
+                sizes.clear();
+                colors.clear();
+                long lastX = 0;
+                long lastY = 0;
+                long lastSize = 0;
+                int color = -1;
+                int run = 0;
+                int n = 0;
+                float x0 = Float.MAX_VALUE;
+                float y0 = Float.MAX_VALUE;
+                float x1 = -Float.MAX_VALUE;
+                float y1 = -Float.MAX_VALUE;
+                for (; i < stars.size() && n < CHUNK_STARS; i++) {
+                    if (!stars.isShown(i)) {
+                        continue;
+                    }
+                    long x = quantize(stars.getX(i));
+                    long y = quantize(stars.getY(i));
+                    long size = quantize(stars.getSize(i));
+                    putDelta(xs, x - lastX);
+                    putDelta(ys, y - lastY);
+                    putDelta(sizes, size - lastSize);
+                    lastX = x;
+                    lastY = y;
+                    lastSize = size;
+                    if (stars.getColor(i) != color) {
+                        if (run > 0) {
+                            putVarint(colors, color);
+                            putVarint(colors, run);
+                        }
+                        color = stars.getColor(i);
+                        run = 0;
+                    }
+                    run++;
+                    n++;
+                    float s = (float) (size / SCALE) + 1;
+                    x0 = Math.min(x0, (float) (x / SCALE) - s * (float) StarGeometry.HALF_WIDTH);
+                    y0 = Math.min(y0, (float) (y / SCALE) - s * (float) StarGeometry.TOP);
+                    x1 = Math.max(x1, (float) (x / SCALE) + s * (float) StarGeometry.HALF_WIDTH);
+                    y1 = Math.max(y1, (float) (y / SCALE) + s * (float) StarGeometry.BOTTOM);
+                }
+                if (n == 0) {
+                    break;
+                }
+                putVarint(colors, color);
+                putVarint(colors, run);
+                head.clear();
+                head.putInt(xs.position()).putInt(ys.position()).putInt(sizes.position());
+                int length = 0;
+                for (ByteBuffer part : parts) {
+                    part.flip();
+                    length += part.remaining();
+                }
+                while (parts[4].hasRemaining()) {
+                    channel.write(parts);
+                }
+                directory.putLong(pos).putInt(length).putInt(n);
+                directory.putFloat(x0).putFloat(y0).putFloat(x1).putFloat(y1);
+                pos += length;
+                chunks++;
+                written += n;
+            }
+            directory.flip();
+            while (directory.hasRemaining()) {
+                channel.write(directory);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0);
+            header.putInt(width).putInt(height).putInt(written).putInt(chunks).putLong(pos);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return written;
+    }
+
+    /**
+     * Rounds a position or size to the steps it is stored in.
+     *
+     * @param v is the value in pixels.
+     * @return long the value in 1/16 of a pixel.
+     */
+    private static long quantize(float v) {
+        return Math.round(v * SCALE);
+    }
+
+    /**
+     * Writes a difference as a zigzag varint, so small negative numbers are
+     * short too.
+     *
+     * @param out is the buffer to write to.
+     * @param d is the difference.
+     */
+    private static void putDelta(ByteBuffer out, long d) {
+        putVarint(out, (d << 1) ^ (d >> 63));
+    }
+
+    /**
+     * Writes a varint, 7 bits per byte with the high bit set on all but the
+     * last byte.
+     *
+     * @param out is the buffer to write to.
+     * @param v is the value, treated as unsigned.
+     */
+    private static void putVarint(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) (v | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int width of the painting the document was saved from.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int height of the painting the document was saved from.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int number of stars in the document.
+     */
+    public int getStarCount() {
+        return starCount;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int number of chunks in the document.
+     */
+    public int getChunkCount() {
+        return offsets.length;
+    }
+}
@@ -0,0 +1,199 @@
+package magicpainter;
+
+/**
+ * The shape of a star, worked out once for a star of size 1 centered on 0,0.
+ * Any other star is the same template scaled by its size and moved to its
+ * position, so vertices can be written straight into reusable arrays instead
+ * of being recomputed (and reallocated) for every star. This class doesn't
+ * depend on JavaFX so it can also be used by the software rasterizer.
+ *
+ * @author sylverk @ github
+ */
+public final class StarGeometry {
+
+    /**
+     * int describing how many vertices a star has.
+     */
+    public static final int VERTICES = 10;
+
+    /**
+     * array of doubles describing the x-positions of the vertices of a star
+     * of size 1, going clockwise from the top point.
+     */
+    private static final double[] UNIT_X = {
+        0,
+        1 / 5.0,
+        1 / 2.0,
+        1 / 3.33,
+        1 / 2.5,
+        0,
+        -1 / 2.5,
+        -1 / 3.33,
+        -1 / 2.0,
+        -1 / 5.0
+    };
+
+    /**
+     * array of doubles describing the y-positions of the vertices of a star
+     * of size 1, going clockwise from the top point.
+     */
+    private static final double[] UNIT_Y = {
+        -1 / 2.2,
+        -1 / 10.0,
+        -1 / 10.0,
+        1 / 5.0,
+        1 / 2.0,
+        1 / 3.33,
+        1 / 2.0,
+        1 / 5.0,
+        -1 / 10.0,
+        -1 / 10.0
+    };
+
+    /**
+     * double describing how far the left and right tips are from the center
+     * of a star of size 1.
+     */
+    public static final double HALF_WIDTH = 1 / 2.0;
+
+    /**
+     * double describing how far the top tip is above the position of a star
+     * of size 1.
+     */
+    public static final double TOP = 1 / 2.2;
+
+    /**
+     * double describing how far the bottom tips are below the position of a
+     * star of size 1.
+     */
+    public static final double BOTTOM = 1 / 2.0;
+
+    /**
+     * double describing the area of a star of size 1, for drawing stars too
+     * small to see as a bit of color instead.
+     */
+    public static final double AREA = area();
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private StarGeometry() {
+    }
+
+    /**
+     * Works out the area of a star of size 1 with the shoelace formula.
+     *
+     * @return double area of the unit star.
+     */
+    private static double area() {
+        double twice = 0;
+        for (int i = 0, j = VERTICES - 1; i < VERTICES; j = i++) {
+            twice += UNIT_X[j] * UNIT_Y[i] - UNIT_X[i] * UNIT_Y[j];
+        }
+        return Math.abs(twice) / 2;
+    }
+
+    /**
+     * Writes the vertices of a star into the given arrays.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param outX receives the x-positions of the 10 vertices.
+     * @param outY receives the y-positions of the 10 vertices.
+     */
+    public static void vertices(double size, double x, double y, double[] outX, double[] outY) {
+        for (int i = 0; i < VERTICES; i++) {
+            outX[i] = x + size * UNIT_X[i];
+            outY[i] = y + size * UNIT_Y[i];
+        }
+    }
+
+    /**
+     * Checks if a point is inside a star.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param px is the x-position of the point.
+     * @param py is the y-position of the point.
+     * @return boolean true if the point is inside the star.
+     */
+    public static boolean contains(double size, double x, double y, double px, double py) {
+        boolean inside = false;
+        for (int i = 0, j = VERTICES - 1; i < VERTICES; j = i++) {
+            double yi = y + size * UNIT_Y[i];
+            double yj = y + size * UNIT_Y[j];
+            if ((yi > py) != (yj > py)) {
+                double xi = x + size * UNIT_X[i];
+                double xj = x + size * UNIT_X[j];
+                if (px < xj + (py - yj) * (xi - xj) / (yi - yj)) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Checks if a star overlaps a rectangle, using the actual shape of the
+     * star rather than its bounding box.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param x0 is the left edge of the rectangle.
+     * @param y0 is the top edge of the rectangle.
+     * @param x1 is the right edge of the rectangle.
+     * @param y1 is the bottom edge of the rectangle.
+     * @return boolean true if any part of the star is inside the rectangle.
+     */
+    public static boolean intersects(double size, double x, double y, double x0, double y0, double x1, double y1) {
+        // a vertex of the star inside the rectangle
+        for (int i = 0; i < VERTICES; i++) {
+            double vx = x + size * UNIT_X[i];
+            double vy = y + size * UNIT_Y[i];
+            if (vx >= x0 && vx <= x1 && vy >= y0 && vy <= y1) {
+                return true;
+            }
+        }
+        // the rectangle inside the star
+        if (contains(size, x, y, x0, y0)) {
+            return true;
+        }
+        // otherwise an edge of the star has to cross an edge of the rectangle
+        for (int i = 0, j = VERTICES - 1; i < VERTICES; j = i++) {
+            double ax = x + size * UNIT_X[j];
+            double ay = y + size * UNIT_Y[j];
+            double bx = x + size * UNIT_X[i];
+            double by = y + size * UNIT_Y[i];
+            if (crosses(ax, ay, bx, by, x0, y0, x1, y0) || crosses(ax, ay, bx, by, x1, y0, x1, y1)
+                    || crosses(ax, ay, bx, by, x1, y1, x0, y1) || crosses(ax, ay, bx, by, x0, y1, x0, y0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if two line segments cross.
+     *
+     * @param ax is the x-position of the start of the first segment.
+     * @param ay is the y-position of the start of the first segment.
+     * @param bx is the x-position of the end of the first segment.
+     * @param by is the y-position of the end of the first segment.
+     * @param cx is the x-position of the start of the second segment.
+     * @param cy is the y-position of the start of the second segment.
+     * @param dx is the x-position of the end of the second segment.
+     * @param dy is the y-position of the end of the second segment.
+     * @return boolean true if segment a-b crosses segment c-d.
+     */
+    private static boolean crosses(double ax, double ay, double bx, double by,
+            double cx, double cy, double dx, double dy) {
+        double d1 = (dx - cx) * (ay - cy) - (dy - cy) * (ax - cx);
+        double d2 = (dx - cx) * (by - cy) - (dy - cy) * (bx - cx);
+        double d3 = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        double d4 = (bx - ax) * (dy - ay) - (by - ay) * (dx - ax);
+        return ((d1 > 0) != (d2 > 0)) && ((d3 > 0) != (d4 > 0));
+    }
+}
@@ -0,0 +1,343 @@
+package magicpainter;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the document that answers which stars are under a point
+ * or inside a rectangle without looking at every star. The document is cut
+ * into 64x64 cells and each star is listed in every cell its bounding box
+ * touches. Huge stars that would touch more than 256 cells are kept in a
+ * separate list that every query checks. Stars can be added and removed one
+ * at a time, nothing is ever rebuilt. Entries for stars that were undone
+ * (past the end of the store) are left in place and skipped by queries, so
+ * undo and redo don't touch the index. Not thread safe, and doesn't depend
+ * on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class StarIndex {
+
+    /**
+     * int describing the width and height of a cell.
+     */
+    public static final int CELL = 64;
+
+    /**
+     * int describing how many cells a star can touch before it goes in the
+     * list of huge stars instead.
+     */
+    private static final int MAX_CELLS = 256;
+
+    /**
+     * The store holding the stars that are indexed.
+     */
+    private final StarStore stars;
+
+    /**
+     * int describing the number of cell columns.
+     */
+    private final int cellsX;
+
+    /**
+     * int describing the number of cell rows.
+     */
+    private final int cellsY;
+
+    /**
+     * array of star index lists, one per cell, null for empty cells. The
+     * first entry of each list is the number of stars in it.
+     */
+    private final int[][] cells;
+
+    /**
+     * List of huge stars, the first entry is the number of stars in it.
+     */
+    private int[] huge = new int[8];
+
+    /**
+     * The results of the last query, sorted in drawing order.
+     */
+    private int[] results = new int[64];
+
+    /**
+     * Constructor for an empty index.
+     *
+     * @param stars is the store holding the stars that will be indexed.
+     * @param width is the width of the document.
+     * @param height is the height of the document.
+     */
+    public StarIndex(StarStore stars, int width, int height) {
+        this.stars = stars;
+        cellsX = (width + CELL - 1) / CELL;
+        cellsY = (height + CELL - 1) / CELL;
+        cells = new int[cellsX * cellsY][];
+    }
+
+    /**
+     * Adds the stars from index from (inclusive) to index to (exclusive).
+     *
+     * @param from is the index of the first star to add.
+     * @param to is the index after the last star to add.
+     */
+    public void insert(int from, int to) {
+        for (int i = from; i < to; i++) {
+            insert(i);
+        }
+    }
+
+    /**
+     * Adds the stars from index from (inclusive) to index to (exclusive)
+     * whose bounding box touches a rectangle, or only the ones whose bounding
+     * box doesn't. Opening a document indexes the part in view first and the
+     * rest in a second index that is merged in later.
+     *
+     * @param from is the index of the first star to look at.
+     * @param to is the index after the last star to look at.
+     * @param x0 is the left edge of the rectangle.
+     * @param y0 is the top edge of the rectangle.
+     * @param x1 is the right edge of the rectangle.
+     * @param y1 is the bottom edge of the rectangle.
+     * @param inside is true to add the stars touching the rectangle, false
+     * to add the others.
+     */
+    public void insert(int from, int to, double x0, double y0, double x1, double y1, boolean inside) {
+        for (int i = from; i < to; i++) {
+            if (touches(i, x0, y0, x1, y1) == inside) {
+                insert(i);
+            }
+        }
+    }
+
+    /**
+     * Adds every star of another index over the same store and document.
+     * Lists of cells that are empty here are taken over rather than copied,
+     * so the other index must not be changed afterwards.
+     *
+     * @param other is the index to take the stars from.
+     */
+    public void merge(StarIndex other) {
+        for (int c = 0; c < cells.length; c++) {
+            int[] list = other.cells[c];
+            if (cells[c] == null) {
+                cells[c] = list;
+                continue;
+            }
+            for (int k = 1; list != null && k <= list[0]; k++) {
+                cells[c] = add(cells[c], list[k]);
+            }
+        }
+        for (int k = 1; k <= other.huge[0]; k++) {
+            huge = add(huge, other.huge[k]);
+        }
+    }
+
+    /**
+     * Adds a star to every cell its bounding box touches.
+     *
+     * @param i is the index of the star in the store.
+     */
+    public void insert(int i) {
+        double size = stars.getSize(i);
+        double x = stars.getX(i);
+        double y = stars.getY(i);
+        int cx0 = cellX(x - size * StarGeometry.HALF_WIDTH);
+        int cx1 = cellX(x + size * StarGeometry.HALF_WIDTH);
+        int cy0 = cellY(y - size * StarGeometry.TOP);
+        int cy1 = cellY(y + size * StarGeometry.BOTTOM);
+        if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > MAX_CELLS) {
+            huge = add(huge, i);
+            return;
+        }
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                int c = cy * cellsX + cx;
+                cells[c] = add(cells[c], i);
+            }
+        }
+    }
+
+    /**
+     * Takes a star out of every cell it was added to.
+     *
+     * @param i is the index of the star in the store.
+     */
+    public void remove(int i) {
+        double size = stars.getSize(i);
+        double x = stars.getX(i);
+        double y = stars.getY(i);
+        int cx0 = cellX(x - size * StarGeometry.HALF_WIDTH);
+        int cx1 = cellX(x + size * StarGeometry.HALF_WIDTH);
+        int cy0 = cellY(y - size * StarGeometry.TOP);
+        int cy1 = cellY(y + size * StarGeometry.BOTTOM);
+        if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > MAX_CELLS) {
+            delete(huge, i);
+            return;
+        }
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                delete(cells[cy * cellsX + cx], i);
+            }
+        }
+    }
+
+    /**
+     * Empties the index.
+     */
+    public void clear() {
+        Arrays.fill(cells, null);
+        huge[0] = 0;
+    }
+
+    /**
+     * Finds the stars whose bounding box overlaps a rectangle. Removed stars
+     * are left out.
+     *
+     * @param x0 is the left edge of the rectangle.
+     * @param y0 is the top edge of the rectangle.
+     * @param x1 is the right edge of the rectangle.
+     * @param y1 is the bottom edge of the rectangle.
+     * @return int number of stars found, their indices are the first entries
+     * of {@link #getResults}, in drawing order.
+     */
+    public int query(double x0, double y0, double x1, double y1) {
+        int n = 0;
+        for (int cy = cellY(y0); cy <= cellY(y1); cy++) {
+            for (int cx = cellX(x0); cx <= cellX(x1); cx++) {
+                n = collect(cells[cy * cellsX + cx], n, x0, y0, x1, y1);
+            }
+        }
+        n = collect(huge, n, x0, y0, x1, y1);
+        // a star touching several cells is found once per cell
+        Arrays.sort(results, 0, n);
+        int unique = 0;
+        for (int k = 0; k < n; k++) {
+            if (unique == 0 || results[unique - 1] != results[k]) {
+                results[unique++] = results[k];
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Finds the topmost star under a point, using the actual shape of the
+     * stars.
+     *
+     * @param px is the x-position of the point.
+     * @param py is the y-position of the point.
+     * @return int index of the star, or -1 if there is no star there.
+     */
+    public int pick(double px, double py) {
+        int n = query(px, py, px, py);
+        for (int k = n - 1; k >= 0; k--) {
+            int i = results[k];
+            if (StarGeometry.contains(stars.getSize(i), stars.getX(i), stars.getY(i), px, py)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Standard getter. The array is reused by the next query.
+     *
+     * @return array holding the results of the last query.
+     */
+    public int[] getResults() {
+        return results;
+    }
+
+    /**
+     * Adds the stars of a cell list whose bounding box overlaps a rectangle
+     * to the results.
+     *
+     * @param list is the cell list, may be null.
+     * @param n is the number of results so far.
+     * @return int the new number of results.
+     */
+    private int collect(int[] list, int n, double x0, double y0, double x1, double y1) {
+        if (list == null) {
+            return n;
+        }
+        for (int k = 1; k <= list[0]; k++) {
+            int i = list[k];
+            if (!touches(i, x0, y0, x1, y1) || i >= stars.size() || stars.isRemoved(i)) {
+                continue;
+            }
+            if (n == results.length) {
+                results = Arrays.copyOf(results, n * 2);
+            }
+            results[n++] = i;
+        }
+        return n;
+    }
+
+    /**
+     * Checks if the bounding box of a star overlaps a rectangle.
+     *
+     * @param i is the index of the star.
+     * @return boolean true if they overlap, edges included.
+     */
+    private boolean touches(int i, double x0, double y0, double x1, double y1) {
+        double size = stars.getSize(i);
+        double x = stars.getX(i);
+        double y = stars.getY(i);
+        return x + size * StarGeometry.HALF_WIDTH >= x0 && x - size * StarGeometry.HALF_WIDTH <= x1
+                && y + size * StarGeometry.BOTTOM >= y0 && y - size * StarGeometry.TOP <= y1;
+    }
+
+    /**
+     * Works out the cell column of an x-position, clamped to the grid.
+     *
+     * @param x is the x-position.
+     * @return int cell column.
+     */
+    private int cellX(double x) {
+        // truncating only differs from flooring below 0, which clamps to 0
+        return Math.max(0, Math.min(cellsX - 1, (int) (x / CELL)));
+    }
+
+    /**
+     * Works out the cell row of a y-position, clamped to the grid.
+     *
+     * @param y is the y-position.
+     * @return int cell row.
+     */
+    private int cellY(double y) {
+        return Math.max(0, Math.min(cellsY - 1, (int) (y / CELL)));
+    }
+
+    /**
+     * Adds a star to a list, growing it if needed.
+     *
+     * @param list is the list, or null to start a new one.
+     * @param i is the index of the star.
+     * @return the list, which may be a new array.
+     */
+    private static int[] add(int[] list, int i) {
+        if (list == null) {
+            list = new int[4];
+        } else if (list[0] + 1 == list.length) {
+            list = Arrays.copyOf(list, list.length * 2);
+        }
+        list[++list[0]] = i;
+        return list;
+    }
+
+    /**
+     * Takes a star out of a list by moving the last entry into its place.
+     *
+     * @param list is the list, may be null.
+     * @param i is the index of the star.
+     */
+    private static void delete(int[] list, int i) {
+        if (list == null) {
+            return;
+        }
+        for (int k = 1; k <= list[0]; k++) {
+            if (list[k] == i) {
+                list[k] = list[list[0]--];
+                return;
+            }
+        }
+    }
+}
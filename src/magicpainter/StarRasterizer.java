@@ -0,0 +1,585 @@
+package magicpainter;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Software rasterizer for stars that doesn't need JavaFX or a display. Stars
+ * are scan converted from the same StarGeometry template the canvas uses,
+ * with 8 sub-scanlines per pixel row and exact horizontal coverage, and
+ * blended into an int[] (or an IntBuffer, which may be off-heap) of
+ * premultiplied 0xAARRGGBB pixels. Big images are
+ * split into square tiles that are drawn in parallel on a ForkJoinPool, each
+ * tile only drawing the stars whose bounding box touches it, in the order
+ * they were placed.
+ *
+ * An instance keeps scratch buffers so it is not thread safe, but
+ * {@link #render} creates its own instances for the worker threads.
+ *
+ * @author sylverk @ github
+ */
+public class StarRasterizer {
+
+    /**
+     * int describing how many sub-scanlines are sampled per pixel row.
+     */
+    private static final int SUBSAMPLES = 8;
+
+    /**
+     * int describing the width and height of the tiles {@link #render}
+     * splits the image into.
+     */
+    private static final int TILE = 128;
+
+    /**
+     * Scratch array for the x-positions of the vertices of the star being
+     * drawn.
+     */
+    private final double[] vx = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the y-positions of the vertices of the star being
+     * drawn.
+     */
+    private final double[] vy = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the y-position of the top of each edge of the star
+     * being drawn. The edges are worked out once per star so finding
+     * crossings doesn't need to divide.
+     */
+    private final double[] edgeTop = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the y-position of the bottom of each edge.
+     */
+    private final double[] edgeBottom = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the x-position of the top of each edge.
+     */
+    private final double[] edgeX = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for how much x changes along each edge per unit of y.
+     */
+    private final double[] edgeSlope = new double[StarGeometry.VERTICES];
+
+    /**
+     * int describing how many edges of the current star aren't horizontal.
+     */
+    private int edges;
+
+    /**
+     * Scratch array for the points where a sub-scanline crosses the edges of
+     * the star.
+     */
+    private final double[] crossings = new double[StarGeometry.VERTICES];
+
+    /**
+     * Scratch array for the coverage of the partly covered pixels at the ends
+     * of the spans in the row being drawn.
+     */
+    private float[] coverage = new float[64];
+
+    /**
+     * Scratch array for the changes in coverage along the row being drawn.
+     * Fully covered pixels inside a span are added here as a step up at the
+     * start of the span and a step down at the end, so long spans cost the
+     * same as short ones.
+     */
+    private float[] steps = new float[64];
+
+    /**
+     * Scratch array of the pixels of the row that have something in coverage
+     * or steps. The pixels between them all have the same coverage, so the
+     * row is drawn as runs instead of pixel by pixel.
+     */
+    private final int[] touched = new int[SUBSAMPLES * StarGeometry.VERTICES * 2];
+
+    /**
+     * int describing how many entries of touched are used.
+     */
+    private int touchedCount;
+
+    /**
+     * The array being drawn into, or null when drawing into a direct buffer.
+     */
+    private int[] targetArray;
+
+    /**
+     * The direct buffer being drawn into, or null when drawing into an array.
+     */
+    private IntBuffer targetBuffer;
+
+    /**
+     * Draws one star into a block of pixels, only touching the pixels inside
+     * the clip rectangle.
+     *
+     * @param pixels is the array of premultiplied ARGB pixels to draw into.
+     * @param offset is the index in pixels of the pixel at originX, originY.
+     * @param stride is the number of array entries between two rows.
+     * @param originX is the x-position (in star coordinates) of the pixel at
+     * offset.
+     * @param originY is the y-position (in star coordinates) of the pixel at
+     * offset.
+     * @param clipX0 is the left edge of the clip rectangle (inclusive).
+     * @param clipY0 is the top edge of the clip rectangle (inclusive).
+     * @param clipX1 is the right edge of the clip rectangle (exclusive).
+     * @param clipY1 is the bottom edge of the clip rectangle (exclusive).
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param argb is the color of the star packed as 0xAARRGGBB.
+     */
+    public void fillStar(int[] pixels, int offset, int stride, int originX, int originY,
+            int clipX0, int clipY0, int clipX1, int clipY1,
+            double size, double x, double y, int argb) {
+        targetArray = pixels;
+        targetBuffer = null;
+        scan(offset, stride, originX, originY, clipX0, clipY0, clipX1, clipY1, size, x, y, argb);
+        targetArray = null;
+    }
+
+    /**
+     * Draws one star into a buffer of pixels, only touching the pixels inside
+     * the clip rectangle. Same as the int[] version but the buffer may be
+     * direct (off-heap). Positions in the buffer are absolute, its position
+     * and limit are ignored.
+     *
+     * @param pixels is the buffer of premultiplied ARGB pixels to draw into.
+     * @param offset is the index in pixels of the pixel at originX, originY.
+     * @param stride is the number of buffer entries between two rows.
+     * @param originX is the x-position (in star coordinates) of the pixel at
+     * offset.
+     * @param originY is the y-position (in star coordinates) of the pixel at
+     * offset.
+     * @param clipX0 is the left edge of the clip rectangle (inclusive).
+     * @param clipY0 is the top edge of the clip rectangle (inclusive).
+     * @param clipX1 is the right edge of the clip rectangle (exclusive).
+     * @param clipY1 is the bottom edge of the clip rectangle (exclusive).
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param argb is the color of the star packed as 0xAARRGGBB.
+     */
+    public void fillStar(IntBuffer pixels, int offset, int stride, int originX, int originY,
+            int clipX0, int clipY0, int clipX1, int clipY1,
+            double size, double x, double y, int argb) {
+        if (pixels.hasArray()) {
+            fillStar(pixels.array(), pixels.arrayOffset() + offset, stride, originX, originY,
+                    clipX0, clipY0, clipX1, clipY1, size, x, y, argb);
+            return;
+        }
+        targetBuffer = pixels;
+        scan(offset, stride, originX, originY, clipX0, clipY0, clipX1, clipY1, size, x, y, argb);
+        targetBuffer = null;
+    }
+
+    /**
+     * Scan converts a star into the current target, see fillStar for the
+     * parameters.
+     */
+    private void scan(int offset, int stride, int originX, int originY,
+            int clipX0, int clipY0, int clipX1, int clipY1,
+            double size, double x, double y, int argb) {
+        int x0 = Math.max(clipX0, (int) Math.floor(x - size * StarGeometry.HALF_WIDTH));
+        int x1 = Math.min(clipX1, (int) Math.ceil(x + size * StarGeometry.HALF_WIDTH));
+        int y0 = Math.max(clipY0, (int) Math.floor(y - size * StarGeometry.TOP));
+        int y1 = Math.min(clipY1, (int) Math.ceil(y + size * StarGeometry.BOTTOM));
+        if (x0 >= x1 || y0 >= y1 || !(size > 0)) {
+            return;
+        }
+        StarGeometry.vertices(size, x, y, vx, vy);
+        edges = 0;
+        for (int i = 0, j = StarGeometry.VERTICES - 1; i < StarGeometry.VERTICES; j = i++) {
+            if (vy[i] == vy[j]) {
+                continue;
+            }
+            int top = vy[i] < vy[j] ? i : j;
+            int bottom = top == i ? j : i;
+            edgeTop[edges] = vy[top];
+            edgeBottom[edges] = vy[bottom];
+            edgeX[edges] = vx[top];
+            edgeSlope[edges] = (vx[bottom] - vx[top]) / (vy[bottom] - vy[top]);
+            edges++;
+        }
+        int width = x1 - x0;
+        if (coverage.length < width + 1) {
+            coverage = new float[width + 1];
+            steps = new float[width + 1];
+        }
+        for (int row = y0; row < y1; row++) {
+            touchedCount = 0;
+            for (int sub = 0; sub < SUBSAMPLES; sub++) {
+                double sy = row + (sub + 0.5) / SUBSAMPLES;
+                int n = crossings(sy);
+                for (int k = 0; k + 1 < n; k += 2) {
+                    addSpan(crossings[k] - x0, crossings[k + 1] - x0, width);
+                }
+            }
+            if (touchedCount > 0) {
+                blendRow(offset + (row - originY) * stride + (x0 - originX), width, argb);
+            }
+        }
+    }
+
+    /**
+     * Works out where a horizontal line crosses the edges of the current
+     * star and sorts the crossings from left to right. The star is a simple
+     * polygon so the crossings pair up into filled spans.
+     *
+     * @param sy is the y-position of the line.
+     * @return int number of crossings found.
+     */
+    private int crossings(double sy) {
+        int n = 0;
+        for (int e = 0; e < edges; e++) {
+            // half-open so a line passing through a vertex is counted once
+            if (edgeTop[e] <= sy && sy < edgeBottom[e]) {
+                double cx = edgeX[e] + (sy - edgeTop[e]) * edgeSlope[e];
+                int k = n++;
+                while (k > 0 && crossings[k - 1] > cx) {
+                    crossings[k] = crossings[k - 1];
+                    k--;
+                }
+                crossings[k] = cx;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Adds one sub-scanline span to the row coverage, giving partly covered
+     * pixels at either end the fraction of the pixel that is covered.
+     *
+     * @param a is the start of the span relative to the left of the row.
+     * @param b is the end of the span relative to the left of the row.
+     * @param width is the number of pixels in the row.
+     */
+    private void addSpan(double a, double b, int width) {
+        if (a < 0) {
+            a = 0;
+        }
+        if (b > width) {
+            b = width;
+        }
+        if (b <= a) {
+            return;
+        }
+        float w = 1f / SUBSAMPLES;
+        int ia = (int) a;
+        int ib = (int) b;
+        if (ia == ib) {
+            touch(ia);
+            coverage[ia] += (float) (b - a) * w;
+            return;
+        }
+        touch(ia);
+        coverage[ia] += (float) (ia + 1 - a) * w;
+        touch(ia + 1);
+        steps[ia + 1] += w;
+        touch(ib);
+        steps[ib] -= w;
+        if (ib < width) {
+            coverage[ib] += (float) (b - ib) * w;
+        }
+    }
+
+    /**
+     * Adds a pixel to the sorted list of touched pixels if it isn't in there
+     * yet.
+     *
+     * @param i is the pixel relative to the left of the row.
+     */
+    private void touch(int i) {
+        int k = touchedCount;
+        while (k > 0 && touched[k - 1] > i) {
+            k--;
+        }
+        if (k > 0 && touched[k - 1] == i) {
+            return;
+        }
+        System.arraycopy(touched, k, touched, k + 1, touchedCount - k);
+        touched[k] = i;
+        touchedCount++;
+    }
+
+    /**
+     * Blends a color into a row of premultiplied pixels using the row
+     * coverage as the alpha, then resets the coverage for the next row. The
+     * pixels between two touched pixels all have the same coverage so they
+     * are drawn as one run, which for an opaque color that fully covers them
+     * is just a fill.
+     *
+     * @param start is the index of the first pixel of the row.
+     * @param width is the number of pixels in the row.
+     * @param argb is the color packed as 0xAARRGGBB (not premultiplied).
+     */
+    private void blendRow(int start, int width, int argb) {
+        float run = 0;
+        int next = 0;
+        for (int k = 0; k < touchedCount; k++) {
+            int t = touched[k];
+            if (run > 0.001f && t > next) {
+                int a = Math.round(Math.min(run, 1f) * (argb >>> 24));
+                blendRun(start + next, start + t, argb, a);
+            }
+            run += steps[t];
+            if (t < width) {
+                float c = run + coverage[t];
+                if (c > 0.001f) {
+                    int a = Math.round(Math.min(c, 1f) * (argb >>> 24));
+                    blendRun(start + t, start + t + 1, argb, a);
+                }
+            }
+            coverage[t] = 0;
+            steps[t] = 0;
+            next = t + 1;
+        }
+    }
+
+    /**
+     * Blends a color with the same alpha into a run of pixels of the current
+     * target.
+     *
+     * @param from is the index of the first pixel.
+     * @param to is the index after the last pixel.
+     * @param argb is the color packed as 0xAARRGGBB (not premultiplied).
+     * @param a is the alpha to blend the color with, 0 to 255.
+     */
+    private void blendRun(int from, int to, int argb, int a) {
+        int[] pixels = targetArray;
+        if (pixels != null) {
+            if (a == 255) {
+                Arrays.fill(pixels, from, to, argb);
+            } else {
+                for (int p = from; p < to; p++) {
+                    pixels[p] = blend(pixels[p], argb, a);
+                }
+            }
+        } else {
+            IntBuffer buffer = targetBuffer;
+            for (int p = from; p < to; p++) {
+                buffer.put(p, a == 255 ? argb : blend(buffer.get(p), argb, a));
+            }
+        }
+    }
+
+    /**
+     * Blends a color over a premultiplied pixel.
+     *
+     * @param d is the premultiplied pixel underneath.
+     * @param argb is the color packed as 0xAARRGGBB (not premultiplied).
+     * @param a is the alpha to blend the color with, 0 to 255.
+     * @return int the blended premultiplied pixel.
+     */
+    static int blend(int d, int argb, int a) {
+        int inv = 255 - a;
+        int oa = a + div255((d >>> 24) * inv);
+        int or = div255(((argb >> 16) & 0xFF) * a + ((d >> 16) & 0xFF) * inv);
+        int og = div255(((argb >> 8) & 0xFF) * a + ((d >> 8) & 0xFF) * inv);
+        int ob = div255((argb & 0xFF) * a + (d & 0xFF) * inv);
+        return (oa << 24) | (or << 16) | (og << 8) | ob;
+    }
+
+    /**
+     * Fades a premultiplied pixel, as when a layer is less than opaque.
+     *
+     * @param s is the premultiplied pixel.
+     * @param a is the alpha to fade it by, 0 to 255.
+     * @return int the faded premultiplied pixel.
+     */
+    static int fade(int s, int a) {
+        return (div255((s >>> 24) * a) << 24) | (div255(((s >> 16) & 0xFF) * a) << 16)
+                | (div255(((s >> 8) & 0xFF) * a) << 8) | div255((s & 0xFF) * a);
+    }
+
+    /**
+     * Blends a premultiplied pixel over another one, as when a layer is
+     * drawn over the ones below it.
+     *
+     * @param s is the premultiplied pixel on top.
+     * @param d is the premultiplied pixel underneath.
+     * @return int the blended premultiplied pixel.
+     */
+    static int over(int s, int d) {
+        int inv = 255 - (s >>> 24);
+        if (inv == 0 || d == 0) {
+            return s;
+        }
+        // premultiplied channels can't carry into each other
+        return s + fade(d, inv);
+    }
+
+    /**
+     * Divides by 255 with rounding, for values up to 255 * 255.
+     *
+     * @param v is the value to divide.
+     * @return int v / 255 rounded.
+     */
+    static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    /**
+     * Draws every star in a store into an image, splitting the image into
+     * tiles that are drawn in parallel. The pixels already in the image are
+     * kept, so it can be filled with a background color first.
+     *
+     * @param stars is the store holding the stars to draw.
+     * @param pixels is the array of premultiplied ARGB pixels, width * height
+     * long.
+     * @param width is the width of the image.
+     * @param height is the height of the image.
+     * @param pool is the ForkJoinPool the tiles are drawn on.
+     */
+    public static void render(StarStore stars, int[] pixels, int width, int height, ForkJoinPool pool) {
+        int tilesX = (width + TILE - 1) / TILE;
+        int tilesY = (height + TILE - 1) / TILE;
+        int[][] bins = binStars(stars, tilesX, tilesY);
+        pool.invoke(new TileTask(stars, bins, pixels, width, height, tilesX, 0, tilesX * tilesY));
+    }
+
+    /**
+     * Sorts the stars into the tiles their bounding boxes touch. Stars are
+     * added in order so each tile's list is in drawing order. The first entry
+     * of each list is the number of stars in it.
+     *
+     * @param stars is the store holding the stars.
+     * @param tilesX is the number of tile columns.
+     * @param tilesY is the number of tile rows.
+     * @return array of star index lists, one per tile (null for empty tiles).
+     */
+    private static int[][] binStars(StarStore stars, int tilesX, int tilesY) {
+        int[][] bins = new int[tilesX * tilesY][];
+        for (int i = 0; i < stars.size(); i++) {
+            if (!stars.isShown(i)) {
+                continue;
+            }
+            double size = stars.getSize(i);
+            double x = stars.getX(i);
+            double y = stars.getY(i);
+            int tx0 = Math.max(0, (int) Math.floor((x - size * StarGeometry.HALF_WIDTH) / TILE));
+            int tx1 = Math.min(tilesX - 1, (int) Math.floor((x + size * StarGeometry.HALF_WIDTH) / TILE));
+            int ty0 = Math.max(0, (int) Math.floor((y - size * StarGeometry.TOP) / TILE));
+            int ty1 = Math.min(tilesY - 1, (int) Math.floor((y + size * StarGeometry.BOTTOM) / TILE));
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int t = ty * tilesX + tx;
+                    int[] bin = bins[t];
+                    if (bin == null) {
+                        bin = bins[t] = new int[8];
+                    } else if (bin[0] + 1 == bin.length) {
+                        bin = bins[t] = Arrays.copyOf(bin, bin.length * 2);
+                    }
+                    bin[++bin[0]] = i;
+                }
+            }
+        }
+        return bins;
+    }
+
+    /**
+     * ForkJoin task drawing a range of tiles, split in half until each task
+     * has a single tile.
+     */
+    private static class TileTask extends RecursiveAction {
+
+        /**
+         * Tasks are never serialized, but RecursiveAction is Serializable.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The store holding the stars.
+         */
+        private final StarStore stars;
+
+        /**
+         * The star index lists for each tile.
+         */
+        private final int[][] bins;
+
+        /**
+         * The pixels of the whole image.
+         */
+        private final int[] pixels;
+
+        /**
+         * The width of the image.
+         */
+        private final int width;
+
+        /**
+         * The height of the image.
+         */
+        private final int height;
+
+        /**
+         * The number of tile columns.
+         */
+        private final int tilesX;
+
+        /**
+         * The first tile drawn by this task.
+         */
+        private final int from;
+
+        /**
+         * The tile after the last tile drawn by this task.
+         */
+        private final int to;
+
+        /**
+         * Constructor for a TileTask.
+         *
+         * @param stars is the store holding the stars.
+         * @param bins is the star index lists for each tile.
+         * @param pixels is the pixels of the whole image.
+         * @param width is the width of the image.
+         * @param height is the height of the image.
+         * @param tilesX is the number of tile columns.
+         * @param from is the first tile to draw.
+         * @param to is the tile after the last tile to draw.
+         */
+        TileTask(StarStore stars, int[][] bins, int[] pixels, int width, int height, int tilesX, int from, int to) {
+            this.stars = stars;
+            this.bins = bins;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.tilesX = tilesX;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(stars, bins, pixels, width, height, tilesX, from, mid),
+                        new TileTask(stars, bins, pixels, width, height, tilesX, mid, to));
+                return;
+            }
+            int[] bin = bins[from];
+            if (bin == null) {
+                return;
+            }
+            StarRasterizer rasterizer = new StarRasterizer();
+            Palette palette = stars.getPalette();
+            int x0 = (from % tilesX) * TILE;
+            int y0 = (from / tilesX) * TILE;
+            int x1 = Math.min(width, x0 + TILE);
+            int y1 = Math.min(height, y0 + TILE);
+            for (int k = 1; k <= bin[0]; k++) {
+                int i = bin[k];
+                rasterizer.fillStar(pixels, 0, width, 0, 0, x0, y0, x1, y1,
+                        stars.getSize(i), stars.getX(i), stars.getY(i), palette.get(stars.getColor(i)));
+            }
+        }
+    }
+}
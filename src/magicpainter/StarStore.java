@@ -0,0 +1,592 @@
+package magicpainter;
+
+import java.util.Arrays;
+
+/**
+ * Retained list of every star placed on the canvas. Stars are kept in
+ * parallel primitive arrays (x, y, size, palette index and layer, plus bits
+ * marking erased and occluded stars) instead of as Star objects, so each
+ * star costs just over 17 bytes and millions of them fit in the heap.
+ * The arrays grow by half their size whenever they fill up. The store does not
+ * depend on JavaFX, drawing it onto a GraphicsContext is done by
+ * {@link Star#drawAll}.
+ *
+ * @author sylverk @ github
+ */
+public class StarStore {
+
+    /**
+     * Interface for walking over the stars in the store without creating an
+     * object per star.
+     */
+    public interface Visitor {
+
+        /**
+         * Called once for every star visited, in the order they were placed.
+         *
+         * @param index is the position of the star in the store.
+         * @param size is the size of the star from left tip to right tip.
+         * @param x is the x-position of the center of the star.
+         * @param y is the y-position of slightly above the center of the star.
+         * @param color is the palette index of the star's color.
+         */
+        void visit(int index, float size, float x, float y, int color);
+    }
+
+    /**
+     * int describing the number of stars a new store has room for.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * array of floats holding the x-position of each star.
+     */
+    private float[] xs;
+
+    /**
+     * array of floats holding the y-position of each star.
+     */
+    private float[] ys;
+
+    /**
+     * array of floats holding the size of each star.
+     */
+    private float[] sizes;
+
+    /**
+     * array of ints holding the palette index of each star's color.
+     */
+    private int[] colors;
+
+    /**
+     * array of bytes holding the layer each star is on.
+     */
+    private byte[] layers;
+
+    /**
+     * array of bits marking the stars that were removed (erased). Removed
+     * stars keep their slot so indices don't shift and they can be put back.
+     */
+    private long[] removed;
+
+    /**
+     * int describing how many stars are marked as removed.
+     */
+    private int removedCount;
+
+    /**
+     * array of bits marking the stars that later stars hide completely (see
+     * Occlusion). They still belong to the painting, but don't have to be
+     * drawn, saved or exported.
+     */
+    private long[] occluded;
+
+    /**
+     * int describing how many stars are marked as occluded.
+     */
+    private int occludedCount;
+
+    /**
+     * int describing how many stars are in the store.
+     */
+    private int count;
+
+    /**
+     * int describing how many stars at the start of the arrays a copy made
+     * by {@link #share} or {@link #snapshot} may still be reading. Writing
+     * over one of them moves the store to new arrays first.
+     */
+    private int shared;
+
+    /**
+     * The palette that the color indices refer to.
+     */
+    private final Palette palette;
+
+    /**
+     * Constructor for an empty store with the default palette.
+     */
+    public StarStore() {
+        this(new Palette());
+    }
+
+    /**
+     * Constructor for an empty store using the given palette.
+     *
+     * @param palette is the palette the color indices of the stars refer to.
+     */
+    public StarStore(Palette palette) {
+        this.palette = palette;
+        xs = new float[INITIAL_CAPACITY];
+        ys = new float[INITIAL_CAPACITY];
+        sizes = new float[INITIAL_CAPACITY];
+        colors = new int[INITIAL_CAPACITY];
+        layers = new byte[INITIAL_CAPACITY];
+        removed = new long[INITIAL_CAPACITY / 64];
+        occluded = new long[INITIAL_CAPACITY / 64];
+    }
+
+    /**
+     * Adds a star to the end of the store, on layer 0.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param color is the palette index of the star's color.
+     * @return int index of the new star.
+     */
+    public int add(double size, double x, double y, int color) {
+        if (count == xs.length) {
+            grow(count + 1);
+        }
+        unshare(count);
+        xs[count] = (float) x;
+        ys[count] = (float) y;
+        sizes[count] = (float) size;
+        colors[count] = color;
+        layers[count] = 0;
+        removed[count >> 6] &= ~(1L << count);
+        occluded[count >> 6] &= ~(1L << count);
+        return count++;
+    }
+
+    /**
+     * Adds every star of another store to the end of this one, with their
+     * removed and occluded marks. If the other store has its own palette its
+     * colors are added to this palette and the color indices translated.
+     *
+     * @param other is the store whose stars get copied.
+     */
+    public void addAll(StarStore other) {
+        int n = other.count;
+        ensureCapacity(count + n);
+        unshare(count);
+        System.arraycopy(other.xs, 0, xs, count, n);
+        System.arraycopy(other.ys, 0, ys, count, n);
+        System.arraycopy(other.sizes, 0, sizes, count, n);
+        System.arraycopy(other.layers, 0, layers, count, n);
+        if (other.palette == palette) {
+            System.arraycopy(other.colors, 0, colors, count, n);
+        } else {
+            int[] map = new int[other.palette.size()];
+            for (int c = 0; c < map.length; c++) {
+                map[c] = palette.indexOf(other.palette.get(c));
+            }
+            for (int i = 0; i < n; i++) {
+                colors[count + i] = map[other.colors[i]];
+            }
+        }
+        if (other.removedCount > 0 || removedCount > 0) {
+            for (int i = 0; i < n; i++) {
+                if (other.isRemoved(i)) {
+                    remove(count + i);
+                } else {
+                    restore(count + i);
+                }
+            }
+        }
+        if (other.occludedCount > 0 || occludedCount > 0) {
+            for (int i = 0; i < n; i++) {
+                if (other.isOccluded(i)) {
+                    occlude(count + i);
+                } else {
+                    reveal(count + i);
+                }
+            }
+        }
+        count += n;
+    }
+
+    /**
+     * Adds stars of one size and color at the given positions to the end of
+     * the store, on layer 0, copying the positions column by column.
+     *
+     * @param size is the size of the stars from left tip to right tip.
+     * @param x are the x-positions of the centers of the stars.
+     * @param y are the y-positions of slightly above the centers.
+     * @param n is the number of stars, from the start of the arrays.
+     * @param color is the palette index of the stars' color.
+     */
+    public void addAll(double size, float[] x, float[] y, int n, int color) {
+        ensureCapacity(count + n);
+        unshare(count);
+        System.arraycopy(x, 0, xs, count, n);
+        System.arraycopy(y, 0, ys, count, n);
+        Arrays.fill(sizes, count, count + n, (float) size);
+        Arrays.fill(colors, count, count + n, color);
+        Arrays.fill(layers, count, count + n, (byte) 0);
+        for (int i = count; i < count + n; i++) {
+            removed[i >> 6] &= ~(1L << i);
+            occluded[i >> 6] &= ~(1L << i);
+        }
+        count += n;
+    }
+
+    /**
+     * Makes sure the store can hold at least the given number of stars without
+     * growing again. Useful before adding a large batch of stars.
+     *
+     * @param capacity is the number of stars to make room for.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > xs.length) {
+            grow(capacity);
+        }
+    }
+
+    /**
+     * Grows the arrays by half (or to the needed capacity if that is bigger).
+     *
+     * @param needed is the minimum number of stars the arrays must hold.
+     */
+    private void grow(int needed) {
+        if (needed < 0) {
+            throw new IllegalStateException("Too many stars for one store");
+        }
+        int capacity = xs.length + (xs.length >> 1);
+        if (capacity < needed || capacity < 0) {
+            capacity = needed;
+        }
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+        layers = Arrays.copyOf(layers, capacity);
+        removed = Arrays.copyOf(removed, (capacity + 63) / 64);
+        occluded = Arrays.copyOf(occluded, (capacity + 63) / 64);
+        shared = 0;
+    }
+
+    /**
+     * Moves the star data to new arrays before a star that a copy may still
+     * be reading is written over, which only happens after undo hid stars
+     * and new ones are added in their place.
+     *
+     * @param i is the index of the first star about to be written.
+     */
+    private void unshare(int i) {
+        if (i < shared) {
+            xs = xs.clone();
+            ys = ys.clone();
+            sizes = sizes.clone();
+            colors = colors.clone();
+            layers = layers.clone();
+            shared = 0;
+        }
+    }
+
+    /**
+     * Removes every star from the store. The arrays are kept so a new painting
+     * doesn't have to grow them again.
+     */
+    public void clear() {
+        Arrays.fill(removed, 0, (count + 63) / 64, 0L);
+        removedCount = 0;
+        clearOccluded();
+        count = 0;
+    }
+
+    /**
+     * Changes how many stars are in the store without touching their data,
+     * used by undo and redo. Shrinking hides the last stars, and growing back
+     * up to where the store was shows them again, as long as nothing was
+     * added in between.
+     *
+     * @param n is the new number of stars, at most the capacity of the store.
+     */
+    void setCount(int n) {
+        if (n < 0 || n > xs.length) {
+            throw new IndexOutOfBoundsException("Count " + n + " outside 0-" + xs.length);
+        }
+        count = n;
+    }
+
+    /**
+     * Overwrites a star without changing the count, for filling a store
+     * from several threads after {@link #ensureCapacity} and before
+     * {@link #setCount}. The star must not be marked as removed or occluded.
+     *
+     * @param i is the index of the star.
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param color is the palette index of the star's color.
+     */
+    void set(int i, float size, float x, float y, int color) {
+        unshare(i);
+        xs[i] = x;
+        ys[i] = y;
+        sizes[i] = size;
+        colors[i] = color;
+        layers[i] = 0;
+    }
+
+    /**
+     * Makes a store that reads the same star data as this one, for looking at
+     * the stars that are already in it from another thread while this one
+     * keeps changing. Nothing is copied: growing this store, or writing over
+     * a star the copy holds, moves this store to new arrays and leaves the
+     * copy with the old ones. Nothing is ever removed or occluded in the
+     * copy, and its palette is this one's.
+     *
+     * @return StarStore with the same stars, not to be added to.
+     */
+    StarStore share() {
+        StarStore copy = new StarStore(palette);
+        copy.xs = xs;
+        copy.ys = ys;
+        copy.sizes = sizes;
+        copy.colors = colors;
+        copy.layers = layers;
+        copy.removed = new long[(count + 63) / 64 + 1];
+        copy.occluded = new long[copy.removed.length];
+        copy.count = count;
+        shared = Math.max(shared, count);
+        return copy;
+    }
+
+    /**
+     * Makes a store that reads the same star data as this one like
+     * {@link #share}, but with copies of the removed and occluded marks and
+     * of the palette, so it can be saved from another thread as the store is
+     * now. The marks take a bit per star, the stars themselves are not
+     * copied.
+     *
+     * @return StarStore with the same stars, not to be added to.
+     */
+    StarStore snapshot() {
+        StarStore copy = new StarStore(palette.copy());
+        copy.xs = xs;
+        copy.ys = ys;
+        copy.sizes = sizes;
+        copy.colors = colors;
+        copy.layers = layers;
+        copy.removed = Arrays.copyOf(removed, (count + 63) / 64 + 1);
+        copy.removedCount = removedCount;
+        copy.occluded = Arrays.copyOf(occluded, copy.removed.length);
+        copy.occludedCount = occludedCount;
+        copy.count = count;
+        shared = Math.max(shared, count);
+        return copy;
+    }
+
+    /**
+     * Moves a range of stars onto a layer.
+     *
+     * @param from is the index of the first star.
+     * @param to is the index after the last star.
+     * @param layer is the id of the layer.
+     */
+    public void setLayer(int from, int to, int layer) {
+        if (from < 0 || to > count || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + " outside 0-" + count);
+        }
+        unshare(from);
+        Arrays.fill(layers, from, to, (byte) layer);
+    }
+
+    /**
+     * Marks a star as removed. It keeps its index but is skipped when the
+     * store is drawn or visited.
+     *
+     * @param i is the index of the star.
+     */
+    public void remove(int i) {
+        if (!isRemoved(i)) {
+            removed[i >> 6] |= 1L << i;
+            removedCount++;
+        }
+    }
+
+    /**
+     * Puts a removed star back.
+     *
+     * @param i is the index of the star.
+     */
+    public void restore(int i) {
+        if (isRemoved(i)) {
+            removed[i >> 6] &= ~(1L << i);
+            removedCount--;
+        }
+    }
+
+    /**
+     * Checks if a star was removed.
+     *
+     * @param i is the index of the star.
+     * @return boolean true if the star is marked as removed.
+     */
+    public boolean isRemoved(int i) {
+        return (removed[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Marks a star as occluded, because later stars hide it completely. It
+     * keeps its index and can still be erased, but is skipped when the store
+     * is drawn, visited or saved.
+     *
+     * @param i is the index of the star.
+     */
+    public void occlude(int i) {
+        if (!isOccluded(i)) {
+            occluded[i >> 6] |= 1L << i;
+            occludedCount++;
+        }
+    }
+
+    /**
+     * Shows an occluded star again, for when a star hiding it went away.
+     *
+     * @param i is the index of the star.
+     */
+    public void reveal(int i) {
+        if (isOccluded(i)) {
+            occluded[i >> 6] &= ~(1L << i);
+            occludedCount--;
+        }
+    }
+
+    /**
+     * Shows every occluded star again, including any past the count that
+     * undo hid.
+     */
+    public void clearOccluded() {
+        Arrays.fill(occluded, 0L);
+        occludedCount = 0;
+    }
+
+    /**
+     * Checks if a star is occluded.
+     *
+     * @param i is the index of the star.
+     * @return boolean true if the star is marked as occluded.
+     */
+    public boolean isOccluded(int i) {
+        return (occluded[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Checks if a star has to be drawn: it is neither removed nor occluded.
+     *
+     * @param i is the index of the star.
+     * @return boolean true if the star is shown.
+     */
+    public boolean isShown(int i) {
+        return ((removed[i >> 6] | occluded[i >> 6]) & (1L << i)) == 0;
+    }
+
+    /**
+     * Visits every star in the order they were placed, skipping removed and
+     * occluded stars.
+     *
+     * @param visitor is called once per star.
+     */
+    public void forEach(Visitor visitor) {
+        forEach(0, count, visitor);
+    }
+
+    /**
+     * Visits the stars from index from (inclusive) to index to (exclusive),
+     * skipping removed and occluded stars.
+     *
+     * @param from is the index of the first star to visit.
+     * @param to is the index after the last star to visit.
+     * @param visitor is called once per star.
+     */
+    public void forEach(int from, int to, Visitor visitor) {
+        if (from < 0 || to > count || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + " outside 0-" + count);
+        }
+        for (int i = from; i < to; i++) {
+            if ((removedCount == 0 && occludedCount == 0) || isShown(i)) {
+                visitor.visit(i, sizes[i], xs[i], ys[i], colors[i]);
+            }
+        }
+    }
+
+    /**
+     * Standard getter. Removed stars are still counted.
+     *
+     * @return int describing how many stars are in the store.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int describing how many stars in the store are removed.
+     */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int describing how many stars in the store are occluded.
+     */
+    public int getOccludedCount() {
+        return occludedCount;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @param i is the index of the star.
+     * @return float x-position of the center of the star.
+     */
+    public float getX(int i) {
+        return xs[i];
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @param i is the index of the star.
+     * @return float y-position of slightly above the center of the star.
+     */
+    public float getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @param i is the index of the star.
+     * @return float size of the star from left tip to right tip.
+     */
+    public float getSize(int i) {
+        return sizes[i];
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @param i is the index of the star.
+     * @return int palette index of the star's color.
+     */
+    public int getColor(int i) {
+        return colors[i];
+    }
+
+    /**
+     * Gets the layer of a star.
+     *
+     * @param i is the index of the star.
+     * @return int id of the layer the star is on.
+     */
+    public int getLayer(int i) {
+        return layers[i];
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return the Palette the color indices refer to.
+     */
+    public Palette getPalette() {
+        return palette;
+    }
+}
@@ -0,0 +1,517 @@
+package magicpainter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Fills a rectangle of the document with stars, either scattered at random
+ * or with Poisson-disk spacing (no two stars closer than a distance, which
+ * looks evenly spread without being a grid). Sizes are picked from a
+ * ladder of sizes, each a quarter as likely as the one before, and colors
+ * from the six swatch colors. The work is split into units that run in
+ * parallel on a ForkJoinPool, each with its own SplittableRandom split off
+ * the seed in order before anything runs, and the units are handed over in
+ * order, so the same seed always gives the same stars in the same order
+ * however many threads there are. Doesn't depend on JavaFX.
+ *
+ * For Poisson-disk spacing the rectangle is cut into square blocks that are
+ * filled with Bridson's algorithm, looking up neighbors in a grid shared by
+ * all blocks with at most one star per cell. The blocks are done in four
+ * phases by their column and row being odd or even, so blocks running at
+ * the same time never touch each other's neighborhood, and a block sees
+ * the stars of the blocks done in earlier phases and keeps its distance
+ * from them.
+ *
+ * @author sylverk @ github
+ */
+public class StarfieldGenerator {
+
+    /**
+     * int describing the most stars a field can have.
+     */
+    public static final int MAX_STARS = 1 << 24;
+
+    /**
+     * int describing the most stars a Poisson-disk field can have, as its
+     * grid takes about 20 bytes per star.
+     */
+    public static final int MAX_POISSON_STARS = 1 << 22;
+
+    /**
+     * int describing how many candidates Bridson's algorithm tries around a
+     * star before giving up on it.
+     */
+    private static final int CANDIDATES = 12;
+
+    /**
+     * double describing how far out the candidates are, in spacings. Just
+     * over 1 packs the stars tightest (Roberts' take on Bridson's
+     * algorithm), which needs far fewer candidates than the usual random
+     * spots between one and two spacings away.
+     */
+    private static final double RING = 1.0001;
+
+    /**
+     * The cosines of the angles of the candidates.
+     */
+    private static final double[] CANDIDATE_COS = new double[CANDIDATES];
+
+    /**
+     * The sines of the angles of the candidates.
+     */
+    private static final double[] CANDIDATE_SIN = new double[CANDIDATES];
+
+    static {
+        for (int k = 0; k < CANDIDATES; k++) {
+            CANDIDATE_COS[k] = Math.cos(2 * Math.PI * k / CANDIDATES);
+            CANDIDATE_SIN[k] = Math.sin(2 * Math.PI * k / CANDIDATES);
+        }
+    }
+
+    /**
+     * double describing how many stars Bridson's algorithm fits in a square
+     * whose side is the spacing, used to pick the spacing for a count.
+     */
+    private static final double DENSITY = 0.82;
+
+    /**
+     * int describing the smallest side of a Poisson-disk block.
+     */
+    private static final int MIN_BLOCK = 512;
+
+    /**
+     * double describing the left edge of the rectangle.
+     */
+    private final double x0;
+
+    /**
+     * double describing the top edge of the rectangle.
+     */
+    private final double y0;
+
+    /**
+     * double describing the width of the rectangle.
+     */
+    private final double width;
+
+    /**
+     * double describing the height of the rectangle.
+     */
+    private final double height;
+
+    /**
+     * int describing how many stars to make, about that many with
+     * Poisson-disk spacing.
+     */
+    private final int count;
+
+    /**
+     * long describing the seed.
+     */
+    private final long seed;
+
+    /**
+     * boolean indicating if the stars get Poisson-disk spacing.
+     */
+    private final boolean poisson;
+
+    /**
+     * The sizes to pick from, smallest first.
+     */
+    private final double[] sizes;
+
+    /**
+     * The chance of picking each size or a smaller one, the last being 1.
+     */
+    private final double[] sizeOdds;
+
+    /**
+     * boolean indicating if generating should stop.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * long describing how many stars were handed over so far.
+     */
+    private volatile long made;
+
+    /**
+     * Constructor for a StarfieldGenerator.
+     *
+     * @param x is the left edge of the rectangle to fill.
+     * @param y is the top edge.
+     * @param width is the width of the rectangle.
+     * @param height is the height of the rectangle.
+     * @param count is how many stars to make; with Poisson-disk spacing the
+     * distance is picked so that about that many fit.
+     * @param seed is the seed, the same one gives the same field.
+     * @param poisson is true for Poisson-disk spacing.
+     * @param sizes are the sizes to pick from, smallest first.
+     */
+    public StarfieldGenerator(double x, double y, double width, double height, int count, long seed,
+            boolean poisson, double[] sizes) {
+        if (count < 1 || count > (poisson ? MAX_POISSON_STARS : MAX_STARS)) {
+            throw new IllegalArgumentException("A field can have 1 to "
+                    + (poisson ? MAX_POISSON_STARS : MAX_STARS) + " stars");
+        }
+        if (!(width > 0 && height > 0) || sizes.length == 0) {
+            throw new IllegalArgumentException("Nothing to fill");
+        }
+        this.x0 = x;
+        this.y0 = y;
+        this.width = width;
+        this.height = height;
+        this.count = count;
+        this.seed = seed;
+        this.poisson = poisson;
+        this.sizes = sizes.clone();
+        sizeOdds = new double[sizes.length];
+        double weight = 1;
+        double total = 0;
+        for (int k = 0; k < sizes.length; k++) {
+            total += weight;
+            sizeOdds[k] = total;
+            weight /= 4;
+        }
+        for (int k = 0; k < sizes.length; k++) {
+            sizeOdds[k] /= total;
+        }
+        sizeOdds[sizes.length - 1] = 1;
+    }
+
+    /**
+     * Picks the sizes of a ladder up to a size, for fields whose biggest
+     * stars are the size of the brush.
+     *
+     * @param ladder are the sizes, smallest first.
+     * @param maxSize is the biggest size to keep.
+     * @return array of the sizes kept, at least the smallest one.
+     */
+    public static double[] sizesUpTo(double[] ladder, double maxSize) {
+        int n = 1;
+        while (n < ladder.length && ladder[n] <= maxSize) {
+            n++;
+        }
+        return Arrays.copyOf(ladder, n);
+    }
+
+    /**
+     * Makes the field, handing the stars over in order.
+     *
+     * @param handler receives the stars, a chunk at a time, each chunk in a
+     * store with its own palette.
+     * @param pool is the pool the units run on.
+     * @return int number of stars made.
+     * @throws InterruptedException if the handler was interrupted or
+     * generating was cancelled.
+     */
+    public int generate(StarCsvReader.ChunkHandler handler, ForkJoinPool pool) throws InterruptedException {
+        made = 0;
+        if (poisson) {
+            generatePoisson(handler, pool);
+        } else {
+            generateRandom(handler, pool);
+        }
+        return (int) made;
+    }
+
+    /**
+     * Scatters the stars at random, a chunk per unit.
+     *
+     * @param handler receives the stars.
+     * @param pool is the pool the units run on.
+     * @throws InterruptedException if the handler was interrupted or
+     * generating was cancelled.
+     */
+    private void generateRandom(StarCsvReader.ChunkHandler handler, ForkJoinPool pool) throws InterruptedException {
+        SplittableRandom root = new SplittableRandom(seed);
+        ArrayDeque<Future<StarStore>> inFlight = new ArrayDeque<>();
+        try {
+            for (int from = 0; from < count || !inFlight.isEmpty();) {
+                if (from < count && inFlight.size() < pool.getParallelism() * 2) {
+                    int n = Math.min(StarCsvReader.CHUNK_STARS, count - from);
+                    SplittableRandom random = root.split();
+                    inFlight.add(pool.submit(() -> scatter(random, n)));
+                    from += n;
+                    continue;
+                }
+                hand(handler, inFlight.remove());
+            }
+        } finally {
+            for (Future<StarStore> f : inFlight) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Scatters stars at random over the whole rectangle.
+     *
+     * @param random is the unit's random numbers.
+     * @param n is how many stars to make.
+     * @return StarStore holding them.
+     */
+    private StarStore scatter(SplittableRandom random, int n) {
+        StarStore stars = new StarStore(new Palette());
+        stars.ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            double x = x0 + random.nextDouble() * width;
+            double y = y0 + random.nextDouble() * height;
+            add(stars, random, x, y);
+        }
+        return stars;
+    }
+
+    /**
+     * Spaces the stars with Bridson's algorithm, a block per unit, phase by
+     * phase.
+     *
+     * @param handler receives the stars.
+     * @param pool is the pool the units run on.
+     * @throws InterruptedException if the handler was interrupted or
+     * generating was cancelled.
+     */
+    private void generatePoisson(StarCsvReader.ChunkHandler handler, ForkJoinPool pool) throws InterruptedException {
+        double spacing = Math.sqrt(width * height * DENSITY / count);
+        Grid grid = new Grid(spacing);
+        // a block must be wider than the neighborhood looked at, so blocks
+        // of the same phase are never neighbors
+        double block = Math.max(MIN_BLOCK, 4 * spacing);
+        int blocksX = (int) Math.ceil(width / block);
+        int blocksY = (int) Math.ceil(height / block);
+        SplittableRandom[] randoms = new SplittableRandom[blocksX * blocksY];
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int b = 0; b < randoms.length; b++) {
+            randoms[b] = root.split();
+        }
+        ArrayDeque<Future<StarStore>> inFlight = new ArrayDeque<>();
+        try {
+            for (int phase = 0; phase < 4; phase++) {
+                for (int by = phase >> 1; by < blocksY || !inFlight.isEmpty();) {
+                    if (by < blocksY && inFlight.size() < pool.getParallelism() * 2) {
+                        for (int bx = phase & 1; bx < blocksX; bx += 2) {
+                            double left = x0 + bx * block;
+                            double top = y0 + by * block;
+                            double right = Math.min(x0 + width, left + block);
+                            double bottom = Math.min(y0 + height, top + block);
+                            SplittableRandom random = randoms[by * blocksX + bx];
+                            inFlight.add(pool.submit(() -> fill(grid, random, left, top, right, bottom)));
+                        }
+                        by += 2;
+                        continue;
+                    }
+                    hand(handler, inFlight.remove());
+                }
+            }
+        } finally {
+            for (Future<StarStore> f : inFlight) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Fills a block with Bridson's algorithm: start from a free spot, then
+     * keep trying candidates around a star picked from the active ones,
+     * dropping a star once none of its candidates fit.
+     *
+     * @param grid is the grid of every star placed so far.
+     * @param random is the block's random numbers.
+     * @param left is the left edge of the block.
+     * @param top is the top edge of the block.
+     * @param right is the right edge of the block.
+     * @param bottom is the bottom edge of the block.
+     * @return StarStore holding the stars of the block.
+     */
+    private StarStore fill(Grid grid, SplittableRandom random, double left, double top, double right, double bottom) {
+        StarStore stars = new StarStore(new Palette());
+        double spacing = grid.spacing;
+        int[] active = new int[64];
+        int activeCount = 0;
+        for (int k = 0; k < CANDIDATES && activeCount == 0; k++) {
+            double x = left + random.nextDouble() * (right - left);
+            double y = top + random.nextDouble() * (bottom - top);
+            if (grid.fits(x, y)) {
+                grid.put(x, y);
+                active[activeCount++] = add(stars, random, x, y);
+            }
+        }
+        while (activeCount > 0 && !cancelled) {
+            int a = random.nextInt(activeCount);
+            double px = stars.getX(active[a]);
+            double py = stars.getY(active[a]);
+            boolean placed = false;
+            // the candidates are evenly spread on a circle just outside the
+            // spacing, turned by a random angle
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double cos = Math.cos(angle) * spacing * RING;
+            double sin = Math.sin(angle) * spacing * RING;
+            for (int k = 0; k < CANDIDATES; k++) {
+                double x = px + cos * CANDIDATE_COS[k] - sin * CANDIDATE_SIN[k];
+                double y = py + sin * CANDIDATE_COS[k] + cos * CANDIDATE_SIN[k];
+                if (x >= left && x < right && y >= top && y < bottom && grid.fits(x, y)) {
+                    grid.put(x, y);
+                    if (activeCount == active.length) {
+                        active = Arrays.copyOf(active, activeCount * 2);
+                    }
+                    active[activeCount++] = add(stars, random, x, y);
+                    placed = true;
+                    break;
+                }
+            }
+            if (!placed) {
+                active[a] = active[--activeCount];
+            }
+        }
+        return stars;
+    }
+
+    /**
+     * Adds a star with a random size and color.
+     *
+     * @param stars is the store to add it to, with the default palette.
+     * @param random is the unit's random numbers.
+     * @param x is the x-position of the star.
+     * @param y is the y-position of the star.
+     * @return int index of the star.
+     */
+    private int add(StarStore stars, SplittableRandom random, double x, double y) {
+        double pick = random.nextDouble();
+        int size = 0;
+        while (pick >= sizeOdds[size]) {
+            size++;
+        }
+        return stars.add(sizes[size], x, y, random.nextInt(Palette.DEFAULT_COLORS.length));
+    }
+
+    /**
+     * Waits for the oldest unit and hands its stars over.
+     *
+     * @param handler receives the stars.
+     * @param unit is the unit.
+     * @throws InterruptedException if the handler was interrupted or
+     * generating was cancelled.
+     */
+    private void hand(StarCsvReader.ChunkHandler handler, Future<StarStore> unit) throws InterruptedException {
+        if (cancelled) {
+            throw new InterruptedException("Starfield cancelled.");
+        }
+        StarStore stars;
+        try {
+            stars = unit.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Couldn't make the starfield.", e.getCause());
+        }
+        made += stars.size();
+        if (stars.size() > 0) {
+            handler.chunk(stars);
+        }
+    }
+
+    /**
+     * Stops generating; can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Gets how far along generating is.
+     *
+     * @return double fraction of the stars handed over, 0 to 1, only about
+     * that with Poisson-disk spacing.
+     */
+    public double getProgress() {
+        return Math.min(1, made / (double) count);
+    }
+
+    /**
+     * Grid over the rectangle with cells small enough to hold at most one
+     * star, so looking for stars closer than the spacing only has to look
+     * at the 5x5 cells around a spot.
+     */
+    private final class Grid {
+
+        /**
+         * double describing the least distance between stars.
+         */
+        final double spacing;
+
+        /**
+         * double describing the side of a cell.
+         */
+        final double cell;
+
+        /**
+         * int describing the number of columns.
+         */
+        final int columns;
+
+        /**
+         * int describing the number of rows.
+         */
+        final int rows;
+
+        /**
+         * The x- and y-position of the star in each cell, side by side so
+         * looking at a cell touches one cache line, NaN for empty cells.
+         */
+        final float[] positions;
+
+        /**
+         * Constructor for an empty Grid.
+         *
+         * @param spacing is the least distance between stars.
+         */
+        Grid(double spacing) {
+            this.spacing = spacing;
+            cell = spacing / Math.sqrt(2);
+            columns = (int) Math.ceil(width / cell) + 1;
+            rows = (int) Math.ceil(height / cell) + 1;
+            positions = new float[columns * rows * 2];
+            Arrays.fill(positions, Float.NaN);
+        }
+
+        /**
+         * Checks that no star is closer to a spot than the spacing.
+         *
+         * @param x is the x-position of the spot.
+         * @param y is the y-position of the spot.
+         * @return boolean true if a star fits there.
+         */
+        boolean fits(double x, double y) {
+            int cx = (int) ((x - x0) / cell);
+            int cy = (int) ((y - y0) / cell);
+            double min = spacing * spacing;
+            for (int j = Math.max(0, cy - 2); j <= Math.min(rows - 1, cy + 2); j++) {
+                for (int i = Math.max(0, cx - 2); i <= Math.min(columns - 1, cx + 2); i++) {
+                    float sx = positions[(j * columns + i) * 2];
+                    if (sx == sx) {
+                        double dx = sx - x;
+                        double dy = positions[(j * columns + i) * 2 + 1] - y;
+                        if (dx * dx + dy * dy < min) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Puts a star in its cell.
+         *
+         * @param x is the x-position of the star.
+         * @param y is the y-position of the star.
+         */
+        void put(double x, double y) {
+            int c = (int) ((y - y0) / cell) * columns + (int) ((x - x0) / cell);
+            positions[c * 2] = (float) x;
+            positions[c * 2 + 1] = (float) y;
+        }
+    }
+}
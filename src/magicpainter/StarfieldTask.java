@@ -0,0 +1,84 @@
+package magicpainter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * Background task that makes a starfield with a StarfieldGenerator and
+ * streams the stars onto the canvas as they are made, like an ImportTask:
+ * each chunk is handed to the FX thread and drawn through the DrawQueue,
+ * with at most two chunks waiting at any time. The generator runs on the
+ * common ForkJoinPool. Progress is the fraction of the stars made, and
+ * cancelling the task stops the generator.
+ *
+ * @author sylverk @ github
+ */
+public class StarfieldTask extends Task<Integer> {
+
+    /**
+     * int describing how many chunks can wait for the FX thread at once.
+     */
+    private static final int IN_FLIGHT = 2;
+
+    /**
+     * The generator making the stars.
+     */
+    private final StarfieldGenerator generator;
+
+    /**
+     * The queue the chunks are drawn through.
+     */
+    private final DrawQueue drawQueue;
+
+    /**
+     * Permits for chunks waiting on the FX thread.
+     */
+    private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+
+    /**
+     * Constructor for a StarfieldTask.
+     *
+     * @param generator is the generator making the stars.
+     * @param drawQueue is the queue the stars are drawn through.
+     */
+    public StarfieldTask(StarfieldGenerator generator, DrawQueue drawQueue) {
+        this.generator = generator;
+        this.drawQueue = drawQueue;
+    }
+
+    /**
+     * Makes the stars on the background thread.
+     *
+     * @return Integer number of stars made.
+     * @throws Exception if the task was cancelled.
+     */
+    @Override
+    protected Integer call() throws Exception {
+        updateProgress(0, 1);
+        int count = generator.generate(chunk -> {
+            inFlight.acquire();
+            Platform.runLater(() -> {
+                if (!isCancelled()) {
+                    drawQueue.queueAll(chunk);
+                    drawQueue.flush();
+                }
+                inFlight.release();
+            });
+            updateProgress(generator.getProgress(), 1);
+        }, ForkJoinPool.commonPool());
+        // wait until the last chunks are drawn before reporting success
+        inFlight.acquire(IN_FLIGHT);
+        updateProgress(1, 1);
+        return count;
+    }
+
+    /**
+     * Stops the generator as well as the task.
+     */
+    @Override
+    protected void cancelled() {
+        generator.cancel();
+    }
+}
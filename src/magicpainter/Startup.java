@@ -0,0 +1,132 @@
+package magicpainter;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Milestones of starting the app, from the JVM starting to the first frame
+ * and the instructions being decoded. Marking one only reads the clock, so
+ * it can be done before anything else is loaded; the times are turned into
+ * milliseconds since the JVM started when they're asked for, which loads
+ * the management classes only then. Stats.dump writes them with the other
+ * counters, and with -Dmagicpainter.startup the app prints them to stderr
+ * once the first frame is up (and exits if the value is exit, for timing
+ * cold starts in a loop or training a class data sharing archive).
+ *
+ * @author sylverk @ github
+ */
+public final class Startup {
+
+    /**
+     * int describing the milestone of main being called.
+     */
+    public static final int MAIN = 0;
+
+    /**
+     * int describing the milestone of Application.start being called.
+     */
+    public static final int START = 1;
+
+    /**
+     * int describing the milestone of the stage being shown.
+     */
+    public static final int SHOWN = 2;
+
+    /**
+     * int describing the milestone of the first pulse being laid out, right
+     * before the first frame is rendered.
+     */
+    public static final int FRAME = 3;
+
+    /**
+     * int describing the milestone of the instructions being decoded.
+     */
+    public static final int INFO = 4;
+
+    /**
+     * The names of the milestones.
+     */
+    private static final String[] NAMES = {"main", "start", "shown", "frame", "info"};
+
+    /**
+     * The System.nanoTime of each milestone, or 0 until it's reached.
+     */
+    private static final long[] marks = new long[NAMES.length];
+
+    /**
+     * Constructor hidden, there is only the static state.
+     */
+    private Startup() {
+    }
+
+    /**
+     * Notes that a milestone was reached, unless it was already.
+     *
+     * @param milestone is one of the milestones.
+     */
+    public static void mark(int milestone) {
+        if (marks[milestone] == 0) {
+            marks[milestone] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Checks if a milestone was reached.
+     *
+     * @param milestone is one of the milestones.
+     * @return boolean true if it was.
+     */
+    public static boolean isMarked(int milestone) {
+        return marks[milestone] != 0;
+    }
+
+    /**
+     * Gets the time a milestone was reached.
+     *
+     * @param milestone is one of the milestones.
+     * @return long milliseconds since the JVM started, or -1 if it wasn't
+     * reached.
+     */
+    public static long getMillis(int milestone) {
+        if (marks[milestone] == 0) {
+            return -1;
+        }
+        long sinceMark = (System.nanoTime() - marks[milestone]) / 1_000_000;
+        return ManagementFactory.getRuntimeMXBean().getUptime() - sinceMark;
+    }
+
+    /**
+     * Gets the name of a milestone.
+     *
+     * @param milestone is one of the milestones.
+     * @return String name, as used in the stats.
+     */
+    public static String getName(int milestone) {
+        return NAMES[milestone];
+    }
+
+    /**
+     * Gets the number of milestones.
+     *
+     * @return int number of milestones.
+     */
+    public static int count() {
+        return NAMES.length;
+    }
+
+    /**
+     * Describes every milestone reached on one line.
+     *
+     * @return String the milestones, like "startup: main 120 ms, ...".
+     */
+    public static String report() {
+        StringBuilder line = new StringBuilder("startup:");
+        String separator = " ";
+        for (int k = 0; k < NAMES.length; k++) {
+            if (marks[k] != 0) {
+                line.append(separator).append(NAMES[k]).append(' ').append(getMillis(k)).append(" ms");
+                separator = ", ";
+            }
+        }
+        return line.toString();
+    }
+}
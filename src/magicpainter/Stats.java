@@ -0,0 +1,631 @@
+package magicpainter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters around the hot paths of the painter: input events, pulses of the
+ * DrawQueue, stars drawn per pulse, how long the pulses take and the time
+ * between frames, what a twinkle frame costs, and how much the FX thread
+ * allocates. Counting is a few
+ * plain increments, so it's always on; the numbers are also emitted as JFR
+ * events once the Flight Recorder is up (java -XX:StartFlightRecording ...
+ * or a recording started later with jcmd). Until then no event is made,
+ * because the first event class loaded sets JFR up, which takes about half
+ * a second and used to hold up starting the app. Everything is updated on
+ * the FX thread only; the periodic JFR event reads the counters from
+ * another thread and may be a count behind.
+ *
+ * @author sylverk @ github
+ */
+public final class Stats {
+
+    /**
+     * int describing the kind of input event for a mouse drag or click on
+     * the canvas.
+     */
+    public static final int DRAG = 0;
+
+    /**
+     * int describing the kind of input event for a key press.
+     */
+    public static final int KEY = 1;
+
+    /**
+     * int describing the kind of input event for clearing the canvas.
+     */
+    public static final int CLEAR = 2;
+
+    /**
+     * int describing the kind of input for a star or clear received by the
+     * CommandServer, counted without a JFR event.
+     */
+    public static final int REMOTE = 3;
+
+    /**
+     * The names of the kinds of input events.
+     */
+    private static final String[] KINDS = {"drag", "key", "clear", "remote"};
+
+    /**
+     * int describing the number of buckets of the histograms. Bucket k
+     * holds times from 2^(k-1) up to 2^k microseconds, the last one
+     * everything longer.
+     */
+    public static final int BUCKETS = 22;
+
+    /**
+     * The number of input events of each kind.
+     */
+    private static final long[] inputs = new long[KINDS.length];
+
+    /**
+     * long describing the number of pulses that drew stars.
+     */
+    private static long pulses;
+
+    /**
+     * long describing the number of stars drawn by pulses.
+     */
+    private static long stars;
+
+    /**
+     * long describing the most stars drawn by one pulse.
+     */
+    private static long maxStars;
+
+    /**
+     * long describing the total time spent in pulses, in nanoseconds.
+     */
+    private static long pulseNanos;
+
+    /**
+     * The histogram of how long pulses take.
+     */
+    private static final long[] pulseTimes = new long[BUCKETS];
+
+    /**
+     * The histogram of the time between frames while stars are being drawn.
+     */
+    private static final long[] frameTimes = new long[BUCKETS];
+
+    /**
+     * long describing the number of twinkle frames.
+     */
+    private static long twinkles;
+
+    /**
+     * long describing the number of glints updated by twinkle frames.
+     */
+    private static long glints;
+
+    /**
+     * long describing the total time spent in twinkle frames, in
+     * nanoseconds.
+     */
+    private static long twinkleNanos;
+
+    /**
+     * The histogram of how long twinkle frames take.
+     */
+    private static final long[] twinkleTimes = new long[BUCKETS];
+
+    /**
+     * long describing the timestamp of the last frame, or 0 after the
+     * DrawQueue went idle.
+     */
+    private static long lastFrame;
+
+    /**
+     * The id of the FX thread, or -1 until it's known.
+     */
+    private static long fxThread = -1;
+
+    /**
+     * The sampler behind the periodic JFR event.
+     */
+    private static final Sampler recorded = new Sampler();
+
+    /**
+     * boolean indicating if the Flight Recorder is up, so JFR events are
+     * made.
+     */
+    private static volatile boolean recorder;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder flightRecorder) {
+                FlightRecorder.addPeriodicEvent(RateEvent.class, () -> {
+                    RateEvent event = new RateEvent();
+                    if (event.shouldCommit()) {
+                        recorded.sample(System.nanoTime());
+                        event.dragsPerSecond = recorded.inputRates[DRAG];
+                        event.keysPerSecond = recorded.inputRates[KEY];
+                        event.remotePerSecond = recorded.inputRates[REMOTE];
+                        event.pulsesPerSecond = recorded.pulseRate;
+                        event.starsPerPulse = recorded.starsPerPulse;
+                        event.pulseP99 = recorded.pulseP99;
+                        event.frameP99 = recorded.frameP99;
+                        event.twinkleP99 = recorded.twinkleP99;
+                        event.allocationRate = recorded.allocationRate;
+                        event.commit();
+                    }
+                });
+                recorder = true;
+            }
+        });
+    }
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private Stats() {
+    }
+
+    /**
+     * JFR event for an input handler, lasting as long as the handler.
+     */
+    @Name("magicpainter.Input")
+    @Label("Input")
+    @Category("Magic Star Painter")
+    @Description("A mouse, key or clear handler")
+    @StackTrace(false)
+    public static class InputEvent extends Event {
+
+        /**
+         * The kind of input.
+         */
+        @Label("Kind")
+        String kind;
+    }
+
+    /**
+     * JFR event for a pulse of the DrawQueue that drew stars.
+     */
+    @Name("magicpainter.Pulse")
+    @Label("Pulse")
+    @Category("Magic Star Painter")
+    @Description("Drawing the stars queued since the last frame and showing them")
+    @StackTrace(false)
+    public static class PulseEvent extends Event {
+
+        /**
+         * The number of stars drawn.
+         */
+        @Label("Stars")
+        int stars;
+    }
+
+    /**
+     * JFR event with the rates over the last period.
+     */
+    @Name("magicpainter.Rates")
+    @Label("Rates")
+    @Category("Magic Star Painter")
+    @Period("1 s")
+    @StackTrace(false)
+    public static class RateEvent extends Event {
+
+        /**
+         * Drag events per second.
+         */
+        @Label("Drags per Second")
+        double dragsPerSecond;
+
+        /**
+         * Key presses per second.
+         */
+        @Label("Keys per Second")
+        double keysPerSecond;
+
+        /**
+         * Stars and clears received by the CommandServer per second.
+         */
+        @Label("Remote Commands per Second")
+        double remotePerSecond;
+
+        /**
+         * Pulses that drew stars per second.
+         */
+        @Label("Pulses per Second")
+        double pulsesPerSecond;
+
+        /**
+         * Average stars drawn per pulse.
+         */
+        @Label("Stars per Pulse")
+        double starsPerPulse;
+
+        /**
+         * 99th percentile of the pulse time.
+         */
+        @Label("Pulse Time p99")
+        @Timespan(Timespan.MICROSECONDS)
+        long pulseP99;
+
+        /**
+         * 99th percentile of the time between frames.
+         */
+        @Label("Frame Time p99")
+        @Timespan(Timespan.MICROSECONDS)
+        long frameP99;
+
+        /**
+         * 99th percentile of the twinkle frame time.
+         */
+        @Label("Twinkle Time p99")
+        @Timespan(Timespan.MICROSECONDS)
+        long twinkleP99;
+
+        /**
+         * Bytes allocated by the FX thread per second.
+         */
+        @Label("FX Allocation Rate")
+        double allocationRate;
+    }
+
+    /**
+     * Works out rates between two calls from the counters, for the overlay
+     * and the periodic JFR event.
+     */
+    public static class Sampler {
+
+        /**
+         * long describing when the last sample was taken, or when the
+         * sampler was made.
+         */
+        private long time = System.nanoTime();
+
+        /**
+         * The input counts at the last sample.
+         */
+        private final long[] lastInputs = new long[KINDS.length];
+
+        /**
+         * long describing the pulse count at the last sample.
+         */
+        private long lastPulses;
+
+        /**
+         * long describing the star count at the last sample.
+         */
+        private long lastStars;
+
+        /**
+         * long describing the bytes the FX thread had allocated at the last
+         * sample, or -1 if it wasn't known.
+         */
+        private long lastAllocated = -1;
+
+        /**
+         * The pulse histogram at the last sample.
+         */
+        private final long[] lastPulseTimes = new long[BUCKETS];
+
+        /**
+         * The frame histogram at the last sample.
+         */
+        private final long[] lastFrameTimes = new long[BUCKETS];
+
+        /**
+         * long describing the twinkle frame count at the last sample.
+         */
+        private long lastTwinkles;
+
+        /**
+         * long describing the glint count at the last sample.
+         */
+        private long lastGlints;
+
+        /**
+         * The twinkle histogram at the last sample.
+         */
+        private final long[] lastTwinkleTimes = new long[BUCKETS];
+
+        /**
+         * The input events per second of each kind.
+         */
+        public final double[] inputRates = new double[KINDS.length];
+
+        /**
+         * double describing the pulses per second.
+         */
+        public double pulseRate;
+
+        /**
+         * double describing the average stars per pulse.
+         */
+        public double starsPerPulse;
+
+        /**
+         * long describing the median pulse time in microseconds.
+         */
+        public long pulseP50;
+
+        /**
+         * long describing the 99th percentile pulse time in microseconds.
+         */
+        public long pulseP99;
+
+        /**
+         * long describing the median time between frames in microseconds.
+         */
+        public long frameP50;
+
+        /**
+         * long describing the 99th percentile time between frames in
+         * microseconds.
+         */
+        public long frameP99;
+
+        /**
+         * double describing the average glints updated per twinkle frame.
+         */
+        public double glintsPerFrame;
+
+        /**
+         * long describing the median twinkle frame time in microseconds.
+         */
+        public long twinkleP50;
+
+        /**
+         * long describing the 99th percentile twinkle frame time in
+         * microseconds.
+         */
+        public long twinkleP99;
+
+        /**
+         * double describing the bytes allocated by the FX thread per
+         * second, or -1 if the JVM can't tell.
+         */
+        public double allocationRate;
+
+        /**
+         * Takes a sample and updates the rates since the last one.
+         *
+         * @param now is the current time in nanoseconds.
+         */
+        public void sample(long now) {
+            double seconds = Math.max(1e-3, (now - time) / 1e9);
+            for (int k = 0; k < KINDS.length; k++) {
+                inputRates[k] = (inputs[k] - lastInputs[k]) / seconds;
+                lastInputs[k] = inputs[k];
+            }
+            long newPulses = pulses - lastPulses;
+            pulseRate = newPulses / seconds;
+            starsPerPulse = newPulses == 0 ? 0 : (double) (stars - lastStars) / newPulses;
+            lastPulses = pulses;
+            lastStars = stars;
+            pulseP50 = percentile(pulseTimes, lastPulseTimes, 0.5);
+            pulseP99 = percentile(pulseTimes, lastPulseTimes, 0.99);
+            frameP50 = percentile(frameTimes, lastFrameTimes, 0.5);
+            frameP99 = percentile(frameTimes, lastFrameTimes, 0.99);
+            System.arraycopy(pulseTimes, 0, lastPulseTimes, 0, BUCKETS);
+            System.arraycopy(frameTimes, 0, lastFrameTimes, 0, BUCKETS);
+            long newTwinkles = twinkles - lastTwinkles;
+            glintsPerFrame = newTwinkles == 0 ? 0 : (double) (glints - lastGlints) / newTwinkles;
+            lastTwinkles = twinkles;
+            lastGlints = glints;
+            twinkleP50 = percentile(twinkleTimes, lastTwinkleTimes, 0.5);
+            twinkleP99 = percentile(twinkleTimes, lastTwinkleTimes, 0.99);
+            System.arraycopy(twinkleTimes, 0, lastTwinkleTimes, 0, BUCKETS);
+            long allocated = allocated();
+            allocationRate = allocated < 0 || lastAllocated < 0 ? -1 : (allocated - lastAllocated) / seconds;
+            lastAllocated = allocated;
+            time = now;
+        }
+    }
+
+    /**
+     * Counts an input event and starts its JFR event, which the handler
+     * hands to commit when it's done.
+     *
+     * @param kind is DRAG, KEY or CLEAR.
+     * @return InputEvent the started event, or null if the Flight Recorder
+     * isn't up.
+     */
+    public static InputEvent input(int kind) {
+        inputs[kind]++;
+        if (!recorder) {
+            return null;
+        }
+        InputEvent event = new InputEvent();
+        if (event.isEnabled()) {
+            event.kind = KINDS[kind];
+            event.begin();
+        }
+        return event;
+    }
+
+    /**
+     * Ends the JFR event of an input handler.
+     *
+     * @param event is the event from input, may be null.
+     */
+    public static void commit(InputEvent event) {
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts inputs that don't get a JFR event of their own, like the
+     * commands the CommandServer hands over in a batch.
+     *
+     * @param kind is the kind of input, usually REMOTE.
+     * @param n is the number of inputs.
+     */
+    public static void count(int kind, int n) {
+        inputs[kind] += n;
+    }
+
+    /**
+     * Starts timing a pulse.
+     *
+     * @return long the start time to hand to pulse.
+     */
+    public static long pulseStart() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a pulse that drew stars.
+     *
+     * @param start is the time from pulseStart.
+     * @param count is the number of stars drawn.
+     */
+    public static void pulse(long start, int count) {
+        long end = System.nanoTime();
+        pulses++;
+        stars += count;
+        maxStars = Math.max(maxStars, count);
+        pulseNanos += end - start;
+        pulseTimes[bucket(end - start)]++;
+        if (fxThread < 0) {
+            fxThread = Thread.currentThread().getId();
+        }
+        if (recorder) {
+            PulseEvent event = new PulseEvent();
+            if (event.shouldCommit()) {
+                event.stars = count;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Counts a frame of the twinkling stars.
+     *
+     * @param start is when the frame started, from System.nanoTime.
+     * @param count is the number of glints updated.
+     */
+    public static void twinkle(long start, int count) {
+        long nanos = System.nanoTime() - start;
+        twinkles++;
+        glints += count;
+        twinkleNanos += nanos;
+        twinkleTimes[bucket(nanos)]++;
+    }
+
+    /**
+     * Counts a frame of the DrawQueue timer.
+     *
+     * @param now is the timestamp of the frame in nanoseconds.
+     */
+    public static void frame(long now) {
+        if (lastFrame != 0) {
+            frameTimes[bucket(now - lastFrame)]++;
+        }
+        lastFrame = now;
+    }
+
+    /**
+     * Notes the DrawQueue timer stopped, so the idle time isn't counted as a
+     * long frame.
+     */
+    public static void idle() {
+        lastFrame = 0;
+    }
+
+    /**
+     * Finds the histogram bucket for a time.
+     *
+     * @param nanos is the time in nanoseconds.
+     * @return int the bucket.
+     */
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Finds a percentile of what was added to a histogram since an earlier
+     * copy of it.
+     *
+     * @param histogram is the histogram now.
+     * @param before is the earlier copy.
+     * @param p is the percentile, 0 to 1.
+     * @return long the upper bound of the bucket holding the percentile in
+     * microseconds, or 0 if nothing was added.
+     */
+    private static long percentile(long[] histogram, long[] before, double p) {
+        long total = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            total += histogram[k] - before[k];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long seen = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            seen += histogram[k] - before[k];
+            if (seen >= p * total) {
+                return 1L << k;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Asks the JVM how much the FX thread has allocated.
+     *
+     * @return long bytes allocated, or -1 if the JVM can't tell.
+     */
+    private static long allocated() {
+        if (fxThread < 0 || !(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(fxThread);
+    }
+
+    /**
+     * Writes every counter as a name=value line, always in the same order,
+     * so dumps of two builds can be diffed.
+     *
+     * @param out is where to write the counters.
+     * @throws IOException if writing fails.
+     */
+    public static void dump(Writer out) throws IOException {
+        PrintWriter print = new PrintWriter(out);
+        for (int k = 0; k < KINDS.length; k++) {
+            print.println("input." + KINDS[k] + "=" + inputs[k]);
+        }
+        print.println("pulse.count=" + pulses);
+        print.println("pulse.stars=" + stars);
+        print.println("pulse.stars.max=" + maxStars);
+        print.println("pulse.time.total.us=" + pulseNanos / 1000);
+        for (int k = 0; k < BUCKETS; k++) {
+            print.println("pulse.time.lt." + (1L << k) + "us=" + pulseTimes[k]);
+        }
+        for (int k = 0; k < BUCKETS; k++) {
+            print.println("frame.time.lt." + (1L << k) + "us=" + frameTimes[k]);
+        }
+        print.println("twinkle.count=" + twinkles);
+        print.println("twinkle.glints=" + glints);
+        print.println("twinkle.time.total.us=" + twinkleNanos / 1000);
+        for (int k = 0; k < BUCKETS; k++) {
+            print.println("twinkle.time.lt." + (1L << k) + "us=" + twinkleTimes[k]);
+        }
+        print.println("alloc.fx.bytes=" + allocated());
+        for (int k = 0; k < Startup.count(); k++) {
+            print.println("startup." + Startup.getName(k) + ".ms=" + Startup.getMillis(k));
+        }
+        print.flush();
+        if (print.checkError()) {
+            throw new IOException("Couldn't write the stats");
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package magicpainter;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.Label;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+
+/**
+ * Label over the corner of the canvas showing the live numbers from Stats,
+ * refreshed twice a second. The timer only runs while the overlay is shown,
+ * so a hidden overlay costs nothing.
+ *
+ * @author sylverk @ github
+ */
+public class StatsOverlay extends AnimationTimer {
+
+    /**
+     * long describing how often the numbers are refreshed, in nanoseconds.
+     */
+    private static final long REFRESH = 500_000_000L;
+
+    /**
+     * The label showing the numbers.
+     */
+    private final Label label = new Label();
+
+    /**
+     * The sampler working out the rates between refreshes.
+     */
+    private final Stats.Sampler sampler = new Stats.Sampler();
+
+    /**
+     * long describing when the numbers were last refreshed.
+     */
+    private long refreshed;
+
+    /**
+     * Constructor for the StatsOverlay, hidden to begin with.
+     *
+     * @param x is the x-position of the overlay.
+     * @param y is the y-position of the overlay.
+     */
+    public StatsOverlay(double x, double y) {
+        label.setLayoutX(x);
+        label.setLayoutY(y);
+        label.setFont(Font.font("Monospaced", 10));
+        label.setTextFill(Color.WHITE);
+        label.setStyle("-fx-background-color: rgba(0, 0, 0, 0.6); -fx-padding: 4");
+        label.setMouseTransparent(true);
+        label.setVisible(false);
+    }
+
+    /**
+     * Shows or hides the overlay.
+     */
+    public void toggle() {
+        if (label.isVisible()) {
+            label.setVisible(false);
+            stop();
+        } else {
+            label.setVisible(true);
+            label.setText("...");
+            refreshed = 0;
+            sampler.sample(System.nanoTime());
+            start();
+        }
+    }
+
+    /**
+     * Refreshes the numbers when it's time to.
+     *
+     * @param now is the timestamp of the current frame in nanoseconds.
+     */
+    @Override
+    public void handle(long now) {
+        if (refreshed == 0) {
+            refreshed = now;
+            return;
+        }
+        if (now - refreshed < REFRESH) {
+            return;
+        }
+        refreshed = now;
+        sampler.sample(System.nanoTime());
+        String allocation = sampler.allocationRate < 0 ? "n/a"
+                : String.format("%.1f MB/s", sampler.allocationRate / (1 << 20));
+        String twinkle = sampler.glintsPerFrame == 0 && sampler.twinkleP99 == 0 ? ""
+                : String.format("twinkle p50 %3d us  p99 %6d us  glints %.0f%n",
+                        sampler.twinkleP50, sampler.twinkleP99, sampler.glintsPerFrame);
+        label.setText(String.format("drags %6.0f/s  keys %3.0f/s  remote %7.0f/s%n"
+                + "pulses %5.0f/s  stars/pulse %.1f%n"
+                + "pulse p50 %5d us  p99 %6d us%n"
+                + "frame p50 %5d us  p99 %6d us%n"
+                + "%s"
+                + "fx alloc %s",
+                sampler.inputRates[Stats.DRAG], sampler.inputRates[Stats.KEY], sampler.inputRates[Stats.REMOTE],
+                sampler.pulseRate, sampler.starsPerPulse,
+                sampler.pulseP50, sampler.pulseP99,
+                sampler.frameP50, sampler.frameP99,
+                twinkle, allocation));
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return Label the label to add to the scene.
+     */
+    public Label getLabel() {
+        return label;
+    }
+}
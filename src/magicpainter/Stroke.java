@@ -0,0 +1,195 @@
+package magicpainter;
+
+/**
+ * Works out where the stars of a brush stroke go, so a fast drag makes a
+ * continuous line instead of a star at every mouse event with gaps between
+ * them. The mouse positions are joined by a Catmull-Rom spline, which goes
+ * through every one of them, and stars are put along it at an even
+ * spacing, carried over from one segment to the next. The segment up to the
+ * newest position is drawn right away, ending in the direction it came from,
+ * so the stroke doesn't lag an event behind. Each segment is followed as
+ * SEGMENT_STEPS straight pieces and gets at most MAX_STAMPS stars (the
+ * spacing is stretched for longer segments), so a segment costs the same
+ * however far the mouse jumped, and nothing is allocated. The positions are
+ * in document pixels. Not thread safe.
+ *
+ * @author sylverk @ github
+ */
+public final class Stroke {
+
+    /**
+     * int describing how many straight pieces a segment is followed as.
+     */
+    static final int SEGMENT_STEPS = 16;
+
+    /**
+     * int describing the most stars one segment gets.
+     */
+    static final int MAX_STAMPS = 256;
+
+    /**
+     * double describing the smallest spacing, in document pixels.
+     */
+    static final double MIN_SPACING = 0.5;
+
+    /**
+     * The x-positions of the stars of the last segment.
+     */
+    private final float[] xs = new float[MAX_STAMPS];
+
+    /**
+     * The y-positions of the stars of the last segment.
+     */
+    private final float[] ys = new float[MAX_STAMPS];
+
+    /**
+     * The x-positions of the ends of the straight pieces of a segment.
+     */
+    private final double[] pointsX = new double[SEGMENT_STEPS + 1];
+
+    /**
+     * The y-positions of the ends of the straight pieces of a segment.
+     */
+    private final double[] pointsY = new double[SEGMENT_STEPS + 1];
+
+    /**
+     * The lengths of the straight pieces of a segment.
+     */
+    private final double[] pieces = new double[SEGMENT_STEPS + 1];
+
+    /**
+     * int describing how many positions the stroke has had, up to 3.
+     */
+    private int samples;
+
+    /**
+     * double describing the x-position before the previous one.
+     */
+    private double x0;
+
+    /**
+     * double describing the y-position before the previous one.
+     */
+    private double y0;
+
+    /**
+     * double describing the previous x-position.
+     */
+    private double x1;
+
+    /**
+     * double describing the previous y-position.
+     */
+    private double y1;
+
+    /**
+     * double describing how far along the stroke it is since the last star.
+     */
+    private double walked;
+
+    /**
+     * Starts a new stroke where the mouse was pressed. The first segment
+     * runs from there to the first drag position and has a star right at
+     * the start.
+     *
+     * @param x is the x-position in the document.
+     * @param y is the y-position in the document.
+     */
+    public void begin(double x, double y) {
+        x1 = x;
+        y1 = y;
+        samples = 1;
+        // as if the last star was infinitely far back
+        walked = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Adds the next mouse position to the stroke and works out the stars
+     * along the segment up to it, which getX and getY give. If the stroke
+     * was never begun, the first position gets a star of its own.
+     *
+     * @param x is the x-position in the document.
+     * @param y is the y-position in the document.
+     * @param spacing is how far apart the stars should be.
+     * @return int number of stars for the segment, at most MAX_STAMPS.
+     */
+    public int add(double x, double y, double spacing) {
+        if (samples == 0) {
+            x1 = x;
+            y1 = y;
+            samples = 1;
+            walked = 0;
+            xs[0] = (float) x;
+            ys[0] = (float) y;
+            return 1;
+        }
+        // tangents of the Catmull-Rom spline at both ends; the end one as if
+        // the stroke went on in a straight line
+        double tx1 = samples > 1 ? (x - x0) / 2 : x - x1;
+        double ty1 = samples > 1 ? (y - y0) / 2 : y - y1;
+        double tx2 = x - x1;
+        double ty2 = y - y1;
+        double length = 0;
+        pointsX[0] = x1;
+        pointsY[0] = y1;
+        for (int k = 1; k <= SEGMENT_STEPS; k++) {
+            double t = (double) k / SEGMENT_STEPS;
+            double t2 = t * t;
+            double t3 = t2 * t;
+            double h00 = 2 * t3 - 3 * t2 + 1;
+            double h10 = t3 - 2 * t2 + t;
+            double h01 = -2 * t3 + 3 * t2;
+            double h11 = t3 - t2;
+            pointsX[k] = h00 * x1 + h10 * tx1 + h01 * x + h11 * tx2;
+            pointsY[k] = h00 * y1 + h10 * ty1 + h01 * y + h11 * ty2;
+            double dx = pointsX[k] - pointsX[k - 1];
+            double dy = pointsY[k] - pointsY[k - 1];
+            pieces[k] = Math.sqrt(dx * dx + dy * dy);
+            length += pieces[k];
+        }
+        double step = Math.max(Math.max(spacing, MIN_SPACING), length / MAX_STAMPS);
+        int n = 0;
+        for (int k = 1; k <= SEGMENT_STEPS; k++) {
+            double ax = pointsX[k - 1];
+            double ay = pointsY[k - 1];
+            double piece = pieces[k];
+            if (piece == 0) {
+                continue;
+            }
+            // the spacing may have shrunk since the last star
+            double at = Math.max(0, step - walked);
+            while (at <= piece && n < MAX_STAMPS) {
+                double f = at / piece;
+                xs[n] = (float) (ax + (pointsX[k] - ax) * f);
+                ys[n] = (float) (ay + (pointsY[k] - ay) * f);
+                n++;
+                at += step;
+            }
+            walked = piece - (at - step);
+        }
+        x0 = x1;
+        y0 = y1;
+        x1 = x;
+        y1 = y;
+        samples = Math.min(samples + 1, 3);
+        return n;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return float[] the x-positions of the stars of the last segment.
+     */
+    public float[] getX() {
+        return xs;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return float[] the y-positions of the stars of the last segment.
+     */
+    public float[] getY() {
+        return ys;
+    }
+}
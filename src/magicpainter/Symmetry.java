@@ -0,0 +1,236 @@
+package magicpainter;
+
+/**
+ * Symmetry brush: turns one brush position into copies rotated around a
+ * center, fold times round the circle, and with mirror on also reflected,
+ * for up to MAX_COPIES stars per position. Stars stay upright, only their
+ * positions turn. The copies are worked out for all angles at once by a
+ * Kernel, which uses the jdk.incubator.vector API when the JVM was started
+ * with --add-modules jdk.incubator.vector and plain loops otherwise. Both
+ * do the same float operations in the same order, so they place the stars
+ * at exactly the same positions and recordings replay the same either way.
+ * Only the positions are worked out together: each copy is still drawn on
+ * its own, copied from a stamp when it can be (see StampCache) and scan
+ * converted one star at a time otherwise, which is where the time goes.
+ * Working out the vertices of the copies is left to StarGeometry one star
+ * at a time too, as it is a tiny part of scan converting them.
+ * Doesn't depend on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class Symmetry {
+
+    /**
+     * Interface for working out rotated copies of a position.
+     */
+    interface Kernel {
+
+        /**
+         * Rotates an offset from the center by each angle, writing
+         * x[k] = cx + (dx * cos[k] - dy * sin[k]) and
+         * y[k] = cy + (dx * sin[k] + dy * cos[k]).
+         *
+         * @param cos are the cosines of the angles.
+         * @param sin are the sines of the angles.
+         * @param n is the number of angles.
+         * @param dx is the x-offset from the center.
+         * @param dy is the y-offset from the center.
+         * @param cx is the x-position of the center.
+         * @param cy is the y-position of the center.
+         * @param x receives the x-positions, from index offset.
+         * @param y receives the y-positions, from index offset.
+         * @param offset is the index the first copy goes at.
+         */
+        void rotate(float[] cos, float[] sin, int n, float dx, float dy, float cx, float cy,
+                float[] x, float[] y, int offset);
+    }
+
+    /**
+     * Kernel doing one angle at a time.
+     */
+    static final class ScalarKernel implements Kernel {
+
+        @Override
+        public void rotate(float[] cos, float[] sin, int n, float dx, float dy, float cx, float cy,
+                float[] x, float[] y, int offset) {
+            for (int k = 0; k < n; k++) {
+                x[offset + k] = cx + (dx * cos[k] - dy * sin[k]);
+                y[offset + k] = cy + (dx * sin[k] + dy * cos[k]);
+            }
+        }
+    }
+
+    /**
+     * int describing the most copies a position can be turned into.
+     */
+    public static final int MAX_COPIES = 64;
+
+    /**
+     * The folds the brush steps through, 1 being off.
+     */
+    static final int[] FOLDS = {1, 2, 3, 4, 6, 8, 12, 16, 32, 64};
+
+    /**
+     * The kernel all symmetries use.
+     */
+    static final Kernel KERNEL = loadKernel();
+
+    /**
+     * int describing how many copies there are round the circle.
+     */
+    private final int fold;
+
+    /**
+     * boolean indicating if each copy is also reflected.
+     */
+    private final boolean mirror;
+
+    /**
+     * array of the cosines of the angles of the copies.
+     */
+    private final float[] cos;
+
+    /**
+     * array of the sines of the angles of the copies.
+     */
+    private final float[] sin;
+
+    /**
+     * The kernel this symmetry uses.
+     */
+    private final Kernel kernel;
+
+    /**
+     * Constructor for a Symmetry using the best kernel there is.
+     *
+     * @param fold is how many copies there are round the circle, 1 for
+     * none.
+     * @param mirror is true to also reflect each copy.
+     */
+    public Symmetry(int fold, boolean mirror) {
+        this(fold, mirror, KERNEL);
+    }
+
+    /**
+     * Constructor for a Symmetry using a kernel of choice, for comparing
+     * them.
+     *
+     * @param fold is how many copies there are round the circle, 1 for
+     * none.
+     * @param mirror is true to also reflect each copy.
+     * @param kernel is the kernel to use.
+     */
+    Symmetry(int fold, boolean mirror, Kernel kernel) {
+        if (fold < 1 || fold * (mirror ? 2 : 1) > MAX_COPIES) {
+            throw new IllegalArgumentException("Can't make " + fold + (mirror ? " mirrored" : "") + " copies");
+        }
+        this.fold = fold;
+        this.mirror = mirror;
+        this.kernel = kernel;
+        cos = new float[fold];
+        sin = new float[fold];
+        for (int k = 0; k < fold; k++) {
+            double angle = 2 * Math.PI * k / fold;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) Math.sin(angle);
+        }
+        // exact values so the first copy is the position itself
+        cos[0] = 1;
+        sin[0] = 0;
+    }
+
+    /**
+     * Loads the vector kernel if the incubator module is there, the scalar
+     * one otherwise or when -Dmagicpainter.scalar is set.
+     *
+     * @return Kernel to use.
+     */
+    private static Kernel loadKernel() {
+        if (!Boolean.getBoolean("magicpainter.scalar")) {
+            try {
+                return (Kernel) Class.forName("magicpainter.VectorSymmetryKernel")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // jdk.incubator.vector wasn't added to the JVM
+            }
+        }
+        return new ScalarKernel();
+    }
+
+    /**
+     * Works out the copies of a position.
+     *
+     * @param px is the x-position.
+     * @param py is the y-position.
+     * @param cx is the x-position of the center.
+     * @param cy is the y-position of the center.
+     * @param x receives the x-positions of the copies, at least
+     * {@link #getCopies} long.
+     * @param y receives the y-positions of the copies.
+     * @return int number of copies, the position itself first.
+     */
+    public int apply(double px, double py, double cx, double cy, float[] x, float[] y) {
+        float dx = (float) (px - cx);
+        float dy = (float) (py - cy);
+        kernel.rotate(cos, sin, fold, dx, dy, (float) cx, (float) cy, x, y, 0);
+        if (mirror) {
+            // reflecting across the horizontal axis first is the same as
+            // rotating the offset with its y flipped
+            kernel.rotate(cos, sin, fold, dx, -dy, (float) cx, (float) cy, x, y, fold);
+        }
+        return getCopies();
+    }
+
+    /**
+     * Gets the fold after this one in FOLDS, back to 1 after the last one,
+     * skipping folds that would make too many copies.
+     *
+     * @param fold is the current fold.
+     * @param mirror is true if copies are reflected.
+     * @return int the next fold.
+     */
+    public static int nextFold(int fold, boolean mirror) {
+        for (int f : FOLDS) {
+            if (f > fold && f * (mirror ? 2 : 1) <= MAX_COPIES) {
+                return f;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int how many copies there are round the circle.
+     */
+    public int getFold() {
+        return fold;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return boolean true if each copy is also reflected.
+     */
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    /**
+     * Gets how many stars each position turns into.
+     *
+     * @return int number of copies.
+     */
+    public int getCopies() {
+        return mirror ? fold * 2 : fold;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return String name of the kernel in use, for the stats.
+     */
+    public static String getKernelName() {
+        return KERNEL instanceof ScalarKernel ? "scalar" : "vector";
+    }
+}
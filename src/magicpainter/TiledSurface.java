@@ -0,0 +1,679 @@
+package magicpainter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The pixels of a painting, which can be much bigger than one JavaFX Canvas
+ * can hold. The surface is cut into 256x256 tiles of premultiplied ARGB
+ * pixels that are only allocated once something is drawn on them, so memory
+ * grows with the painted area rather than the size of the document. Tiles
+ * can be kept off-heap in direct buffers. Every draw remembers which part of
+ * each tile it changed, so showing the surface only copies those parts.
+ * Snapshots share tiles with the surface and tiles are only copied when they
+ * are drawn on afterwards. A surface can also be filled lazily by a
+ * TileSource, which draws each tile the first time it's shown or drawn on,
+ * so opening a huge document doesn't draw the parts nobody looks at. Stars
+ * are copied from a StampCache when the surface has one and the star can be
+ * stamped, and scan converted otherwise. Not thread safe, and doesn't depend
+ * on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class TiledSurface {
+
+    /**
+     * int describing the width and height of a tile.
+     */
+    public static final int TILE = 256;
+
+    /**
+     * Interface for receiving the tiles that need to be shown.
+     */
+    public interface TileVisitor {
+
+        /**
+         * Called for each changed part of a tile.
+         *
+         * @param x is the x-position of the part in the document.
+         * @param y is the y-position of the part in the document.
+         * @param w is the width of the part.
+         * @param h is the height of the part.
+         * @param pixels is the tile holding the pixels, or null if the tile
+         * is empty (fully transparent).
+         * @param offset is the index in pixels of the pixel at x, y.
+         * @param stride is the number of entries between two rows of pixels.
+         */
+        void tile(int x, int y, int w, int h, IntBuffer pixels, int offset, int stride);
+    }
+
+    /**
+     * Interface for drawing tiles that haven't been drawn yet.
+     */
+    public interface TileSource {
+
+        /**
+         * Called to draw an area of the document the first time it's needed.
+         * The area is empty when this is called, and only the area may be
+         * drawn on.
+         *
+         * @param surface is the surface to draw on.
+         * @param x0 is the left edge of the area.
+         * @param y0 is the top edge of the area.
+         * @param x1 is the right edge of the area (exclusive).
+         * @param y1 is the bottom edge of the area (exclusive).
+         */
+        void draw(TiledSurface surface, int x0, int y0, int x1, int y1);
+    }
+
+    /**
+     * Placeholder for tiles the source hasn't drawn yet.
+     */
+    private static final IntBuffer PENDING = IntBuffer.allocate(0);
+
+    /**
+     * int describing the width of the document.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the document.
+     */
+    private final int height;
+
+    /**
+     * int describing the number of tile columns.
+     */
+    private final int tilesX;
+
+    /**
+     * int describing the number of tile rows.
+     */
+    private final int tilesY;
+
+    /**
+     * boolean indicating if tiles are allocated off-heap.
+     */
+    private final boolean offHeap;
+
+    /**
+     * array of tiles, row by row, null for tiles that have never been drawn
+     * on and PENDING for tiles the source still has to draw.
+     */
+    private final IntBuffer[] tiles;
+
+    /**
+     * array with the changed area of each tile as x0, y0, x1, y1 relative to
+     * the tile, only meaningful for tiles in the dirty list.
+     */
+    private final int[] dirtyBounds;
+
+    /**
+     * array of booleans indicating which tiles are in the dirty list.
+     */
+    private final boolean[] dirty;
+
+    /**
+     * array of the indices of the tiles that have changed since they were
+     * last shown.
+     */
+    private final int[] dirtyList;
+
+    /**
+     * int describing how many entries of dirtyList are used.
+     */
+    private int dirtyCount;
+
+    /**
+     * array of booleans indicating which tiles are also held by a snapshot.
+     * A shared tile is copied before it is drawn on, so snapshots never
+     * change.
+     */
+    private final boolean[] shared;
+
+    /**
+     * int describing how many shared tiles were copied since the last call
+     * to {@link #takeCopyCount}.
+     */
+    private int copies;
+
+    /**
+     * int describing how many tiles are allocated.
+     */
+    private int allocated;
+
+    /**
+     * The source that draws pending tiles, or null.
+     */
+    private TileSource source;
+
+    /**
+     * array holding a row of a tile being blended.
+     */
+    private final int[] blended = new int[TILE];
+
+    /**
+     * array holding a row of a tile being blended in.
+     */
+    private final int[] line = new int[TILE];
+
+    /**
+     * The rasterizer stars are drawn with.
+     */
+    private final StarRasterizer rasterizer = new StarRasterizer();
+
+    /**
+     * The stamps stars are drawn with when they can be, or null to always
+     * use the rasterizer.
+     */
+    private final StampCache stamps;
+
+    /**
+     * Constructor for an empty surface that draws every star with the
+     * rasterizer.
+     *
+     * @param width is the width of the document.
+     * @param height is the height of the document.
+     * @param offHeap is true to allocate tiles in direct buffers.
+     */
+    public TiledSurface(int width, int height, boolean offHeap) {
+        this(width, height, offHeap, null);
+    }
+
+    /**
+     * Constructor for an empty surface.
+     *
+     * @param width is the width of the document.
+     * @param height is the height of the document.
+     * @param offHeap is true to allocate tiles in direct buffers.
+     * @param stamps is the cache of stamps to draw stars with, which can be
+     * shared by the surfaces of a painting, or null.
+     */
+    public TiledSurface(int width, int height, boolean offHeap, StampCache stamps) {
+        this.width = width;
+        this.stamps = stamps;
+        this.height = height;
+        this.offHeap = offHeap;
+        tilesX = (width + TILE - 1) / TILE;
+        tilesY = (height + TILE - 1) / TILE;
+        tiles = new IntBuffer[tilesX * tilesY];
+        dirtyBounds = new int[tiles.length * 4];
+        dirty = new boolean[tiles.length];
+        dirtyList = new int[tiles.length];
+        shared = new boolean[tiles.length];
+    }
+
+    /**
+     * Draws a star onto the tiles its bounding box touches, allocating them
+     * if needed.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param argb is the color of the star packed as 0xAARRGGBB.
+     */
+    public void fillStar(double size, double x, double y, int argb) {
+        fillStar(size, x, y, argb, 0, 0, width, height);
+    }
+
+    /**
+     * Draws the part of a star inside a clip rectangle, used to redraw a
+     * region without touching the pixels around it.
+     *
+     * @param size is the size of the star from left tip to right tip.
+     * @param x is the x-position of the center of the star.
+     * @param y is the y-position of slightly above the center of the star.
+     * @param argb is the color of the star packed as 0xAARRGGBB.
+     * @param clipX0 is the left edge of the clip rectangle.
+     * @param clipY0 is the top edge of the clip rectangle.
+     * @param clipX1 is the right edge of the clip rectangle (exclusive).
+     * @param clipY1 is the bottom edge of the clip rectangle (exclusive).
+     */
+    public void fillStar(double size, double x, double y, int argb, int clipX0, int clipY0, int clipX1, int clipY1) {
+        int x0 = Math.max(Math.max(0, clipX0), (int) Math.floor(x - size * StarGeometry.HALF_WIDTH));
+        int x1 = Math.min(Math.min(width, clipX1), (int) Math.ceil(x + size * StarGeometry.HALF_WIDTH));
+        int y0 = Math.max(Math.max(0, clipY0), (int) Math.floor(y - size * StarGeometry.TOP));
+        int y1 = Math.min(Math.min(height, clipY1), (int) Math.ceil(y + size * StarGeometry.BOTTOM));
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        // the stamp lies inside the star's bounding box, so the same tiles do
+        StampCache.Stamp stamp = stamps != null ? stamps.get(size, x, y) : null;
+        for (int ty = y0 / TILE; ty <= (y1 - 1) / TILE; ty++) {
+            for (int tx = x0 / TILE; tx <= (x1 - 1) / TILE; tx++) {
+                int t = ty * tilesX + tx;
+                int left = tx * TILE;
+                int top = ty * TILE;
+                if (stamp != null) {
+                    stamp.blit(tile(t), 0, TILE, left, top,
+                            Math.max(x0, left), Math.max(y0, top),
+                            Math.min(x1, left + TILE), Math.min(y1, top + TILE),
+                            stamps.getLeft(), stamps.getTop(), argb);
+                } else {
+                    rasterizer.fillStar(tile(t), 0, TILE, left, top,
+                            Math.max(x0, left), Math.max(y0, top),
+                            Math.min(x1, left + TILE), Math.min(y1, top + TILE), size, x, y, argb);
+                }
+                markDirty(t, x0 - left, y0 - top, x1 - left, y1 - top);
+            }
+        }
+    }
+
+    /**
+     * Gets a tile to draw on, having the source draw it first if it's
+     * pending, allocating it (fully transparent) if it doesn't exist yet, or
+     * copying it if a snapshot holds it.
+     *
+     * @param t is the index of the tile.
+     * @return IntBuffer holding the pixels of the tile.
+     */
+    private IntBuffer tile(int t) {
+        IntBuffer tile = tiles[t];
+        if (tile == PENDING) {
+            resolve(t);
+            tile = tiles[t];
+        }
+        if (tile == null) {
+            tile = newTile();
+            tiles[t] = tile;
+            allocated++;
+        } else if (shared[t]) {
+            IntBuffer copy = newTile();
+            copy.put(tile.duplicate().clear());
+            tile = copy;
+            tiles[t] = tile;
+            shared[t] = false;
+            copies++;
+        }
+        return tile;
+    }
+
+    /**
+     * Has the source draw a pending tile. The tile stays null if the source
+     * doesn't draw anything on it.
+     *
+     * @param t is the index of the tile.
+     */
+    private void resolve(int t) {
+        tiles[t] = null;
+        shared[t] = false;
+        int left = (t % tilesX) * TILE;
+        int top = (t / tilesX) * TILE;
+        source.draw(this, left, top, Math.min(width, left + TILE), Math.min(height, top + TILE));
+        markDirty(t, 0, 0, TILE, TILE);
+    }
+
+    /**
+     * Throws away every tile and has a source draw them again as they are
+     * needed.
+     *
+     * @param source draws the tiles.
+     */
+    public void defer(TileSource source) {
+        this.source = source;
+        for (int t = 0; t < tiles.length; t++) {
+            tiles[t] = PENDING;
+            shared[t] = false;
+            markDirty(t, 0, 0, TILE, TILE);
+        }
+        allocated = 0;
+    }
+
+    /**
+     * Allocates a fully transparent tile.
+     *
+     * @return IntBuffer for the pixels of a tile.
+     */
+    private IntBuffer newTile() {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(TILE * TILE * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.allocate(TILE * TILE);
+    }
+
+    /**
+     * Takes a snapshot of the surface. No pixels are copied: the tiles are
+     * shared with the snapshot and only copied once they are drawn on again.
+     *
+     * @return array of tiles that can be handed to {@link #restore}.
+     */
+    public IntBuffer[] snapshot() {
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != null) {
+                shared[t] = true;
+            }
+        }
+        return tiles.clone();
+    }
+
+    /**
+     * Checks if a tile of a snapshot still has to be drawn by the source.
+     *
+     * @param tile is an entry of a snapshot.
+     * @return boolean true if the tile is pending.
+     */
+    public static boolean isPending(IntBuffer tile) {
+        return tile == PENDING;
+    }
+
+    /**
+     * Checks if the tile holding a pixel still has to be drawn by the source.
+     *
+     * @param x is the x-position of the pixel.
+     * @param y is the y-position of the pixel.
+     * @return boolean true if the tile is pending.
+     */
+    public boolean isPending(int x, int y) {
+        return tiles[(y / TILE) * tilesX + x / TILE] == PENDING;
+    }
+
+    /**
+     * Puts the surface back the way it was when a snapshot was taken. Only
+     * tiles that changed since are marked as changed.
+     *
+     * @param snapshot is an array of tiles from {@link #snapshot}.
+     */
+    public void restore(IntBuffer[] snapshot) {
+        allocated = 0;
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != snapshot[t]) {
+                tiles[t] = snapshot[t];
+                markDirty(t, 0, 0, TILE, TILE);
+            }
+            if (tiles[t] != null && tiles[t] != PENDING) {
+                shared[t] = true;
+                allocated++;
+            }
+        }
+    }
+
+    /**
+     * Gets how many shared tiles had to be copied since the last call, which
+     * is how much memory the snapshots hold on to by themselves.
+     *
+     * @return int number of tiles copied.
+     */
+    public int takeCopyCount() {
+        int n = copies;
+        copies = 0;
+        return n;
+    }
+
+    /**
+     * Adds an area of a tile to its changed area, clamped to the tile.
+     *
+     * @param t is the index of the tile.
+     * @param x0 is the left edge of the area relative to the tile.
+     * @param y0 is the top edge of the area relative to the tile.
+     * @param x1 is the right edge of the area relative to the tile.
+     * @param y1 is the bottom edge of the area relative to the tile.
+     */
+    private void markDirty(int t, int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(TILE, x1);
+        y1 = Math.min(TILE, y1);
+        int b = t * 4;
+        if (!dirty[t]) {
+            dirty[t] = true;
+            dirtyList[dirtyCount++] = t;
+            dirtyBounds[b] = x0;
+            dirtyBounds[b + 1] = y0;
+            dirtyBounds[b + 2] = x1;
+            dirtyBounds[b + 3] = y1;
+        } else {
+            dirtyBounds[b] = Math.min(dirtyBounds[b], x0);
+            dirtyBounds[b + 1] = Math.min(dirtyBounds[b + 1], y0);
+            dirtyBounds[b + 2] = Math.max(dirtyBounds[b + 2], x1);
+            dirtyBounds[b + 3] = Math.max(dirtyBounds[b + 3], y1);
+        }
+    }
+
+    /**
+     * Marks an area of the document as changed so it gets shown again, for
+     * example when whatever covered it on screen went away.
+     *
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area (exclusive).
+     * @param y1 is the bottom edge of the area (exclusive).
+     */
+    public void markDirty(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(width, x1);
+        y1 = Math.min(height, y1);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int ty = y0 / TILE; ty <= (y1 - 1) / TILE; ty++) {
+            for (int tx = x0 / TILE; tx <= (x1 - 1) / TILE; tx++) {
+                markDirty(ty * tilesX + tx, x0 - tx * TILE, y0 - ty * TILE, x1 - tx * TILE, y1 - ty * TILE);
+            }
+        }
+    }
+
+    /**
+     * Makes an area of the document fully transparent again, only touching
+     * tiles that exist.
+     *
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area (exclusive).
+     * @param y1 is the bottom edge of the area (exclusive).
+     */
+    public void clearRect(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(width, x1);
+        y1 = Math.min(height, y1);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int ty = y0 / TILE; ty <= (y1 - 1) / TILE; ty++) {
+            for (int tx = x0 / TILE; tx <= (x1 - 1) / TILE; tx++) {
+                int t = ty * tilesX + tx;
+                if (tiles[t] == null) {
+                    continue;
+                }
+                IntBuffer tile = tile(t);
+                int left = Math.max(x0, tx * TILE) - tx * TILE;
+                int right = Math.min(x1, tx * TILE + TILE) - tx * TILE;
+                int top = Math.max(y0, ty * TILE) - ty * TILE;
+                int bottom = Math.min(y1, ty * TILE + TILE) - ty * TILE;
+                for (int row = top; row < bottom; row++) {
+                    for (int p = row * TILE + left; p < row * TILE + right; p++) {
+                        tile.put(p, 0);
+                    }
+                }
+                markDirty(t, left, top, right, bottom);
+            }
+        }
+    }
+
+    /**
+     * Marks every tile that has something on it in this surface or in
+     * another one as changed, for when this surface replaces the other on
+     * screen.
+     *
+     * @param other is the surface that was shown before, the same size as
+     * this one.
+     */
+    public void markChangedFrom(TiledSurface other) {
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != null || other.tiles[t] != null) {
+                markDirty(t, 0, 0, TILE, TILE);
+            }
+        }
+    }
+
+    /**
+     * Marks every tile that has something on it as changed.
+     */
+    public void markDrawn() {
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != null) {
+                markDirty(t, 0, 0, TILE, TILE);
+            }
+        }
+    }
+
+    /**
+     * Replaces an area with other surfaces blended over each other, from the
+     * first one up, each faded by an alpha of its own. Surfaces are blended
+     * in from the top, so what's under opaque pixels is never looked at.
+     * Pending tiles of the other surfaces are drawn first. Only the tiles of
+     * the area are touched, never the stars, so this costs the same however
+     * many stars the other surfaces hold.
+     *
+     * @param x0 is the left edge of the area.
+     * @param y0 is the top edge of the area.
+     * @param x1 is the right edge of the area (exclusive).
+     * @param y1 is the bottom edge of the area (exclusive).
+     * @param layers are the surfaces to blend, the same size as this one,
+     * bottom first.
+     * @param alphas are the alphas to fade each surface by, 0 to 255.
+     * @param count is the number of surfaces to blend.
+     */
+    public void composite(int x0, int y0, int x1, int y1, TiledSurface[] layers, int[] alphas, int count) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(width, x1);
+        y1 = Math.min(height, y1);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int ty = y0 / TILE; ty <= (y1 - 1) / TILE; ty++) {
+            for (int tx = x0 / TILE; tx <= (x1 - 1) / TILE; tx++) {
+                int t = ty * tilesX + tx;
+                boolean any = false;
+                for (int k = 0; k < count; k++) {
+                    if (layers[k].tiles[t] == PENDING) {
+                        layers[k].resolve(t);
+                    }
+                    any |= layers[k].tiles[t] != null && alphas[k] > 0;
+                }
+                if (!any && tiles[t] == null) {
+                    continue;
+                }
+                IntBuffer tile = tile(t);
+                int left = Math.max(x0, tx * TILE) - tx * TILE;
+                int right = Math.min(x1, tx * TILE + TILE) - tx * TILE;
+                int top = Math.max(y0, ty * TILE) - ty * TILE;
+                int bottom = Math.min(y1, ty * TILE + TILE) - ty * TILE;
+                int w = right - left;
+                for (int row = top; row < bottom; row++) {
+                    // top layer first, so a row is done once it's opaque
+                    Arrays.fill(blended, 0, w, 0);
+                    int open = w;
+                    for (int k = count - 1; k >= 0 && open > 0; k--) {
+                        IntBuffer src = layers[k].tiles[t];
+                        int a = alphas[k];
+                        if (src == null || a == 0) {
+                            continue;
+                        }
+                        src.get(row * TILE + left, line, 0, w);
+                        open = 0;
+                        for (int p = 0; p < w; p++) {
+                            int d = blended[p];
+                            if (d >>> 24 == 255) {
+                                continue;
+                            }
+                            int c = line[p];
+                            if (c != 0) {
+                                d = StarRasterizer.over(d, a == 255 ? c : StarRasterizer.fade(c, a));
+                                blended[p] = d;
+                            }
+                            if (d >>> 24 != 255) {
+                                open++;
+                            }
+                        }
+                    }
+                    tile.put(row * TILE + left, blended, 0, w);
+                }
+                markDirty(t, left, top, right, bottom);
+            }
+        }
+    }
+
+    /**
+     * Throws away every tile so the memory can be reclaimed. Only the tiles
+     * that had something on them are marked as changed.
+     */
+    public void clear() {
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != null) {
+                tiles[t] = null;
+                shared[t] = false;
+                markDirty(t, 0, 0, TILE, TILE);
+            }
+        }
+        allocated = 0;
+    }
+
+    /**
+     * Hands the changed parts of the tiles inside a view rectangle to a
+     * visitor and forgets they changed. Changed tiles completely outside the
+     * view stay changed until they are shown; when the view moves, mark the
+     * new view as changed so tiles that were only partly visible are shown
+     * in full.
+     *
+     * @param viewX is the left edge of the view.
+     * @param viewY is the top edge of the view.
+     * @param viewW is the width of the view.
+     * @param viewH is the height of the view.
+     * @param visitor receives the changed parts.
+     */
+    public void present(int viewX, int viewY, int viewW, int viewH, TileVisitor visitor) {
+        int kept = 0;
+        for (int k = 0; k < dirtyCount; k++) {
+            int t = dirtyList[k];
+            int left = (t % tilesX) * TILE;
+            int top = (t / tilesX) * TILE;
+            int b = t * 4;
+            int x0 = Math.max(left + dirtyBounds[b], viewX);
+            int y0 = Math.max(top + dirtyBounds[b + 1], viewY);
+            int x1 = Math.min(left + dirtyBounds[b + 2], viewX + viewW);
+            int y1 = Math.min(top + dirtyBounds[b + 3], viewY + viewH);
+            if (x0 >= x1 || y0 >= y1) {
+                dirtyList[kept++] = t;
+                continue;
+            }
+            if (tiles[t] == PENDING) {
+                resolve(t);
+            }
+            visitor.tile(x0, y0, x1 - x0, y1 - y0, tiles[t], (y0 - top) * TILE + (x0 - left), TILE);
+            dirty[t] = false;
+        }
+        dirtyCount = kept;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int width of the document.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int height of the document.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return long number of bytes used by the allocated tiles.
+     */
+    public long getAllocatedBytes() {
+        return (long) allocated * TILE * TILE * 4;
+    }
+}
@@ -0,0 +1,439 @@
+package magicpainter;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Makes the stars on the canvas twinkle: the middle of every star dims and
+ * brightens again, each star at its own phase, without touching the
+ * painting. The phase of each star is kept in a table, made once from its
+ * index, and the brightness is rounded to a few levels, so in a frame only
+ * the stars whose level changed have their glint updated, and how much
+ * each pixel is dimmed is kept as a sum, so a glint is taken off by adding
+ * it again negatively whatever overlaps it. The view as it would be shown
+ * without twinkling is kept too, and a frame dims only the part of it where
+ * a glint or the view changed. Doesn't depend on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class Twinkle {
+
+    /**
+     * int describing how many levels of brightness there are, the first one
+     * being not dimmed at all.
+     */
+    static final int LEVELS = 8;
+
+    /**
+     * long describing how long a star takes to dim and brighten again, in
+     * nanoseconds.
+     */
+    static final long PERIOD = 1_600_000_000L;
+
+    /**
+     * int describing the radius of the biggest glint, in canvas pixels.
+     */
+    static final int MAX_RADIUS = 6;
+
+    /**
+     * double describing how big the glint is next to the size of the star.
+     */
+    private static final double GLINT = 0.2;
+
+    /**
+     * int describing the sum of a fully dimmed pixel: the last level times
+     * full coverage.
+     */
+    private static final int FULL = (LEVELS - 1) * 255;
+
+    /**
+     * int describing how much of the brightness a fully dimmed pixel keeps,
+     * out of 256.
+     */
+    private static final int DARKEST = 90;
+
+    /**
+     * The brightness a pixel keeps for each sum, out of 256.
+     */
+    private static final int[] KEEP = new int[FULL + 1];
+
+    /**
+     * array of the coverage of the glint of each radius, a square of 2r+1
+     * bytes a side.
+     */
+    private static final byte[][] SPRITES = new byte[MAX_RADIUS + 1][];
+
+    static {
+        for (int s = 0; s <= FULL; s++) {
+            KEEP[s] = 256 - (256 - DARKEST) * s / FULL;
+        }
+        for (int r = 1; r <= MAX_RADIUS; r++) {
+            int side = 2 * r + 1;
+            byte[] sprite = new byte[side * side];
+            for (int dy = -r; dy <= r; dy++) {
+                for (int dx = -r; dx <= r; dx++) {
+                    double fall = Math.max(0, 1 - Math.sqrt(dx * dx + dy * dy) / (r + 0.5));
+                    sprite[(dy + r) * side + dx + r] = (byte) Math.round(255 * fall * fall);
+                }
+            }
+            SPRITES[r] = sprite;
+        }
+    }
+
+    /**
+     * int describing the width of the view.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the view.
+     */
+    private final int height;
+
+    /**
+     * The premultiplied ARGB pixels of the view without twinkling.
+     */
+    private final int[] base;
+
+    /**
+     * The premultiplied ARGB pixels of the view as shown.
+     */
+    private final int[] shown;
+
+    /**
+     * The sum of the glints over each pixel of the view.
+     */
+    private final int[] dim;
+
+    /**
+     * The phase of each star, 0 to 255 for a whole period.
+     */
+    private byte[] phases = new byte[0];
+
+    /**
+     * The level each star's glint is drawn at, 0 for none.
+     */
+    private byte[] levels = new byte[0];
+
+    /**
+     * int describing how many stars have a phase.
+     */
+    private int phased;
+
+    /**
+     * array of booleans indicating which layers are shown, by layer id.
+     */
+    private final boolean[] visible = new boolean[Painting.MAX_LAYERS];
+
+    /**
+     * int describing the left edge of what changed since the last compose.
+     */
+    private int dirtyX0;
+
+    /**
+     * int describing the top edge of what changed since the last compose.
+     */
+    private int dirtyY0;
+
+    /**
+     * int describing the right edge (exclusive) of what changed since the
+     * last compose.
+     */
+    private int dirtyX1;
+
+    /**
+     * int describing the bottom edge (exclusive) of what changed since the
+     * last compose.
+     */
+    private int dirtyY1;
+
+    /**
+     * int describing the left edge of what the last compose changed.
+     */
+    private int shownX;
+
+    /**
+     * int describing the top edge of what the last compose changed.
+     */
+    private int shownY;
+
+    /**
+     * int describing the width of what the last compose changed.
+     */
+    private int shownWidth;
+
+    /**
+     * int describing the height of what the last compose changed.
+     */
+    private int shownHeight;
+
+    /**
+     * Constructor for a Twinkle.
+     *
+     * @param width is the width of the view.
+     * @param height is the height of the view.
+     */
+    public Twinkle(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.base = new int[width * height];
+        this.shown = new int[width * height];
+        this.dim = new int[width * height];
+    }
+
+    /**
+     * Takes every glint off, for when the stars or the view changed in a way
+     * that moved them. They are put back by the next frame.
+     */
+    public void reset() {
+        Arrays.fill(dim, 0);
+        Arrays.fill(levels, (byte) 0);
+        mark(0, 0, width, height);
+    }
+
+    /**
+     * Copies part of the view without twinkling from a block of pixels.
+     *
+     * @param x is the x-position of the block in the view.
+     * @param y is the y-position of the block in the view.
+     * @param w is the width of the block.
+     * @param h is the height of the block.
+     * @param pixels is the block, or null if it is empty.
+     * @param offset is the index in pixels of the top left pixel.
+     * @param stride is the number of buffer entries between two rows.
+     */
+    public void copy(int x, int y, int w, int h, IntBuffer pixels, int offset, int stride) {
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w);
+        int y1 = Math.min(height, y + h);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int row = y0; row < y1; row++) {
+            if (pixels == null) {
+                Arrays.fill(base, row * width + x0, row * width + x1, 0);
+            } else {
+                pixels.get(offset + (row - y) * stride + x0 - x, base, row * width + x0, x1 - x0);
+            }
+        }
+        mark(x0, y0, x1, y1);
+    }
+
+    /**
+     * Copies the whole view without twinkling.
+     *
+     * @param pixels is the view, width times height pixels.
+     */
+    public void copy(int[] pixels) {
+        System.arraycopy(pixels, 0, base, 0, base.length);
+        mark(0, 0, width, height);
+    }
+
+    /**
+     * Updates the glints of the stars inside the view whose level changed
+     * since the last frame. Stars on hidden layers don't twinkle.
+     *
+     * @param now is the time of the frame in nanoseconds.
+     * @param painting is the painting shown.
+     * @param view is the viewport it is shown through.
+     * @return int number of glints updated.
+     */
+    public int frame(long now, Painting painting, Viewport view) {
+        StarStore stars = painting.getStars();
+        int n = stars.size();
+        grow(n);
+        Arrays.fill(visible, false);
+        for (Layer layer : painting.getLayers()) {
+            visible[layer.getId()] = layer.isVisible() && layer.getAlpha() > 0;
+        }
+        int turn = (int) (Math.floorMod(now, PERIOD) * 256 / PERIOD);
+        double zoom = view.getZoom();
+        double offsetX = view.getOffsetX();
+        double offsetY = view.getOffsetY();
+        int updated = 0;
+        for (int i = 0; i < n; i++) {
+            int level = 0;
+            if (stars.isShown(i) && visible[stars.getLayer(i)]) {
+                int u = (turn + phases[i]) & 255;
+                level = (u < 128 ? u : 255 - u) * LEVELS >> 7;
+            }
+            int old = levels[i];
+            if (level == old) {
+                continue;
+            }
+            int r = radius(stars.getSize(i) * zoom);
+            int cx = (int) Math.floor((stars.getX(i) - offsetX) * zoom);
+            int cy = (int) Math.floor((stars.getY(i) - offsetY) * zoom);
+            if (cx + r < 0 || cy + r < 0 || cx - r >= width || cy - r >= height) {
+                level = 0;
+                if (old == 0) {
+                    continue;
+                }
+            }
+            glint(cx, cy, r, level - old);
+            levels[i] = (byte) level;
+            updated++;
+        }
+        return updated;
+    }
+
+    /**
+     * Gives the stars that came since the last frame a phase.
+     *
+     * @param n is the number of stars.
+     */
+    private void grow(int n) {
+        if (n > phases.length) {
+            int capacity = Math.max(n, phases.length * 2);
+            phases = Arrays.copyOf(phases, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+        }
+        for (int i = phased; i < n; i++) {
+            int h = i * 0x9E3779B9;
+            phases[i] = (byte) (h ^ (h >>> 15) ^ (h >>> 24));
+        }
+        phased = Math.max(phased, n);
+    }
+
+    /**
+     * Works out the radius of the glint of a star.
+     *
+     * @param size is the size of the star on the canvas.
+     * @return int the radius, 1 to MAX_RADIUS.
+     */
+    private static int radius(double size) {
+        return (int) Math.max(1, Math.min(MAX_RADIUS, Math.round(size * GLINT)));
+    }
+
+    /**
+     * Adds a glint to the sums, clipped to the view.
+     *
+     * @param cx is the x-position of its middle in the view.
+     * @param cy is the y-position of its middle in the view.
+     * @param r is its radius.
+     * @param levels is how many levels to add, negative to take it off.
+     */
+    private void glint(int cx, int cy, int r, int levels) {
+        byte[] sprite = SPRITES[r];
+        int side = 2 * r + 1;
+        int x0 = Math.max(0, cx - r);
+        int y0 = Math.max(0, cy - r);
+        int x1 = Math.min(width, cx + r + 1);
+        int y1 = Math.min(height, cy + r + 1);
+        for (int y = y0; y < y1; y++) {
+            int s = (y - cy + r) * side - cx + r;
+            int p = y * width;
+            for (int x = x0; x < x1; x++) {
+                dim[p + x] += levels * (sprite[s + x] & 0xFF);
+            }
+        }
+        mark(x0, y0, x1, y1);
+    }
+
+    /**
+     * Adds a rectangle to what changed.
+     *
+     * @param x0 is the left edge.
+     * @param y0 is the top edge.
+     * @param x1 is the right edge (exclusive).
+     * @param y1 is the bottom edge (exclusive).
+     */
+    private void mark(int x0, int y0, int x1, int y1) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        if (dirtyX0 >= dirtyX1) {
+            dirtyX0 = x0;
+            dirtyY0 = y0;
+            dirtyX1 = x1;
+            dirtyY1 = y1;
+        } else {
+            dirtyX0 = Math.min(dirtyX0, x0);
+            dirtyY0 = Math.min(dirtyY0, y0);
+            dirtyX1 = Math.max(dirtyX1, x1);
+            dirtyY1 = Math.max(dirtyY1, y1);
+        }
+    }
+
+    /**
+     * Dims the part of the view that changed since the last compose into the
+     * shown pixels. The color of each pixel is scaled down and its alpha is
+     * kept, so the glints show on the stars and not on the background; red
+     * and blue are scaled with one multiplication.
+     *
+     * @return boolean true if something changed, in the rectangle given by
+     * the getters.
+     */
+    public boolean compose() {
+        if (dirtyX0 >= dirtyX1) {
+            return false;
+        }
+        for (int y = dirtyY0; y < dirtyY1; y++) {
+            int p = y * width;
+            for (int x = dirtyX0; x < dirtyX1; x++) {
+                int c = base[p + x];
+                int s = dim[p + x];
+                if (s <= 0 || c == 0) {
+                    shown[p + x] = c;
+                } else {
+                    int keep = KEEP[Math.min(s, FULL)];
+                    shown[p + x] = (c & 0xFF000000)
+                            | ((c & 0xFF00FF) * keep >>> 8 & 0xFF00FF)
+                            | ((c & 0xFF00) * keep >>> 8 & 0xFF00);
+                }
+            }
+        }
+        shownX = dirtyX0;
+        shownY = dirtyY0;
+        shownWidth = dirtyX1 - dirtyX0;
+        shownHeight = dirtyY1 - dirtyY0;
+        dirtyX0 = dirtyX1 = 0;
+        return true;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int[] the pixels of the view as shown, width pixels a row.
+     */
+    public int[] getPixels() {
+        return shown;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the left edge of what the last compose changed.
+     */
+    public int getShownX() {
+        return shownX;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the top edge of what the last compose changed.
+     */
+    public int getShownY() {
+        return shownY;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the width of what the last compose changed.
+     */
+    public int getShownWidth() {
+        return shownWidth;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int the height of what the last compose changed.
+     */
+    public int getShownHeight() {
+        return shownHeight;
+    }
+}
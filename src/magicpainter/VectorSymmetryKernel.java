@@ -0,0 +1,38 @@
+package magicpainter;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Symmetry kernel rotating as many angles at a time as the CPU's widest
+ * float vectors hold. Only loaded by Symmetry, through reflection, because
+ * the class can't be linked unless the JVM was started with --add-modules
+ * jdk.incubator.vector. Does the same operations in the same order as the
+ * scalar kernel, without fused multiply-adds, so the results are the same
+ * to the bit.
+ *
+ * @author sylverk @ github
+ */
+final class VectorSymmetryKernel implements Symmetry.Kernel {
+
+    /**
+     * The vector shape used, the widest one the CPU does well.
+     */
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void rotate(float[] cos, float[] sin, int n, float dx, float dy, float cx, float cy,
+            float[] x, float[] y, int offset) {
+        int k = 0;
+        for (int bound = SPECIES.loopBound(n); k < bound; k += SPECIES.length()) {
+            FloatVector c = FloatVector.fromArray(SPECIES, cos, k);
+            FloatVector s = FloatVector.fromArray(SPECIES, sin, k);
+            c.mul(dx).sub(s.mul(dy)).add(cx).intoArray(x, offset + k);
+            s.mul(dx).add(c.mul(dy)).add(cy).intoArray(y, offset + k);
+        }
+        for (; k < n; k++) {
+            x[offset + k] = cx + (dx * cos[k] - dy * sin[k]);
+            y[offset + k] = cy + (dx * sin[k] + dy * cos[k]);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package magicpainter;
+
+import java.util.Arrays;
+
+/**
+ * Draws the stars inside a viewport straight into a buffer the size of the
+ * canvas, for when the view is zoomed and the 1:1 tiles can't be copied
+ * onto the canvas. Stars outside the view are skipped, through the index
+ * when the view is a small part of the document, and so are occluded stars:
+ * zoomed, the pixels don't line up with the document pixels the stars over
+ * them cover, so they could still blend into the edges a little, but the
+ * view is only an approximation of the tiles anyway. Stars that come out
+ * smaller than a pixel are drawn as a single pixel with their area as the
+ * alpha, and small ones as a soft box of the same area, so a zoomed out
+ * painting of millions of stars costs a few operations per star instead of
+ * scan converting each one. When the painting has layers to blend, each
+ * layer is drawn into a buffer of its own and the buffers are blended, so
+ * hiding, fading or moving a layer only blends the buffers again. Doesn't
+ * depend on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class ViewRenderer {
+
+    /**
+     * double describing the size on screen below which a star is drawn as
+     * one pixel.
+     */
+    private static final double POINT = 1.5;
+
+    /**
+     * double describing the size on screen below which a star is drawn as a
+     * box.
+     */
+    private static final double BOX = 6;
+
+    /**
+     * double describing the part of the document the view may cover before
+     * checking every star is cheaper than asking the index.
+     */
+    private static final double INDEX_LIMIT = 0.1;
+
+    /**
+     * int describing the width of the buffer.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the buffer.
+     */
+    private final int height;
+
+    /**
+     * The premultiplied ARGB pixels of the view.
+     */
+    private final int[] pixels;
+
+    /**
+     * array of the premultiplied ARGB pixels of each layer, by layer id,
+     * allocated the first time a layer is drawn into.
+     */
+    private final int[][] layerPixels = new int[Painting.MAX_LAYERS][];
+
+    /**
+     * array of booleans indicating which layer buffers have something on
+     * them.
+     */
+    private final boolean[] drawn = new boolean[Painting.MAX_LAYERS];
+
+    /**
+     * boolean indicating if the last render went into the layer buffers.
+     */
+    private boolean layered;
+
+    /**
+     * The buffer the star being drawn goes into.
+     */
+    private int[] target;
+
+    /**
+     * The rasterizer for stars big enough to show their shape.
+     */
+    private final StarRasterizer rasterizer = new StarRasterizer();
+
+    /**
+     * double describing the x-position in the document of the left edge of
+     * the view being drawn.
+     */
+    private double offsetX;
+
+    /**
+     * double describing the y-position in the document of the top edge of
+     * the view being drawn.
+     */
+    private double offsetY;
+
+    /**
+     * double describing the zoom of the view being drawn.
+     */
+    private double zoom;
+
+    /**
+     * Constructor for a ViewRenderer.
+     *
+     * @param width is the width of the canvas.
+     * @param height is the height of the canvas.
+     */
+    public ViewRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+    }
+
+    /**
+     * Clears the buffer and draws every star that can be seen through a
+     * viewport, in the order they were added.
+     *
+     * @param painting is the painting to draw.
+     * @param view is the viewport to draw.
+     */
+    public void render(Painting painting, Viewport view) {
+        StarStore stars = painting.getStars();
+        offsetX = view.getOffsetX();
+        offsetY = view.getOffsetY();
+        zoom = view.getZoom();
+        layered = !painting.isFlat();
+        Arrays.fill(pixels, 0);
+        for (int k = 0; k < drawn.length; k++) {
+            if (drawn[k]) {
+                Arrays.fill(layerPixels[k], 0);
+                drawn[k] = false;
+            }
+        }
+        double viewW = width / zoom;
+        double viewH = height / zoom;
+        if (viewW * viewH < INDEX_LIMIT * painting.getWidth() * painting.getHeight()) {
+            StarIndex index = painting.getIndex();
+            int n = index.query(offsetX, offsetY, offsetX + viewW, offsetY + viewH);
+            int[] found = index.getResults();
+            for (int k = 0; k < n; k++) {
+                if (!stars.isOccluded(found[k])) {
+                    draw(stars, found[k]);
+                }
+            }
+        } else {
+            for (int i = 0; i < stars.size(); i++) {
+                if (stars.isShown(i)) {
+                    draw(stars, i);
+                }
+            }
+        }
+        if (layered) {
+            blendLayers(painting);
+        }
+    }
+
+    /**
+     * Draws more stars over what was last rendered, with the same viewport,
+     * for stars added since.
+     *
+     * @param painting is the painting holding the stars.
+     * @param from is the index of the first star to draw.
+     * @param to is the index after the last star to draw.
+     */
+    public void drawRange(Painting painting, int from, int to) {
+        StarStore stars = painting.getStars();
+        for (int i = from; i < to; i++) {
+            if (stars.isShown(i)) {
+                draw(stars, i);
+            }
+        }
+        if (layered) {
+            blendLayers(painting);
+        }
+    }
+
+    /**
+     * Checks if the layer buffers of the last render can be blended again
+     * after a layer was shown, hidden, faded, moved or added, which
+     * {@link #drawRange} does without drawing any star when there are no new
+     * ones.
+     *
+     * @param painting is the painting that was last rendered.
+     * @return boolean false if the last render didn't keep layers, or the
+     * painting no longer has layers, so it has to be rendered again.
+     */
+    public boolean isLayered(Painting painting) {
+        return layered && !painting.isFlat();
+    }
+
+    /**
+     * Blends the buffers of the shown layers into the pixels, bottom first.
+     *
+     * @param painting is the painting with the layers.
+     */
+    private void blendLayers(Painting painting) {
+        Arrays.fill(pixels, 0);
+        for (Layer layer : painting.getLayers()) {
+            int a = layer.getAlpha();
+            if (!layer.isVisible() || a == 0 || !drawn[layer.getId()]) {
+                continue;
+            }
+            int[] src = layerPixels[layer.getId()];
+            for (int p = 0; p < pixels.length; p++) {
+                int c = src[p];
+                if (c != 0) {
+                    pixels[p] = StarRasterizer.over(a == 255 ? c : StarRasterizer.fade(c, a), pixels[p]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws one star at the detail its size on screen needs, or nothing if
+     * it's outside the view.
+     *
+     * @param stars is the store holding the star.
+     * @param i is the index of the star.
+     */
+    private void draw(StarStore stars, int i) {
+        double size = stars.getSize(i) * zoom;
+        double x = (stars.getX(i) - offsetX) * zoom;
+        double y = (stars.getY(i) - offsetY) * zoom;
+        double left = x - size * StarGeometry.HALF_WIDTH;
+        double right = x + size * StarGeometry.HALF_WIDTH;
+        double top = y - size * StarGeometry.TOP;
+        double bottom = y + size * StarGeometry.BOTTOM;
+        if (right <= 0 || bottom <= 0 || left >= width || top >= height || !(size > 0)) {
+            return;
+        }
+        int argb = stars.getPalette().get(stars.getColor(i));
+        target = pixels;
+        if (layered) {
+            int layer = stars.getLayer(i);
+            if (layerPixels[layer] == null) {
+                layerPixels[layer] = new int[width * height];
+            }
+            drawn[layer] = true;
+            target = layerPixels[layer];
+        }
+        if (size < POINT) {
+            int px = (int) ((left + right) / 2);
+            int py = (int) ((top + bottom) / 2);
+            if (px >= 0 && py >= 0 && px < width && py < height) {
+                splat(py * width + px, argb, StarGeometry.AREA * size * size);
+            }
+        } else if (size < BOX) {
+            box(left, top, right, bottom, argb, StarGeometry.AREA * size * size / ((right - left) * (bottom - top)));
+        } else {
+            rasterizer.fillStar(target, 0, width, 0, 0, 0, 0, width, height, size, x, y, argb);
+        }
+    }
+
+    /**
+     * Spreads the area of a small star evenly over its bounding box, giving
+     * each pixel the part of the box that covers it.
+     *
+     * @param left is the left edge of the box on screen.
+     * @param top is the top edge of the box on screen.
+     * @param right is the right edge of the box on screen.
+     * @param bottom is the bottom edge of the box on screen.
+     * @param argb is the color packed as 0xAARRGGBB (not premultiplied).
+     * @param density is the part of the box the star covers.
+     */
+    private void box(double left, double top, double right, double bottom, int argb, double density) {
+        int x0 = Math.max(0, (int) Math.floor(left));
+        int x1 = Math.min(width, (int) Math.ceil(right));
+        int y0 = Math.max(0, (int) Math.floor(top));
+        int y1 = Math.min(height, (int) Math.ceil(bottom));
+        for (int py = y0; py < y1; py++) {
+            double h = Math.min(bottom, py + 1) - Math.max(top, py);
+            for (int px = x0; px < x1; px++) {
+                double w = Math.min(right, px + 1) - Math.max(left, px);
+                splat(py * width + px, argb, w * h * density);
+            }
+        }
+    }
+
+    /**
+     * Blends a color over one pixel of the target buffer with part of its
+     * alpha.
+     *
+     * @param p is the index of the pixel.
+     * @param argb is the color packed as 0xAARRGGBB (not premultiplied).
+     * @param coverage is the part of the pixel the color covers.
+     */
+    private void splat(int p, int argb, double coverage) {
+        int a = (int) Math.round(Math.min(coverage, 1) * (argb >>> 24));
+        if (a > 0) {
+            target[p] = StarRasterizer.blend(target[p], argb, a);
+        }
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return array of the premultiplied ARGB pixels of the view, a row of
+     * width pixels after another.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+}
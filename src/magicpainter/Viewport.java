@@ -0,0 +1,214 @@
+package magicpainter;
+
+/**
+ * The part of the document shown on the canvas: the document position of
+ * the top left corner of the canvas and how many canvas pixels a document
+ * pixel takes. The view is kept inside the document, and at a zoom of 1 the
+ * offsets are whole pixels so the tiles can be copied straight onto the
+ * canvas. Doesn't depend on JavaFX.
+ *
+ * @author sylverk @ github
+ */
+public class Viewport {
+
+    /**
+     * double describing the largest zoom.
+     */
+    public static final double MAX_ZOOM = 32;
+
+    /**
+     * int describing the width of the document.
+     */
+    private final int docWidth;
+
+    /**
+     * int describing the height of the document.
+     */
+    private final int docHeight;
+
+    /**
+     * int describing the width of the canvas.
+     */
+    private final int width;
+
+    /**
+     * int describing the height of the canvas.
+     */
+    private final int height;
+
+    /**
+     * double describing the x-position in the document of the left edge of
+     * the canvas.
+     */
+    private double offsetX;
+
+    /**
+     * double describing the y-position in the document of the top edge of
+     * the canvas.
+     */
+    private double offsetY;
+
+    /**
+     * double describing how many canvas pixels a document pixel takes.
+     */
+    private double zoom = 1;
+
+    /**
+     * Constructor for a Viewport showing the top left corner of the document
+     * at 1:1.
+     *
+     * @param docWidth is the width of the document.
+     * @param docHeight is the height of the document.
+     * @param width is the width of the canvas.
+     * @param height is the height of the canvas.
+     */
+    public Viewport(int docWidth, int docHeight, int width, int height) {
+        this.docWidth = docWidth;
+        this.docHeight = docHeight;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Zooms in or out keeping the document point under a canvas position in
+     * place, like under the mouse. The zoom snaps to 1 when it passes it so
+     * 1:1 is easy to get back to.
+     *
+     * @param x is the x-position on the canvas.
+     * @param y is the y-position on the canvas.
+     * @param factor is what to multiply the zoom by.
+     */
+    public void zoomAt(double x, double y, double factor) {
+        double docX = toDocX(x);
+        double docY = toDocY(y);
+        double next = Math.max(getMinZoom(), Math.min(MAX_ZOOM, zoom * factor));
+        if ((zoom - 1) * (next - 1) < 0 || Math.abs(next - 1) < 1e-9) {
+            next = 1;
+        }
+        zoom = next;
+        offsetX = docX - x / zoom;
+        offsetY = docY - y / zoom;
+        clamp();
+    }
+
+    /**
+     * Works out how much a turn of the mouse wheel zooms, a notch being a
+     * quarter.
+     *
+     * @param deltaY is how far the wheel turned, 40 per notch.
+     * @return double what to multiply the zoom by.
+     */
+    public static double wheelFactor(double deltaY) {
+        return Math.pow(1.25, deltaY / 40);
+    }
+
+    /**
+     * Moves the view by an amount of canvas pixels, for dragging the
+     * document around.
+     *
+     * @param dx is how far to move the document right on the canvas.
+     * @param dy is how far to move the document down on the canvas.
+     */
+    public void panBy(double dx, double dy) {
+        offsetX -= dx / zoom;
+        offsetY -= dy / zoom;
+        clamp();
+    }
+
+    /**
+     * Goes back to 1:1 at the top left corner of the document.
+     */
+    public void reset() {
+        zoom = 1;
+        offsetX = 0;
+        offsetY = 0;
+    }
+
+    /**
+     * Keeps the view inside the document, and the offsets whole at 1:1.
+     */
+    private void clamp() {
+        offsetX = Math.max(0, Math.min(docWidth - width / zoom, offsetX));
+        offsetY = Math.max(0, Math.min(docHeight - height / zoom, offsetY));
+        if (zoom == 1) {
+            offsetX = Math.round(offsetX);
+            offsetY = Math.round(offsetY);
+        }
+    }
+
+    /**
+     * Turns a canvas x-position into a document x-position.
+     *
+     * @param x is the x-position on the canvas.
+     * @return double x-position in the document.
+     */
+    public double toDocX(double x) {
+        return offsetX + x / zoom;
+    }
+
+    /**
+     * Turns a canvas y-position into a document y-position.
+     *
+     * @param y is the y-position on the canvas.
+     * @return double y-position in the document.
+     */
+    public double toDocY(double y) {
+        return offsetY + y / zoom;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return double the smallest zoom, where the whole document fits.
+     */
+    public double getMinZoom() {
+        return Math.min(1, Math.max((double) width / docWidth, (double) height / docHeight));
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return double x-position in the document of the left edge of the
+     * canvas.
+     */
+    public double getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return double y-position in the document of the top edge of the
+     * canvas.
+     */
+    public double getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return double how many canvas pixels a document pixel takes.
+     */
+    public double getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int width of the canvas.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Standard getter.
+     *
+     * @return int height of the canvas.
+     */
+    public int getHeight() {
+        return height;
+    }
+}